@@ -0,0 +1,228 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * 非同步地執行MagicImage的功能。</p>
+ *
+ * <p>
+ * 所有的工作都在一個獨立、有上限的ForkJoinPool中執行，執行緒數量預設為CPU的數量，因此就算呼叫端使用大量的執行緒(例如每個請求一個虛擬執行緒)，影像處理佔用的CPU也不會超過核心數。工作中使用平行串流的部份(例如影像統計)也會在同一個池中執行。和同步的方法相同，失敗時CompletableFuture會以null完成。MagicImage在持有監視器鎖(synchronized)時不會進行檔案或串流的I/O，因此同步的方法也可以直接在虛擬執行緒中呼叫。</p>
+ *
+ * @author Magic Len
+ */
+public final class ImageAsync {
+
+    // -----類別常數-----
+    /**
+     * 執行緒的編號。
+     */
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+
+    // -----類別變數-----
+    /**
+     * 執行工作的Executor，若為null，則使用預設的ForkJoinPool。
+     */
+    private static volatile Executor executor;
+
+    // -----類別方法-----
+    /**
+     * 設定執行工作的Executor。
+     *
+     * @param executor 傳入Executor，若為null，則使用預設的ForkJoinPool
+     */
+    public static void setExecutor(final Executor executor) {
+	ImageAsync.executor = executor;
+    }
+
+    /**
+     * 取得執行工作的Executor。
+     *
+     * @return 傳回Executor
+     */
+    public static Executor getExecutor() {
+	final Executor e = executor;
+	return e != null ? e : DefaultPool.POOL;
+    }
+
+    /**
+     * 非同步地執行工作。
+     *
+     * @param <T> 結果的型態
+     * @param task 傳入工作
+     * @return 傳回CompletableFuture物件
+     */
+    public static <T> CompletableFuture<T> supplyAsync(final Supplier<T> task) {
+	return CompletableFuture.supplyAsync(task, getExecutor());
+    }
+
+    /**
+     * 非同步地從圖片檔案取得BufferedImage。
+     *
+     * @param file 傳入圖片檔案
+     * @param normalize 傳入是否將圖片轉換成快速的工作類型
+     * @param autoOrient 傳入是否依照EXIF的方向將圖片轉正
+     * @return 傳回CompletableFuture物件，若轉換失敗，結果為null
+     * @see ImageBuffer#getBufferedImages(java.io.File, boolean, boolean)
+     */
+    public static CompletableFuture<BufferedImage[]> decodeAsync(final File file, final boolean normalize, final boolean autoOrient) {
+	return supplyAsync(() -> ImageBuffer.getBufferedImages(SourceImage.open(file), normalize, autoOrient));
+    }
+
+    /**
+     * 非同步地從來源圖片取得BufferedImage。
+     *
+     * @param source 傳入來源圖片
+     * @param normalize 傳入是否將圖片轉換成快速的工作類型
+     * @param autoOrient 傳入是否依照EXIF的方向將圖片轉正
+     * @return 傳回CompletableFuture物件，若轉換失敗，結果為null
+     * @see ImageBuffer#getBufferedImages(org.magiclen.magicimage.SourceImage, boolean, boolean)
+     */
+    public static CompletableFuture<BufferedImage[]> decodeAsync(final SourceImage source, final boolean normalize, final boolean autoOrient) {
+	return supplyAsync(() -> ImageBuffer.getBufferedImages(source, normalize, autoOrient));
+    }
+
+    /**
+     * 非同步地重新縮放BufferedImage物件。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param width 傳入要修改成的寬度，若小於等於0，則依照比例自動計算
+     * @param height 傳入要修改成的高度，若小於等於0，則依照比例自動計算
+     * @param sharpen 傳入JPEG的銳化程度(0~10)，若小於0，則自動計算銳化程度
+     * @param sharpenOnlyShrink 傳入是否只在縮圖時使用銳化
+     * @return 傳回CompletableFuture物件，若調整失敗，結果為null
+     * @see ImageResize#resize(java.awt.image.BufferedImage, int, int, float, boolean)
+     */
+    public static CompletableFuture<BufferedImage> resizeAsync(final BufferedImage bi, final int width, final int height, final float sharpen, final boolean sharpenOnlyShrink) {
+	return supplyAsync(() -> ImageResize.resize(bi, width, height, sharpen, sharpenOnlyShrink));
+    }
+
+    /**
+     * 非同步地重新縮放BufferedImage物件，讓最大邊等於指定的長度。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param maxSide 傳入最大邊要修改成的長度
+     * @param sharpen 傳入JPEG的銳化程度(0~10)，若小於0，則自動計算銳化程度
+     * @param onlyShrink 傳入是否僅進行縮圖
+     * @param sharpenOnlyShrink 傳入是否只在縮圖時使用銳化
+     * @return 傳回CompletableFuture物件，若調整失敗，結果為null
+     * @see ImageResize#resize(java.awt.image.BufferedImage, int, float, boolean, boolean)
+     */
+    public static CompletableFuture<BufferedImage> resizeAsync(final BufferedImage bi, final int maxSide, final float sharpen, final boolean onlyShrink, final boolean sharpenOnlyShrink) {
+	return supplyAsync(() -> ImageResize.resize(bi, maxSide, sharpen, onlyShrink, sharpenOnlyShrink));
+    }
+
+    /**
+     * 非同步地輸出JPEG圖片檔案。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param outputFile 傳入輸出的檔案
+     * @param quality 傳入品質(0~1)
+     * @param overwrite 傳入是否覆蓋已存在的檔案
+     * @return 傳回CompletableFuture物件，結果為實際輸出的檔案，若輸出失敗，結果為null
+     * @see ImageExport#exportToJPEG(java.awt.image.BufferedImage, java.io.File, float, boolean)
+     */
+    public static CompletableFuture<File> exportToJPEGAsync(final BufferedImage bi, final File outputFile, final float quality, final boolean overwrite) {
+	return supplyAsync(() -> ImageExport.exportToJPEG(bi, outputFile, quality, overwrite));
+    }
+
+    /**
+     * 非同步地輸出PNG圖片檔案。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param outputFile 傳入輸出的檔案
+     * @param encoder 傳入PNG編碼器，若為null，則使用預設的設定。若編碼器會平行壓縮，但沒有設定Executor，則平行壓縮也會在執行工作的Executor中進行，傳入的編碼器不會被修改
+     * @param overwrite 傳入是否覆蓋已存在的檔案
+     * @return 傳回CompletableFuture物件，結果為實際輸出的檔案，若輸出失敗，結果為null
+     * @see ImageExport#exportToPNG(java.awt.image.BufferedImage, java.io.File, org.magiclen.magicimage.PNGEncoder, boolean)
+     */
+    public static CompletableFuture<File> exportToPNGAsync(final BufferedImage bi, final File outputFile, final PNGEncoder encoder, final boolean overwrite) {
+	if (encoder == null) {
+	    return supplyAsync(() -> ImageExport.exportToPNG(bi, outputFile, overwrite));
+	}
+	final PNGEncoder asyncEncoder = bindExecutor(encoder);
+	return supplyAsync(() -> ImageExport.exportToPNG(bi, outputFile, asyncEncoder, overwrite));
+    }
+
+    /**
+     * 讓沒有設定Executor的平行PNG編碼器不使用ForkJoinPool的共用池。執行工作的Executor是ForkJoinPool時，區段會在同一個池中壓縮，等待區段的執行緒會被池補上，不會卡住；其它的Executor在所有執行緒都等待區段時可能會卡住，因此改為在執行工作的執行緒中依序壓縮。
+     *
+     * @param encoder 傳入PNG編碼器
+     * @return 傳回可以直接使用的PNG編碼器，若需要調整，則傳回調整過的複本
+     */
+    private static PNGEncoder bindExecutor(final PNGEncoder encoder) {
+	if (!encoder.isParallel() || encoder.getExecutor() != null) {
+	    return encoder;
+	}
+	final Executor e = getExecutor();
+	final PNGEncoder copy = encoder.copy();
+	if (e instanceof ForkJoinPool) {
+	    copy.setExecutor(e);
+	} else {
+	    copy.setParallel(false);
+	}
+	return copy;
+    }
+
+    /**
+     * 非同步地輸出WebP圖片檔案。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param outputFile 傳入輸出的檔案
+     * @param encoder 傳入WebP編碼器，若為null，則使用預設的設定
+     * @param overwrite 傳入是否覆蓋已存在的檔案
+     * @return 傳回CompletableFuture物件，結果為實際輸出的檔案，若輸出失敗，結果為null
+     * @see ImageExport#exportToWebP(java.awt.image.BufferedImage, java.io.File, org.magiclen.magicimage.WebPEncoder, boolean)
+     */
+    public static CompletableFuture<File> exportToWebPAsync(final BufferedImage bi, final File outputFile, final WebPEncoder encoder, final boolean overwrite) {
+	return supplyAsync(() -> ImageExport.exportToWebP(bi, outputFile, encoder != null ? encoder : new WebPEncoder(), overwrite));
+    }
+
+    // -----建構子-----
+    /**
+     * 私有的建構子，將無法被實體化。
+     */
+    private ImageAsync() {
+
+    }
+
+    // -----內部類別-----
+    /**
+     * 預設的ForkJoinPool，第一次使用時才建立。
+     */
+    private static final class DefaultPool {
+
+	/**
+	 * 執行緒數量為CPU數量的ForkJoinPool，使用常駐程式(daemon)執行緒，不會阻止JVM結束。
+	 */
+	static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), (final ForkJoinPool pool) -> {
+	    final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+	    thread.setName("MagicImage-" + THREAD_NUMBER.incrementAndGet());
+	    return thread;
+	}, null, false);
+    }
+}
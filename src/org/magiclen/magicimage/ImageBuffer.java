@@ -18,12 +18,28 @@
 package org.magiclen.magicimage;
 
 import com.icafe4j.image.ImageIO;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.File;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.Hashtable;
+import org.apache.commons.imaging.ImageParser;
 import org.apache.commons.imaging.Imaging;
 
 /**
@@ -47,7 +63,8 @@ public final class ImageBuffer {
 	}
 	final ColorModel cm = bi.getColorModel();
 	final boolean isAlphaPremultiplied = cm.isAlphaPremultiplied();
-	final WritableRaster raster = bi.copyData(null);
+	final WritableRaster raster = bi.getRaster().createCompatibleWritableRaster(bi.getWidth(), bi.getHeight()); // 剪裁出來的圖片的Raster會有偏移量，要建立新的緊密Raster
+	bi.copyData(raster);
 	final Hashtable<String, Object> properties = new Hashtable<>();
 	final String[] keys = bi.getPropertyNames();
 	if (keys != null) {
@@ -59,12 +76,20 @@ public final class ImageBuffer {
     }
 
     /**
-     * 從圖片檔案取得BufferedImage。
+     * 從圖片檔案取得BufferedImage。WebP圖片會使用內建的解碼器，動畫的每個畫格都會各自輸出成一個BufferedImage。
      *
      * @param file 傳入圖片檔案
      * @return 傳回BufferedImage物件，若轉換失敗，傳回null。
      */
     public static BufferedImage[] getBufferedImages(final File file) {
+	if (WebPDecoder.isWebP(file)) {
+	    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+		return WebPDecoder.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+	    } catch (final Exception ex) {
+		ex.printStackTrace(System.out);
+		return null;
+	    }
+	}
 	try {
 	    final List<BufferedImage> imageList = Imaging.getAllBufferedImages(file);
 	    final BufferedImage[] bufferedImages = new BufferedImage[imageList.size()];
@@ -82,6 +107,329 @@ public final class ImageBuffer {
 	}
     }
 
+    /**
+     * 從來源圖片取得BufferedImage。會直接解碼來源圖片的資料，不會再開啟檔案。WebP圖片會使用內建的解碼器。
+     *
+     * @param source 傳入來源圖片
+     * @return 傳回BufferedImage物件，若轉換失敗，傳回null。
+     */
+    public static BufferedImage[] getBufferedImages(final SourceImage source) {
+	if (source == null) {
+	    return null;
+	}
+	final ByteBuffer buffer = source.getBuffer();
+	if (buffer != null && WebPDecoder.isWebP(buffer)) {
+	    try {
+		return WebPDecoder.decode(buffer);
+	    } catch (final Exception ex) {
+		ex.printStackTrace(System.out);
+		return null;
+	    }
+	}
+	try {
+	    final ImageParser parser = source.getParser();
+	    final List<BufferedImage> imageList = parser != null ? parser.getAllBufferedImages(source.getByteSource()) : Imaging.getAllBufferedImages(source.getInputStream(), source.getName());
+	    final BufferedImage[] bufferedImages = new BufferedImage[imageList.size()];
+	    imageList.toArray(bufferedImages);
+	    return bufferedImages;
+	} catch (final Exception ex) {
+	    try {
+		final BufferedImage bufferedImage = ImageIO.read(source.getInputStream());
+		return new BufferedImage[]{bufferedImage};
+	    } catch (final Exception ex2) {
+		ex.printStackTrace(System.out);
+		ex2.printStackTrace(System.out);
+		return null;
+	    }
+	}
+    }
+
+    /**
+     * 從來源圖片取得BufferedImage。若要自動轉正，會從同一份資料讀取EXIF的方向(Orientation)。
+     *
+     * @param source 傳入來源圖片
+     * @param normalize 傳入是否將圖片轉換成快速的工作類型
+     * @param autoOrient 傳入是否依照EXIF的方向將圖片轉正
+     * @return 傳回BufferedImage物件，若轉換失敗，傳回null。
+     * @see #normalize(java.awt.image.BufferedImage)
+     * @see #orient(java.awt.image.BufferedImage, int)
+     */
+    public static BufferedImage[] getBufferedImages(final SourceImage source, final boolean normalize, final boolean autoOrient) {
+	final BufferedImage[] bufferedImages = getBufferedImages(source);
+	if (bufferedImages == null || (!normalize && !autoOrient)) {
+	    return bufferedImages;
+	}
+	final ImageExif exif = autoOrient ? ImageExif.read(source) : null;
+	for (int i = 0; i < bufferedImages.length; ++i) {
+	    final int orientation = exif != null ? exif.getOrientation(i) : 1;
+	    bufferedImages[i] = orient(bufferedImages[i], orientation, normalize);
+	}
+	return bufferedImages;
+    }
+
+    /**
+     * 將BufferedImage物件轉換成快速的工作類型。有透明層的圖片會轉成TYPE_INT_ARGB，其它的圖片會轉成TYPE_INT_RGB。各種常見的類型(索引色、灰階、位元組交錯排列、16位元、預乘透明值)都使用專門的迴圈轉換，有色彩管理的圖片(例如CMYK)才使用ICC轉換。若圖片已經是緊密排列的工作類型，則直接傳回原本的物件。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @return 傳回轉換後的BufferedImage物件，若轉換失敗，傳回null。
+     */
+    public static BufferedImage normalize(final BufferedImage bi) {
+	if (bi == null) {
+	    return null;
+	}
+	if (ImagePixels.getDirectData(bi) != null) {
+	    return bi;
+	}
+	final int width = bi.getWidth(), height = bi.getHeight();
+	final ColorModel cm = bi.getColorModel();
+	final BufferedImage dest = new BufferedImage(width, height, cm.hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+	final int[] destData = ((DataBufferInt) dest.getRaster().getDataBuffer()).getData();
+	final Raster raster = bi.getRaster();
+	final ColorSpace cs = cm.getColorSpace();
+
+	if (cm instanceof IndexColorModel) {
+	    // 索引色，直接查色盤；色盤補足到樣本能表示的所有索引，超過256色的色盤(16位元索引)也不會查錯
+	    final IndexColorModel icm = (IndexColorModel) cm;
+	    final int[] palette = new int[Math.max(icm.getMapSize(), 1 << raster.getSampleModel().getSampleSize(0))];
+	    icm.getRGBs(palette);
+	    final int[] samples = new int[width];
+	    for (int y = 0; y < height; ++y) {
+		raster.getSamples(0, y, width, 1, 0, samples);
+		final int offset = y * width;
+		for (int x = 0; x < width; ++x) {
+		    destData[offset + x] = palette[samples[x]];
+		}
+	    }
+	} else if (cm instanceof ComponentColorModel && cs.getType() == ColorSpace.TYPE_GRAY && !cm.hasAlpha() && cm.getNumComponents() == 1 && (raster.getTransferType() == DataBuffer.TYPE_BYTE || raster.getTransferType() == DataBuffer.TYPE_USHORT)) {
+	    // 灰階，使用查找表將線性的灰階轉成sRGB
+	    final boolean linear = cs == ColorSpace.getInstance(ColorSpace.CS_GRAY);
+	    final boolean shortSamples = raster.getTransferType() == DataBuffer.TYPE_USHORT;
+	    final int[] lut = linear ? (shortSamples ? GrayLut.USHORT : GrayLut.BYTE) : null;
+	    final int[] samples = new int[width];
+	    for (int y = 0; y < height; ++y) {
+		raster.getSamples(0, y, width, 1, 0, samples);
+		final int offset = y * width;
+		for (int x = 0; x < width; ++x) {
+		    final int sample = samples[x];
+		    final int v = lut != null ? lut[sample] : (shortSamples ? (sample * 255 + 32767) / 65535 : sample);
+		    destData[offset + x] = 0xFF000000 | (v << 16) | (v << 8) | v;
+		}
+	    }
+	} else if (cm instanceof ComponentColorModel && cs.isCS_sRGB() && raster.getSampleModel() instanceof ComponentSampleModel && raster.getDataBuffer().getNumBanks() == 1 && (raster.getTransferType() == DataBuffer.TYPE_BYTE || raster.getTransferType() == DataBuffer.TYPE_USHORT)) {
+	    // 位元組或16位元交錯排列的RGB(A)，例如TYPE_3BYTE_BGR、TYPE_4BYTE_ABGR
+	    final ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+	    final DataBuffer dataBuffer = raster.getDataBuffer();
+	    final boolean shortSamples = raster.getTransferType() == DataBuffer.TYPE_USHORT;
+	    final byte[] bytes = shortSamples ? null : ((DataBufferByte) dataBuffer).getData();
+	    final short[] shorts = shortSamples ? ((DataBufferUShort) dataBuffer).getData() : null;
+	    final int pixelStride = sm.getPixelStride(), scanlineStride = sm.getScanlineStride();
+	    final int[] bandOffsets = sm.getBandOffsets();
+	    final boolean alpha = cm.hasAlpha(), premultiplied = cm.isAlphaPremultiplied();
+	    final int rOffset = bandOffsets[0], gOffset = bandOffsets[1], bOffset = bandOffsets[2], aOffset = alpha ? bandOffsets[3] : 0;
+	    final int base = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * scanlineStride - raster.getSampleModelTranslateX() * pixelStride;
+	    for (int y = 0; y < height; ++y) {
+		int index = base + y * scanlineStride;
+		final int offset = y * width;
+		for (int x = 0; x < width; ++x, index += pixelStride) {
+		    int r, g, b, a;
+		    if (shortSamples) {
+			r = ((shorts[index + rOffset] & 0xFFFF) * 255 + 32767) / 65535;
+			g = ((shorts[index + gOffset] & 0xFFFF) * 255 + 32767) / 65535;
+			b = ((shorts[index + bOffset] & 0xFFFF) * 255 + 32767) / 65535;
+			a = alpha ? ((shorts[index + aOffset] & 0xFFFF) * 255 + 32767) / 65535 : 255;
+		    } else {
+			r = bytes[index + rOffset] & 0xFF;
+			g = bytes[index + gOffset] & 0xFF;
+			b = bytes[index + bOffset] & 0xFF;
+			a = alpha ? bytes[index + aOffset] & 0xFF : 255;
+		    }
+		    if (premultiplied && a != 255) {
+			if (a == 0) {
+			    r = g = b = 0;
+			} else {
+			    r = Math.min(255, (r * 255 + (a >> 1)) / a);
+			    g = Math.min(255, (g * 255 + (a >> 1)) / a);
+			    b = Math.min(255, (b * 255 + (a >> 1)) / a);
+			}
+		    }
+		    destData[offset + x] = (a << 24) | (r << 16) | (g << 8) | b;
+		}
+	    }
+	} else if (!cs.isCS_sRGB() && !(cm instanceof DirectColorModel)) {
+	    // 有色彩管理的圖片，使用ICC轉換
+	    final ColorConvertOp colorConv = new ColorConvertOp(null);
+	    colorConv.filter(bi, dest);
+	} else {
+	    // 其它的類型，例如TYPE_INT_BGR、TYPE_INT_ARGB_PRE，交給getRGB處理
+	    for (int y = 0; y < height; ++y) {
+		bi.getRGB(0, y, width, 1, destData, y * width, width);
+	    }
+	}
+	return dest;
+    }
+
+    /**
+     * 從圖片檔案取得BufferedImage。
+     *
+     * @param file 傳入圖片檔案
+     * @param normalize 傳入是否將圖片轉換成快速的工作類型
+     * @return 傳回BufferedImage物件，若轉換失敗，傳回null。
+     * @see #normalize(java.awt.image.BufferedImage)
+     */
+    public static BufferedImage[] getBufferedImages(final File file, final boolean normalize) {
+	return getBufferedImages(file, normalize, false);
+    }
+
+    /**
+     * 從圖片檔案取得BufferedImage。若要自動轉正，會從檔頭的EXIF讀取方向(Orientation)，不必再另外讀取整個檔案的Metadata。轉正和轉換成快速的工作類型會一起完成，只會配置一次目標圖片。
+     *
+     * @param file 傳入圖片檔案
+     * @param normalize 傳入是否將圖片轉換成快速的工作類型
+     * @param autoOrient 傳入是否依照EXIF的方向將圖片轉正
+     * @return 傳回BufferedImage物件，若轉換失敗，傳回null。
+     * @see #normalize(java.awt.image.BufferedImage)
+     * @see #orient(java.awt.image.BufferedImage, int)
+     */
+    public static BufferedImage[] getBufferedImages(final File file, final boolean normalize, final boolean autoOrient) {
+	final BufferedImage[] bufferedImages = getBufferedImages(file);
+	if (bufferedImages == null || (!normalize && !autoOrient)) {
+	    return bufferedImages;
+	}
+	final ImageExif exif = autoOrient ? ImageExif.read(file) : null;
+	for (int i = 0; i < bufferedImages.length; ++i) {
+	    final int orientation = exif != null ? exif.getOrientation(i) : 1; // 多頁的TIFF，第i頁的方向在第i個IFD
+	    bufferedImages[i] = orient(bufferedImages[i], orientation, normalize);
+	}
+	return bufferedImages;
+    }
+
+    /**
+     * 依照EXIF的方向(Orientation)旋轉或翻轉BufferedImage物件，讓圖片以正確的方向顯示。只會配置一次目標圖片，來源的每一列會直接被寫到目標的某一列或某一行，不經過中間的暫存圖片。圖片的類型和色彩模型保持不變。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param orientation 傳入EXIF的方向(1~8)
+     * @return 傳回轉正後的BufferedImage物件，若方向為1或不正確，傳回原本的物件；若轉換失敗，傳回null。
+     * @see ImageExif#getOrientation()
+     */
+    public static BufferedImage orient(final BufferedImage bi, final int orientation) {
+	return orient(bi, orientation, false);
+    }
+
+    /**
+     * 依照EXIF的方向旋轉或翻轉BufferedImage物件，可同時轉換成快速的工作類型。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param orientation 傳入EXIF的方向(1~8)
+     * @param normalize 傳入是否將圖片轉換成快速的工作類型
+     * @return 傳回轉正後的BufferedImage物件，若轉換失敗，傳回null。
+     */
+    private static BufferedImage orient(final BufferedImage bi, final int orientation, final boolean normalize) {
+	if (bi == null) {
+	    return null;
+	}
+	if (orientation < 2 || orientation > 8) {
+	    return normalize ? normalize(bi) : bi;
+	}
+	final int width = bi.getWidth(), height = bi.getHeight();
+	// 方向5~8會交換寬高，來源的第y列會變成目標的一行；方向2~4則變成目標的一列
+	final boolean transpose = orientation >= 5;
+	final boolean reverse = orientation == 2 || orientation == 3 || orientation == 7 || orientation == 8;
+	final boolean flip = orientation == 3 || orientation == 4 || orientation == 6 || orientation == 7;
+	final int destWidth = transpose ? height : width, destHeight = transpose ? width : height;
+	try {
+	    final int[] data = ImagePixels.getDirectData(bi);
+	    if (normalize || data != null) {
+		final BufferedImage dest = new BufferedImage(destWidth, destHeight, data != null ? bi.getType() : (bi.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB));
+		final int[] destData = ((DataBufferInt) dest.getRaster().getDataBuffer()).getData();
+		final int[] row = new int[width];
+		for (int y = 0; y < height; ++y) {
+		    ImagePixels.getRow(bi, data, y, row);
+		    final int line = flip ? height - 1 - y : y;
+		    final int start = transpose ? line : line * destWidth;
+		    final int step = transpose ? destWidth : 1;
+		    if (reverse) {
+			for (int x = 0, p = start + (width - 1) * step; x < width; ++x, p -= step) {
+			    destData[p] = row[x];
+			}
+		    } else {
+			for (int x = 0, p = start; x < width; ++x, p += step) {
+			    destData[p] = row[x];
+			}
+		    }
+		}
+		return dest;
+	    }
+	    final ColorModel cm = bi.getColorModel();
+	    final int type = bi.getType();
+	    final BufferedImage dest;
+	    if (type == BufferedImage.TYPE_BYTE_BINARY || type == BufferedImage.TYPE_BYTE_INDEXED) {
+		dest = new BufferedImage(destWidth, destHeight, type, (IndexColorModel) cm);
+	    } else if (type != BufferedImage.TYPE_CUSTOM) {
+		dest = new BufferedImage(destWidth, destHeight, type);
+	    } else {
+		dest = new BufferedImage(cm, cm.createCompatibleWritableRaster(destWidth, destHeight), cm.isAlphaPremultiplied(), null);
+	    }
+	    final Raster raster = bi.getRaster();
+	    final WritableRaster destRaster = dest.getRaster();
+	    final int n = raster.getNumDataElements();
+	    Object row = null, reversedRow = null;
+	    for (int y = 0; y < height; ++y) {
+		row = raster.getDataElements(0, y, width, 1, row);
+		Object out = row;
+		if (reverse) {
+		    if (reversedRow == null) {
+			reversedRow = Array.newInstance(row.getClass().getComponentType(), Array.getLength(row));
+		    }
+		    for (int x = 0; x < width; ++x) {
+			System.arraycopy(row, x * n, reversedRow, (width - 1 - x) * n, n);
+		    }
+		    out = reversedRow;
+		}
+		final int line = flip ? height - 1 - y : y;
+		if (transpose) {
+		    destRaster.setDataElements(line, 0, 1, width, out);
+		} else {
+		    destRaster.setDataElements(0, line, width, 1, out);
+		}
+	    }
+	    return dest;
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return null;
+	}
+    }
+
+    // -----內部類別-----
+    /**
+     * 將線性灰階轉成sRGB的查找表，第一次使用時才會建立。
+     */
+    private static final class GrayLut {
+
+	/**
+	 * 8位元灰階的查找表。
+	 */
+	private static final int[] BYTE = create(255);
+	/**
+	 * 16位元灰階的查找表。
+	 */
+	private static final int[] USHORT = create(65535);
+
+	/**
+	 * 建立查找表。
+	 *
+	 * @param max 傳入灰階的最大值
+	 * @return 傳回查找表
+	 */
+	private static int[] create(final int max) {
+	    final int[] lut = new int[max + 1];
+	    for (int i = 0; i <= max; ++i) {
+		final double v = (double) i / max;
+		lut[i] = (int) Math.round((v <= 0.0031308 ? v * 12.92 : 1.055 * Math.pow(v, 1 / 2.4) - 0.055) * 255);
+	    }
+	    return lut;
+	}
+    }
+
     // -----建構子-----
     /**
      * 私有的建構子，將無法被實體化。
@@ -21,6 +21,7 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
+import java.awt.image.DataBufferByte;
 
 /**
  * 圖片顏色。
@@ -30,6 +31,47 @@ import java.awt.image.ColorConvertOp;
  */
 public final class ImageColor {
 
+    // -----類別常數-----
+    /**
+     * 不改變顏色的查找表。
+     */
+    private static final byte[] IDENTITY_LUT = new byte[256];
+    /**
+     * 互補色的查找表。
+     */
+    private static final byte[] NEGATIVE_LUT = new byte[256];
+    /**
+     * 將顏色最大化的查找表。
+     */
+    private static final byte[] FULL_LUT = new byte[256];
+    /**
+     * 將sRGB的亮度轉成線性灰階數值的查找表。
+     */
+    private static final byte[] LINEAR_GRAY_LUT = new byte[256];
+    /**
+     * 8x8的Bayer矩陣，用於有序抖色。
+     */
+    private static final int[] BAYER_MATRIX = {
+	0, 32, 8, 40, 2, 34, 10, 42,
+	48, 16, 56, 24, 50, 18, 58, 26,
+	12, 44, 4, 36, 14, 46, 6, 38,
+	60, 28, 52, 20, 62, 30, 54, 22,
+	3, 35, 11, 43, 1, 33, 9, 41,
+	51, 19, 59, 27, 49, 17, 57, 25,
+	15, 47, 7, 39, 13, 45, 5, 37,
+	63, 31, 55, 23, 61, 29, 53, 21
+    };
+
+    static {
+	for (int i = 0; i < 256; ++i) {
+	    IDENTITY_LUT[i] = (byte) i;
+	    NEGATIVE_LUT[i] = (byte) (255 - i);
+	    FULL_LUT[i] = (byte) 255;
+	    final double v = i / 255.0;
+	    LINEAR_GRAY_LUT[i] = (byte) Math.round((v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4)) * 255);
+	}
+    }
+
     // -----類別方法-----
     /**
      * 最大化BufferedImage物件的RGB顏色。
@@ -44,78 +86,94 @@ public final class ImageColor {
 	    return null;
 	}
 
-	final int width = bi.getWidth(), height = bi.getHeight();
-
 	if (everyPixel) {
-	    final BufferedImage dest = ImageBuffer.cloneBufferedImage(bi);
-	    if (keepRGBRatio) {
-		for (int x = 0; x < width; ++x) {
-		    for (int y = 0; y < height; ++y) {
-			final int rgba = dest.getRGB(x, y);
-			final Color color = new Color(rgba, true);
-
-			final float r = color.getRed(), g = color.getGreen(), b = color.getBlue();
-			final float rr = 255f / r, gr = 255f / g, br = 255f / b;
-			final float ratio = Math.min(rr, Math.min(gr, br));
-
-			final Color newColor = new Color(Math.round(r * ratio), Math.round(g * ratio), Math.round(b * ratio), color.getAlpha());
-			dest.setRGB(x, y, newColor.getRGB());
-		    }
-		}
-	    } else {
+	    if (!keepRGBRatio) {
+		return applyLut(bi, FULL_LUT, FULL_LUT, FULL_LUT, null);
+	    }
+	    final int width = bi.getWidth(), height = bi.getHeight();
+	    final BufferedImage dest = ImagePixels.createDestination(bi);
+	    final int[] srcData = ImagePixels.getDirectData(bi), destData = ImagePixels.getDirectData(dest);
+	    final int[] row = new int[width];
+	    for (int y = 0; y < height; ++y) {
+		ImagePixels.getRow(bi, srcData, y, row);
 		for (int x = 0; x < width; ++x) {
-		    for (int y = 0; y < height; ++y) {
-			final int rgba = dest.getRGB(x, y);
-			final Color color = new Color(rgba, true);
-
-			final Color newColor = new Color(255, 255, 255, color.getAlpha());
-			dest.setRGB(x, y, newColor.getRGB());
-		    }
+		    final int argb = row[x];
+		    final float r = (argb >> 16) & 0xFF, g = (argb >> 8) & 0xFF, b = argb & 0xFF;
+		    final float ratio = Math.min(255f / r, Math.min(255f / g, 255f / b));
+		    row[x] = (argb & 0xFF000000) | (Math.round(r * ratio) << 16) | (Math.round(g * ratio) << 8) | Math.round(b * ratio);
 		}
+		ImagePixels.setRow(dest, destData, y, row);
 	    }
 	    return dest;
 	} else {
-	    float minR = Float.POSITIVE_INFINITY, minG = Float.POSITIVE_INFINITY, minB = Float.POSITIVE_INFINITY;
+	    return maximize(bi, keepRGBRatio, ImageStatistics.compute(bi));
+	}
+    }
 
-	    for (int x = 0; x < width; ++x) {
-		for (int y = 0; y < height; ++y) {
-		    final int rgba = bi.getRGB(x, y);
-		    final Color color = new Color(rgba, true);
-		    final float r = color.getRed(), g = color.getGreen(), b = color.getBlue();
-		    final float rr = 255f / r, gr = 255f / g, br = 255f / b;
-		    if (minR > rr) {
-			minR = rr;
-		    }
-		    if (minG > gr) {
-			minG = gr;
-		    }
-		    if (minB > br) {
-			minB = br;
-		    }
-		}
-	    }
-	    if (keepRGBRatio) {
-		final float ratio = Math.min(minR, Math.min(minG, minB));
-		minR = ratio;
-		minG = ratio;
-		minB = ratio;
-	    }
-	    if (Float.isInfinite(minR) || Float.isInfinite(minG) || Float.isInfinite(minB)) {
-		return bi;
-	    }
-	    final BufferedImage dest = ImageBuffer.cloneBufferedImage(bi);
-	    for (int x = 0; x < width; ++x) {
-		for (int y = 0; y < height; ++y) {
-		    final int rgba = dest.getRGB(x, y);
-		    final Color color = new Color(rgba, true);
-		    final float r = color.getRed(), g = color.getGreen(), b = color.getBlue();
+    /**
+     * 使用已經計算好的統計資料，最大化BufferedImage物件的RGB顏色，不會重新掃描圖片。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param keepRGBRatio 傳入是否保持RGB的比例
+     * @param statistics 傳入這個BufferedImage物件的統計資料
+     * @return 傳回最大化之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage maximize(final BufferedImage bi, final boolean keepRGBRatio, final ImageStatistics statistics) {
+	if (bi == null || statistics == null) {
+	    return null;
+	}
+	int maxR = statistics.getMax(ImageStatistics.RED), maxG = statistics.getMax(ImageStatistics.GREEN), maxB = statistics.getMax(ImageStatistics.BLUE);
+	if (keepRGBRatio) {
+	    final int max = Math.max(maxR, Math.max(maxG, maxB));
+	    maxR = max;
+	    maxG = max;
+	    maxB = max;
+	}
+	if (maxR == 0 || maxG == 0 || maxB == 0) {
+	    return bi;
+	}
+	return applyLut(bi, createScaleLut(255f / maxR), createScaleLut(255f / maxG), createScaleLut(255f / maxB), null);
+    }
 
-		    final Color newColor = new Color(Math.round(r * minR), Math.round(g * minG), Math.round(b * minB), color.getAlpha());
-		    dest.setRGB(x, y, newColor.getRGB());
-		}
-	    }
-	    return dest;
+    /**
+     * 自動調整BufferedImage物件的色階，將各色版的最小值和最大值拉伸到0~255。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @return 傳回調整之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage autoLevels(final BufferedImage bi) {
+	return autoLevels(bi, 0f);
+    }
+
+    /**
+     * 自動調整BufferedImage物件的色階，將各色版的最小值和最大值拉伸到0~255。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param clip 傳入兩端各要忽略的像素比例(0~0.5)，可以避免少數的雜點影響結果
+     * @return 傳回調整之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage autoLevels(final BufferedImage bi, final float clip) {
+	return autoLevels(bi, ImageStatistics.compute(bi), clip);
+    }
+
+    /**
+     * 使用已經計算好的統計資料，自動調整BufferedImage物件的色階，不會重新掃描圖片。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料
+     * @param clip 傳入兩端各要忽略的像素比例(0~0.5)，可以避免少數的雜點影響結果
+     * @return 傳回調整之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage autoLevels(final BufferedImage bi, final ImageStatistics statistics, final float clip) {
+	if (bi == null || statistics == null || !(clip >= 0 && clip < 0.5f)) {
+	    return null;
+	}
+	final byte[][] luts = new byte[3][];
+	for (int channel = 0; channel < 3; ++channel) {
+	    final int low = statistics.getPercentile(channel, clip), high = statistics.getPercentile(channel, 1f - clip);
+	    luts[channel] = low < high ? createLevelsLut(low, high, 1f, 0, 255) : IDENTITY_LUT;
 	}
+	return applyLut(bi, luts[ImageStatistics.RED], luts[ImageStatistics.GREEN], luts[ImageStatistics.BLUE], null);
     }
 
     /**
@@ -201,35 +259,224 @@ public final class ImageColor {
 	if (bi == null) {
 	    return null;
 	}
-	final BufferedImage dest = ImageBuffer.cloneBufferedImage(bi);
-	final int width = dest.getWidth(), height = dest.getHeight();
+	return applyLut(bi, NEGATIVE_LUT, NEGATIVE_LUT, NEGATIVE_LUT, exceptAlpha ? null : NEGATIVE_LUT);
+    }
 
-	if (exceptAlpha) {
+    /**
+     * 使用查找表轉換BufferedImage物件每個像素的顏色，所有像素只會被讀寫一次。查找表的長度必須是256，索引為原本的顏色值(0~255)，內容為轉換後的顏色值。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param lutR 傳入紅色的查找表，若為null，表示不改變
+     * @param lutG 傳入綠色的查找表，若為null，表示不改變
+     * @param lutB 傳入藍色的查找表，若為null，表示不改變
+     * @param lutA 傳入透明值的查找表，若為null，表示不改變
+     * @return 傳回轉換之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage applyLut(final BufferedImage bi, final byte[] lutR, final byte[] lutG, final byte[] lutB, final byte[] lutA) {
+	if (bi == null) {
+	    return null;
+	}
+	if ((lutR != null && lutR.length != 256) || (lutG != null && lutG.length != 256) || (lutB != null && lutB.length != 256) || (lutA != null && lutA.length != 256)) {
+	    return null;
+	}
+	final byte[] r = lutR != null ? lutR : IDENTITY_LUT, g = lutG != null ? lutG : IDENTITY_LUT, b = lutB != null ? lutB : IDENTITY_LUT, a = lutA != null ? lutA : IDENTITY_LUT;
+	final int width = bi.getWidth(), height = bi.getHeight();
+	final BufferedImage dest = ImagePixels.createDestination(bi);
+	final int[] srcData = ImagePixels.getDirectData(bi), destData = ImagePixels.getDirectData(dest);
+	final int[] row = new int[width];
+	for (int y = 0; y < height; ++y) {
+	    ImagePixels.getRow(bi, srcData, y, row);
 	    for (int x = 0; x < width; ++x) {
-		for (int y = 0; y < height; ++y) {
-		    final int rgba = dest.getRGB(x, y);
-		    final Color color = new Color(rgba, true);
-
-		    final Color negativeColor = new Color(255 - color.getRed(), 255 - color.getGreen(), 255 - color.getBlue(), color.getAlpha());
-		    dest.setRGB(x, y, negativeColor.getRGB());
-		}
+		final int argb = row[x];
+		row[x] = ((a[argb >>> 24] & 0xFF) << 24) | ((r[(argb >> 16) & 0xFF] & 0xFF) << 16) | ((g[(argb >> 8) & 0xFF] & 0xFF) << 8) | (b[argb & 0xFF] & 0xFF);
 	    }
-	} else {
-	    for (int x = 0; x < width; ++x) {
-		for (int y = 0; y < height; ++y) {
-		    final int rgba = dest.getRGB(x, y);
-		    final Color color = new Color(rgba, true);
+	    ImagePixels.setRow(dest, destData, y, row);
+	}
+	return dest;
+    }
 
-		    final Color negativeColor = new Color(255 - color.getRed(), 255 - color.getGreen(), 255 - color.getBlue(), 255 - color.getAlpha());
-		    dest.setRGB(x, y, negativeColor.getRGB());
-		}
+    /**
+     * 調整BufferedImage物件的亮度。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param brightness 傳入亮度的變化量，範圍是-1~1，0表示不改變
+     * @return 傳回調整之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage brightness(final BufferedImage bi, final float brightness) {
+	if (Float.isNaN(brightness)) {
+	    return null;
+	}
+	final float offset = brightness * 255f;
+	final byte[] lut = new byte[256];
+	for (int i = 0; i < 256; ++i) {
+	    lut[i] = clamp(Math.round(i + offset));
+	}
+	return applyLut(bi, lut, lut, lut, null);
+    }
+
+    /**
+     * 調整BufferedImage物件的對比。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param contrast 傳入對比的倍率，必須大於等於0，1表示不改變
+     * @return 傳回調整之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage contrast(final BufferedImage bi, final float contrast) {
+	if (!(contrast >= 0)) {
+	    return null;
+	}
+	final byte[] lut = new byte[256];
+	for (int i = 0; i < 256; ++i) {
+	    lut[i] = clamp(Math.round((i - 127.5f) * contrast + 127.5f));
+	}
+	return applyLut(bi, lut, lut, lut, null);
+    }
+
+    /**
+     * 調整BufferedImage物件的Gamma值。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param gamma 傳入Gamma值，必須大於0，大於1會使圖片變亮，小於1會使圖片變暗
+     * @return 傳回調整之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage gamma(final BufferedImage bi, final float gamma) {
+	if (!(gamma > 0)) {
+	    return null;
+	}
+	final byte[] lut = createLevelsLut(0, 255, gamma, 0, 255);
+	return applyLut(bi, lut, lut, lut, null);
+    }
+
+    /**
+     * 調整BufferedImage物件的色階。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param inputBlack 傳入輸入的黑點(0~255)，小於等於此值的顏色會變成輸出的黑點
+     * @param inputWhite 傳入輸入的白點(0~255)，大於等於此值的顏色會變成輸出的白點，必須大於輸入的黑點
+     * @param gamma 傳入中間調的Gamma值，必須大於0，1表示不改變
+     * @param outputBlack 傳入輸出的黑點(0~255)
+     * @param outputWhite 傳入輸出的白點(0~255)
+     * @return 傳回調整之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage levels(final BufferedImage bi, final int inputBlack, final int inputWhite, final float gamma, final int outputBlack, final int outputWhite) {
+	if (inputBlack < 0 || inputWhite > 255 || inputBlack >= inputWhite || !(gamma > 0) || outputBlack < 0 || outputBlack > 255 || outputWhite < 0 || outputWhite > 255) {
+	    return null;
+	}
+	final byte[] lut = createLevelsLut(inputBlack, inputWhite, gamma, outputBlack, outputWhite);
+	return applyLut(bi, lut, lut, lut, null);
+    }
+
+    /**
+     * 使用曲線調整BufferedImage物件的RGB顏色。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param points 傳入曲線的控制點，格式為{x0, y0, x1, y1, ...}，x必須遞增，範圍皆是0~255，控制點之間使用線性內插
+     * @return 傳回調整之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage curves(final BufferedImage bi, final int[] points) {
+	final byte[] lut = createCurveLut(points);
+	if (lut == null) {
+	    return null;
+	}
+	return applyLut(bi, lut, lut, lut, null);
+    }
+
+    /**
+     * 使用曲線分別調整BufferedImage物件的紅、綠、藍色版。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param pointsR 傳入紅色曲線的控制點，格式為{x0, y0, x1, y1, ...}，若為null，表示不改變
+     * @param pointsG 傳入綠色曲線的控制點，格式為{x0, y0, x1, y1, ...}，若為null，表示不改變
+     * @param pointsB 傳入藍色曲線的控制點，格式為{x0, y0, x1, y1, ...}，若為null，表示不改變
+     * @return 傳回調整之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage curves(final BufferedImage bi, final int[] pointsR, final int[] pointsG, final int[] pointsB) {
+	final byte[] lutR = pointsR != null ? createCurveLut(pointsR) : IDENTITY_LUT, lutG = pointsG != null ? createCurveLut(pointsG) : IDENTITY_LUT, lutB = pointsB != null ? createCurveLut(pointsB) : IDENTITY_LUT;
+	if (lutR == null || lutG == null || lutB == null) {
+	    return null;
+	}
+	return applyLut(bi, lutR, lutG, lutB, null);
+    }
+
+    /**
+     * 建立色階的查找表。
+     *
+     * @param inputBlack 傳入輸入的黑點
+     * @param inputWhite 傳入輸入的白點
+     * @param gamma 傳入中間調的Gamma值
+     * @param outputBlack 傳入輸出的黑點
+     * @param outputWhite 傳入輸出的白點
+     * @return 傳回查找表
+     */
+    static byte[] createLevelsLut(final int inputBlack, final int inputWhite, final float gamma, final int outputBlack, final int outputWhite) {
+	final byte[] lut = new byte[256];
+	final double range = inputWhite - inputBlack, exponent = 1.0 / gamma;
+	for (int i = 0; i < 256; ++i) {
+	    final double v = Math.min(Math.max((i - inputBlack) / range, 0), 1);
+	    lut[i] = clamp((int) Math.round(outputBlack + Math.pow(v, exponent) * (outputWhite - outputBlack)));
+	}
+	return lut;
+    }
+
+    /**
+     * 建立線性縮放的查找表。
+     *
+     * @param ratio 傳入倍率
+     * @return 傳回查找表
+     */
+    private static byte[] createScaleLut(final float ratio) {
+	final byte[] lut = new byte[256];
+	for (int i = 0; i < 256; ++i) {
+	    lut[i] = clamp(Math.round(i * ratio));
+	}
+	return lut;
+    }
+
+    /**
+     * 建立曲線的查找表。
+     *
+     * @param points 傳入曲線的控制點
+     * @return 傳回查找表，若控制點不正確，傳回null
+     */
+    private static byte[] createCurveLut(final int[] points) {
+	if (points == null || points.length < 4 || points.length % 2 != 0) {
+	    return null;
+	}
+	for (int i = 0; i < points.length; ++i) {
+	    if (points[i] < 0 || points[i] > 255 || (i >= 2 && i % 2 == 0 && points[i] <= points[i - 2])) {
+		return null;
 	    }
 	}
-	return dest;
+	final byte[] lut = new byte[256];
+	int segment = 0;
+	for (int i = 0; i < 256; ++i) {
+	    while (segment + 3 < points.length && i > points[segment + 2]) {
+		segment += 2;
+	    }
+	    final int x0 = points[segment], y0 = points[segment + 1], x1 = points[segment + 2], y1 = points[segment + 3];
+	    if (i <= x0) {
+		lut[i] = (byte) y0;
+	    } else if (i >= x1) {
+		lut[i] = (byte) y1;
+	    } else {
+		lut[i] = (byte) Math.round(y0 + (float) (i - x0) * (y1 - y0) / (x1 - x0));
+	    }
+	}
+	return lut;
     }
 
     /**
-     * 將BufferedImage物件轉成灰階。
+     * 將數值限制在0~255之間。
+     *
+     * @param value 傳入數值
+     * @return 傳回0~255的顏色值
+     */
+    private static byte clamp(final int value) {
+	return (byte) (value < 0 ? 0 : (value > 255 ? 255 : value));
+    }
+
+    /**
+     * 將BufferedImage物件轉成灰階。sRGB的圖片會直接使用整數權重計算亮度，其它有色彩管理的圖片則使用ICC轉換。
      *
      * @param bi 傳入BufferedImage物件
      * @return 傳回灰階之後的新的BufferedImage物件，若失敗，則傳回null
@@ -240,38 +487,142 @@ public final class ImageColor {
 	}
 	final int width = bi.getWidth(), height = bi.getHeight();
 	final BufferedImage dest = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-	final Graphics2D graphics = dest.createGraphics();
-	graphics.setBackground(Color.BLACK);
-	graphics.clearRect(0, 0, width, height);
-	graphics.dispose();
+	if (!bi.getColorModel().getColorSpace().isCS_sRGB()) {
+	    // 有色彩管理的圖片，使用ICC轉換
+	    final Graphics2D graphics = dest.createGraphics();
+	    graphics.setBackground(Color.BLACK);
+	    graphics.clearRect(0, 0, width, height);
+	    graphics.dispose();
 
-	final ColorConvertOp colorConv = new ColorConvertOp(bi.getColorModel().getColorSpace(), dest.getColorModel().getColorSpace(), null);
-	colorConv.filter(bi, dest);
+	    final ColorConvertOp colorConv = new ColorConvertOp(bi.getColorModel().getColorSpace(), dest.getColorModel().getColorSpace(), null);
+	    colorConv.filter(bi, dest);
+	    return dest;
+	}
+	// TYPE_BYTE_GRAY使用線性的灰階色彩空間，因此要將亮度轉回線性的數值
+	final byte[] destData = ((DataBufferByte) dest.getRaster().getDataBuffer()).getData();
+	final int[] srcData = ImagePixels.getDirectData(bi);
+	final int[] row = new int[width];
+	for (int y = 0; y < height; ++y) {
+	    ImagePixels.getRow(bi, srcData, y, row);
+	    final int offset = y * width;
+	    for (int x = 0; x < width; ++x) {
+		destData[offset + x] = LINEAR_GRAY_LUT[luma(row[x])];
+	    }
+	}
 	return dest;
     }
 
     /**
-     * 將BufferedImage物件二值化。
+     * 將BufferedImage物件二值化，亮度大於等於128的像素為白色。
      *
      * @param bi 傳入BufferedImage物件
      * @return 傳回二值化之後的新的BufferedImage物件，若失敗，則傳回null
      */
     public static BufferedImage binary(final BufferedImage bi) {
-	if (bi == null) {
+	return binary(bi, 128, false);
+    }
+
+    /**
+     * 將BufferedImage物件二值化。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param threshold 傳入亮度的門檻值(0~255)，亮度大於等於此值的像素為白色。若小於0，則使用大津演算法(Otsu's method)自動決定門檻值
+     * @param dither 傳入是否使用有序抖色(Bayer 8x8)
+     * @return 傳回二值化之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage binary(final BufferedImage bi, final int threshold, final boolean dither) {
+	if (bi == null || threshold > 255) {
 	    return null;
 	}
 	final int width = bi.getWidth(), height = bi.getHeight();
-	final BufferedImage dest = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
-	final Graphics2D graphics = dest.createGraphics();
-	graphics.setBackground(Color.BLACK);
-	graphics.clearRect(0, 0, width, height);
-	graphics.dispose();
+	BufferedImage src = bi;
+	if (!bi.getColorModel().getColorSpace().isCS_sRGB()) {
+	    // 有色彩管理的圖片，先使用ICC轉換成sRGB
+	    src = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	    final ColorConvertOp colorConv = new ColorConvertOp(bi.getColorModel().getColorSpace(), src.getColorModel().getColorSpace(), null);
+	    colorConv.filter(bi, src);
+	}
+	final int[] srcData = ImagePixels.getDirectData(src);
+	final int[] row = new int[width];
 
-	final ColorConvertOp colorConv = new ColorConvertOp(bi.getColorModel().getColorSpace(), dest.getColorModel().getColorSpace(), null);
-	colorConv.filter(bi, dest);
+	int level = threshold;
+	if (level < 0) {
+	    final int[] histogram = new int[256];
+	    for (int y = 0; y < height; ++y) {
+		ImagePixels.getRow(src, srcData, y, row);
+		for (int x = 0; x < width; ++x) {
+		    ++histogram[luma(row[x])];
+		}
+	    }
+	    level = otsu(histogram, width * height);
+	}
+
+	// 每個像素位置的門檻值，不抖色時都相同
+	final int[] levels = new int[64];
+	for (int i = 0; i < 64; ++i) {
+	    levels[i] = dither ? level + BAYER_MATRIX[i] * 4 + 2 - 128 : level;
+	}
+
+	final BufferedImage dest = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+	final byte[] destData = ((DataBufferByte) dest.getRaster().getDataBuffer()).getData();
+	final int stride = (width + 7) >> 3;
+	for (int y = 0; y < height; ++y) {
+	    ImagePixels.getRow(src, srcData, y, row);
+	    final int offset = y * stride, levelOffset = (y & 7) << 3;
+	    for (int x = 0; x < width; ++x) {
+		if (luma(row[x]) >= levels[levelOffset | (x & 7)]) {
+		    destData[offset + (x >> 3)] |= 0x80 >>> (x & 7);
+		}
+	    }
+	}
 	return dest;
     }
 
+    /**
+     * 使用整數權重計算sRGB顏色的亮度(Rec. 601)。
+     *
+     * @param argb 傳入ARGB顏色
+     * @return 傳回亮度(0~255)
+     */
+    private static int luma(final int argb) {
+	return (77 * ((argb >> 16) & 0xFF) + 150 * ((argb >> 8) & 0xFF) + 29 * (argb & 0xFF) + 128) >> 8;
+    }
+
+    /**
+     * 使用大津演算法(Otsu's method)計算二值化的門檻值。
+     *
+     * @param histogram 傳入亮度的直方圖
+     * @param total 傳入像素數量
+     * @return 傳回門檻值，亮度大於等於此值的像素為白色
+     */
+    private static int otsu(final int[] histogram, final int total) {
+	long sumAll = 0;
+	for (int i = 0; i < 256; ++i) {
+	    sumAll += (long) i * histogram[i];
+	}
+	long sumBackground = 0, countBackground = 0;
+	double bestVariance = -1;
+	int best = 0;
+	for (int i = 0; i < 256; ++i) {
+	    countBackground += histogram[i];
+	    if (countBackground == 0) {
+		continue;
+	    }
+	    final long countForeground = total - countBackground;
+	    if (countForeground == 0) {
+		break;
+	    }
+	    sumBackground += (long) i * histogram[i];
+	    final double meanBackground = (double) sumBackground / countBackground, meanForeground = (double) (sumAll - sumBackground) / countForeground;
+	    final double variance = (double) countBackground * countForeground * (meanBackground - meanForeground) * (meanBackground - meanForeground);
+	    if (variance > bestVariance) {
+		bestVariance = variance;
+		best = i;
+	    }
+	}
+	return best + 1;
+    }
+
     // -----建構子-----
     /**
      * 私有的建構子，將無法被實體化。
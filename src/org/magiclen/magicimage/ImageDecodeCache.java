@@ -0,0 +1,269 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * <p>
+ * 解碼後圖片的快取。</p>
+ *
+ * <p>
+ * 以圖片檔案的路徑、修改時間和大小作為鍵值，保存ImageBuffer解碼出來的BufferedImage物件，並依照像素資料佔用的記憶體大小進行LRU淘汰。getBufferedImages方法傳回的是快取圖片的複製品，可以任意修改；getRasters方法傳回的Raster物件則和快取共用像素資料，修改它會破壞快取的內容。</p>
+ *
+ * @author Magic Len
+ * @see ImageBuffer
+ */
+public final class ImageDecodeCache {
+
+    // -----類別方法-----
+    /**
+     * 計算BufferedImage物件的像素資料所佔用的記憶體大小。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @return 傳回記憶體大小(位元組)
+     */
+    private static long weigh(final BufferedImage bi) {
+	final DataBuffer dataBuffer = bi.getRaster().getDataBuffer();
+	return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+
+    // -----物件常數-----
+    /**
+     * 快取的記憶體上限(位元組)。
+     */
+    private final long maxWeight;
+    /**
+     * 快取的內容，依照存取順序排列。
+     */
+    private final LinkedHashMap<String, BufferedImage[]> images = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * 快取的內容所對應的記憶體大小。
+     */
+    private final LinkedHashMap<String, Long> weights = new LinkedHashMap<>();
+
+    // -----物件變數-----
+    /**
+     * 目前使用的記憶體大小(位元組)。
+     */
+    private long weight;
+    /**
+     * 命中次數。
+     */
+    private long hitCount;
+    /**
+     * 未命中次數。
+     */
+    private long missCount;
+    /**
+     * 淘汰次數。
+     */
+    private long evictionCount;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param maxWeight 傳入快取的記憶體上限(位元組)，超過上限的圖片檔案將不會被快取
+     */
+    public ImageDecodeCache(final long maxWeight) {
+	this.maxWeight = Math.max(0, maxWeight);
+    }
+
+    // -----物件方法-----
+    /**
+     * 從圖片檔案取得BufferedImage。若快取命中，傳回快取圖片的複製品，可以任意修改。
+     *
+     * @param file 傳入圖片檔案
+     * @return 傳回BufferedImage物件，若轉換失敗，傳回null。
+     */
+    public BufferedImage[] getBufferedImages(final File file) {
+	final BufferedImage[] cached = getCached(file);
+	if (cached == null) {
+	    return null;
+	}
+	final BufferedImage[] result = new BufferedImage[cached.length];
+	for (int i = 0; i < cached.length; ++i) {
+	    result[i] = ImageBuffer.cloneBufferedImage(cached[i]);
+	}
+	return result;
+    }
+
+    /**
+     * 從圖片檔案取得和快取共用像素資料的Raster物件。像素資料不會被複製，適合只需要讀取像素的情況。Raster物件並不是真正唯讀的，透過其DataBuffer或是轉型成WritableRaster仍然可以修改像素，這會直接修改快取中的圖片，因此呼叫者不可以修改像素；若需要修改，請使用getBufferedImages方法。
+     *
+     * @param file 傳入圖片檔案
+     * @return 傳回和快取共用像素資料的Raster物件，若轉換失敗，傳回null。
+     */
+    public Raster[] getRasters(final File file) {
+	final BufferedImage[] cached = getCached(file);
+	if (cached == null) {
+	    return null;
+	}
+	final Raster[] result = new Raster[cached.length];
+	for (int i = 0; i < cached.length; ++i) {
+	    final Raster raster = cached[i].getRaster();
+	    result[i] = Raster.createRaster(raster.getSampleModel(), raster.getDataBuffer(), null);
+	}
+	return result;
+    }
+
+    /**
+     * 移除圖片檔案的快取。
+     *
+     * @param file 傳入圖片檔案
+     */
+    public void invalidate(final File file) {
+	if (file == null) {
+	    return;
+	}
+	final String prefix = file.getAbsolutePath().concat("\n");
+	synchronized (images) {
+	    final Iterator<String> iterator = images.keySet().iterator();
+	    while (iterator.hasNext()) {
+		final String key = iterator.next();
+		if (key.startsWith(prefix)) {
+		    iterator.remove();
+		    weight -= weights.remove(key);
+		}
+	    }
+	}
+    }
+
+    /**
+     * 清空快取。統計數值不會被清除。
+     */
+    public void clear() {
+	synchronized (images) {
+	    images.clear();
+	    weights.clear();
+	    weight = 0;
+	}
+    }
+
+    /**
+     * 取得快取的記憶體上限。
+     *
+     * @return 傳回快取的記憶體上限(位元組)
+     */
+    public long getMaxWeight() {
+	return maxWeight;
+    }
+
+    /**
+     * 取得目前使用的記憶體大小。
+     *
+     * @return 傳回目前使用的記憶體大小(位元組)
+     */
+    public long getWeight() {
+	synchronized (images) {
+	    return weight;
+	}
+    }
+
+    /**
+     * 取得命中次數。
+     *
+     * @return 傳回命中次數
+     */
+    public long getHitCount() {
+	synchronized (images) {
+	    return hitCount;
+	}
+    }
+
+    /**
+     * 取得未命中次數。
+     *
+     * @return 傳回未命中次數
+     */
+    public long getMissCount() {
+	synchronized (images) {
+	    return missCount;
+	}
+    }
+
+    /**
+     * 取得淘汰次數。
+     *
+     * @return 傳回淘汰次數
+     */
+    public long getEvictionCount() {
+	synchronized (images) {
+	    return evictionCount;
+	}
+    }
+
+    /**
+     * 取得快取的BufferedImage物件，若未命中，則解碼圖片檔案並放入快取。
+     *
+     * @param file 傳入圖片檔案
+     * @return 傳回快取的BufferedImage物件，若轉換失敗，傳回null。
+     */
+    private BufferedImage[] getCached(final File file) {
+	if (file == null || !file.isFile()) {
+	    return null;
+	}
+	final File absoluteFile = file.getAbsoluteFile();
+	final String key = absoluteFile.getPath().concat("\n").concat(String.valueOf(absoluteFile.lastModified())).concat("\n").concat(String.valueOf(absoluteFile.length()));
+	synchronized (images) {
+	    final BufferedImage[] cached = images.get(key);
+	    if (cached != null) {
+		++hitCount;
+		return cached;
+	    }
+	    ++missCount;
+	}
+	// 在鎖外解碼，避免阻擋其它執行緒
+	final BufferedImage[] decoded = ImageBuffer.getBufferedImages(absoluteFile);
+	if (decoded == null) {
+	    return null;
+	}
+	long decodedWeight = 0;
+	for (final BufferedImage bi : decoded) {
+	    if (bi == null) {
+		return null;
+	    }
+	    decodedWeight += weigh(bi);
+	}
+	if (decodedWeight > maxWeight) {
+	    return decoded;
+	}
+	synchronized (images) {
+	    final BufferedImage[] old = images.put(key, decoded);
+	    if (old != null) {
+		weight -= weights.get(key);
+	    }
+	    weights.put(key, decodedWeight);
+	    weight += decodedWeight;
+	    final Iterator<String> iterator = images.keySet().iterator();
+	    while (weight > maxWeight && iterator.hasNext()) {
+		final String eldestKey = iterator.next();
+		iterator.remove();
+		weight -= weights.remove(eldestKey);
+		++evictionCount;
+	    }
+	}
+	return decoded;
+    }
+}
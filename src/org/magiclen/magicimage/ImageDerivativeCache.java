@@ -0,0 +1,609 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.awt.Color;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 衍生圖片的快取。</p>
+ *
+ * <p>
+ * 以來源圖片檔案內容的雜湊值，加上處理流程與輸出參數的標準化描述作為鍵值，保存已經輸出過的圖片檔案內容。快取分為記憶體與磁碟兩層，記憶體層依照資料大小進行LRU淘汰，磁碟層則使用FileChannel的transferTo直接輸出，命中快取時不需要再解碼、處理和編碼圖片。</p>
+ *
+ * @author Magic Len
+ * @see ImageExport
+ */
+public final class ImageDerivativeCache {
+
+    // -----類別介面-----
+    /**
+     * 衍生圖片的產生器，用來在快取未命中時實際處理與輸出圖片。
+     */
+    public static interface Deriver {
+
+	/**
+	 * 產生衍生圖片，並輸出成檔案。
+	 *
+	 * @param outputFile 傳入要輸出的檔案物件
+	 * @param overwrite 傳入是否覆蓋已存在的檔案
+	 * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+	 */
+	File derive(final File outputFile, final boolean overwrite);
+    }
+
+    // -----類別常數-----
+    /**
+     * 處理流程描述的分隔字元。
+     */
+    public static final String OPERATION_SEPARATOR = "|";
+    /**
+     * 記錄來源檔案雜湊值的最大數量。
+     */
+    private static final int MAX_DIGEST_RECORDS = 4096;
+    /**
+     * 讀取檔案時使用的緩衝區大小。
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    // -----類別方法-----
+    /**
+     * 建立單一處理步驟的標準化描述。
+     *
+     * @param name 傳入處理步驟的名稱，例如「shrink」
+     * @param arguments 傳入處理步驟的參數
+     * @return 傳回標準化描述，例如「shrink(400,-1.0)」
+     */
+    public static String operation(final String name, final Object... arguments) {
+	final StringBuilder sb = new StringBuilder(name).append('(');
+	for (int i = 0; i < arguments.length; ++i) {
+	    if (i > 0) {
+		sb.append(',');
+	    }
+	    final Object argument = arguments[i];
+	    if (argument instanceof Color) {
+		sb.append(String.format("#%08X", ((Color) argument).getRGB()));
+	    } else {
+		sb.append(argument);
+	    }
+	}
+	return sb.append(')').toString();
+    }
+
+    /**
+     * 串接多個處理步驟的標準化描述，順序不同將會被視為不同的處理流程。
+     *
+     * @param operations 傳入處理步驟的標準化描述
+     * @return 傳回處理流程的標準化描述
+     */
+    public static String operations(final String... operations) {
+	return String.join(OPERATION_SEPARATOR, operations);
+    }
+
+    /**
+     * 將位元組陣列轉成十六進位字串。
+     *
+     * @param bytes 傳入位元組陣列
+     * @return 傳回十六進位字串
+     */
+    private static String toHex(final byte[] bytes) {
+	final StringBuilder sb = new StringBuilder(bytes.length * 2);
+	for (final byte b : bytes) {
+	    sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+	}
+	return sb.toString();
+    }
+
+    /**
+     * 計算檔案內容的SHA-256雜湊值。
+     *
+     * @param file 傳入檔案
+     * @return 傳回雜湊值
+     * @throws Exception 讀取失敗時拋出
+     */
+    private static byte[] digest(final File file) throws Exception {
+	final MessageDigest md = MessageDigest.getInstance("SHA-256");
+	final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    while (channel.read(buffer) >= 0) {
+		buffer.flip();
+		md.update(buffer);
+		buffer.clear();
+	    }
+	}
+	return md.digest();
+    }
+
+    /**
+     * 讀取檔案的所有內容。
+     *
+     * @param file 傳入檔案
+     * @return 傳回檔案內容
+     * @throws Exception 讀取失敗時拋出
+     */
+    private static byte[] readAll(final File file) throws Exception {
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    final long size = channel.size();
+	    if (size > Integer.MAX_VALUE) {
+		throw new Exception("The file is too large.");
+	    }
+	    final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+	    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+	    }
+	    return buffer.array();
+	}
+    }
+
+    // -----物件常數-----
+    /**
+     * 磁碟層的目錄，若為null，則不使用磁碟層。
+     */
+    private final File directory;
+    /**
+     * 記憶體層的容量上限(位元組)。
+     */
+    private final long maxMemorySize;
+    /**
+     * 可以放進記憶體層的單筆資料大小上限(位元組)，避免單一檔案把其它資料全部淘汰。
+     */
+    private final long maxEntrySize;
+    /**
+     * 記憶體層，依照存取順序排列。
+     */
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * 來源檔案(路徑、修改時間、大小)對應的雜湊值，避免重複讀取沒有變動的來源檔案。
+     */
+    private final LinkedHashMap<String, String> digests = new LinkedHashMap<String, String>(16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+	    return size() > MAX_DIGEST_RECORDS;
+	}
+    };
+
+    // -----物件變數-----
+    /**
+     * 記憶體層目前使用的大小(位元組)。
+     */
+    private long memorySize;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param directory 傳入磁碟層的目錄，若為null，則只使用記憶體層
+     * @param maxMemorySize 傳入記憶體層的容量上限(位元組)，若小於等於0，則只使用磁碟層
+     */
+    public ImageDerivativeCache(final File directory, final long maxMemorySize) {
+	if (directory != null) {
+	    this.directory = directory.getAbsoluteFile();
+	    this.directory.mkdirs();
+	} else {
+	    this.directory = null;
+	}
+	this.maxMemorySize = Math.max(0, maxMemorySize);
+	this.maxEntrySize = this.maxMemorySize / 4;
+    }
+
+    // -----物件方法-----
+    /**
+     * 建立快取的鍵值。
+     *
+     * @param source 傳入來源圖片檔案
+     * @param operations 傳入處理流程與輸出參數的標準化描述
+     * @return 傳回鍵值，若來源圖片檔案無法讀取，傳回null
+     * @see #operation(java.lang.String, java.lang.Object...)
+     * @see #operations(java.lang.String...)
+     */
+    public String createKey(final File source, final String operations) {
+	if (source == null || operations == null || !source.isFile()) {
+	    return null;
+	}
+	try {
+	    final File absoluteSource = source.getAbsoluteFile();
+	    final String fingerprint = absoluteSource.getPath().concat("\n").concat(String.valueOf(absoluteSource.lastModified())).concat("\n").concat(String.valueOf(absoluteSource.length()));
+	    String sourceDigest;
+	    synchronized (digests) {
+		sourceDigest = digests.get(fingerprint);
+	    }
+	    if (sourceDigest == null) {
+		sourceDigest = toHex(digest(absoluteSource));
+		synchronized (digests) {
+		    digests.put(fingerprint, sourceDigest);
+		}
+	    }
+	    final MessageDigest md = MessageDigest.getInstance("SHA-256");
+	    md.update(sourceDigest.getBytes(StandardCharsets.US_ASCII));
+	    md.update((byte) '\n');
+	    md.update(operations.getBytes(StandardCharsets.UTF_8));
+	    return toHex(md.digest());
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return null;
+	}
+    }
+
+    /**
+     * 取得衍生圖片並輸出成檔案。若快取命中，直接輸出快取的內容，否則使用產生器產生圖片，並放入快取中。
+     *
+     * @param source 傳入來源圖片檔案
+     * @param operations 傳入處理流程與輸出參數的標準化描述
+     * @param outputFile 傳入要輸出的檔案物件
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param deriver 傳入衍生圖片的產生器
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    public File export(final File source, final String operations, final File outputFile, final boolean overwrite, final Deriver deriver) {
+	return export(source, operations, outputFile, overwrite, false, deriver);
+    }
+
+    /**
+     * 取得衍生圖片並輸出成檔案。若快取命中，直接輸出快取的內容，否則使用產生器產生圖片，並放入快取中。
+     *
+     * @param source 傳入來源圖片檔案
+     * @param operations 傳入處理流程與輸出參數的標準化描述
+     * @param outputFile 傳入要輸出的檔案物件
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param atomic 傳入快取命中時，是否先輸出到同一個目錄中的暫存檔，完成之後才以原子操作移動到輸出的檔名；未命中時由產生器自行決定
+     * @param deriver 傳入衍生圖片的產生器
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    public File export(final File source, final String operations, final File outputFile, final boolean overwrite, final boolean atomic, final Deriver deriver) {
+	if (outputFile == null || deriver == null) {
+	    return null;
+	}
+	final String key = createKey(source, operations);
+	if (key == null) {
+	    return deriver.derive(outputFile, overwrite);
+	}
+	final File hitFile = exportCached(key, outputFile, overwrite, atomic);
+	if (hitFile != null) {
+	    return hitFile;
+	}
+	final File derivedFile = deriver.derive(outputFile, overwrite);
+	if (derivedFile != null) {
+	    put(key, derivedFile);
+	}
+	return derivedFile;
+    }
+
+    /**
+     * 取得衍生圖片並傳送到通道中。若快取命中，直接傳送快取的內容，否則使用產生器產生圖片，並放入快取中。
+     *
+     * @param source 傳入來源圖片檔案
+     * @param operations 傳入處理流程與輸出參數的標準化描述
+     * @param target 傳入要傳送的目標通道
+     * @param deriver 傳入衍生圖片的產生器，會將圖片輸出到暫存檔案中
+     * @return 傳回是否傳送成功
+     */
+    public boolean transferTo(final File source, final String operations, final WritableByteChannel target, final Deriver deriver) {
+	if (target == null || deriver == null) {
+	    return false;
+	}
+	final String key = createKey(source, operations);
+	if (key != null && transferTo(key, target)) {
+	    return true;
+	}
+	File tempFile = null;
+	try {
+	    tempFile = File.createTempFile("magicimage-", ".tmp", directory);
+	    final File derivedFile = deriver.derive(tempFile, true);
+	    if (derivedFile == null) {
+		return false;
+	    }
+	    if (!derivedFile.equals(tempFile)) {
+		tempFile.delete();
+		tempFile = derivedFile;
+	    }
+	    if (key != null) {
+		put(key, derivedFile);
+	    }
+	    try (FileChannel channel = FileChannel.open(derivedFile.toPath(), StandardOpenOption.READ)) {
+		transferFully(channel, target);
+	    }
+	    return true;
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return false;
+	} finally {
+	    if (tempFile != null) {
+		tempFile.delete();
+	    }
+	}
+    }
+
+    /**
+     * 將快取的內容傳送到通道中。
+     *
+     * @param key 傳入鍵值
+     * @param target 傳入要傳送的目標通道
+     * @return 傳回快取是否命中並且傳送成功
+     */
+    public boolean transferTo(final String key, final WritableByteChannel target) {
+	if (key == null || target == null) {
+	    return false;
+	}
+	final byte[] data = getFromMemory(key);
+	try {
+	    if (data != null) {
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+		    target.write(buffer);
+		}
+		return true;
+	    }
+	    final File diskFile = getDiskFile(key);
+	    if (diskFile == null || !diskFile.isFile()) {
+		return false;
+	    }
+	    try (FileChannel channel = FileChannel.open(diskFile.toPath(), StandardOpenOption.READ)) {
+		transferFully(channel, target);
+	    }
+	    return true;
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return false;
+	}
+    }
+
+    /**
+     * 取得快取的內容。傳回的陣列是快取內容的複製品，修改它不會影響快取。
+     *
+     * @param key 傳入鍵值
+     * @return 傳回快取的內容，若快取未命中，傳回null
+     */
+    public byte[] get(final String key) {
+	if (key == null) {
+	    return null;
+	}
+	final byte[] data = getFromMemory(key);
+	if (data != null) {
+	    return data.clone();
+	}
+	final File diskFile = getDiskFile(key);
+	if (diskFile == null || !diskFile.isFile()) {
+	    return null;
+	}
+	try {
+	    final byte[] diskData = readAll(diskFile);
+	    putToMemory(key, diskData);
+	    return diskData.clone();
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return null;
+	}
+    }
+
+    /**
+     * 將已經輸出的圖片檔案放入快取。
+     *
+     * @param key 傳入鍵值
+     * @param encodedFile 傳入已經輸出的圖片檔案
+     * @return 傳回是否放入成功
+     */
+    public boolean put(final String key, final File encodedFile) {
+	if (key == null || encodedFile == null || !encodedFile.isFile()) {
+	    return false;
+	}
+	try {
+	    final long size = encodedFile.length();
+	    if (size > 0 && size <= maxEntrySize) {
+		putToMemory(key, readAll(encodedFile));
+	    }
+	    final File diskFile = getDiskFile(key);
+	    if (diskFile != null) {
+		final File tempFile = File.createTempFile(key, ".tmp", directory);
+		try {
+		    try (FileChannel in = FileChannel.open(encodedFile.toPath(), StandardOpenOption.READ); FileChannel out = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			transferFully(in, out);
+		    }
+		    Files.move(tempFile.toPath(), diskFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+		    tempFile.delete();
+		}
+	    }
+	    return true;
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return false;
+	}
+    }
+
+    /**
+     * 將已經編碼的圖片資料放入快取。快取保存的是資料的複製品，之後修改傳入的陣列不會影響快取。
+     *
+     * @param key 傳入鍵值
+     * @param data 傳入已經編碼的圖片資料
+     * @return 傳回是否放入成功
+     */
+    public boolean put(final String key, final byte[] data) {
+	if (key == null || data == null) {
+	    return false;
+	}
+	if (data.length <= maxEntrySize) {
+	    putToMemory(key, data.clone());
+	}
+	final File diskFile = getDiskFile(key);
+	if (diskFile == null) {
+	    return true;
+	}
+	try {
+	    final File tempFile = File.createTempFile(key, ".tmp", directory);
+	    try {
+		Files.write(tempFile.toPath(), data);
+		Files.move(tempFile.toPath(), diskFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	    } finally {
+		tempFile.delete();
+	    }
+	    return true;
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return false;
+	}
+    }
+
+    /**
+     * 移除快取。
+     *
+     * @param key 傳入鍵值
+     */
+    public void remove(final String key) {
+	if (key == null) {
+	    return;
+	}
+	synchronized (memory) {
+	    final byte[] data = memory.remove(key);
+	    if (data != null) {
+		memorySize -= data.length;
+	    }
+	}
+	final File diskFile = getDiskFile(key);
+	if (diskFile != null) {
+	    diskFile.delete();
+	}
+    }
+
+    /**
+     * 清空記憶體層的快取，磁碟層的快取將會保留。
+     */
+    public void clearMemory() {
+	synchronized (memory) {
+	    memory.clear();
+	    memorySize = 0;
+	}
+    }
+
+    /**
+     * 取得記憶體層目前使用的大小。
+     *
+     * @return 傳回記憶體層目前使用的大小(位元組)
+     */
+    public long getMemorySize() {
+	synchronized (memory) {
+	    return memorySize;
+	}
+    }
+
+    /**
+     * 將快取的內容輸出成檔案。
+     *
+     * @param key 傳入鍵值
+     * @param outputFile 傳入要輸出的檔案物件
+     * @param overwrite 傳入是否覆蓋已存在的檔案
+     * @param atomic 傳入是否使用原子寫入
+     * @return 若快取命中並且輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    private File exportCached(final String key, final File outputFile, final boolean overwrite, final boolean atomic) {
+	final byte[] data = getFromMemory(key);
+	final File diskFile = data == null ? getDiskFile(key) : null;
+	if (data == null && (diskFile == null || !diskFile.isFile())) {
+	    return null;
+	}
+	// 磁碟層的檔案可能剛好被移除，輸出失敗時視為未命中
+	return ImageExport.writeOutputFile(outputFile, overwrite, atomic, (final FileChannel out) -> {
+	    if (data != null) {
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+		    out.write(buffer);
+		}
+	    } else {
+		try (FileChannel in = FileChannel.open(diskFile.toPath(), StandardOpenOption.READ)) {
+		    transferFully(in, out);
+		}
+	    }
+	});
+    }
+
+    /**
+     * 將檔案通道的所有內容傳送到目標通道。
+     *
+     * @param in 傳入來源檔案通道
+     * @param target 傳入目標通道
+     * @throws Exception 傳送失敗時拋出
+     */
+    private static void transferFully(final FileChannel in, final WritableByteChannel target) throws Exception {
+	final long size = in.size();
+	long position = 0;
+	while (position < size) {
+	    position += in.transferTo(position, size - position, target);
+	}
+    }
+
+    /**
+     * 從記憶體層取得快取的內容。
+     *
+     * @param key 傳入鍵值
+     * @return 傳回快取的內容，若快取未命中，傳回null
+     */
+    private byte[] getFromMemory(final String key) {
+	synchronized (memory) {
+	    return memory.get(key);
+	}
+    }
+
+    /**
+     * 將資料放入記憶體層，若超過容量上限，淘汰最久沒有使用的資料。
+     *
+     * @param key 傳入鍵值
+     * @param data 傳入資料
+     */
+    private void putToMemory(final String key, final byte[] data) {
+	if (data.length > maxEntrySize) {
+	    return;
+	}
+	synchronized (memory) {
+	    final byte[] old = memory.put(key, data);
+	    if (old != null) {
+		memorySize -= old.length;
+	    }
+	    memorySize += data.length;
+	    final Iterator<byte[]> iterator = memory.values().iterator();
+	    while (memorySize > maxMemorySize && iterator.hasNext()) {
+		memorySize -= iterator.next().length;
+		iterator.remove();
+	    }
+	}
+    }
+
+    /**
+     * 取得磁碟層的快取檔案。
+     *
+     * @param key 傳入鍵值
+     * @return 傳回快取檔案，若不使用磁碟層，傳回null
+     */
+    private File getDiskFile(final String key) {
+	if (directory == null) {
+	    return null;
+	}
+	return new File(directory, key);
+    }
+}
@@ -0,0 +1,1059 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.GpsTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
+import org.apache.commons.imaging.formats.tiff.taginfos.TagInfo;
+import org.magiclen.json.JSONArray;
+import org.magiclen.json.JSONObject;
+
+/**
+ * <p>
+ * EXIF元數據的延遲讀取檢視。</p>
+ *
+ * <p>
+ * 只解析TIFF結構中各個IFD(IFD0、IFD1、Exif、GPS、Interoperability)的項目位置並建立索引，不會事先解碼任何欄位的值。只有在呼叫getInt、getString等方法時，才會解碼被要求的欄位，因此只需要讀取方向或是拍攝時間時，不必處理MakerNote之類的大型欄位。JPEG檔案只會讀取檔頭中的APP1區段，TIFF檔案則使用記憶體映射，不會將整個檔案讀進記憶體。</p>
+ *
+ * @author Magic Len
+ * @see ImageMetadata
+ */
+public final class ImageExif {
+
+    // -----類別常數-----
+    /**
+     * IFD0，也就是主要圖片的目錄。
+     */
+    public static final int DIRECTORY_IFD0 = 0;
+    /**
+     * IFD1，通常是縮圖的目錄。
+     */
+    public static final int DIRECTORY_IFD1 = 1;
+    /**
+     * Exif子目錄。
+     */
+    public static final int DIRECTORY_EXIF = -2;
+    /**
+     * GPS子目錄。
+     */
+    public static final int DIRECTORY_GPS = -3;
+    /**
+     * Interoperability子目錄。
+     */
+    public static final int DIRECTORY_INTEROP = -4;
+    /**
+     * 方向的標籤。
+     */
+    public static final int TAG_ORIENTATION = 0x0112;
+    /**
+     * Exif子目錄位置的標籤。
+     */
+    private static final int TAG_EXIF_OFFSET = 0x8769;
+    /**
+     * GPS子目錄位置的標籤。
+     */
+    private static final int TAG_GPS_OFFSET = 0x8825;
+    /**
+     * Interoperability子目錄位置的標籤。
+     */
+    private static final int TAG_INTEROP_OFFSET = 0xA005;
+    /**
+     * 各欄位類型每個值的位元組數，索引為TIFF的欄位類型編號。
+     */
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+    /**
+     * 沒有指定目錄時，尋找標籤的目錄順序。
+     */
+    private static final int[] SEARCH_ORDER = {DIRECTORY_IFD0, DIRECTORY_EXIF, DIRECTORY_GPS, DIRECTORY_INTEROP, DIRECTORY_IFD1};
+    /**
+     * 最多解析的IFD數量，避免損壞的檔案造成無窮迴圈。
+     */
+    private static final int MAX_DIRECTORIES = 64;
+
+    // -----類別方法-----
+    /**
+     * 從圖片檔案讀取EXIF。支援JPEG、PNG(eXIf)、WebP(EXIF)和TIFF檔案。
+     *
+     * @param file 傳入圖片檔案物件
+     * @return 傳回EXIF的檢視，若圖片檔案沒有EXIF或無法讀取，傳回null
+     */
+    public static ImageExif read(final File file) {
+	if (file == null || !file.isFile() || !file.canRead()) {
+	    return null;
+	}
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    final ByteBuffer tiff = find(channel);
+	    return tiff == null ? null : parse(tiff);
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return null;
+	}
+    }
+
+    /**
+     * 從來源圖片讀取EXIF。會直接使用來源圖片的資料，不會再開啟檔案。
+     *
+     * @param source 傳入來源圖片
+     * @return 傳回EXIF的檢視，若圖片沒有EXIF或無法讀取，傳回null
+     */
+    public static ImageExif read(final SourceImage source) {
+	if (source == null) {
+	    return null;
+	}
+	try {
+	    return source.readExif();
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return null;
+	}
+    }
+
+    /**
+     * 從TIFF結構的資料建立EXIF的檢視，例如JPEG的APP1區段去掉「Exif\0\0」之後的內容。
+     *
+     * @param tiff 傳入TIFF結構的資料
+     * @return 傳回EXIF的檢視，若資料格式不正確，傳回null
+     */
+    public static ImageExif parse(final byte[] tiff) {
+	if (tiff == null) {
+	    return null;
+	}
+	return parse(ByteBuffer.wrap(tiff));
+    }
+
+    /**
+     * 從TIFF結構的資料建立EXIF的檢視。
+     *
+     * @param tiff 傳入TIFF結構的資料，位置0必須是TIFF檔頭
+     * @return 傳回EXIF的檢視，若資料格式不正確，傳回null
+     */
+    static ImageExif parse(final ByteBuffer tiff) {
+	if (tiff.limit() < 8) {
+	    return null;
+	}
+	final ByteBuffer buffer = tiff.duplicate();
+	final int b0 = buffer.get(0) & 0xFF, b1 = buffer.get(1) & 0xFF;
+	if (b0 == 'I' && b1 == 'I') {
+	    buffer.order(ByteOrder.LITTLE_ENDIAN);
+	} else if (b0 == 'M' && b1 == 'M') {
+	    buffer.order(ByteOrder.BIG_ENDIAN);
+	} else {
+	    return null;
+	}
+	if ((buffer.getShort(2) & 0xFFFF) != 42) {
+	    return null;
+	}
+	final ImageExif exif = new ImageExif(buffer);
+	final HashSet<Long> visited = new HashSet<>();
+	long offset = buffer.getInt(4) & 0xFFFFFFFFL;
+	for (int index = 0; offset != 0 && index < MAX_DIRECTORIES; ++index) {
+	    offset = exif.indexDirectory(index, offset, visited);
+	}
+	return exif;
+    }
+
+    /**
+     * 在圖片檔案中尋找TIFF結構的EXIF資料。JPEG檔案是APP1區段的內容，PNG檔案是eXIf區塊的內容，WebP檔案是EXIF區塊的內容，TIFF檔案則是整個檔案的記憶體映射。
+     *
+     * @param channel 傳入圖片檔案的FileChannel
+     * @return 傳回TIFF結構的資料，若找不到，傳回null
+     * @throws IOException 讀取失敗時拋出
+     */
+    static ByteBuffer find(final FileChannel channel) throws IOException {
+	final ByteBuffer header = ByteBuffer.allocate(16);
+	final int headerLength = readFully(channel, header, 0);
+	if (headerLength < 4) {
+	    return null;
+	}
+	header.flip();
+	final int b0 = header.get(0) & 0xFF, b1 = header.get(1) & 0xFF;
+	if (b0 == 0xFF && b1 == 0xD8) {
+	    return findJPEGExif(channel);
+	} else if (b0 == 0x89 && b1 == 'P' && header.get(2) == 'N' && header.get(3) == 'G') {
+	    return findPNGExif(channel);
+	} else if (headerLength >= 16 && WebPDecoder.isWebP(header)) {
+	    return findWebPExif(channel);
+	} else if ((b0 == 'I' && b1 == 'I') || (b0 == 'M' && b1 == 'M')) {
+	    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	}
+	return null;
+    }
+
+    /**
+     * 在整個圖片檔案的資料中尋找TIFF結構的EXIF資料。傳回的資料和原本的資料共用內容，不會被複製。
+     *
+     * @param data 傳入圖片檔案的資料，位置0為檔案的開頭
+     * @return 傳回TIFF結構的資料，若找不到，傳回null
+     */
+    static ByteBuffer find(final ByteBuffer data) {
+	final ByteBuffer buffer = data.duplicate();
+	buffer.clear();
+	final int size = buffer.limit();
+	if (size < 4) {
+	    return null;
+	}
+	final int b0 = buffer.get(0) & 0xFF, b1 = buffer.get(1) & 0xFF;
+	if (b0 == 0xFF && b1 == 0xD8) {
+	    int position = 2;
+	    while (position + 4 <= size && (buffer.get(position) & 0xFF) == 0xFF) {
+		final int type = buffer.get(position + 1) & 0xFF;
+		if (type == 0xFF) {
+		    ++position;
+		    continue;
+		}
+		if (type == 0xDA || type == 0xD9) {
+		    return null;
+		}
+		final int length = ((buffer.get(position + 2) & 0xFF) << 8) | (buffer.get(position + 3) & 0xFF);
+		if (length < 2 || position + 2 + length > size) {
+		    return null;
+		}
+		if (type == 0xE1 && length >= 8 && buffer.get(position + 4) == 'E' && buffer.get(position + 5) == 'x' && buffer.get(position + 6) == 'i' && buffer.get(position + 7) == 'f' && buffer.get(position + 8) == 0 && buffer.get(position + 9) == 0) {
+		    buffer.limit(position + 2 + length);
+		    buffer.position(position + 10);
+		    return buffer.slice();
+		}
+		position += 2 + length;
+	    }
+	} else if (b0 == 0x89 && b1 == 'P' && buffer.get(2) == 'N' && buffer.get(3) == 'G') {
+	    long position = 8;
+	    while (position + 12 <= size) {
+		final int p = (int) position;
+		final long length = buffer.getInt(p) & 0xFFFFFFFFL;
+		if (buffer.get(p + 4) == 'e' && buffer.get(p + 5) == 'X' && buffer.get(p + 6) == 'I' && buffer.get(p + 7) == 'f') {
+		    if (position + 8 + length > size) {
+			return null;
+		    }
+		    buffer.limit((int) (position + 8 + length));
+		    buffer.position(p + 8);
+		    return buffer.slice();
+		}
+		if (buffer.get(p + 4) == 'I' && buffer.get(p + 5) == 'E' && buffer.get(p + 6) == 'N' && buffer.get(p + 7) == 'D') {
+		    return null;
+		}
+		position += 12 + length;
+	    }
+	} else if (WebPDecoder.isWebP(buffer)) {
+	    long position = 12;
+	    while (position + 8 <= size) {
+		final int p = (int) position;
+		final long length = Integer.reverseBytes(buffer.getInt(p + 4)) & 0xFFFFFFFFL;
+		if (buffer.get(p) == 'E' && buffer.get(p + 1) == 'X' && buffer.get(p + 2) == 'I' && buffer.get(p + 3) == 'F') {
+		    if (position + 8 + length > size) {
+			return null;
+		    }
+		    buffer.limit((int) (position + 8 + length));
+		    buffer.position(p + 8 + exifPrefixLength(buffer, p + 8));
+		    return buffer.slice();
+		}
+		position += 8 + length + (length & 1);
+	    }
+	} else if ((b0 == 'I' && b1 == 'I') || (b0 == 'M' && b1 == 'M')) {
+	    return buffer.slice();
+	}
+	return null;
+    }
+
+    /**
+     * 在WebP檔案中尋找EXIF區塊。只會讀取各區塊的標頭，不會讀取影像資料。
+     *
+     * @param channel 傳入WebP檔案的FileChannel
+     * @return 傳回TIFF結構的資料，若找不到，傳回null
+     * @throws IOException 讀取失敗時拋出
+     */
+    static ByteBuffer findWebPExif(final FileChannel channel) throws IOException {
+	final ByteBuffer chunk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+	final long size = channel.size();
+	long position = 12;
+	while (position + 8 <= size) {
+	    chunk.clear();
+	    if (readFully(channel, chunk, position) < 8) {
+		return null;
+	    }
+	    final long length = chunk.getInt(4) & 0xFFFFFFFFL;
+	    if (chunk.get(0) == 'E' && chunk.get(1) == 'X' && chunk.get(2) == 'I' && chunk.get(3) == 'F') {
+		if (length > Integer.MAX_VALUE || position + 8 + length > size) {
+		    return null;
+		}
+		final ByteBuffer data = ByteBuffer.allocate((int) length);
+		readFully(channel, data, position + 8);
+		data.position(exifPrefixLength(data, 0));
+		return data.slice();
+	    }
+	    position += 8 + length + (length & 1);
+	}
+	return null;
+    }
+
+    /**
+     * 有些程式寫入WebP的EXIF區塊時，會和JPEG一樣在TIFF結構之前加上「Exif\0\0」，計算要略過的長度。
+     *
+     * @param buffer 傳入資料
+     * @param position 傳入EXIF區塊內容的位置
+     * @return 傳回要略過的長度
+     */
+    private static int exifPrefixLength(final ByteBuffer buffer, final int position) {
+	if (buffer.limit() - position >= 6 && buffer.get(position) == 'E' && buffer.get(position + 1) == 'x' && buffer.get(position + 2) == 'i' && buffer.get(position + 3) == 'f' && buffer.get(position + 4) == 0 && buffer.get(position + 5) == 0) {
+	    return 6;
+	}
+	return 0;
+    }
+
+    /**
+     * 在PNG檔案中尋找eXIf區塊。只會讀取各區塊的標頭，不會讀取影像資料。
+     *
+     * @param channel 傳入PNG檔案的FileChannel
+     * @return 傳回TIFF結構的資料，若找不到，傳回null
+     * @throws IOException 讀取失敗時拋出
+     */
+    static ByteBuffer findPNGExif(final FileChannel channel) throws IOException {
+	final ByteBuffer chunk = ByteBuffer.allocate(8);
+	final long size = channel.size();
+	long position = 8;
+	while (position + 12 <= size) {
+	    chunk.clear();
+	    if (readFully(channel, chunk, position) < 8) {
+		return null;
+	    }
+	    final long length = chunk.getInt(0) & 0xFFFFFFFFL;
+	    if (chunk.get(4) == 'e' && chunk.get(5) == 'X' && chunk.get(6) == 'I' && chunk.get(7) == 'f') {
+		if (length > Integer.MAX_VALUE || position + 8 + length > size) {
+		    return null;
+		}
+		final ByteBuffer data = ByteBuffer.allocate((int) length);
+		readFully(channel, data, position + 8);
+		return data;
+	    }
+	    if (chunk.get(4) == 'I' && chunk.get(5) == 'E' && chunk.get(6) == 'N' && chunk.get(7) == 'D') {
+		return null;
+	    }
+	    position += 12 + length;
+	}
+	return null;
+    }
+
+    /**
+     * 在JPEG檔案的檔頭中尋找EXIF的APP1區段。
+     *
+     * @param channel 傳入JPEG檔案的FileChannel
+     * @return 傳回TIFF結構的資料，若找不到，傳回null
+     * @throws IOException 讀取失敗時拋出
+     */
+    static ByteBuffer findJPEGExif(final FileChannel channel) throws IOException {
+	final ByteBuffer marker = ByteBuffer.allocate(4);
+	long position = 2;
+	while (true) {
+	    marker.clear();
+	    if (readFully(channel, marker, position) < 4) {
+		return null;
+	    }
+	    if ((marker.get(0) & 0xFF) != 0xFF) {
+		return null;
+	    }
+	    final int type = marker.get(1) & 0xFF;
+	    if (type == 0xFF) {
+		// 填充的位元組
+		++position;
+		continue;
+	    }
+	    if (type == 0xDA || type == 0xD9) {
+		// 影像資料開始或是檔案結束，之後不會再有EXIF
+		return null;
+	    }
+	    final int length = marker.getShort(2) & 0xFFFF;
+	    if (length < 2) {
+		return null;
+	    }
+	    if (type == 0xE1 && length >= 8) {
+		final ByteBuffer segment = ByteBuffer.allocate(length - 2);
+		if (readFully(channel, segment, position + 4) < segment.capacity()) {
+		    return null;
+		}
+		if (segment.get(0) == 'E' && segment.get(1) == 'x' && segment.get(2) == 'i' && segment.get(3) == 'f' && segment.get(4) == 0 && segment.get(5) == 0) {
+		    segment.position(6);
+		    return segment.slice();
+		}
+	    }
+	    position += 2 + length;
+	}
+    }
+
+    /**
+     * 從指定的位置讀取資料，直到緩衝區填滿或是檔案結束。
+     *
+     * @param channel 傳入FileChannel
+     * @param buffer 傳入緩衝區
+     * @param position 傳入檔案中的位置
+     * @return 傳回讀取的位元組數
+     * @throws IOException 讀取失敗時拋出
+     */
+    static int readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+	int total = 0;
+	while (buffer.hasRemaining()) {
+	    final int n = channel.read(buffer, position);
+	    if (n < 0) {
+		break;
+	    }
+	    total += n;
+	    position += n;
+	}
+	return total;
+    }
+
+    /**
+     * 取得標籤資訊。
+     *
+     * @param directory 傳入目錄
+     * @param tag 傳入標籤
+     * @return 傳回標籤資訊，若不認得此標籤，傳回null
+     */
+    static TagInfo getTagInfo(final int directory, final int tag) {
+	return TagNames.getTagInfo(directory, tag);
+    }
+
+    /**
+     * 計算索引的鍵值。
+     *
+     * @param directory 傳入目錄
+     * @param tag 傳入標籤
+     * @return 傳回鍵值
+     */
+    private static int key(final int directory, final int tag) {
+	return ((directory + 0x100) << 16) | tag;
+    }
+
+    // -----物件常數-----
+    /**
+     * TIFF結構的資料，已設定好位元組順序。
+     */
+    private final ByteBuffer buffer;
+    /**
+     * 各欄位項目的位置，依照解析的順序排列。
+     */
+    private final LinkedHashMap<Integer, Integer> entries = new LinkedHashMap<>();
+
+    // -----建構子-----
+    /**
+     * 私有的建構子。
+     *
+     * @param buffer 傳入TIFF結構的資料
+     */
+    private ImageExif(final ByteBuffer buffer) {
+	this.buffer = buffer;
+    }
+
+    // -----物件方法-----
+    /**
+     * 建立一個IFD的索引，若IFD中有子目錄，也一併建立索引。
+     *
+     * @param directory 傳入目錄
+     * @param offset 傳入IFD的位置
+     * @param visited 傳入已經解析過的IFD位置
+     * @return 傳回下一個IFD的位置，若沒有，傳回0
+     */
+    private long indexDirectory(final int directory, final long offset, final HashSet<Long> visited) {
+	if (offset < 8 || offset + 2 > buffer.limit() || !visited.add(offset)) {
+	    return 0;
+	}
+	final int count = buffer.getShort((int) offset) & 0xFFFF;
+	final long end = offset + 2 + count * 12L;
+	if (end > buffer.limit()) {
+	    return 0;
+	}
+	for (int i = 0; i < count; ++i) {
+	    final int position = (int) offset + 2 + i * 12;
+	    final int tag = buffer.getShort(position) & 0xFFFF;
+	    final int type = buffer.getShort(position + 2) & 0xFFFF;
+	    if (type <= 0 || type >= TYPE_SIZES.length) {
+		continue;
+	    }
+	    entries.putIfAbsent(key(directory, tag), position);
+	}
+	// 目錄中的項目都建立索引之後，才處理子目錄
+	for (int i = 0; i < count; ++i) {
+	    final int position = (int) offset + 2 + i * 12;
+	    final int subDirectory;
+	    switch (buffer.getShort(position) & 0xFFFF) {
+		case TAG_EXIF_OFFSET:
+		    subDirectory = directory >= 0 ? DIRECTORY_EXIF : 0;
+		    break;
+		case TAG_GPS_OFFSET:
+		    subDirectory = directory >= 0 ? DIRECTORY_GPS : 0;
+		    break;
+		case TAG_INTEROP_OFFSET:
+		    subDirectory = directory >= 0 || directory == DIRECTORY_EXIF ? DIRECTORY_INTEROP : 0;
+		    break;
+		default:
+		    subDirectory = 0;
+	    }
+	    if (subDirectory != 0) {
+		indexDirectory(subDirectory, buffer.getInt(position + 8) & 0xFFFFFFFFL, visited);
+	    }
+	}
+	if (directory < 0 || end + 4 > buffer.limit()) {
+	    return 0;
+	}
+	return buffer.getInt((int) end) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 尋找欄位項目的位置。
+     *
+     * @param directory 傳入目錄
+     * @param tag 傳入標籤
+     * @return 傳回欄位項目的位置，若找不到，傳回-1
+     */
+    private int find(final int directory, final int tag) {
+	final Integer position = entries.get(key(directory, tag));
+	return position != null ? position : -1;
+    }
+
+    /**
+     * 依照IFD0、Exif、GPS、Interoperability、IFD1的順序尋找欄位項目的位置。
+     *
+     * @param tag 傳入標籤
+     * @return 傳回欄位項目的位置，若找不到，傳回-1
+     */
+    private int find(final int tag) {
+	for (final int directory : SEARCH_ORDER) {
+	    final int position = find(directory, tag);
+	    if (position >= 0) {
+		return position;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * 取得欄位值的位置。
+     *
+     * @param position 傳入欄位項目的位置
+     * @return 傳回欄位值的位置，若超出範圍，傳回-1
+     */
+    private int valuePosition(final int position) {
+	final int type = buffer.getShort(position + 2) & 0xFFFF;
+	final long size = (buffer.getInt(position + 4) & 0xFFFFFFFFL) * TYPE_SIZES[type];
+	if (size <= 4) {
+	    return position + 8;
+	}
+	final long offset = buffer.getInt(position + 8) & 0xFFFFFFFFL;
+	if (offset + size > buffer.limit()) {
+	    return -1;
+	}
+	return (int) offset;
+    }
+
+    /**
+     * 取得欄位值的數量。
+     *
+     * @param position 傳入欄位項目的位置
+     * @return 傳回數量
+     */
+    private int count(final int position) {
+	return (int) Math.min(buffer.getInt(position + 4) & 0xFFFFFFFFL, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 解碼欄位的第index個數值。
+     *
+     * @param position 傳入欄位項目的位置
+     * @param valuePosition 傳入欄位值的位置
+     * @param index 傳入索引
+     * @return 傳回數值
+     */
+    private double decodeNumber(final int position, final int valuePosition, final int index) {
+	final int type = buffer.getShort(position + 2) & 0xFFFF;
+	final int p = valuePosition + index * TYPE_SIZES[type];
+	switch (type) {
+	    case 1: // BYTE
+	    case 7: // UNDEFINED
+		return buffer.get(p) & 0xFF;
+	    case 6: // SBYTE
+		return buffer.get(p);
+	    case 3: // SHORT
+		return buffer.getShort(p) & 0xFFFF;
+	    case 8: // SSHORT
+		return buffer.getShort(p);
+	    case 4: // LONG
+		return buffer.getInt(p) & 0xFFFFFFFFL;
+	    case 9: // SLONG
+		return buffer.getInt(p);
+	    case 5: { // RATIONAL
+		final long denominator = buffer.getInt(p + 4) & 0xFFFFFFFFL;
+		return denominator == 0 ? 0 : (double) (buffer.getInt(p) & 0xFFFFFFFFL) / denominator;
+	    }
+	    case 10: { // SRATIONAL
+		final int denominator = buffer.getInt(p + 4);
+		return denominator == 0 ? 0 : (double) buffer.getInt(p) / denominator;
+	    }
+	    case 11: // FLOAT
+		return buffer.getFloat(p);
+	    case 12: // DOUBLE
+		return buffer.getDouble(p);
+	    default: // ASCII
+		return Double.NaN;
+	}
+    }
+
+    /**
+     * 判斷欄位是否為整數類型。
+     *
+     * @param position 傳入欄位項目的位置
+     * @return 傳回是否為整數類型
+     */
+    private boolean isInteger(final int position) {
+	final int type = buffer.getShort(position + 2) & 0xFFFF;
+	return type == 1 || type == 3 || type == 4 || type == 6 || type == 7 || type == 8 || type == 9;
+    }
+
+    /**
+     * 判斷是否有此標籤。
+     *
+     * @param tag 傳入標籤
+     * @return 傳回是否有此標籤
+     */
+    public boolean contains(final int tag) {
+	return find(tag) >= 0;
+    }
+
+    /**
+     * 判斷指定的目錄中是否有此標籤。
+     *
+     * @param directory 傳入目錄，例如DIRECTORY_IFD0、DIRECTORY_EXIF、DIRECTORY_GPS
+     * @param tag 傳入標籤
+     * @return 傳回是否有此標籤
+     */
+    public boolean contains(final int directory, final int tag) {
+	return find(directory, tag) >= 0;
+    }
+
+    /**
+     * 取得整數欄位的第一個值。
+     *
+     * @param tag 傳入標籤
+     * @return 傳回整數，若沒有此標籤或不是整數，傳回null
+     */
+    public Integer getInt(final int tag) {
+	return decodeInt(find(tag));
+    }
+
+    /**
+     * 取得指定目錄中整數欄位的第一個值。
+     *
+     * @param directory 傳入目錄
+     * @param tag 傳入標籤
+     * @return 傳回整數，若沒有此標籤或不是整數，傳回null
+     */
+    public Integer getInt(final int directory, final int tag) {
+	return decodeInt(find(directory, tag));
+    }
+
+    /**
+     * 取得整數欄位的第一個值。
+     *
+     * @param position 傳入欄位項目的位置
+     * @return 傳回整數，若不是整數，傳回null
+     */
+    private Integer decodeInt(final int position) {
+	if (position < 0 || !isInteger(position) || count(position) < 1) {
+	    return null;
+	}
+	final int valuePosition = valuePosition(position);
+	if (valuePosition < 0) {
+	    return null;
+	}
+	return (int) (long) decodeNumber(position, valuePosition, 0);
+    }
+
+    /**
+     * 取得整數欄位的所有值。
+     *
+     * @param tag 傳入標籤
+     * @return 傳回整數陣列，若沒有此標籤或不是整數，傳回null
+     */
+    public int[] getIntArray(final int tag) {
+	return decodeIntArray(find(tag));
+    }
+
+    /**
+     * 取得指定目錄中整數欄位的所有值。
+     *
+     * @param directory 傳入目錄
+     * @param tag 傳入標籤
+     * @return 傳回整數陣列，若沒有此標籤或不是整數，傳回null
+     */
+    public int[] getIntArray(final int directory, final int tag) {
+	return decodeIntArray(find(directory, tag));
+    }
+
+    /**
+     * 取得整數欄位的所有值。
+     *
+     * @param position 傳入欄位項目的位置
+     * @return 傳回整數陣列，若不是整數，傳回null
+     */
+    private int[] decodeIntArray(final int position) {
+	if (position < 0 || !isInteger(position)) {
+	    return null;
+	}
+	final int valuePosition = valuePosition(position);
+	if (valuePosition < 0) {
+	    return null;
+	}
+	final int[] values = new int[count(position)];
+	for (int i = 0; i < values.length; ++i) {
+	    values[i] = (int) (long) decodeNumber(position, valuePosition, i);
+	}
+	return values;
+    }
+
+    /**
+     * 取得數值欄位的第一個值，有理數會被轉成浮點數。
+     *
+     * @param tag 傳入標籤
+     * @return 傳回浮點數，若沒有此標籤或不是數值，傳回null
+     */
+    public Double getDouble(final int tag) {
+	return decodeDouble(find(tag));
+    }
+
+    /**
+     * 取得指定目錄中數值欄位的第一個值，有理數會被轉成浮點數。
+     *
+     * @param directory 傳入目錄
+     * @param tag 傳入標籤
+     * @return 傳回浮點數，若沒有此標籤或不是數值，傳回null
+     */
+    public Double getDouble(final int directory, final int tag) {
+	return decodeDouble(find(directory, tag));
+    }
+
+    /**
+     * 取得數值欄位的第一個值。
+     *
+     * @param position 傳入欄位項目的位置
+     * @return 傳回浮點數，若不是數值，傳回null
+     */
+    private Double decodeDouble(final int position) {
+	final double[] values = decodeDoubleArray(position);
+	return values == null || values.length == 0 ? null : values[0];
+    }
+
+    /**
+     * 取得數值欄位的所有值，有理數會被轉成浮點數。
+     *
+     * @param tag 傳入標籤
+     * @return 傳回浮點數陣列，若沒有此標籤或不是數值，傳回null
+     */
+    public double[] getDoubleArray(final int tag) {
+	return decodeDoubleArray(find(tag));
+    }
+
+    /**
+     * 取得指定目錄中數值欄位的所有值，有理數會被轉成浮點數。
+     *
+     * @param directory 傳入目錄
+     * @param tag 傳入標籤
+     * @return 傳回浮點數陣列，若沒有此標籤或不是數值，傳回null
+     */
+    public double[] getDoubleArray(final int directory, final int tag) {
+	return decodeDoubleArray(find(directory, tag));
+    }
+
+    /**
+     * 取得數值欄位的所有值。
+     *
+     * @param position 傳入欄位項目的位置
+     * @return 傳回浮點數陣列，若不是數值，傳回null
+     */
+    private double[] decodeDoubleArray(final int position) {
+	if (position < 0 || (buffer.getShort(position + 2) & 0xFFFF) == 2) {
+	    return null;
+	}
+	final int valuePosition = valuePosition(position);
+	if (valuePosition < 0) {
+	    return null;
+	}
+	final double[] values = new double[count(position)];
+	for (int i = 0; i < values.length; ++i) {
+	    values[i] = decodeNumber(position, valuePosition, i);
+	}
+	return values;
+    }
+
+    /**
+     * 取得字串欄位的值。
+     *
+     * @param tag 傳入標籤
+     * @return 傳回字串，若沒有此標籤或不是字串，傳回null
+     */
+    public String getString(final int tag) {
+	return decodeString(find(tag));
+    }
+
+    /**
+     * 取得指定目錄中字串欄位的值。
+     *
+     * @param directory 傳入目錄
+     * @param tag 傳入標籤
+     * @return 傳回字串，若沒有此標籤或不是字串，傳回null
+     */
+    public String getString(final int directory, final int tag) {
+	return decodeString(find(directory, tag));
+    }
+
+    /**
+     * 取得字串欄位的值。
+     *
+     * @param position 傳入欄位項目的位置
+     * @return 傳回字串，若不是字串，傳回null
+     */
+    private String decodeString(final int position) {
+	if (position < 0 || (buffer.getShort(position + 2) & 0xFFFF) != 2) {
+	    return null;
+	}
+	final byte[] bytes = decodeBytes(position);
+	if (bytes == null) {
+	    return null;
+	}
+	int length = 0;
+	while (length < bytes.length && bytes[length] != 0) {
+	    ++length;
+	}
+	return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 取得欄位值的原始位元組。
+     *
+     * @param tag 傳入標籤
+     * @return 傳回位元組陣列，若沒有此標籤，傳回null
+     */
+    public byte[] getBytes(final int tag) {
+	return decodeBytes(find(tag));
+    }
+
+    /**
+     * 取得指定目錄中欄位值的原始位元組。
+     *
+     * @param directory 傳入目錄
+     * @param tag 傳入標籤
+     * @return 傳回位元組陣列，若沒有此標籤，傳回null
+     */
+    public byte[] getBytes(final int directory, final int tag) {
+	return decodeBytes(find(directory, tag));
+    }
+
+    /**
+     * 取得欄位值的原始位元組。
+     *
+     * @param position 傳入欄位項目的位置
+     * @return 傳回位元組陣列，若超出範圍，傳回null
+     */
+    private byte[] decodeBytes(final int position) {
+	if (position < 0) {
+	    return null;
+	}
+	final int valuePosition = valuePosition(position);
+	if (valuePosition < 0) {
+	    return null;
+	}
+	final int type = buffer.getShort(position + 2) & 0xFFFF;
+	final long size = (long) count(position) * TYPE_SIZES[type];
+	if (size > Integer.MAX_VALUE) {
+	    return null;
+	}
+	final byte[] bytes = new byte[(int) size];
+	final ByteBuffer view = buffer.duplicate();
+	view.position(valuePosition);
+	view.get(bytes);
+	return bytes;
+    }
+
+    /**
+     * 取得方向(Orientation)。
+     *
+     * @return 傳回方向(1~8)，若沒有方向的資訊，傳回1
+     */
+    public int getOrientation() {
+	return getOrientation(DIRECTORY_IFD0);
+    }
+
+    /**
+     * 取得指定目錄的方向(Orientation)。多頁的TIFF檔案，每一頁都有自己的方向，第n頁(從0開始)的目錄就是n。
+     *
+     * @param directory 傳入目錄
+     * @return 傳回方向(1~8)，若沒有方向的資訊，傳回1
+     */
+    public int getOrientation(final int directory) {
+	final Integer orientation = getInt(directory, TAG_ORIENTATION);
+	return orientation != null && orientation >= 1 && orientation <= 8 ? orientation : 1;
+    }
+
+    /**
+     * 取得目錄中所有的標籤。
+     *
+     * @param directory 傳入目錄
+     * @return 傳回標籤陣列，依照在檔案中的順序排列
+     */
+    public int[] getTags(final int directory) {
+	final ArrayList<Integer> tags = new ArrayList<>();
+	for (final Integer key : entries.keySet()) {
+	    if ((key >>> 16) - 0x100 == directory) {
+		tags.add(key & 0xFFFF);
+	    }
+	}
+	final int[] result = new int[tags.size()];
+	for (int i = 0; i < result.length; ++i) {
+	    result[i] = tags.get(i);
+	}
+	return result;
+    }
+
+    /**
+     * 將所有欄位轉成JSONArray，格式和ImageMetadata.readMetadataFromFile的Metadata相同。只有在呼叫此方法時才會解碼所有欄位的值。
+     *
+     * @return 傳回JSONArray
+     */
+    public JSONArray toJSONArray() {
+	final JSONArray array = new JSONArray();
+	for (final Map.Entry<Integer, Integer> entry : entries.entrySet()) {
+	    final int directory = (entry.getKey() >>> 16) - 0x100, tag = entry.getKey() & 0xFFFF;
+	    final int position = entry.getValue();
+	    try {
+		final int type = buffer.getShort(position + 2) & 0xFFFF;
+		final JSONObject obj = new JSONObject();
+		obj.put(ImageMetadata.METADATA_ID, tag);
+		obj.put(ImageMetadata.METADATA_NAME, TagNames.getName(directory, tag));
+		switch (type) {
+		    case 1:
+		    case 6:
+		    case 7:
+			obj.put(ImageMetadata.METADATA_TYPE, ImageMetadata.METADATA_TYPE_BYTE_ARRAY);
+			obj.put(ImageMetadata.METADATA_VALUE, decodeBytes(position));
+			break;
+		    case 3:
+		    case 4:
+		    case 8:
+		    case 9:
+			if (count(position) == 1) {
+			    obj.put(ImageMetadata.METADATA_TYPE, ImageMetadata.METADATA_TYPE_INTEGER);
+			    obj.put(ImageMetadata.METADATA_VALUE, decodeInt(position));
+			} else {
+			    obj.put(ImageMetadata.METADATA_TYPE, ImageMetadata.METADATA_TYPE_INTEGER_ARRAY);
+			    obj.put(ImageMetadata.METADATA_VALUE, decodeIntArray(position));
+			}
+			break;
+		    case 5:
+		    case 10:
+		    case 11:
+		    case 12:
+			if (count(position) == 1) {
+			    obj.put(ImageMetadata.METADATA_TYPE, ImageMetadata.METADATA_TYPE_REAL);
+			    obj.put(ImageMetadata.METADATA_VALUE, decodeDouble(position));
+			} else {
+			    obj.put(ImageMetadata.METADATA_TYPE, ImageMetadata.METADATA_TYPE_REAL_ARRAY);
+			    obj.put(ImageMetadata.METADATA_VALUE, decodeDoubleArray(position));
+			}
+			break;
+		    case 2:
+			obj.put(ImageMetadata.METADATA_TYPE, ImageMetadata.METADATA_TYPE_STRING);
+			obj.put(ImageMetadata.METADATA_VALUE, decodeString(position));
+			break;
+		    default:
+			obj.put(ImageMetadata.METADATA_TYPE, ImageMetadata.METADATA_TYPE_UNKNOWN);
+			obj.put(ImageMetadata.METADATA_VALUE, decodeBytes(position));
+		}
+		array.put(obj);
+	    } catch (final Exception ex) {
+		ex.printStackTrace(System.out);
+	    }
+	}
+	return array;
+    }
+
+    // -----內部類別-----
+    /**
+     * 標籤名稱的對照表，第一次使用時才會建立。
+     */
+    private static final class TagNames {
+
+	/**
+	 * GPS目錄的標籤資訊。
+	 */
+	private static final Map<Integer, TagInfo> GPS = create(GpsTagConstants.ALL_GPS_TAGS);
+	/**
+	 * 其它目錄的標籤資訊。
+	 */
+	private static final Map<Integer, TagInfo> GENERAL = create(TiffTagConstants.ALL_TIFF_TAGS, ExifTagConstants.ALL_EXIF_TAGS);
+
+	/**
+	 * 建立標籤資訊的對照表，先出現的標籤優先。
+	 *
+	 * @param lists 傳入標籤資訊的列表
+	 * @return 傳回對照表
+	 */
+	@SafeVarargs
+	private static Map<Integer, TagInfo> create(final List<? extends TagInfo>... lists) {
+	    final HashMap<Integer, TagInfo> tagInfos = new HashMap<>();
+	    for (final List<? extends TagInfo> list : lists) {
+		for (final TagInfo tagInfo : list) {
+		    tagInfos.putIfAbsent(tagInfo.tag, tagInfo);
+		}
+	    }
+	    return tagInfos;
+	}
+
+	/**
+	 * 取得標籤資訊。
+	 *
+	 * @param directory 傳入目錄
+	 * @param tag 傳入標籤
+	 * @return 傳回標籤資訊，若不認得此標籤，傳回null
+	 */
+	static TagInfo getTagInfo(final int directory, final int tag) {
+	    return (directory == DIRECTORY_GPS ? GPS : GENERAL).get(tag);
+	}
+
+	/**
+	 * 取得標籤名稱。
+	 *
+	 * @param directory 傳入目錄
+	 * @param tag 傳入標籤
+	 * @return 傳回標籤名稱
+	 */
+	static String getName(final int directory, final int tag) {
+	    final TagInfo tagInfo = getTagInfo(directory, tag);
+	    return tagInfo != null ? tagInfo.name : "Unknown Tag (0x" + Integer.toHexString(tag) + ")";
+	}
+    }
+}
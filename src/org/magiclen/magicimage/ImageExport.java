@@ -30,17 +30,72 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
+import java.awt.image.IndexColorModel;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * 輸出圖片。
+ * <p>
+ * 輸出圖片。</p>
+ *
+ * <p>
+ * 不覆蓋已存在的檔案時，輸出的檔名會以原子操作建立(CREATE_NEW)來保留，因此多個執行緒同時輸出到同一個目錄時，也不會選到相同的檔名。同一個檔名被重新命名過後，下一個編號會被記住，不需要再從1開始逐一檢查。若開啟原子寫入，圖片會先輸出到同一個目錄中的暫存檔，完成之後才以原子操作移動到輸出的檔名，其它程式不會讀到寫到一半的檔案，覆蓋已存在的檔案時若輸出失敗，原本的檔案也不會被改變。</p>
  *
  * @author Magic Len
  */
 public final class ImageExport {
 
+    // -----類別介面-----
+    /**
+     * 將資料寫入輸出檔案的FileChannel。
+     */
+    interface ChannelWriter {
+
+	/**
+	 * 寫入資料。
+	 *
+	 * @param channel 傳入輸出檔案的FileChannel，位置在檔案開頭
+	 * @throws Exception 寫入失敗時拋出
+	 */
+	void write(FileChannel channel) throws Exception;
+    }
+
+    /**
+     * 將資料寫入輸出檔案的串流。
+     */
+    private interface StreamWriter {
+
+	/**
+	 * 寫入資料。
+	 *
+	 * @param outputStream 傳入有緩衝的輸出串流，不需要關閉
+	 * @throws Exception 寫入失敗時拋出
+	 */
+	void write(OutputStream outputStream) throws Exception;
+    }
+
+    // -----類別常數-----
+    /**
+     * 最多記住幾個檔名的下一個編號。
+     */
+    private static final int MAX_NAME_HINTS = 4096;
+    /**
+     * 檔名被重新命名時，下一個要嘗試的編號。鍵值為原本的輸出檔案路徑。
+     */
+    private static final ConcurrentHashMap<String, AtomicInteger> NAME_HINTS = new ConcurrentHashMap<>();
+
     // -----類別方法-----
     /**
      * 將BufferedImage物件輸出成檔案，背景顏色為白色。
@@ -66,37 +121,217 @@ public final class ImageExport {
      * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
      */
     public static File exportToJPEG(final BufferedImage bi, final File outputFile, final float quality, final boolean overwrite, final Color backgroundColor) {
+	return exportToJPEG(bi, null, outputFile, quality, overwrite, false, backgroundColor);
+    }
+
+    /**
+     * 將BufferedImage物件輸出成JPG圖片檔案。可以傳入已經計算好的統計資料，避免再掃描一次圖片。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，用來判斷是否有透明的像素，若為null，則在需要時重新掃描圖片
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為JPG或是JPEG，否則會自動重新命名
+     * @param quality 傳入JPEG的壓縮品質(0~1)，愈小畫質愈差
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param atomic 傳入是否先輸出到同一個目錄中的暫存檔，完成之後才以原子操作移動到輸出的檔名，避免其它程式讀到寫到一半的檔案；覆寫時若輸出失敗，原本的檔案會被保留
+     * @param backgroundColor 傳入背景顏色
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    public static File exportToJPEG(final BufferedImage bi, final ImageStatistics statistics, final File outputFile, final float quality, final boolean overwrite, final boolean atomic, final Color backgroundColor) {
 	if (bi == null || outputFile == null || quality < 0 || quality > 1 || backgroundColor == null) {
 	    return null;
 	}
-	//調整輸出檔案路徑
-	final File adjustOutputFile = adjustOutputFile(outputFile, overwrite, "jpg", new String[]{"jpg", "jpeg"});
+	final BufferedImage dest = flatten(bi, statistics, backgroundColor, BufferedImage.TYPE_INT_BGR);
+	final File adjustOutputFile = writeOutputStream(outputFile, overwrite, atomic, "jpg", new String[]{"jpg", "jpeg"}, (final OutputStream os) -> {
+	    writeJPEG(dest, Math.round(quality * 100), os);
+	});
+	if (dest != bi) {
+	    dest.flush();  // 釋放記憶體
+	}
+	return adjustOutputFile;
+    }
 
-	final int width = bi.getWidth(), height = bi.getHeight();
-	final BufferedImage dest = new BufferedImage(width, height, BufferedImage.TYPE_INT_BGR);
-	final Graphics2D graphics = dest.createGraphics();
-	graphics.setBackground(backgroundColor);
-	graphics.clearRect(0, 0, width, height);
-	graphics.dispose();
+    /**
+     * 將BufferedImage物件輸出成不超過指定大小的JPG圖片檔案，背景顏色為白色。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為JPG或是JPEG，否則會自動重新命名
+     * @param maxBytes 傳入檔案大小的上限(位元組)
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    public static File exportToJPEGWithMaxBytes(final BufferedImage bi, final File outputFile, final long maxBytes, final boolean overwrite) {
+	return exportToJPEGWithMaxBytes(bi, outputFile, maxBytes, overwrite, Color.WHITE);
+    }
 
-	final ColorConvertOp colorConv = new ColorConvertOp(bi.getColorModel().getColorSpace(), dest.getColorModel().getColorSpace(), null);
-	colorConv.filter(bi, dest);
+    /**
+     * 將BufferedImage物件輸出成不超過指定大小的JPG圖片檔案。會以二分搜尋找出檔案大小不超過上限的最高品質(1~100)，每次嘗試都只編碼到重複使用的記憶體緩衝區中，背景合成與色彩轉換只做一次，只有最後的結果會被寫入檔案，大約只需要編碼7次。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為JPG或是JPEG，否則會自動重新命名
+     * @param maxBytes 傳入檔案大小的上限(位元組)
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param backgroundColor 傳入背景顏色
+     * @return 若有輸出成功，傳回新的檔案物件；若品質最低時仍然超過大小的上限或是輸出失敗，傳回null
+     */
+    public static File exportToJPEGWithMaxBytes(final BufferedImage bi, final File outputFile, final long maxBytes, final boolean overwrite, final Color backgroundColor) {
+	return exportToJPEGWithMaxBytes(bi, null, outputFile, maxBytes, overwrite, false, backgroundColor);
+    }
+
+    /**
+     * 將BufferedImage物件輸出成不超過指定大小的JPG圖片檔案。會以二分搜尋找出檔案大小不超過上限的最高品質(1~100)，每次嘗試都只編碼到重複使用的記憶體緩衝區中，背景合成與色彩轉換只做一次，只有最後的結果會被寫入檔案，大約只需要編碼7次。可以傳入已經計算好的統計資料，避免再掃描一次圖片。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，用來判斷是否有透明的像素，若為null，則在需要時重新掃描圖片
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為JPG或是JPEG，否則會自動重新命名
+     * @param maxBytes 傳入檔案大小的上限(位元組)
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param atomic 傳入是否先輸出到同一個目錄中的暫存檔，完成之後才以原子操作移動到輸出的檔名，避免其它程式讀到寫到一半的檔案；覆寫時若輸出失敗，原本的檔案會被保留
+     * @param backgroundColor 傳入背景顏色
+     * @return 若有輸出成功，傳回新的檔案物件；若品質最低時仍然超過大小的上限或是輸出失敗，傳回null
+     */
+    public static File exportToJPEGWithMaxBytes(final BufferedImage bi, final ImageStatistics statistics, final File outputFile, final long maxBytes, final boolean overwrite, final boolean atomic, final Color backgroundColor) {
+	if (bi == null || outputFile == null || maxBytes <= 0 || backgroundColor == null) {
+	    return null;
+	}
+	final BufferedImage dest = flatten(bi, statistics, backgroundColor, BufferedImage.TYPE_INT_BGR);
 	try {
-	    final JPEGOptions jpegOptions = new JPEGOptions();
-	    jpegOptions.setQuality(Math.round(quality * 100));
-	    try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(adjustOutputFile))) {
-		ImageIO.write(dest, bos, ImageType.JPG, ImageParam.getBuilder().imageOptions(jpegOptions).build());
-		bos.flush();
+	    ByteArrayOutputStream attempt = new ByteArrayOutputStream();
+	    ByteArrayOutputStream best = null;
+	    int low = 1, high = 100;
+	    while (low <= high) {
+		final int quality = (low + high) >>> 1;
+		attempt.reset();
+		writeJPEG(dest, quality, attempt);
+		if (attempt.size() <= maxBytes) {
+		    // 保留目前最好的結果，並重複使用上一個最好結果的緩衝區
+		    final ByteArrayOutputStream swap = best != null ? best : new ByteArrayOutputStream();
+		    best = attempt;
+		    attempt = swap;
+		    low = quality + 1;
+		} else {
+		    high = quality - 1;
+		}
+	    }
+	    if (best == null) {
+		return null;
+	    }
+	    final ByteArrayOutputStream result = best;
+	    return writeOutputStream(outputFile, overwrite, atomic, "jpg", new String[]{"jpg", "jpeg"}, (final OutputStream os) -> {
+		result.writeTo(os);
+	    });
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return null;
+	} finally {
+	    if (dest != bi) {
+		dest.flush();  // 釋放記憶體
 	    }
+	}
+    }
 
-	    dest.flush();  // 釋放記憶體
-	    return adjustOutputFile;
+    /**
+     * 將BufferedImage物件以達到指定SSIM的最低品質輸出成JPG圖片檔案，背景顏色為白色。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為JPG或是JPEG，否則會自動重新命名
+     * @param targetSSIM 傳入SSIM的目標值，通常介於0.9~0.99之間
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     * @see ImageQuality
+     */
+    public static File exportToJPEGWithMinSSIM(final BufferedImage bi, final File outputFile, final double targetSSIM, final boolean overwrite) {
+	return exportToJPEGWithMinSSIM(bi, outputFile, targetSSIM, overwrite, Color.WHITE);
+    }
+
+    /**
+     * 將BufferedImage物件以達到指定SSIM的最低品質輸出成JPG圖片檔案。會以二分搜尋找出SSIM不低於目標值的最低品質(1~100)，每次嘗試都只編碼到記憶體中，再解碼回來和原圖比較縮小後的亮度平面，原圖的亮度平面只會計算一次。只有最後的結果會被寫入檔案，若品質100仍然達不到目標值，則使用品質100。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為JPG或是JPEG，否則會自動重新命名
+     * @param targetSSIM 傳入SSIM的目標值，通常介於0.9~0.99之間
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param backgroundColor 傳入背景顏色
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     * @see ImageQuality
+     */
+    public static File exportToJPEGWithMinSSIM(final BufferedImage bi, final File outputFile, final double targetSSIM, final boolean overwrite, final Color backgroundColor) {
+	return exportToJPEGWithMinSSIM(bi, null, outputFile, targetSSIM, overwrite, false, backgroundColor);
+    }
+
+    /**
+     * 將BufferedImage物件以達到指定SSIM的最低品質輸出成JPG圖片檔案。會以二分搜尋找出SSIM不低於目標值的最低品質(1~100)，每次嘗試都只編碼到記憶體中，再解碼回來和原圖比較縮小後的亮度平面，原圖的亮度平面只會計算一次。只有最後的結果會被寫入檔案，若品質100仍然達不到目標值，則使用品質100。可以傳入已經計算好的統計資料，避免再掃描一次圖片。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，用來判斷是否有透明的像素，若為null，則在需要時重新掃描圖片
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為JPG或是JPEG，否則會自動重新命名
+     * @param targetSSIM 傳入SSIM的目標值，通常介於0.9~0.99之間
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param atomic 傳入是否先輸出到同一個目錄中的暫存檔，完成之後才以原子操作移動到輸出的檔名，避免其它程式讀到寫到一半的檔案；覆寫時若輸出失敗，原本的檔案會被保留
+     * @param backgroundColor 傳入背景顏色
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     * @see ImageQuality
+     */
+    public static File exportToJPEGWithMinSSIM(final BufferedImage bi, final ImageStatistics statistics, final File outputFile, final double targetSSIM, final boolean overwrite, final boolean atomic, final Color backgroundColor) {
+	if (bi == null || outputFile == null || Double.isNaN(targetSSIM) || backgroundColor == null) {
+	    return null;
+	}
+	final BufferedImage dest = flatten(bi, statistics, backgroundColor, BufferedImage.TYPE_INT_BGR);
+	try {
+	    final int factor = ImageQuality.suggestFactor(dest.getWidth(), dest.getHeight());
+	    final ImageQuality.LumaPlane reference = ImageQuality.LumaPlane.of(dest, factor);
+	    ByteArrayOutputStream attempt = new ByteArrayOutputStream();
+	    ByteArrayOutputStream best = null;
+	    int low = 1, high = 100;
+	    while (low <= high) {
+		final int quality = (low + high) >>> 1;
+		attempt.reset();
+		writeJPEG(dest, quality, attempt);
+		final BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(attempt.toByteArray()));
+		final double ssim = reference.ssim(ImageQuality.LumaPlane.of(decoded, factor));
+		decoded.flush();
+		if (ssim >= targetSSIM) {
+		    // 保留目前最好的結果，並重複使用上一個最好結果的緩衝區
+		    final ByteArrayOutputStream swap = best != null ? best : new ByteArrayOutputStream();
+		    best = attempt;
+		    attempt = swap;
+		    high = quality - 1;
+		} else {
+		    low = quality + 1;
+		}
+	    }
+	    if (best == null) {
+		attempt.reset();
+		writeJPEG(dest, 100, attempt);
+		best = attempt;
+	    }
+	    final ByteArrayOutputStream result = best;
+	    return writeOutputStream(outputFile, overwrite, atomic, "jpg", new String[]{"jpg", "jpeg"}, (final OutputStream os) -> {
+		result.writeTo(os);
+	    });
 	} catch (final Exception ex) {
 	    ex.printStackTrace(System.out);
 	    return null;
+	} finally {
+	    if (dest != bi) {
+		dest.flush();  // 釋放記憶體
+	    }
 	}
     }
 
+    /**
+     * 將已經合成背景的BufferedImage物件編碼成JPEG格式。
+     *
+     * @param dest 傳入不含透明層的BufferedImage物件
+     * @param quality 傳入JPEG的壓縮品質(0~100)
+     * @param out 傳入輸出串流
+     * @throws Exception 編碼失敗時拋出
+     */
+    private static void writeJPEG(final BufferedImage dest, final int quality, final OutputStream out) throws Exception {
+	final JPEGOptions jpegOptions = new JPEGOptions();
+	jpegOptions.setQuality(quality);
+	ImageIO.write(dest, out, ImageType.JPG, ImageParam.getBuilder().imageOptions(jpegOptions).build());
+    }
+
     /**
      * 將BufferedImage物件輸出成TIFF圖片檔案。
      *
@@ -123,41 +358,43 @@ public final class ImageExport {
      * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
      */
     public static File exportToTIFF(final BufferedImage bi, final File outputFile, final float compressionquality, final boolean lossless, final boolean overwrite, final Color backgroundColor) {
+	return exportToTIFF(bi, null, outputFile, compressionquality, lossless, overwrite, false, backgroundColor);
+    }
+
+    /**
+     * 將BufferedImage物件輸出成TIFF圖片檔案。可以傳入已經計算好的統計資料，避免再掃描一次圖片。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，用來判斷是否有透明的像素，若為null，則在需要時重新掃描圖片
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為TIFF，否則會自動重新命名
+     * @param compressionquality 傳入TIFF的壓縮品質(0~1)，若不是無損壓縮，愈小畫質愈差
+     * @param lossless 傳入是否使用無損壓縮
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param atomic 傳入是否先輸出到同一個目錄中的暫存檔，完成之後才以原子操作移動到輸出的檔名，避免其它程式讀到寫到一半的檔案；覆寫時若輸出失敗，原本的檔案會被保留
+     * @param backgroundColor 傳入背景顏色
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    public static File exportToTIFF(final BufferedImage bi, final ImageStatistics statistics, final File outputFile, final float compressionquality, final boolean lossless, final boolean overwrite, final boolean atomic, final Color backgroundColor) {
 	if (bi == null || outputFile == null || compressionquality < 0 || compressionquality > 1 || backgroundColor == null) {
 	    return null;
 	}
-	//調整輸出檔案路徑
-	final File adjustOutputFile = adjustOutputFile(outputFile, overwrite, "tiff", new String[]{"tiff"});
-
-	final int width = bi.getWidth(), height = bi.getHeight();
-	final BufferedImage dest = new BufferedImage(width, height, BufferedImage.TYPE_INT_BGR);
-	final Graphics2D graphics = dest.createGraphics();
-	graphics.setBackground(backgroundColor);
-	graphics.clearRect(0, 0, width, height);
-	graphics.dispose();
+	final BufferedImage dest = flatten(bi, statistics, backgroundColor, BufferedImage.TYPE_INT_BGR);
+	final TIFFOptions tiffOptions = new TIFFOptions();
+	if(lossless){
+	    tiffOptions.setTiffCompression(TiffFieldEnum.Compression.DEFLATE);
+	    tiffOptions.setDeflateCompressionLevel(Math.round(9.0f - compressionquality * 9));
+	}else{
+	    tiffOptions.setTiffCompression(TiffFieldEnum.Compression.JPG);
+	    tiffOptions.setJPEGQuality(Math.round(compressionquality * 100));
+	}
 
-	final ColorConvertOp colorConv = new ColorConvertOp(bi.getColorModel().getColorSpace(), dest.getColorModel().getColorSpace(), null);
-	colorConv.filter(bi, dest);
-	try {
-	    final TIFFOptions tiffOptions = new TIFFOptions();
-	    if(lossless){
-		tiffOptions.setTiffCompression(TiffFieldEnum.Compression.DEFLATE);
-		tiffOptions.setDeflateCompressionLevel(Math.round(9.0f - compressionquality * 9));
-	    }else{
-		tiffOptions.setTiffCompression(TiffFieldEnum.Compression.JPG);
-		tiffOptions.setJPEGQuality(Math.round(compressionquality * 100));
-	    }
-	    
-	    try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(adjustOutputFile))) {
-		ImageIO.write(dest, bos, ImageType.TIFF, ImageParam.getBuilder().imageOptions(tiffOptions).build());
-		bos.flush();
-	    }
+	final File adjustOutputFile = writeOutputStream(outputFile, overwrite, atomic, "tiff", new String[]{"tiff"}, (final OutputStream os) -> {
+	    ImageIO.write(dest, os, ImageType.TIFF, ImageParam.getBuilder().imageOptions(tiffOptions).build());
+	});
+	if (dest != bi) {
 	    dest.flush();  // 釋放記憶體
-	    return adjustOutputFile;
-	} catch (final Exception ex) {
-	    ex.printStackTrace(System.out);
-	    return null;
 	}
+	return adjustOutputFile;
     }
 
     /**
@@ -182,33 +419,33 @@ public final class ImageExport {
      * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
      */
     public static File exportToBMP(final BufferedImage bi, final File outputFile, final boolean overwrite, final Color backgroundColor) {
+	return exportToBMP(bi, null, outputFile, overwrite, false, backgroundColor);
+    }
+
+    /**
+     * 將BufferedImage物件輸出成BMP圖片檔案。可以傳入已經計算好的統計資料，避免再掃描一次圖片。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，用來判斷是否有透明的像素，若為null，則在需要時重新掃描圖片
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為BMP，否則會自動重新命名
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param atomic 傳入是否先輸出到同一個目錄中的暫存檔，完成之後才以原子操作移動到輸出的檔名，避免其它程式讀到寫到一半的檔案；覆寫時若輸出失敗，原本的檔案會被保留
+     * @param backgroundColor 傳入背景顏色
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    public static File exportToBMP(final BufferedImage bi, final ImageStatistics statistics, final File outputFile, final boolean overwrite, final boolean atomic, final Color backgroundColor) {
 	if (bi == null || outputFile == null || backgroundColor == null) {
 	    return null;
 	}
-	//調整輸出檔案路徑
-	final File adjustOutputFile = adjustOutputFile(outputFile, overwrite, "bmp", new String[]{"bmp"});
-
-	final int width = bi.getWidth(), height = bi.getHeight();
-	final BufferedImage dest = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-	final Graphics2D graphics = dest.createGraphics();
-	graphics.setBackground(backgroundColor);
-	graphics.clearRect(0, 0, width, height);
-	graphics.dispose();
-
-	final ColorConvertOp colorConv = new ColorConvertOp(bi.getColorModel().getColorSpace(), dest.getColorModel().getColorSpace(), null);
-	colorConv.filter(bi, dest);
-	try {
-	    final BMPOptions bmpOptions = new BMPOptions();
-	    try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(adjustOutputFile))) {
-		ImageIO.write(dest, bos, ImageType.BMP, ImageParam.getBuilder().imageOptions(bmpOptions).build());
-		bos.flush();
-	    }
+	final BufferedImage dest = flatten(bi, statistics, backgroundColor, BufferedImage.TYPE_INT_RGB);
+	final BMPOptions bmpOptions = new BMPOptions();
+	final File adjustOutputFile = writeOutputStream(outputFile, overwrite, atomic, "bmp", new String[]{"bmp"}, (final OutputStream os) -> {
+	    ImageIO.write(dest, os, ImageType.BMP, ImageParam.getBuilder().imageOptions(bmpOptions).build());
+	});
+	if (dest != bi) {
 	    dest.flush();  // 釋放記憶體
-	    return adjustOutputFile;
-	} catch (final Exception ex) {
-	    ex.printStackTrace(System.out);
-	    return null;
 	}
+	return adjustOutputFile;
     }
 
     /**
@@ -231,27 +468,73 @@ public final class ImageExport {
      * @param compressionQuality 傳入PNG的壓縮品質(0~1)，愈小檔案愈小，為無損壓縮，並不影響畫質
      * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
      * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     * @see ImageQuantizer
      */
     public static File exportToPNG(final BufferedImage bi, final File outputFile, final float compressionQuality, final boolean overwrite) {
+	return exportToPNG(bi, null, outputFile, compressionQuality, overwrite, false);
+    }
+
+    /**
+     * 將BufferedImage物件輸出成PNG圖片檔案。可以傳入已經計算好的統計資料，避免再掃描一次圖片。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，用來判斷是否有透明的像素，若為null，則在需要時重新掃描圖片
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為PNG，否則會自動重新命名
+     * @param compressionQuality 傳入PNG的壓縮品質(0~1)，愈小檔案愈小，為無損壓縮，並不影響畫質
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param atomic 傳入是否先輸出到同一個目錄中的暫存檔，完成之後才以原子操作移動到輸出的檔名，避免其它程式讀到寫到一半的檔案；覆寫時若輸出失敗，原本的檔案會被保留
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     * @see ImageQuantizer
+     */
+    public static File exportToPNG(final BufferedImage bi, final ImageStatistics statistics, final File outputFile, final float compressionQuality, final boolean overwrite, final boolean atomic) {
 	if (bi == null || outputFile == null || compressionQuality < 0 || compressionQuality > 1) {
 	    return null;
 	}
-	//調整輸出檔案路徑
-	final File adjustOutputFile = adjustOutputFile(outputFile, overwrite, "png", new String[]{"png"});
-
-	try {
+	return writeOutputStream(outputFile, overwrite, atomic, "png", new String[]{"png"}, (final OutputStream os) -> {
+	    if (bi.getType() == BufferedImage.TYPE_BYTE_INDEXED && bi.getColorModel() instanceof IndexColorModel) {
+		// 索引色的圖片直接寫入色盤，不轉成全彩
+		final PNGEncoder encoder = new PNGEncoder();
+		encoder.setCompressionLevel(Math.round(9.0f - compressionQuality * 9));
+		encoder.encode(bi, os);
+		return;
+	    }
 	    final PNGOptions pngOptions = new PNGOptions();
 	    pngOptions.setCompressionLevel(Math.round(9.0f - compressionQuality * 9));
-	    try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(adjustOutputFile))) {
-		ImageIO.write(bi, bos, ImageType.PNG, ImageParam.getBuilder().hasAlpha(true).imageOptions(pngOptions).build());
-		bos.flush();
-	    }
+	    ImageIO.write(bi, os, ImageType.PNG, ImageParam.getBuilder().hasAlpha(!ImageStatistics.isOpaque(bi, statistics)).imageOptions(pngOptions).build());
+	});
+    }
 
-	    return adjustOutputFile;
-	} catch (final Exception ex) {
-	    ex.printStackTrace(System.out);
+    /**
+     * 使用PNGEncoder將BufferedImage物件輸出成PNG圖片檔案，可以控制壓縮等級、濾波方式以及是否平行壓縮。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為PNG，否則會自動重新命名
+     * @param encoder 傳入PNG編碼器
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    public static File exportToPNG(final BufferedImage bi, final File outputFile, final PNGEncoder encoder, final boolean overwrite) {
+	return exportToPNG(bi, null, outputFile, encoder, overwrite, false);
+    }
+
+    /**
+     * 使用PNGEncoder將BufferedImage物件輸出成PNG圖片檔案，可以控制壓縮等級、濾波方式以及是否平行壓縮。可以傳入已經計算好的統計資料，避免再掃描一次圖片。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，用來判斷是否有透明的像素，若為null，則在需要時重新掃描圖片
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為PNG，否則會自動重新命名
+     * @param encoder 傳入PNG編碼器
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param atomic 傳入是否先輸出到同一個目錄中的暫存檔，完成之後才以原子操作移動到輸出的檔名，避免其它程式讀到寫到一半的檔案；覆寫時若輸出失敗，原本的檔案會被保留
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    public static File exportToPNG(final BufferedImage bi, final ImageStatistics statistics, final File outputFile, final PNGEncoder encoder, final boolean overwrite, final boolean atomic) {
+	if (bi == null || outputFile == null || encoder == null) {
 	    return null;
 	}
+	return writeOutputStream(outputFile, overwrite, atomic, "png", new String[]{"png"}, (final OutputStream os) -> {
+	    encoder.encode(bi, statistics, os);
+	});
     }
 
     /**
@@ -263,36 +546,231 @@ public final class ImageExport {
      * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
      */
     public static File exportToGIF(final BufferedImage bi, final File outputFile, final boolean overwrite) {
+	return exportToGIF(bi, outputFile, overwrite, false);
+    }
+
+    /**
+     * 將BufferedImage物件輸出成GIF圖片檔案。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為PNG，否則會自動重新命名
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param atomic 傳入是否先輸出到同一個目錄中的暫存檔，完成之後才以原子操作移動到輸出的檔名，避免其它程式讀到寫到一半的檔案；覆寫時若輸出失敗，原本的檔案會被保留
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    public static File exportToGIF(final BufferedImage bi, final File outputFile, final boolean overwrite, final boolean atomic) {
 	if (bi == null || outputFile == null) {
 	    return null;
 	}
-	//調整輸出檔案路徑
-	final File adjustOutputFile = adjustOutputFile(outputFile, overwrite, "gif", new String[]{"gif"});
+	final GIFOptions gifOptions = new GIFOptions();
+	return writeOutputStream(outputFile, overwrite, atomic, "gif", new String[]{"gif"}, (final OutputStream os) -> {
+	    ImageIO.write(bi, os, ImageType.GIF, ImageParam.getBuilder().hasAlpha(true).imageOptions(gifOptions).build());
+	});
+    }
+
+    /**
+     * 將BufferedImage物件量化成指定的顏色數量之後，輸出成GIF圖片檔案。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為GIF，否則會自動重新命名
+     * @param maxColors 傳入色盤的最大顏色數量(2~256)
+     * @param dither 傳入是否進行抖色
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     * @see ImageQuantizer
+     */
+    public static File exportToGIF(final BufferedImage bi, final File outputFile, final int maxColors, final boolean dither, final boolean overwrite) {
+	final BufferedImage indexed = ImageQuantizer.quantize(bi, maxColors, dither);
+	if (indexed == null) {
+	    return null;
+	}
+	return exportToGIF(indexed, outputFile, overwrite);
+    }
+
+    /**
+     * 將BufferedImage物件輸出成WebP圖片檔案。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為WEBP，否則會自動重新命名
+     * @param quality 傳入WebP的品質(0~1)。有損壓縮時，愈大畫質愈好，檔案愈大；無損壓縮時，愈大壓縮得愈久，檔案愈小
+     * @param lossless 傳入是否使用無損壓縮
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     * @see WebPEncoder
+     */
+    public static File exportToWebP(final BufferedImage bi, final File outputFile, final float quality, final boolean lossless, final boolean overwrite) {
+	if (quality < 0 || quality > 1) {
+	    return null;
+	}
+	return exportToWebP(bi, outputFile, new WebPEncoder(lossless, quality), overwrite);
+    }
+
+    /**
+     * 使用WebPEncoder將BufferedImage物件輸出成WebP圖片檔案。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為WEBP，否則會自動重新命名
+     * @param encoder 傳入WebP編碼器
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    public static File exportToWebP(final BufferedImage bi, final File outputFile, final WebPEncoder encoder, final boolean overwrite) {
+	return exportToWebP(bi, null, outputFile, encoder, overwrite, false);
+    }
+
+    /**
+     * 使用WebPEncoder將BufferedImage物件輸出成WebP圖片檔案。可以傳入已經計算好的統計資料，避免再掃描一次圖片。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，用來判斷是否有透明的像素，若為null，則在需要時重新掃描圖片
+     * @param outputFile 傳入要輸出的檔案物件，副檔名必須為WEBP，否則會自動重新命名
+     * @param encoder 傳入WebP編碼器
+     * @param overwrite 傳入是否覆蓋已存在的檔案，若不覆蓋，則自動重新命名輸出的檔名
+     * @param atomic 傳入是否先輸出到同一個目錄中的暫存檔，完成之後才以原子操作移動到輸出的檔名，避免其它程式讀到寫到一半的檔案；覆寫時若輸出失敗，原本的檔案會被保留
+     * @return 若有輸出成功，傳回新的檔案物件，否則傳回null
+     */
+    public static File exportToWebP(final BufferedImage bi, final ImageStatistics statistics, final File outputFile, final WebPEncoder encoder, final boolean overwrite, final boolean atomic) {
+	if (bi == null || outputFile == null || encoder == null) {
+	    return null;
+	}
+	return writeOutputStream(outputFile, overwrite, atomic, "webp", new String[]{"webp"}, (final OutputStream os) -> {
+	    encoder.encode(bi, statistics, os);
+	});
+    }
+
+    /**
+     * 將BufferedImage物件合成到背景顏色上，並轉換成不含透明層的RGB圖片。若圖片完全不透明，且輸出時可以直接使用，則不進行合成，直接傳回原本的物件。
+     *
+     * @param bi 傳入要輸出的BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，若為null，則在需要時重新掃描圖片
+     * @param backgroundColor 傳入背景顏色
+     * @param type 傳入合成後的BufferedImage類型
+     * @return 傳回可以直接輸出的BufferedImage物件
+     */
+    private static BufferedImage flatten(final BufferedImage bi, final ImageStatistics statistics, final Color backgroundColor, final int type) {
+	switch (bi.getType()) {
+	    case BufferedImage.TYPE_INT_RGB:
+	    case BufferedImage.TYPE_INT_BGR:
+	    case BufferedImage.TYPE_3BYTE_BGR:
+		return bi;
+	    case BufferedImage.TYPE_INT_ARGB:
+	    case BufferedImage.TYPE_4BYTE_ABGR:
+		if (ImageStatistics.isOpaque(bi, statistics)) {
+		    return bi;
+		}
+		break;
+	}
+	final int width = bi.getWidth(), height = bi.getHeight();
+	final BufferedImage dest = new BufferedImage(width, height, type);
+	final Graphics2D graphics = dest.createGraphics();
+	graphics.setBackground(backgroundColor);
+	graphics.clearRect(0, 0, width, height);
+	graphics.dispose();
+
+	final ColorConvertOp colorConv = new ColorConvertOp(bi.getColorModel().getColorSpace(), dest.getColorModel().getColorSpace(), null);
+	colorConv.filter(bi, dest);
+	return dest;
+    }
+
+    /**
+     * 輸出檔案，保留原本的副檔名。
+     *
+     * @param outputFile 傳入參考的輸出檔案
+     * @param overwrite 傳入是否覆寫
+     * @param atomic 傳入是否使用原子寫入
+     * @param writer 傳入寫入資料的方式
+     * @return 若有輸出成功，傳回實際輸出的檔案，否則傳回null
+     */
+    static File writeOutputFile(final File outputFile, final boolean overwrite, final boolean atomic, final ChannelWriter writer) {
+	final String fileName = outputFile.getName();
+	final int dotIndex = fileName.lastIndexOf('.');
+	final String ext = dotIndex > 0 ? fileName.substring(dotIndex + 1) : "";
+	return writeOutputFile(outputFile, overwrite, atomic, ext, new String[]{ext}, writer);
+    }
+
+    /**
+     * 使用有緩衝的串流輸出檔案。
+     *
+     * @param outputFile 傳入參考的輸出檔案
+     * @param overwrite 傳入是否覆寫
+     * @param atomic 傳入是否使用原子寫入
+     * @param ext 傳入副檔名
+     * @param extTokens 傳入查找副檔名的等效關鍵字
+     * @param writer 傳入寫入資料的方式
+     * @return 若有輸出成功，傳回實際輸出的檔案，否則傳回null
+     */
+    private static File writeOutputStream(final File outputFile, final boolean overwrite, final boolean atomic, final String ext, final String[] extTokens, final StreamWriter writer) {
+	return writeOutputFile(outputFile, overwrite, atomic, ext, extTokens, (final FileChannel channel) -> {
+	    final OutputStream os = new BufferedOutputStream(Channels.newOutputStream(channel));
+	    writer.write(os);
+	    os.flush();
+	});
+    }
 
+    /**
+     * 輸出檔案。不覆寫時，輸出的檔名會先以原子操作保留；使用原子寫入時，資料會先寫到暫存檔，再移動到輸出的檔名。輸出失敗時，保留的檔案和寫到一半的檔案都會被刪除。
+     *
+     * @param outputFile 傳入參考的輸出檔案
+     * @param overwrite 傳入是否覆寫
+     * @param atomic 傳入是否使用原子寫入
+     * @param ext 傳入副檔名
+     * @param extTokens 傳入查找副檔名的等效關鍵字
+     * @param writer 傳入寫入資料的方式
+     * @return 若有輸出成功，傳回實際輸出的檔案，否則傳回null
+     */
+    private static File writeOutputFile(final File outputFile, final boolean overwrite, final boolean atomic, final String ext, final String[] extTokens, final ChannelWriter writer) {
+	final File adjustOutputFile;
+	try {
+	    adjustOutputFile = adjustOutputFile(outputFile, overwrite, ext, extTokens);
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return null;
+	}
+	final Path target = adjustOutputFile.toPath();
+	Path temp = null;
 	try {
-	    final GIFOptions gifOptions = new GIFOptions();
-	    try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(adjustOutputFile))) {
-		ImageIO.write(bi, bos, ImageType.GIF, ImageParam.getBuilder().hasAlpha(true).imageOptions(gifOptions).build());
-		bos.flush();
+	    if (atomic) {
+		temp = MetadataRewriter.createTempFile(target, ".".concat(adjustOutputFile.getName()).concat("-"), ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+		    writer.write(channel);
+		}
+		MetadataRewriter.move(temp, target);
+		temp = null;
+	    } else {
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+		    writer.write(channel);
+		}
 	    }
-
 	    return adjustOutputFile;
 	} catch (final Exception ex) {
 	    ex.printStackTrace(System.out);
+	    if (!overwrite || !atomic) {
+		// 刪除保留的檔案或是寫到一半的檔案；原子寫入並覆寫時，原本的檔案沒有被改變
+		adjustOutputFile.delete();
+	    }
 	    return null;
+	} finally {
+	    if (temp != null) {
+		try {
+		    Files.deleteIfExists(temp);
+		} catch (final Exception ex) {
+		    // 忽略
+		}
+	    }
 	}
     }
 
     /**
-     * 調整輸出檔案。
+     * 調整輸出檔案。不覆寫時，會以原子操作建立空的檔案來保留檔名。
      *
      * @param outputFile 傳入參考的輸出檔案
      * @param overwrite 傳入是否覆寫
-     * @param ext //傳入副檔名
-     * @param extTokens //傳入查找副檔名的等效關鍵字
+     * @param ext 傳入副檔名
+     * @param extTokens 傳入查找副檔名的等效關鍵字
      * @return 傳回調整後的輸出檔案
+     * @throws IOException 無法建立檔案時拋出
      */
-    private static File adjustOutputFile(final File outputFile, final boolean overwrite, final String ext, final String[] extTokens) {
+    private static File adjustOutputFile(final File outputFile, final boolean overwrite, final String ext, final String[] extTokens) throws IOException {
 	//調整輸出檔案路徑
 	File adjustOutputFile = outputFile.getAbsoluteFile();
 	final File adjustOutputFileParent = adjustOutputFile.getParentFile();
@@ -320,21 +798,41 @@ public final class ImageExport {
 	    extendName = ext;
 	}
 	if (overwrite) {
-	    // 覆寫已存在的檔案，若檔案已存在就先刪除已存在的檔案
-	    if (adjustOutputFile.exists()) {
-		if (!adjustOutputFile.delete()) {
-		    // 若刪除失敗，則無法輸出
-		    return null;
-		}
-	    }
-	} else {
-	    // 略過已存在的檔案，若檔案已存在，就計數更名
-	    int count = 1;
-	    while (adjustOutputFile.exists()) {
-		adjustOutputFile = new File(adjustOutputFileParent, mainName.concat("-").concat(String.valueOf(count++).concat(".").concat(extendName)));
+	    // 覆寫已存在的檔案，直接截斷或是以原子操作取代，不需要先刪除
+	    return adjustOutputFile;
+	}
+	// 略過已存在的檔案，若檔案已存在，就計數更名；以CREATE_NEW建立檔案，名稱不會和其它執行緒衝突
+	if (createNewFile(adjustOutputFile)) {
+	    return adjustOutputFile;
+	}
+	final String suffix = extendName.isEmpty() ? "" : ".".concat(extendName);
+	if (NAME_HINTS.size() >= MAX_NAME_HINTS) {
+	    NAME_HINTS.clear();
+	}
+	final AtomicInteger hint = NAME_HINTS.computeIfAbsent(adjustOutputFile.getPath(), (final String key) -> new AtomicInteger(1));
+	while (true) {
+	    // 每個執行緒取得不同的編號，已存在的編號只會被檢查一次
+	    final File file = new File(adjustOutputFileParent, mainName.concat("-").concat(String.valueOf(hint.getAndIncrement())).concat(suffix));
+	    if (createNewFile(file)) {
+		return file;
 	    }
 	}
-	return adjustOutputFile;
+    }
+
+    /**
+     * 以原子操作建立新的空檔案。
+     *
+     * @param file 傳入檔案
+     * @return 若建立成功，傳回true；若檔案已存在，傳回false
+     * @throws IOException 無法建立檔案時拋出
+     */
+    private static boolean createNewFile(final File file) throws IOException {
+	try {
+	    Files.createFile(file.toPath());
+	    return true;
+	} catch (final FileAlreadyExistsException ex) {
+	    return false;
+	}
     }
 
     // -----建構子-----
@@ -0,0 +1,207 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * <p>
+ * 圖片的感知雜湊。</p>
+ *
+ * <p>
+ * 將圖片的亮度以區塊平均的方式直接縮小成很小的網格，再計算出64位元的雜湊值。內容相同、只是尺寸、壓縮品質或格式不同的圖片，雜湊值之間的漢明距離(不同位元的數量)會很小，可以用來在處理圖片之前找出重複的圖片。透明的像素會先和白色合成。</p>
+ *
+ * <ul>
+ * <li>dHash：比較9x8網格中左右相鄰的亮度，速度最快。</li>
+ * <li>pHash：對32x32網格進行離散餘弦轉換，比較左上角8x8低頻係數和中位數的大小，較不受對比和色調調整的影響。</li>
+ * </ul>
+ *
+ * @author Magic Len
+ * @see ImageHashIndex
+ */
+public final class ImageHash {
+
+    // -----類別常數-----
+    /**
+     * 像素數量小於此值的圖片不進行平行計算。
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    /**
+     * pHash網格的大小。
+     */
+    private static final int PHASH_SIZE = 32;
+    /**
+     * pHash使用的低頻係數範圍。
+     */
+    private static final int PHASH_LOW = 8;
+    /**
+     * pHash使用的餘弦表，COSINES[u][x] = cos((2x + 1)uπ / 64)。
+     */
+    private static final double[][] COSINES = new double[PHASH_LOW][PHASH_SIZE];
+
+    static {
+	for (int u = 0; u < PHASH_LOW; ++u) {
+	    for (int x = 0; x < PHASH_SIZE; ++x) {
+		COSINES[u][x] = Math.cos((2 * x + 1) * u * Math.PI / (2 * PHASH_SIZE));
+	    }
+	}
+    }
+
+    // -----類別方法-----
+    /**
+     * 計算圖片的dHash(差異雜湊)。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @return 傳回64位元的雜湊值，若圖片為null，則傳回0
+     */
+    public static long dHash(final BufferedImage bi) {
+	if (bi == null) {
+	    return 0;
+	}
+	final double[] grid = shrinkLuma(bi, 9, 8);
+	long hash = 0;
+	for (int y = 0; y < 8; ++y) {
+	    final int offset = y * 9;
+	    for (int x = 0; x < 8; ++x) {
+		hash <<= 1;
+		if (grid[offset + x] < grid[offset + x + 1]) {
+		    hash |= 1;
+		}
+	    }
+	}
+	return hash;
+    }
+
+    /**
+     * 計算圖片的pHash(感知雜湊)。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @return 傳回64位元的雜湊值，若圖片為null，則傳回0
+     */
+    public static long pHash(final BufferedImage bi) {
+	if (bi == null) {
+	    return 0;
+	}
+	final double[] grid = shrinkLuma(bi, PHASH_SIZE, PHASH_SIZE);
+	// 先對每一列進行一維轉換，只保留低頻的部份
+	final double[] rows = new double[PHASH_SIZE * PHASH_LOW];
+	for (int y = 0; y < PHASH_SIZE; ++y) {
+	    final int offset = y * PHASH_SIZE;
+	    for (int u = 0; u < PHASH_LOW; ++u) {
+		final double[] cosine = COSINES[u];
+		double sum = 0;
+		for (int x = 0; x < PHASH_SIZE; ++x) {
+		    sum += grid[offset + x] * cosine[x];
+		}
+		rows[y * PHASH_LOW + u] = sum;
+	    }
+	}
+	final double[] coefficients = new double[PHASH_LOW * PHASH_LOW];
+	for (int v = 0; v < PHASH_LOW; ++v) {
+	    final double[] cosine = COSINES[v];
+	    for (int u = 0; u < PHASH_LOW; ++u) {
+		double sum = 0;
+		for (int y = 0; y < PHASH_SIZE; ++y) {
+		    sum += rows[y * PHASH_LOW + u] * cosine[y];
+		}
+		coefficients[v * PHASH_LOW + u] = sum;
+	    }
+	}
+	// 直流係數只代表平均亮度，不參與中位數的計算
+	final double[] sorted = Arrays.copyOfRange(coefficients, 1, coefficients.length);
+	Arrays.sort(sorted);
+	final double median = sorted[sorted.length / 2];
+	long hash = 0;
+	for (int i = 0; i < coefficients.length; ++i) {
+	    hash <<= 1;
+	    if (coefficients[i] > median) {
+		hash |= 1;
+	    }
+	}
+	return hash;
+    }
+
+    /**
+     * 計算兩個雜湊值的漢明距離。
+     *
+     * @param hash1 傳入第一個雜湊值
+     * @param hash2 傳入第二個雜湊值
+     * @return 傳回不同位元的數量(0~64)
+     */
+    public static int distance(final long hash1, final long hash2) {
+	return Long.bitCount(hash1 ^ hash2);
+    }
+
+    /**
+     * 將圖片的亮度以區塊平均的方式縮小成指定大小的網格。圖片比網格小時，同一個像素會被多個格子使用。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param gridWidth 傳入網格的寬度
+     * @param gridHeight 傳入網格的高度
+     * @return 傳回網格中每一格的平均亮度
+     */
+    private static double[] shrinkLuma(final BufferedImage bi, final int gridWidth, final int gridHeight) {
+	final int width = bi.getWidth(), height = bi.getHeight();
+	final int[] xStart = new int[gridWidth], xEnd = new int[gridWidth];
+	for (int gx = 0; gx < gridWidth; ++gx) {
+	    xStart[gx] = (int) ((long) width * gx / gridWidth);
+	    xEnd[gx] = Math.max(xStart[gx] + 1, (int) ((long) width * (gx + 1) / gridWidth));
+	}
+	final int[] data = ImagePixels.getDirectData(bi);
+	final double[] grid = new double[gridWidth * gridHeight];
+	final IntStream stream = IntStream.range(0, gridHeight);
+	((long) width * height < PARALLEL_THRESHOLD ? stream : stream.parallel()).forEach(gy -> {
+	    final int[] row = new int[width];
+	    final long[] luma = new long[width + 1];
+	    final long[] sums = new long[gridWidth];
+	    final int yStart = (int) ((long) height * gy / gridHeight), yEnd = Math.max(yStart + 1, (int) ((long) height * (gy + 1) / gridHeight));
+	    for (int y = yStart; y < yEnd; ++y) {
+		ImagePixels.getRow(bi, data, y, row);
+		// 累計亮度，讓每一格的總和只需要一次減法
+		for (int x = 0; x < width; ++x) {
+		    final int argb = row[x];
+		    final int alpha = argb >>> 24;
+		    long value = 19595 * ((argb >> 16) & 0xFF) + 38470 * ((argb >> 8) & 0xFF) + 7471 * (argb & 0xFF);
+		    if (alpha != 0xFF) {
+			value = (value * alpha + 16711680L * (255 - alpha)) / 255;
+		    }
+		    luma[x + 1] = luma[x] + value;
+		}
+		for (int gx = 0; gx < gridWidth; ++gx) {
+		    sums[gx] += luma[xEnd[gx]] - luma[xStart[gx]];
+		}
+	    }
+	    final int offset = gy * gridWidth;
+	    final double rowCount = yEnd - yStart;
+	    for (int gx = 0; gx < gridWidth; ++gx) {
+		grid[offset + gx] = sums[gx] / (rowCount * (xEnd[gx] - xStart[gx]) * 65536);
+	    }
+	});
+	return grid;
+    }
+
+    // -----建構子-----
+    /**
+     * 私有的建構子，將無法被實體化。
+     */
+    private ImageHash() {
+
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * 64位元感知雜湊的記憶體索引，用來快速找出漢明距離在指定範圍內的雜湊值。</p>
+ *
+ * <p>
+ * 使用多重索引雜湊(multi-index hashing)：將雜湊值切成4段16位元，每一段各有一個65536個桶子的表。根據鴿籠原理，若兩個雜湊值的距離不超過d，至少有一段的距離不超過d/4，因此只需要檢查每一段在d/4以內的桶子，再驗證完整的距離。d小於4時每一段只需要查一個桶子，即使有數百萬個雜湊值，查詢也只需要檢查少量的候選；d/4超過3時候選的桶子太多，會改成直接掃描全部的雜湊值。此類別是執行緒安全的。</p>
+ *
+ * @author Magic Len
+ * @param <V> 雜湊值所對應的資料的型態
+ * @see ImageHash
+ */
+public final class ImageHashIndex<V> {
+
+    // -----類別常數-----
+    /**
+     * 雜湊值切成的段數。
+     */
+    private static final int CHUNKS = 4;
+    /**
+     * 每一段的位元數。
+     */
+    private static final int CHUNK_BITS = 16;
+    /**
+     * 每一段可以列舉的最大距離，超過時改成直接掃描。
+     */
+    private static final int MAX_CHUNK_RADIUS = 3;
+
+    // -----類別方法-----
+    /**
+     * 取得雜湊值的某一段。
+     *
+     * @param hash 傳入雜湊值
+     * @param chunk 傳入段的索引
+     * @return 傳回該段的值
+     */
+    private static int chunk(final long hash, final int chunk) {
+	return (int) (hash >>> (chunk * CHUNK_BITS)) & 0xFFFF;
+    }
+
+    /**
+     * 判斷雜湊值是否已經在較前面的段中被找到，避免重複加入結果。
+     *
+     * @param candidate 傳入候選的雜湊值
+     * @param queryChunks 傳入要查詢的雜湊值的每一段
+     * @param chunkIndex 傳入目前的段
+     * @param chunkRadius 傳入每一段的最大距離
+     * @return 傳回是否已經被找到
+     */
+    private static boolean foundInEarlierChunk(final long candidate, final int[] queryChunks, final int chunkIndex, final int chunkRadius) {
+	for (int c = 0; c < chunkIndex; ++c) {
+	    if (Integer.bitCount(chunk(candidate, c) ^ queryChunks[c]) <= chunkRadius) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * 列舉和key的距離不超過radius的所有16位元的值。
+     *
+     * @param key 傳入中心的值
+     * @param radius 傳入最大的距離
+     * @param fromBit 傳入可以翻轉的最低位元
+     * @param consumer 傳入處理每一個值的方法
+     */
+    private static void forEachNeighbor(final int key, final int radius, final int fromBit, final KeyConsumer consumer) {
+	consumer.accept(key);
+	if (radius > 0) {
+	    for (int bit = fromBit; bit < CHUNK_BITS; ++bit) {
+		forEachNeighbor(key ^ (1 << bit), radius - 1, bit + 1, consumer);
+	    }
+	}
+    }
+
+    // -----物件常數-----
+    /**
+     * 同步用的鎖。
+     */
+    private final Object lock = new Object();
+    /**
+     * 每一段的桶子，存放雜湊值的編號，第一個元素為編號的數量。
+     */
+    private final int[][][] tables = new int[CHUNKS][1 << CHUNK_BITS][];
+
+    // -----物件變數-----
+    /**
+     * 依照加入順序存放的雜湊值。
+     */
+    private long[] hashes = new long[16];
+    /**
+     * 依照加入順序存放的資料。
+     */
+    private Object[] values = new Object[16];
+    /**
+     * 雜湊值的數量。
+     */
+    private int size;
+
+    // -----物件方法-----
+    /**
+     * 加入雜湊值和其對應的資料。相同的雜湊值可以加入多次。
+     *
+     * @param hash 傳入雜湊值
+     * @param value 傳入資料
+     */
+    public void add(final long hash, final V value) {
+	synchronized (lock) {
+	    if (size == hashes.length) {
+		final int capacity = size + (size >> 1);
+		hashes = Arrays.copyOf(hashes, capacity);
+		values = Arrays.copyOf(values, capacity);
+	    }
+	    final int id = size;
+	    hashes[id] = hash;
+	    values[id] = value;
+	    for (int c = 0; c < CHUNKS; ++c) {
+		final int[][] table = tables[c];
+		final int key = chunk(hash, c);
+		int[] bucket = table[key];
+		if (bucket == null) {
+		    bucket = table[key] = new int[4];
+		} else if (bucket[0] + 1 == bucket.length) {
+		    bucket = table[key] = Arrays.copyOf(bucket, bucket.length << 1);
+		}
+		bucket[++bucket[0]] = id;
+	    }
+	    ++size;
+	}
+    }
+
+    /**
+     * 找出和指定雜湊值的漢明距離不超過maxDistance的所有雜湊值，依照距離由近到遠排列。
+     *
+     * @param hash 傳入要查詢的雜湊值
+     * @param maxDistance 傳入最大的漢明距離(0~64)
+     * @return 傳回找到的結果，若沒有找到，則傳回空的List
+     */
+    public List<Match<V>> find(final long hash, final int maxDistance) {
+	final List<Match<V>> matches = new ArrayList<>();
+	if (maxDistance < 0) {
+	    return matches;
+	}
+	final int chunkRadius = maxDistance / CHUNKS;
+	synchronized (lock) {
+	    if (chunkRadius > MAX_CHUNK_RADIUS) {
+		for (int id = 0; id < size; ++id) {
+		    addMatch(matches, id, hash, maxDistance);
+		}
+	    } else {
+		final int[] queryChunks = new int[CHUNKS];
+		for (int c = 0; c < CHUNKS; ++c) {
+		    queryChunks[c] = chunk(hash, c);
+		}
+		for (int c = 0; c < CHUNKS; ++c) {
+		    final int chunkIndex = c;
+		    forEachNeighbor(queryChunks[c], chunkRadius, 0, (final int key) -> {
+			final int[] bucket = tables[chunkIndex][key];
+			if (bucket == null) {
+			    return;
+			}
+			for (int i = 1, count = bucket[0]; i <= count; ++i) {
+			    final int id = bucket[i];
+			    if (foundInEarlierChunk(hashes[id], queryChunks, chunkIndex, chunkRadius)) {
+				continue;
+			    }
+			    addMatch(matches, id, hash, maxDistance);
+			}
+		    });
+		}
+	    }
+	}
+	matches.sort((a, b) -> a.distance - b.distance);
+	return matches;
+    }
+
+    /**
+     * 找出和指定雜湊值最接近的雜湊值。
+     *
+     * @param hash 傳入要查詢的雜湊值
+     * @param maxDistance 傳入最大的漢明距離(0~64)
+     * @return 傳回最接近的結果，若沒有距離不超過maxDistance的雜湊值，則傳回null
+     */
+    public Match<V> findNearest(final long hash, final int maxDistance) {
+	final List<Match<V>> matches = find(hash, maxDistance);
+	return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    /**
+     * 取得雜湊值的數量。
+     *
+     * @return 傳回雜湊值的數量
+     */
+    public int size() {
+	synchronized (lock) {
+	    return size;
+	}
+    }
+
+    /**
+     * 若編號對應的雜湊值和查詢的距離不超過maxDistance，將其加入結果中。
+     *
+     * @param matches 傳入結果
+     * @param id 傳入雜湊值的編號
+     * @param hash 傳入要查詢的雜湊值
+     * @param maxDistance 傳入最大的漢明距離
+     */
+    @SuppressWarnings("unchecked")
+    private void addMatch(final List<Match<V>> matches, final int id, final long hash, final int maxDistance) {
+	final int distance = ImageHash.distance(hashes[id], hash);
+	if (distance <= maxDistance) {
+	    matches.add(new Match<>(hashes[id], (V) values[id], distance));
+	}
+    }
+
+    // -----內部類別-----
+    /**
+     * 處理桶子索引的方法。
+     */
+    private static interface KeyConsumer {
+
+	/**
+	 * 處理桶子索引。
+	 *
+	 * @param key 傳入桶子索引
+	 */
+	void accept(int key);
+    }
+
+    /**
+     * 查詢的結果。
+     *
+     * @param <V> 資料的型態
+     */
+    public static final class Match<V> {
+
+	// -----物件常數-----
+	/**
+	 * 雜湊值。
+	 */
+	private final long hash;
+	/**
+	 * 資料。
+	 */
+	private final V value;
+	/**
+	 * 和查詢的雜湊值的漢明距離。
+	 */
+	private final int distance;
+
+	// -----建構子-----
+	/**
+	 * 建構子。
+	 *
+	 * @param hash 傳入雜湊值
+	 * @param value 傳入資料
+	 * @param distance 傳入漢明距離
+	 */
+	private Match(final long hash, final V value, final int distance) {
+	    this.hash = hash;
+	    this.value = value;
+	    this.distance = distance;
+	}
+
+	// -----物件方法-----
+	/**
+	 * 取得雜湊值。
+	 *
+	 * @return 傳回雜湊值
+	 */
+	public long getHash() {
+	    return hash;
+	}
+
+	/**
+	 * 取得資料。
+	 *
+	 * @return 傳回資料
+	 */
+	public V getValue() {
+	    return value;
+	}
+
+	/**
+	 * 取得和查詢的雜湊值的漢明距離。
+	 *
+	 * @return 傳回漢明距離
+	 */
+	public int getDistance() {
+	    return distance;
+	}
+    }
+}
@@ -18,8 +18,6 @@
 package org.magiclen.magicimage;
 
 import java.io.File;
-import org.magiclen.magiccommand.Command;
-import org.magiclen.magiccommand.CommandListener;
 
 /**
  * <p>
@@ -27,9 +25,10 @@ import org.magiclen.magiccommand.CommandListener;
  *
  *
  * <p>
- * 注意，這個類別需要ImageMagick的支援，使用之前必須先將ImageMagick的執行檔路徑設定給MAGICK_PATH類別變數。</p>
+ * 注意，這個類別需要ImageMagick的支援，使用之前必須先將ImageMagick的執行檔路徑設定給MAGICK_PATH類別變數。在多個執行緒中使用時，建議改用Interlacer物件。</p>
  *
  * @author Magic Len
+ * @see Interlacer
  *
  */
 public class ImageInterlacer {
@@ -65,65 +64,46 @@ public class ImageInterlacer {
     // -----類別常數-----
     /**
      * 「magick」執行檔的完整路徑。使用前請先設定。
+     *
+     * @deprecated 全域可變的路徑無法安全地在多個執行緒中使用，請改用Interlacer物件
+     * @see Interlacer
      */
+    @Deprecated
     public static String MAGICK_PATH = null;
 
+    // -----類別變數-----
+    /**
+     * 依照MAGICK_PATH建立的Interlacer物件。
+     */
+    private static volatile Interlacer interlacer;
+
     // -----類別方法-----
+    /**
+     * 取得依照目前的MAGICK_PATH建立的Interlacer物件。
+     *
+     * @return 傳回Interlacer物件，若MAGICK_PATH為null，傳回null
+     */
+    private static Interlacer getInterlacer() {
+        final String path = MAGICK_PATH;
+        if (path == null) {
+            return null;
+        }
+        Interlacer i = interlacer;
+        if (i == null || !i.getMagickPath().equals(new File(path).getAbsolutePath())) {
+            i = new Interlacer(path);
+            interlacer = i;
+        }
+        return i;
+    }
+
     /**
      * 判斷「magick」執行檔是否可用。
      *
      * @return 傳回「magick」執行檔是否可用
      */
     public static boolean isAvailable() {
-        if (MAGICK_PATH == null) {
-            return false;
-        }
-        try {
-            final File magick = new File(MAGICK_PATH);
-            if (!magick.exists() || !magick.isFile()) {
-                return false;
-            }
-            magick.setExecutable(true);
-            if (!magick.canExecute()) {
-                return false;
-            }
-            final String path = magick.getAbsolutePath();
-            final boolean[] success = new boolean[]{false};
-            final int[] line = new int[]{0};
-            final Command command = new Command(path, "-version");
-            command.setCommandListener(new CommandListener() {
-
-                @Override
-                public void commandStart(final String id) {
-                }
-
-                @Override
-                public void commandRunning(final String id, final String message, final boolean isError) {
-                    if (!isError) {
-                        ++line[0];
-                        if (line[0] == 1 && message.contains("ImageMagick")) {
-                            success[0] = true;
-                        }
-                    }
-                }
-
-                @Override
-                public void commandException(final String id, final Exception exception) {
-
-                }
-
-                @Override
-                public void commandEnd(final String id, final int returnValue) {
-                    if (returnValue != 0) {
-                        success[0] = false;
-                    }
-                }
-            });
-            command.run();
-            return success[0];
-        } catch (final Exception ex) {
-            return false;
-        }
+        final Interlacer i = getInterlacer();
+        return i != null && i.isAvailable();
     }
 
     /**
@@ -140,46 +120,12 @@ public class ImageInterlacer {
      * 判斷檔案是否為交錯式圖片(interlaced image)。
      *
      * @param file 傳入圖片檔案
-     * @param checkExecute 傳入是否要先檢查執行檔(建議檢查)
+     * @param checkExecute 傳入是否要先檢查執行檔(建議檢查)。執行檔檢查成功之後的結果會被保留
      * @return 傳回檔案是否為交錯式圖片
      */
     public static boolean isInterlaced(final File file, final boolean checkExecute) {
-        if (checkExecute && !isAvailable()) {
-            return false;
-        }
-        final File magick = new File(MAGICK_PATH);
-        final String magickPath = magick.getAbsolutePath();
-        final String filePath = file.getAbsolutePath();
-        final boolean[] isInterlaced = new boolean[]{false};
-        final Command command = new Command(magickPath, "identify", "-verbose", filePath);
-        command.setCommandListener(new CommandListener() {
-
-            @Override
-            public void commandStart(final String id) {
-            }
-
-            @Override
-            public void commandRunning(final String id, final String message, final boolean isError) {
-                if (!isError && !isInterlaced[0]) {
-                    if (message.contains("Interlace: Plane") || message.contains("Interlace: Line") || message.contains("Interlace: JPEG") || message.contains("Interlace: PNG") || message.contains("Interlace: GIF")) {
-                        isInterlaced[0] = true;
-                        command.stopAll();
-                    }
-                }
-            }
-
-            @Override
-            public void commandException(final String id, final Exception exception) {
-
-            }
-
-            @Override
-            public void commandEnd(final String id, final int returnValue) {
-
-            }
-        });
-        command.run();
-        return isInterlaced[0];
+        final Interlacer i = getInterlacer();
+        return i != null && i.isInterlaced(file, checkExecute);
     }
 
     /**
@@ -194,52 +140,15 @@ public class ImageInterlacer {
     }
 
     /**
-     * 設定圖片檔案使用的交錯方式。
+     * 設定圖片檔案使用的交錯方式。ImageMagick會先輸出到名稱不會重複的暫存檔，成功之後才以原子操作取代原本的檔案。
      *
      * @param file 傳入圖片檔案
      * @param interlace 傳入交錯方式
-     * @param checkExecute 傳入是否要先檢查執行檔(建議檢查)
+     * @param checkExecute 傳入是否要先檢查執行檔(建議檢查)。執行檔檢查成功之後的結果會被保留
      * @return 傳回交錯方式是否設定成功
      */
     public static boolean setInterlace(final File file, final Interlace interlace, final boolean checkExecute) {
-        if (checkExecute && !isAvailable()) {
-            return false;
-        }
-        final File magick = new File(MAGICK_PATH);
-        final String magickPath = magick.getAbsolutePath();
-        final String filePath = file.getAbsolutePath();
-        final File imageRe = new File(file.getParentFile().getAbsoluteFile(), String.valueOf(System.currentTimeMillis()).concat("-").concat(file.getName()));
-        file.renameTo(imageRe);
-        final boolean[] success = new boolean[]{false};
-        final Command command = new Command(magickPath, "convert", imageRe.getAbsolutePath(), "-interlace", interlace.option, filePath);
-        command.setCommandListener(new CommandListener() {
-
-            @Override
-            public void commandStart(final String id) {
-
-            }
-
-            @Override
-            public void commandRunning(final String id, final String message, final boolean isError) {
-            }
-
-            @Override
-            public void commandException(final String id, final Exception exception) {
-
-            }
-
-            @Override
-            public void commandEnd(final String id, final int returnValue) {
-                if (returnValue == 0) {
-                    imageRe.delete();
-                    success[0] = true;
-                } else {
-                    file.delete();
-                    imageRe.renameTo(file);
-                }
-            }
-        });
-        command.run();
-        return success[0];
+        final Interlacer i = getInterlacer();
+        return i != null && i.setInterlace(file, interlace, checkExecute);
     }
 }
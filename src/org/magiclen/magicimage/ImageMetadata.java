@@ -18,23 +18,36 @@
 package org.magiclen.magicimage;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 import org.apache.commons.imaging.ImageFormat;
 import org.apache.commons.imaging.ImageInfo;
 import org.apache.commons.imaging.ImageInfo.ColorType;
 import org.apache.commons.imaging.ImageInfo.CompressionAlgorithm;
+import org.apache.commons.imaging.ImageParser;
+import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.Imaging;
 import org.apache.commons.imaging.common.ImageMetadata.ImageMetadataItem;
-import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
-import org.apache.commons.imaging.formats.tiff.TiffField;
-import org.apache.commons.imaging.formats.tiff.TiffImageMetadata;
-import org.apache.commons.imaging.formats.tiff.fieldtypes.FieldType;
-import org.apache.commons.imaging.formats.tiff.fieldtypes.FieldTypeAscii;
-import org.apache.commons.imaging.formats.tiff.fieldtypes.FieldTypeByte;
-import org.apache.commons.imaging.formats.tiff.fieldtypes.FieldTypeDouble;
-import org.apache.commons.imaging.formats.tiff.fieldtypes.FieldTypeFloat;
-import org.apache.commons.imaging.formats.tiff.fieldtypes.FieldTypeLong;
-import org.apache.commons.imaging.formats.tiff.fieldtypes.FieldTypeRational;
-import org.apache.commons.imaging.formats.tiff.fieldtypes.FieldTypeShort;
 import org.magiclen.json.JSONArray;
 import org.magiclen.json.JSONObject;
 
@@ -45,6 +58,21 @@ import org.magiclen.json.JSONObject;
  */
 public final class ImageMetadata {
 
+    // -----類別介面-----
+    /**
+     * 依序提供要讀取的檔案路徑。
+     */
+    private interface PathWalker {
+
+	/**
+	 * 依序將檔案路徑交給submitter。
+	 *
+	 * @param submitter 傳入接收檔案路徑的物件，傳回false時必須停止提供路徑
+	 * @throws IOException 無法取得路徑時拋出
+	 */
+	void walk(Predicate<Path> submitter) throws IOException;
+    }
+
     // -----類別常數-----
     public static final String BASIC = "Basic";
     public static final String METADATA = "Metadata";
@@ -72,7 +100,10 @@ public final class ImageMetadata {
     public static final String COMPRESSION_ALGORITHM_PACKBITS = "PACKBITS";
     public static final String COMPRESSION_ALGORITHM_PNG_FILTER = "PNG Filter";
     public static final String COMPRESSION_ALGORITHM_PSD = "PSD";
+    public static final String COMPRESSION_ALGORITHM_VP8 = "VP8";
+    public static final String COMPRESSION_ALGORITHM_VP8L = "VP8L";
     public static final String COMPRESSION_ALGORITHM_UNKNOWN = "Unknown";
+    public static final String FILE = "File";
     public static final String FORMAT = "Format";
     public static final String FORMAT_BMP = "BMP";
     public static final String FORMAT_PNG = "PNG";
@@ -93,6 +124,7 @@ public final class ImageMetadata {
     public static final String FORMAT_TGA = "TGA";
     public static final String FORMAT_TIFF = "TIFF";
     public static final String FORMAT_WBMP = "WBMP";
+    public static final String FORMAT_WEBP = "WEBP";
     public static final String FORMAT_XBM = "XBM";
     public static final String FORMAT_XPM = "XPM";
     public static final String FORMAT_UNKNOWN = "Unknown";
@@ -120,19 +152,126 @@ public final class ImageMetadata {
 
     // -----類別方法-----
     /**
-     * 寫入圖片檔案的Metadata。
+     * 寫入圖片檔案的Metadata。Metadata的格式和readMetadataFromFile的Metadata相同，會被合併到原本的EXIF中，值為null的欄位會被移除。只會改寫EXIF，像素不會被重新編碼，影像資料直接從原本的檔案複製。原本的EXIF不會被重新排列，沒有被修改的欄位(包括MakerNote等依賴位置的資料)都會原封不動地保留。支援JPEG、PNG和TIFF檔案，TIFF檔案的IFD0中描述影像資料的欄位(例如ImageWidth、Compression、StripOffsets)不能被修改，會被忽略。
      *
      * @param file 傳入圖片檔案物件
      * @param metadata 傳入Metadata
      * @return 傳回Metadata是否寫入成功
      */
     public static boolean writeMetadataToFile(final File file, final JSONArray metadata) {
-	// 尚不支援
-	return false;
+	if (file == null || metadata == null || !file.isFile() || !file.canRead() || !file.canWrite()) {
+	    return false;
+	}
+	try {
+	    final MetadataRewriter.Format format;
+	    final byte[] oldExif;
+	    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+		format = MetadataRewriter.detect(channel);
+		if (format == null) {
+		    return false;
+		}
+		// TIFF檔案本身就是TIFF結構，直接修補檔案中的目錄
+		final ByteBuffer tiff = format != MetadataRewriter.Format.TIFF ? ImageExif.find(channel) : null;
+		if (tiff != null) {
+		    oldExif = new byte[tiff.remaining()];
+		    tiff.duplicate().get(oldExif);
+		} else {
+		    oldExif = null;
+		}
+	    }
+	    final byte[] exif = format != MetadataRewriter.Format.TIFF ? MetadataRewriter.mergeExif(oldExif, metadata) : null;
+	    MetadataRewriter.rewrite(file, file, (final FileChannel in, final FileChannel out) -> {
+		switch (format) {
+		    case JPEG:
+			MetadataRewriter.rewriteJPEG(in, out, exif, false);
+			break;
+		    case PNG:
+			MetadataRewriter.rewritePNG(in, out, exif, false);
+			break;
+		    default:
+			MetadataRewriter.mergeTIFF(in, out, metadata);
+		}
+	    });
+	    return true;
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return false;
+	}
+    }
+
+    /**
+     * 移除圖片檔案的Metadata(EXIF、GPS、XMP、IPTC、註解等)。像素不會被重新編碼，影像資料直接從原本的檔案複製，色彩描述檔會被保留。支援JPEG、PNG和TIFF檔案。
+     *
+     * @param file 傳入圖片檔案物件
+     * @param keepOrientation 傳入是否保留方向(Orientation)，避免圖片在移除EXIF之後轉向
+     * @return 傳回Metadata是否移除成功
+     */
+    public static boolean stripMetadataFromFile(final File file, final boolean keepOrientation) {
+	return stripMetadataFromFile(file, file, keepOrientation);
     }
 
     /**
-     * 讀取圖片檔案的Metadata。
+     * 移除圖片檔案的Metadata(EXIF、GPS、XMP、IPTC、註解等)，並寫到另一個檔案。像素不會被重新編碼，影像資料直接從原本的檔案複製，色彩描述檔會被保留。支援JPEG、PNG和TIFF檔案。
+     *
+     * @param file 傳入圖片檔案物件
+     * @param outputFile 傳入輸出的檔案物件，可以和圖片檔案物件相同
+     * @param keepOrientation 傳入是否保留方向(Orientation)，避免圖片在移除EXIF之後轉向
+     * @return 傳回Metadata是否移除成功
+     */
+    public static boolean stripMetadataFromFile(final File file, final File outputFile, final boolean keepOrientation) {
+	if (file == null || outputFile == null || !file.isFile() || !file.canRead()) {
+	    return false;
+	}
+	try {
+	    final MetadataRewriter.Format format;
+	    int orientation = 1;
+	    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+		format = MetadataRewriter.detect(channel);
+		if (format == null) {
+		    return false;
+		}
+		if (keepOrientation && format != MetadataRewriter.Format.TIFF) {
+		    // TIFF的方向在IFD0中，移除時直接保留或移除該欄位
+		    final ByteBuffer tiff = ImageExif.find(channel);
+		    final ImageExif exif = tiff != null ? ImageExif.parse(tiff) : null;
+		    if (exif != null) {
+			orientation = exif.getOrientation();
+		    }
+		}
+	    }
+	    final byte[] exif = orientation != 1 ? MetadataRewriter.createOrientationExif(orientation) : null;
+	    MetadataRewriter.rewrite(file, outputFile, (final FileChannel in, final FileChannel out) -> {
+		switch (format) {
+		    case JPEG:
+			MetadataRewriter.rewriteJPEG(in, out, exif, true);
+			break;
+		    case PNG:
+			MetadataRewriter.rewritePNG(in, out, exif, true);
+			break;
+		    default:
+			MetadataRewriter.stripTIFF(in, out, keepOrientation);
+		}
+	    });
+	    return true;
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return false;
+	}
+    }
+
+    /**
+     * 讀取圖片檔案的EXIF。只會建立欄位的索引，欄位的值在被取用時才會解碼，適合只需要少數幾個欄位的情況。
+     *
+     * @param file 傳入圖片檔案物件，支援JPEG和TIFF
+     * @return 傳回EXIF的檢視，若圖片檔案沒有EXIF或無法讀取，傳回null
+     * @see ImageExif
+     */
+    public static ImageExif readExifFromFile(final File file) {
+	return ImageExif.read(file);
+    }
+
+    /**
+     * 讀取圖片檔案的Metadata。檔案只會被開啟一次並映射到記憶體，圖片資訊、EXIF和其他Metadata都從同一個映射讀取。
      *
      * @param file 傳入圖片檔案物件
      * @return 傳回圖片檔案的Metadata，若圖片檔案無法讀取，傳回null
@@ -142,302 +281,491 @@ public final class ImageMetadata {
 	    return null;
 	}
 
+	final SourceImage source = SourceImage.open(file);
+	return source != null ? readMetadata(source) : null;
+    }
+
+    /**
+     * 讀取來源圖片的Metadata。圖片資訊、EXIF和其他Metadata都從來源圖片的同一份資料讀取，不會再開啟檔案。
+     *
+     * @param source 傳入來源圖片
+     * @return 傳回圖片的Metadata，若圖片無法讀取，傳回null
+     */
+    public static JSONObject readMetadata(final SourceImage source) {
+	if (source == null) {
+	    return null;
+	}
 	try {
-	    final ImageInfo imageInfo = Imaging.getImageInfo(file);
-	    if (imageInfo == null) {
-		return null;
+	    return parseMetadata(source);
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return null;
+	}
+    }
+
+    /**
+     * 平行讀取目錄(包含子目錄)中所有圖片檔案的Metadata，並以JSON Lines的格式逐行寫出，每一行是一個JSON物件，除了Basic和Metadata之外，還會多一個File欄位記錄檔案路徑。結果不會被保留在記憶體中，無法讀取的檔案和子目錄會被略過。
+     *
+     * @param directory 傳入目錄
+     * @param parallelism 傳入同時讀取的檔案數量，若小於1，則使用CPU的數量
+     * @param writer 傳入要寫入的Writer物件，每一行的寫入都是互斥的，不會自動關閉
+     * @return 傳回寫出的行數，若目錄無法讀取或寫入失敗，傳回-1
+     */
+    public static long readMetadataFromDirectory(final File directory, final int parallelism, final Writer writer) {
+	if (directory == null || !directory.isDirectory() || !directory.canRead() || writer == null) {
+	    return -1;
+	}
+	final Path root = directory.toPath();
+	return readMetadataFromPaths((final Predicate<Path> submitter) -> Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+	    @Override
+	    public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+		if (!attrs.isRegularFile() && !(attrs.isSymbolicLink() && Files.isRegularFile(file))) {
+		    return FileVisitResult.CONTINUE;
+		}
+		return submitter.test(file) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+	    }
+
+	    @Override
+	    public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+		// 無法讀取的子目錄或檔案直接略過，繼續走訪其它的目錄
+		ex.printStackTrace(System.out);
+		return FileVisitResult.CONTINUE;
 	    }
-	    final JSONObject result = new JSONObject();
+	}), parallelism, createLineWriter(writer));
+    }
 
-	    // Basic
-	    final JSONObject basicInfo = new JSONObject();
-	    final ColorType colorType = imageInfo.getColorType();
-	    final String colorTypeString;
-	    switch (colorType) {
-		case BW:
-		    colorTypeString = COLOR_TYPE_BW;
+    /**
+     * 平行讀取多個圖片檔案的Metadata，並以JSON Lines的格式逐行寫出，每一行是一個JSON物件，除了Basic和Metadata之外，還會多一個File欄位記錄檔案路徑。結果不會被保留在記憶體中，無法讀取的檔案會被略過。
+     *
+     * @param paths 傳入檔案路徑的串流，會依序取用，不會一次全部讀進記憶體
+     * @param parallelism 傳入同時讀取的檔案數量，若小於1，則使用CPU的數量
+     * @param writer 傳入要寫入的Writer物件，每一行的寫入都是互斥的，不會自動關閉
+     * @return 傳回寫出的行數，若寫入失敗，傳回-1
+     */
+    public static long readMetadataFromFiles(final Stream<Path> paths, final int parallelism, final Writer writer) {
+	if (writer == null) {
+	    return -1;
+	}
+	return readMetadataFromFiles(paths, parallelism, createLineWriter(writer));
+    }
+
+    /**
+     * 平行讀取多個圖片檔案的Metadata，每讀完一個檔案就交給consumer處理，結果不會被保留在記憶體中。等待處理的檔案數量會被限制在同時讀取的檔案數量的兩倍，因此路徑的串流可以非常長。consumer會在多個執行緒中被呼叫，必須是執行緒安全的；若consumer拋出例外，會停止讀取之後的檔案。
+     *
+     * @param paths 傳入檔案路徑的串流，會依序取用，不會一次全部讀進記憶體
+     * @param parallelism 傳入同時讀取的檔案數量，若小於1，則使用CPU的數量
+     * @param consumer 傳入處理Metadata的物件，無法讀取的檔案不會被傳入
+     * @return 傳回被處理的檔案數量，若consumer拋出例外或是被中斷，傳回-1
+     */
+    public static long readMetadataFromFiles(final Stream<Path> paths, final int parallelism, final BiConsumer<Path, JSONObject> consumer) {
+	if (paths == null || consumer == null) {
+	    return -1;
+	}
+	return readMetadataFromPaths((final Predicate<Path> submitter) -> {
+	    final Iterator<Path> iterator = paths.iterator();
+	    while (iterator.hasNext()) {
+		if (!submitter.test(iterator.next())) {
 		    break;
-		case CMYK:
-		    colorTypeString = COLOR_TYPE_CMYK;
+		}
+	    }
+	}, parallelism, consumer);
+    }
+
+    /**
+     * 建立以JSON Lines的格式逐行寫出Metadata的物件。
+     *
+     * @param writer 傳入要寫入的Writer物件，每一行的寫入都是互斥的
+     * @return 傳回處理Metadata的物件
+     */
+    private static BiConsumer<Path, JSONObject> createLineWriter(final Writer writer) {
+	// 不使用synchronized，避免在虛擬執行緒中寫入時佔住載體執行緒
+	final ReentrantLock lock = new ReentrantLock();
+	return (final Path path, final JSONObject metadata) -> {
+	    final JSONObject line = new JSONObject();
+	    line.put(FILE, path.toString());
+	    line.put(BASIC, metadata.get(BASIC));
+	    line.put(METADATA, metadata.get(METADATA));
+	    final String json = line.toString();
+	    lock.lock();
+	    try {
+		writer.write(json);
+		writer.write('\n');
+	    } catch (final IOException ex) {
+		throw new UncheckedIOException(ex);
+	    } finally {
+		lock.unlock();
+	    }
+	};
+    }
+
+    /**
+     * 平行讀取PathWalker提供的圖片檔案的Metadata，每讀完一個檔案就交給consumer處理。等待處理的檔案數量會被限制在同時讀取的檔案數量的兩倍。
+     *
+     * @param walker 傳入提供檔案路徑的物件
+     * @param parallelism 傳入同時讀取的檔案數量，若小於1，則使用CPU的數量
+     * @param consumer 傳入處理Metadata的物件，無法讀取的檔案不會被傳入
+     * @return 傳回被處理的檔案數量，若無法取得路徑、consumer拋出例外或是被中斷，傳回-1
+     */
+    private static long readMetadataFromPaths(final PathWalker walker, final int parallelism, final BiConsumer<Path, JSONObject> consumer) {
+	final int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+	final ExecutorService executor = Executors.newFixedThreadPool(threads);
+	final Semaphore permits = new Semaphore(threads * 2);
+	final AtomicLong count = new AtomicLong();
+	final AtomicReference<Throwable> failure = new AtomicReference<>();
+	final boolean[] interrupted = new boolean[]{false};
+	try {
+	    try {
+		walker.walk((final Path path) -> {
+		    if (failure.get() != null) {
+			return false;
+		    }
+		    try {
+			permits.acquire();
+		    } catch (final InterruptedException ex) {
+			interrupted[0] = true;
+			return false;
+		    }
+		    executor.execute(() -> {
+			try {
+			    if (failure.get() != null) {
+				return;
+			    }
+			    final JSONObject metadata = readMetadataFromFile(path.toFile());
+			    if (metadata != null) {
+				consumer.accept(path, metadata);
+				count.incrementAndGet();
+			    }
+			} catch (final Throwable ex) {
+			    failure.compareAndSet(null, ex);
+			} finally {
+			    permits.release();
+			}
+		    });
+		    return true;
+		});
+	    } catch (final IOException | RuntimeException ex) {
+		failure.compareAndSet(null, ex);
+	    }
+	    if (interrupted[0]) {
+		throw new InterruptedException();
+	    }
+	    executor.shutdown();
+	    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	} catch (final InterruptedException ex) {
+	    executor.shutdownNow();
+	    Thread.currentThread().interrupt();
+	    return -1;
+	} finally {
+	    executor.shutdown();
+	}
+	if (failure.get() != null) {
+	    failure.get().printStackTrace(System.out);
+	    return -1;
+	}
+	return count.get();
+    }
+
+    /**
+     * 解析來源圖片的Metadata。
+     *
+     * @param source 傳入來源圖片
+     * @return 傳回圖片的Metadata，若無法取得圖片資訊，傳回null
+     * @throws ImageReadException 圖片格式不正確時拋出
+     * @throws IOException 讀取失敗時拋出
+     */
+    private static JSONObject parseMetadata(final SourceImage source) throws ImageReadException, IOException {
+	final ByteBuffer buffer = source.getBuffer();
+	if (buffer != null && WebPDecoder.isWebP(buffer)) {
+	    return parseWebPMetadata(source, buffer);
+	}
+	final ImageParser parser = source.getParser();
+	final File file = source.getFile();
+	// 無法從檔頭判斷格式時，交給Imaging依照副檔名判斷
+	final ImageInfo imageInfo;
+	if (parser != null) {
+	    imageInfo = parser.getImageInfo(source.getByteSource(), null);
+	} else if (file != null) {
+	    imageInfo = Imaging.getImageInfo(file);
+	} else {
+	    imageInfo = Imaging.getImageInfo(source.getInputStream(), source.getName());
+	}
+	if (imageInfo == null) {
+	    return null;
+	}
+	final JSONObject result = new JSONObject();
+
+	// Basic
+	final JSONObject basicInfo = new JSONObject();
+	final ColorType colorType = imageInfo.getColorType();
+	final String colorTypeString;
+	switch (colorType) {
+	    case BW:
+		colorTypeString = COLOR_TYPE_BW;
+		break;
+	    case CMYK:
+		colorTypeString = COLOR_TYPE_CMYK;
+		break;
+	    case GRAYSCALE:
+		colorTypeString = COLOR_TYPE_GRAYSCALE;
+		break;
+	    case OTHER:
+		colorTypeString = COLOR_TYPE_OTHER;
+		break;
+	    case RGB:
+		colorTypeString = COLOR_TYPE_RGB;
+		break;
+	    case YCC:
+		colorTypeString = COLOR_TYPE_YCC;
+		break;
+	    case YCCK:
+		colorTypeString = COLOR_TYPE_YCCK;
+		break;
+	    case YCbCr:
+		colorTypeString = COLOR_TYPE_YCBCR;
+		break;
+	    default:
+		colorTypeString = COLOR_TYPE_UNKNOWN;
+		break;
+	}
+	final CompressionAlgorithm compressionAlgorithm = imageInfo.getCompressionAlgorithm();
+	final String compressionAlgorithmString;
+	switch (compressionAlgorithm) {
+	    case ADAPTIVE_RLE:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_ADAPTIVE_RLE;
+		break;
+	    case CCITT_1D:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_CCITT_1D;
+		break;
+	    case CCITT_GROUP_3:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_CCITT_GROUP_3;
+		break;
+	    case CCITT_GROUP_4:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_CCITT_GROUP_4;
+		break;
+	    case JPEG:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_JPEG;
+		break;
+	    case LZW:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_LZW;
+		break;
+	    case NONE:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_NONE;
+		break;
+	    case RLE:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_RLE;
+		break;
+	    case PACKBITS:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_PACKBITS;
+		break;
+	    case PNG_FILTER:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_PNG_FILTER;
+		break;
+	    case PSD:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_PSD;
+		break;
+	    default:
+		compressionAlgorithmString = COMPRESSION_ALGORITHM_UNKNOWN;
+		break;
+	}
+	final JSONArray comments = new JSONArray();
+	imageInfo.getComments().forEach((final String comment) -> {
+	    if (comment == null) {
+		return;
+	    }
+	    comments.put(comment);
+	});
+	final ImageFormat imageFormat = imageInfo.getFormat();
+	final String format;
+	if (imageFormat != null) {
+	    final String formatName = imageFormat.getName();
+	    switch (formatName) {
+		case "BMP":
+		    format = FORMAT_BMP;
 		    break;
-		case GRAYSCALE:
-		    colorTypeString = COLOR_TYPE_GRAYSCALE;
+		case "DCX":
+		    format = FORMAT_DCX;
 		    break;
-		case OTHER:
-		    colorTypeString = COLOR_TYPE_OTHER;
+		case "GIF":
+		    format = FORMAT_GIF;
 		    break;
-		case RGB:
-		    colorTypeString = COLOR_TYPE_RGB;
+		case "ICNS":
+		    format = FORMAT_ICNS;
 		    break;
-		case YCC:
-		    colorTypeString = COLOR_TYPE_YCC;
+		case "ICO":
+		    format = FORMAT_ICO;
 		    break;
-		case YCCK:
-		    colorTypeString = COLOR_TYPE_YCCK;
+		case "JBIG2":
+		    format = FORMAT_JBIG2;
 		    break;
-		case YCbCr:
-		    colorTypeString = COLOR_TYPE_YCBCR;
+		case "JPEG":
+		    format = FORMAT_JPEG;
 		    break;
-		default:
-		    colorTypeString = COLOR_TYPE_UNKNOWN;
+		case "PAM":
+		    format = FORMAT_PAM;
 		    break;
-	    }
-	    final CompressionAlgorithm compressionAlgorithm = imageInfo.getCompressionAlgorithm();
-	    final String compressionAlgorithmString;
-	    switch (compressionAlgorithm) {
-		case ADAPTIVE_RLE:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_ADAPTIVE_RLE;
+		case "PSD":
+		    format = FORMAT_PSD;
 		    break;
-		case CCITT_1D:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_CCITT_1D;
+		case "PBM":
+		    format = FORMAT_PBM;
 		    break;
-		case CCITT_GROUP_3:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_CCITT_GROUP_3;
+		case "PGM":
+		    format = FORMAT_PGM;
 		    break;
-		case CCITT_GROUP_4:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_CCITT_GROUP_4;
+		case "PNM":
+		    format = FORMAT_PNM;
 		    break;
-		case JPEG:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_JPEG;
+		case "PPM":
+		    format = FORMAT_PPM;
 		    break;
-		case LZW:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_LZW;
+		case "PCX":
+		    format = FORMAT_PCX;
 		    break;
-		case NONE:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_NONE;
+		case "PNG":
+		    format = FORMAT_PNG;
 		    break;
-		case RLE:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_RLE;
+		case "RGBE":
+		    format = FORMAT_RGBE;
 		    break;
-		case PACKBITS:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_PACKBITS;
+		case "TGA":
+		    format = FORMAT_TGA;
 		    break;
-		case PNG_FILTER:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_PNG_FILTER;
+		case "TIFF":
+		    format = FORMAT_TIFF;
 		    break;
-		case PSD:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_PSD;
+		case "WBMP":
+		    format = FORMAT_WBMP;
 		    break;
-		default:
-		    compressionAlgorithmString = COMPRESSION_ALGORITHM_UNKNOWN;
+		case "XBM":
+		    format = FORMAT_XBM;
 		    break;
+		case "XPM":
+		    format = FORMAT_XPM;
+		    break;
+		default:
+		    format = FORMAT_UNKNOWN;
 	    }
-	    final JSONArray comments = new JSONArray();
-	    imageInfo.getComments().forEach((final String comment) -> {
-		if (comment == null) {
-		    return;
-		}
-		comments.put(comment);
-	    });
-	    final ImageFormat imageFormat = imageInfo.getFormat();
-	    final String format;
-	    if (imageFormat != null) {
-		final String formatName = imageFormat.getName();
-		switch (formatName) {
-		    case "BMP":
-			format = FORMAT_BMP;
-			break;
-		    case "DCX":
-			format = FORMAT_DCX;
-			break;
-		    case "GIF":
-			format = FORMAT_GIF;
-			break;
-		    case "ICNS":
-			format = FORMAT_ICNS;
-			break;
-		    case "ICO":
-			format = FORMAT_ICO;
-			break;
-		    case "JBIG2":
-			format = FORMAT_JBIG2;
-			break;
-		    case "JPEG":
-			format = FORMAT_JPEG;
-			break;
-		    case "PAM":
-			format = FORMAT_PAM;
-			break;
-		    case "PSD":
-			format = FORMAT_PSD;
-			break;
-		    case "PBM":
-			format = FORMAT_PBM;
-			break;
-		    case "PGM":
-			format = FORMAT_PGM;
-			break;
-		    case "PNM":
-			format = FORMAT_PNM;
-			break;
-		    case "PPM":
-			format = FORMAT_PPM;
-			break;
-		    case "PCX":
-			format = FORMAT_PCX;
-			break;
-		    case "PNG":
-			format = FORMAT_PNG;
-			break;
-		    case "RGBE":
-			format = FORMAT_RGBE;
-			break;
-		    case "TGA":
-			format = FORMAT_TGA;
-			break;
-		    case "TIFF":
-			format = FORMAT_TIFF;
-			break;
-		    case "WBMP":
-			format = FORMAT_WBMP;
-			break;
-		    case "XBM":
-			format = FORMAT_XBM;
-			break;
-		    case "XPM":
-			format = FORMAT_XPM;
-			break;
-		    default:
-			format = FORMAT_UNKNOWN;
-		}
-	    } else {
-		format = FORMAT_UNKNOWN;
-	    }
-	    final int bitsPerPixel = imageInfo.getBitsPerPixel();
-	    final int numberOfImages = imageInfo.getNumberOfImages();
-	    final int width = imageInfo.getWidth();
-	    final int height = imageInfo.getHeight();
-	    final int widthDpi = imageInfo.getPhysicalWidthDpi();
-	    final int heightDpi = imageInfo.getPhysicalHeightDpi();
-	    final float widthInch = imageInfo.getPhysicalWidthInch();
-	    final float heightInch = imageInfo.getPhysicalHeightInch();
-	    final String formatDetials = imageInfo.getFormatDetails();
-	    final String mimeType = imageInfo.getMimeType();
+	} else {
+	    format = FORMAT_UNKNOWN;
+	}
+	final int bitsPerPixel = imageInfo.getBitsPerPixel();
+	final int numberOfImages = imageInfo.getNumberOfImages();
+	final int width = imageInfo.getWidth();
+	final int height = imageInfo.getHeight();
+	final int widthDpi = imageInfo.getPhysicalWidthDpi();
+	final int heightDpi = imageInfo.getPhysicalHeightDpi();
+	final float widthInch = imageInfo.getPhysicalWidthInch();
+	final float heightInch = imageInfo.getPhysicalHeightInch();
+	final String formatDetials = imageInfo.getFormatDetails();
+	final String mimeType = imageInfo.getMimeType();
 
-	    if (bitsPerPixel > 0) {
-		basicInfo.put(BITS_PER_PIXEL, bitsPerPixel);
-	    }
-	    if (!colorTypeString.equals(COLOR_TYPE_UNKNOWN)) {
-		basicInfo.put(COLOR_TYPE, colorTypeString);
-	    }
-	    if (comments.length() > 0) {
-		basicInfo.put(COMMENTS, comments);
-	    }
-	    if (!compressionAlgorithmString.equals(COMPRESSION_ALGORITHM_UNKNOWN)) {
-		basicInfo.put(COMPRESSION_ALGORITHM, compressionAlgorithmString);
-	    }
-	    if (!format.equals(FORMAT_UNKNOWN)) {
-		basicInfo.put(FORMAT, format);
-	    }
-	    if (formatDetials != null) {
-		basicInfo.put(FORMAT_DETAILS, formatDetials);
-	    }
-	    if (width > 0) {
-		basicInfo.put(WIDTH, width);
-	    }
-	    if (height > 0) {
-		basicInfo.put(HEIGHT, height);
-	    }
-	    if (mimeType != null) {
-		basicInfo.put(MIME_TYPE, mimeType);
-	    }
-	    if (numberOfImages > 0) {
-		basicInfo.put(NUMBER_OF_IMAGES, numberOfImages);
-	    }
-	    if (widthDpi > 0) {
-		basicInfo.put(WIDTH_DPI, widthDpi);
-	    }
-	    if (heightDpi > 0) {
-		basicInfo.put(HEIGHT_DPI, heightDpi);
-	    }
-	    if (widthInch > 0) {
-		basicInfo.put(WIDTH_INCH, widthInch);
-	    }
-	    if (heightInch > 0) {
-		basicInfo.put(HEIGHT_INCH, imageInfo.getPhysicalHeightInch());
-	    }
+	if (bitsPerPixel > 0) {
+	    basicInfo.put(BITS_PER_PIXEL, bitsPerPixel);
+	}
+	if (!colorTypeString.equals(COLOR_TYPE_UNKNOWN)) {
+	    basicInfo.put(COLOR_TYPE, colorTypeString);
+	}
+	if (comments.length() > 0) {
+	    basicInfo.put(COMMENTS, comments);
+	}
+	if (!compressionAlgorithmString.equals(COMPRESSION_ALGORITHM_UNKNOWN)) {
+	    basicInfo.put(COMPRESSION_ALGORITHM, compressionAlgorithmString);
+	}
+	if (!format.equals(FORMAT_UNKNOWN)) {
+	    basicInfo.put(FORMAT, format);
+	}
+	if (formatDetials != null) {
+	    basicInfo.put(FORMAT_DETAILS, formatDetials);
+	}
+	if (width > 0) {
+	    basicInfo.put(WIDTH, width);
+	}
+	if (height > 0) {
+	    basicInfo.put(HEIGHT, height);
+	}
+	if (mimeType != null) {
+	    basicInfo.put(MIME_TYPE, mimeType);
+	}
+	if (numberOfImages > 0) {
+	    basicInfo.put(NUMBER_OF_IMAGES, numberOfImages);
+	}
+	if (widthDpi > 0) {
+	    basicInfo.put(WIDTH_DPI, widthDpi);
+	}
+	if (heightDpi > 0) {
+	    basicInfo.put(HEIGHT_DPI, heightDpi);
+	}
+	if (widthInch > 0) {
+	    basicInfo.put(WIDTH_INCH, widthInch);
+	}
+	if (heightInch > 0) {
+	    basicInfo.put(HEIGHT_INCH, imageInfo.getPhysicalHeightInch());
+	}
 
-	    // Metadata
-	    final org.apache.commons.imaging.common.ImageMetadata metadata = Imaging.getMetadata(file);
-	    final JSONArray metadataArray = new JSONArray();
+	// Metadata
+	final ImageExif exif = source.readExif();
+	final JSONArray metadataArray;
+	if (exif != null) {
+	    metadataArray = exif.toJSONArray();
+	} else {
+	    metadataArray = new JSONArray();
+	    final org.apache.commons.imaging.common.ImageMetadata metadata = parser != null ? parser.getMetadata(source.getByteSource(), null) : (file != null ? Imaging.getMetadata(file) : Imaging.getMetadata(source.getInputStream(), source.getName()));
 	    if (metadata != null) {
-		TiffImageMetadata exif = null;
-		if (metadata instanceof JpegImageMetadata) {
-		    exif = ((JpegImageMetadata) metadata).getExif();
-		} else if (metadata instanceof TiffImageMetadata) {
-		    exif = (TiffImageMetadata) metadata;
-		}
-		if (exif != null) {
-		    exif.getAllFields().forEach((final TiffField field) -> {
-			try {
-			    final String name = field.getTagName();
-			    final int id = field.getTag();
-			    final FieldType type = field.getFieldType();
-			    final JSONObject obj = new JSONObject();
-			    obj.put(METADATA_ID, id);
-			    obj.put(METADATA_NAME, name);
-			    if (type instanceof FieldTypeByte) {
-				obj.put(METADATA_TYPE, METADATA_TYPE_BYTE_ARRAY);
-				obj.put(METADATA_VALUE, field.getByteArrayValue());
-			    } else if (type instanceof FieldTypeShort || type instanceof FieldTypeLong || type instanceof FieldTypeShort) {
-				if (field.getCount() == 1) {
-				    obj.put(METADATA_TYPE, METADATA_TYPE_INTEGER);
-				    obj.put(METADATA_VALUE, field.getIntValue());
-				} else {
-				    obj.put(METADATA_TYPE, METADATA_TYPE_INTEGER_ARRAY);
-				    obj.put(METADATA_VALUE, field.getIntArrayValue());
-				}
-			    } else if (type instanceof FieldTypeFloat || type instanceof FieldTypeDouble || type instanceof FieldTypeRational) {
-				if (field.getCount() == 1) {
-				    obj.put(METADATA_TYPE, METADATA_TYPE_REAL);
-				    obj.put(METADATA_VALUE, field.getDoubleValue());
-				} else {
-				    obj.put(METADATA_TYPE, METADATA_TYPE_REAL_ARRAY);
-				    obj.put(METADATA_VALUE, field.getDoubleArrayValue());
-				}
-			    } else if (type instanceof FieldTypeAscii) {
-				obj.put(METADATA_TYPE, METADATA_TYPE_STRING);
-				obj.put(METADATA_VALUE, field.getStringValue());
-			    } else {
-				obj.put(METADATA_TYPE, METADATA_TYPE_UNKNOWN);
-				obj.put(METADATA_VALUE, field.getValue());
-			    }
-			    metadataArray.put(obj);
-			} catch (final Exception ex) {
-			    ex.printStackTrace(System.out);
-			}
-		    });
-		} else {
-		    metadata.getItems().forEach((final ImageMetadataItem item) -> {
-			final String info = item.toString();
-			final String[] infoSplit = info.split(":");
-			final JSONObject obj = new JSONObject();
-			if (infoSplit.length > 1) {
-			    final String name = infoSplit[0].trim();
-			    final String value = info.substring(infoSplit[0].length() + 1).trim();
-			    obj.put(METADATA_ID, -1);
-			    obj.put(METADATA_NAME, name);
-			    obj.put(METADATA_VALUE, value);
-			    obj.put(METADATA_TYPE, METADATA_TYPE_STRING);
-			} else {
-			    obj.put(METADATA_ID, -1);
-			    obj.put(METADATA_NAME, METADATA_NAME_UNKNOWN);
-			    obj.put(METADATA_VALUE, info);
-			    obj.put(METADATA_TYPE, METADATA_TYPE_STRING);
-			}
-			metadataArray.put(obj);
-		    });
-		}
-	    }
-	    result.put(BASIC, basicInfo);
-	    if (METADATA.length() > 0) {
-		result.put(METADATA, metadataArray);
+		metadata.getItems().forEach((final ImageMetadataItem item) -> {
+		    final String info = item.toString();
+		    final String[] infoSplit = info.split(":");
+		    final JSONObject obj = new JSONObject();
+		    if (infoSplit.length > 1) {
+			final String name = infoSplit[0].trim();
+			final String value = info.substring(infoSplit[0].length() + 1).trim();
+			obj.put(METADATA_ID, -1);
+			obj.put(METADATA_NAME, name);
+			obj.put(METADATA_VALUE, value);
+			obj.put(METADATA_TYPE, METADATA_TYPE_STRING);
+		    } else {
+			obj.put(METADATA_ID, -1);
+			obj.put(METADATA_NAME, METADATA_NAME_UNKNOWN);
+			obj.put(METADATA_VALUE, info);
+			obj.put(METADATA_TYPE, METADATA_TYPE_STRING);
+		    }
+		    metadataArray.put(obj);
+		});
 	    }
-	    return result;
-	} catch (final Exception ex) {
-	    ex.printStackTrace(System.out);
-	    return null;
 	}
+	result.put(BASIC, basicInfo);
+	if (METADATA.length() > 0) {
+	    result.put(METADATA, metadataArray);
+	}
+	return result;
+    }
+
+    /**
+     * 解析WebP圖片的Metadata。Commons Imaging無法讀取WebP，因此圖片資訊直接從RIFF的區塊取得。
+     *
+     * @param source 傳入來源圖片
+     * @param buffer 傳入來源圖片的資料
+     * @return 傳回圖片的Metadata
+     * @throws IOException 資料不正確時拋出
+     */
+    private static JSONObject parseWebPMetadata(final SourceImage source, final ByteBuffer buffer) throws IOException {
+	final WebPDecoder.Info info = WebPDecoder.readInfo(buffer);
+	final JSONObject result = new JSONObject();
+	final JSONObject basicInfo = new JSONObject();
+	basicInfo.put(BITS_PER_PIXEL, info.alpha ? 32 : 24);
+	basicInfo.put(COLOR_TYPE, COLOR_TYPE_RGB);
+	basicInfo.put(COMPRESSION_ALGORITHM, info.lossless ? COMPRESSION_ALGORITHM_VP8L : COMPRESSION_ALGORITHM_VP8);
+	basicInfo.put(FORMAT, FORMAT_WEBP);
+	basicInfo.put(WIDTH, info.width);
+	basicInfo.put(HEIGHT, info.height);
+	basicInfo.put(MIME_TYPE, "image/webp");
+	if (info.frames > 0) {
+	    basicInfo.put(NUMBER_OF_IMAGES, info.frames);
+	}
+	final ImageExif exif = source.readExif();
+	result.put(BASIC, basicInfo);
+	result.put(METADATA, exif != null ? exif.toJSONArray() : new JSONArray());
+	return result;
     }
 
     // -----建構子-----
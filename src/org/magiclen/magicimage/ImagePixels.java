@@ -0,0 +1,127 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * 逐列存取BufferedImage物件的ARGB像素。若圖片是緊密排列的TYPE_INT_RGB或TYPE_INT_ARGB，則直接存取DataBuffer的陣列，否則使用getRGB和setRGB。
+ *
+ * @author Magic Len
+ */
+final class ImagePixels {
+
+    // -----類別方法-----
+    /**
+     * 取得可以直接存取的像素陣列。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @return 傳回像素陣列，若無法直接存取，傳回null
+     */
+    static int[] getDirectData(final BufferedImage bi) {
+	final int type = bi.getType();
+	if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) {
+	    return null;
+	}
+	final WritableRaster raster = bi.getRaster();
+	if (!(raster.getDataBuffer() instanceof DataBufferInt) || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+	    return null;
+	}
+	if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0 || ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() != bi.getWidth()) {
+	    return null; // 剪裁出來的圖片
+	}
+	final DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+	if (dataBuffer.getNumBanks() != 1 || dataBuffer.getOffset() != 0) {
+	    return null;
+	}
+	return dataBuffer.getData();
+    }
+
+    /**
+     * 讀取一列的ARGB像素。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param data 傳入可以直接存取的像素陣列，若為null，則使用getRGB
+     * @param y 傳入列的位置
+     * @param row 傳入存放像素的陣列
+     */
+    static void getRow(final BufferedImage bi, final int[] data, final int y, final int[] row) {
+	final int width = bi.getWidth();
+	if (data != null) {
+	    System.arraycopy(data, y * width, row, 0, width);
+	    if (bi.getType() == BufferedImage.TYPE_INT_RGB) {
+		for (int x = 0; x < width; ++x) {
+		    row[x] |= 0xFF000000;
+		}
+	    }
+	} else {
+	    bi.getRGB(0, y, width, 1, row, 0, width);
+	}
+    }
+
+    /**
+     * 寫入一列的ARGB像素。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param data 傳入可以直接存取的像素陣列，若為null，則使用setRGB
+     * @param y 傳入列的位置
+     * @param row 傳入像素
+     */
+    static void setRow(final BufferedImage bi, final int[] data, final int y, final int[] row) {
+	final int width = bi.getWidth();
+	if (data != null) {
+	    System.arraycopy(row, 0, data, y * width, width);
+	} else {
+	    bi.setRGB(0, y, width, 1, row, 0, width);
+	}
+    }
+
+    /**
+     * 建立用來存放逐像素處理結果的BufferedImage物件。索引色、灰階等無法完整保存RGB值的類型，會改用TYPE_INT_ARGB或TYPE_INT_RGB。
+     *
+     * @param bi 傳入來源的BufferedImage物件
+     * @return 傳回和來源尺寸相同的新的BufferedImage物件
+     */
+    static BufferedImage createDestination(final BufferedImage bi) {
+	final int width = bi.getWidth(), height = bi.getHeight();
+	final int type = bi.getType();
+	switch (type) {
+	    case BufferedImage.TYPE_INT_RGB:
+	    case BufferedImage.TYPE_INT_ARGB:
+	    case BufferedImage.TYPE_INT_ARGB_PRE:
+	    case BufferedImage.TYPE_INT_BGR:
+	    case BufferedImage.TYPE_3BYTE_BGR:
+	    case BufferedImage.TYPE_4BYTE_ABGR:
+	    case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+		return new BufferedImage(width, height, type);
+	    default:
+		return new BufferedImage(width, height, bi.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+	}
+    }
+
+    // -----建構子-----
+    /**
+     * 私有的建構子，將無法被實體化。
+     */
+    private ImagePixels() {
+
+    }
+}
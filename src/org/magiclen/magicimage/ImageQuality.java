@@ -0,0 +1,248 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * <p>
+ * 圖片的感知品質評估。</p>
+ *
+ * <p>
+ * 使用SSIM(結構相似性)比較兩張圖片的亮度平面，結果介於-1~1之間，1表示完全相同。視窗大小為8x8，每次移動4個像素，逐行累計平均值、變異數和共變異數，較大的圖片會被切成數個列的區段平行計算。亮度平面可以先縮小成整數倍，以降低計算量，也較接近在一般觀看距離下的感受。</p>
+ *
+ * @author Magic Len
+ * @see ImageExport
+ */
+public final class ImageQuality {
+
+    // -----類別常數-----
+    /**
+     * SSIM視窗的大小。
+     */
+    private static final int WINDOW = 8;
+    /**
+     * SSIM視窗每次移動的距離。
+     */
+    private static final int STEP = 4;
+    /**
+     * SSIM避免除以零的常數C1，(0.01 * 255)^2。
+     */
+    private static final double C1 = 6.5025;
+    /**
+     * SSIM避免除以零的常數C2，(0.03 * 255)^2。
+     */
+    private static final double C2 = 58.5225;
+    /**
+     * 像素數量小於此值的圖片不進行平行計算。
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    // -----類別方法-----
+    /**
+     * 計算兩張圖片在原始解析度下的SSIM。
+     *
+     * @param bi1 傳入第一張圖片
+     * @param bi2 傳入第二張圖片，尺寸必須和第一張圖片相同
+     * @return 傳回SSIM，若失敗，則傳回NaN
+     */
+    public static double ssim(final BufferedImage bi1, final BufferedImage bi2) {
+	return ssim(bi1, bi2, 1);
+    }
+
+    /**
+     * 計算兩張圖片的SSIM。亮度平面會先以區塊平均的方式縮小成原本的1/factor。
+     *
+     * @param bi1 傳入第一張圖片
+     * @param bi2 傳入第二張圖片，尺寸必須和第一張圖片相同
+     * @param factor 傳入縮小的倍數，若小於1，則使用1
+     * @return 傳回SSIM，若失敗，則傳回NaN
+     */
+    public static double ssim(final BufferedImage bi1, final BufferedImage bi2, final int factor) {
+	if (bi1 == null || bi2 == null || bi1.getWidth() != bi2.getWidth() || bi1.getHeight() != bi2.getHeight()) {
+	    return Double.NaN;
+	}
+	final LumaPlane plane1 = LumaPlane.of(bi1, factor);
+	final LumaPlane plane2 = LumaPlane.of(bi2, factor);
+	return plane1.ssim(plane2);
+    }
+
+    /**
+     * 取得適合用來比較圖片的縮小倍數，讓亮度平面的短邊大約不小於512個像素，接近一般螢幕觀看時的解析度。
+     *
+     * @param width 傳入圖片的寬度
+     * @param height 傳入圖片的高度
+     * @return 傳回縮小的倍數
+     */
+    public static int suggestFactor(final int width, final int height) {
+	return Math.max(1, Math.min(width, height) / 512);
+    }
+
+    /**
+     * 取得區段的數量。
+     *
+     * @param pixels 傳入像素數量
+     * @param rows 傳入列的數量
+     * @return 傳回區段的數量
+     */
+    private static int bands(final long pixels, final int rows) {
+	return pixels < PARALLEL_THRESHOLD ? 1 : Math.max(1, Math.min(rows, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    // -----建構子-----
+    /**
+     * 私有的建構子，將無法被實體化。
+     */
+    private ImageQuality() {
+
+    }
+
+    // -----內部類別-----
+    /**
+     * 圖片的亮度平面。同一張參考圖片的亮度平面可以重複使用，和多張圖片比較時就不必重新計算。
+     */
+    static final class LumaPlane {
+
+	// -----類別方法-----
+	/**
+	 * 計算圖片縮小後的亮度平面。亮度使用BT.601的係數，縮小時使用區塊平均，無法整除的邊緣會被捨棄。
+	 *
+	 * @param bi 傳入BufferedImage物件
+	 * @param factor 傳入縮小的倍數，若小於1，則使用1
+	 * @return 傳回亮度平面
+	 */
+	static LumaPlane of(final BufferedImage bi, final int factor) {
+	    final int f = Math.max(1, Math.min(factor, Math.min(bi.getWidth(), bi.getHeight())));
+	    final int width = bi.getWidth() / f, height = bi.getHeight() / f, sourceWidth = bi.getWidth();
+	    final float[] luma = new float[width * height];
+	    final int[] data = ImagePixels.getDirectData(bi);
+	    final float scale = 1f / ((float) f * f * 65536);
+	    final int bands = bands((long) sourceWidth * height * f, height);
+	    final IntStream stream = IntStream.range(0, bands);
+	    (bands > 1 ? stream.parallel() : stream).forEach(band -> {
+		final int[] row = new int[sourceWidth];
+		final long[] sums = new long[width];
+		final int startY = (int) ((long) height * band / bands), endY = (int) ((long) height * (band + 1) / bands);
+		for (int y = startY; y < endY; ++y) {
+		    Arrays.fill(sums, 0);
+		    for (int dy = 0; dy < f; ++dy) {
+			ImagePixels.getRow(bi, data, y * f + dy, row);
+			for (int x = 0, sx = 0; x < width; ++x) {
+			    long sum = 0;
+			    for (int dx = 0; dx < f; ++dx, ++sx) {
+				final int argb = row[sx];
+				sum += 19595 * ((argb >> 16) & 0xFF) + 38470 * ((argb >> 8) & 0xFF) + 7471 * (argb & 0xFF);
+			    }
+			    sums[x] += sum;
+			}
+		    }
+		    final int offset = y * width;
+		    for (int x = 0; x < width; ++x) {
+			luma[offset + x] = sums[x] * scale;
+		    }
+		}
+	    });
+	    return new LumaPlane(luma, width, height);
+	}
+
+	// -----物件常數-----
+	/**
+	 * 亮度值(0~255)。
+	 */
+	private final float[] luma;
+	/**
+	 * 寬度。
+	 */
+	final int width;
+	/**
+	 * 高度。
+	 */
+	final int height;
+
+	// -----建構子-----
+	/**
+	 * 建構子。
+	 *
+	 * @param luma 傳入亮度值
+	 * @param width 傳入寬度
+	 * @param height 傳入高度
+	 */
+	private LumaPlane(final float[] luma, final int width, final int height) {
+	    this.luma = luma;
+	    this.width = width;
+	    this.height = height;
+	}
+
+	// -----物件方法-----
+	/**
+	 * 計算和另一個亮度平面的SSIM，也就是所有視窗的SSIM平均值。
+	 *
+	 * @param other 傳入尺寸相同的亮度平面
+	 * @return 傳回SSIM，若尺寸不同，則傳回NaN
+	 */
+	double ssim(final LumaPlane other) {
+	    if (other.width != width || other.height != height) {
+		return Double.NaN;
+	    }
+	    final float[] a = luma, b = other.luma;
+	    final int windowWidth = Math.min(WINDOW, width), windowHeight = Math.min(WINDOW, height);
+	    final int columns = (width - windowWidth) / STEP + 1, rows = (height - windowHeight) / STEP + 1;
+	    final double n = windowWidth * windowHeight;
+	    final int bands = bands((long) width * height, rows);
+	    final IntStream stream = IntStream.range(0, bands);
+	    final double total = (bands > 1 ? stream.parallel() : stream).mapToDouble(band -> {
+		// 每個視窗列使用每一行的累計值，相鄰視窗只需要合併STEP行
+		final double[] columnSums = new double[width * 5];
+		final int startRow = (int) ((long) rows * band / bands), endRow = (int) ((long) rows * (band + 1) / bands);
+		double sum = 0;
+		for (int r = startRow; r < endRow; ++r) {
+		    Arrays.fill(columnSums, 0);
+		    final int top = r * STEP;
+		    for (int y = top; y < top + windowHeight; ++y) {
+			final int offset = y * width;
+			for (int x = 0, i = 0; x < width; ++x, i += 5) {
+			    final double pa = a[offset + x], pb = b[offset + x];
+			    columnSums[i] += pa;
+			    columnSums[i + 1] += pb;
+			    columnSums[i + 2] += pa * pa;
+			    columnSums[i + 3] += pb * pb;
+			    columnSums[i + 4] += pa * pb;
+			}
+		    }
+		    for (int c = 0; c < columns; ++c) {
+			double sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+			for (int x = c * STEP, i = x * 5, end = (x + windowWidth) * 5; i < end; i += 5) {
+			    sa += columnSums[i];
+			    sb += columnSums[i + 1];
+			    saa += columnSums[i + 2];
+			    sbb += columnSums[i + 3];
+			    sab += columnSums[i + 4];
+			}
+			final double ma = sa / n, mb = sb / n;
+			final double va = saa / n - ma * ma, vb = sbb / n - mb * mb, cov = sab / n - ma * mb;
+			sum += ((2 * ma * mb + C1) * (2 * cov + C2)) / ((ma * ma + mb * mb + C1) * (va + vb + C2));
+		    }
+		}
+		return sum;
+	    }).sum();
+	    return total / ((double) columns * rows);
+	}
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * 圖片色盤量化。</p>
+ *
+ * <p>
+ * 使用中位切割法(Median Cut)從每個色版5位元的色彩直方圖中找出色盤，並可以使用Floyd–Steinberg演算法進行抖色，產生使用IndexColorModel的TYPE_BYTE_INDEXED圖片，可以直接輸出成GIF或是8位元的PNG。直方圖與色彩查找快取的大小固定，記憶體用量不會隨著圖片尺寸增加。</p>
+ *
+ * @author Magic Len
+ * @see ImageExport
+ * @see PNGEncoder
+ */
+public final class ImageQuantizer {
+
+    // -----類別常數-----
+    /**
+     * 直方圖每個色版的位元數。
+     */
+    private static final int HISTOGRAM_BITS = 5;
+    /**
+     * 直方圖每個色版的格數。
+     */
+    private static final int HISTOGRAM_SIDE = 1 << HISTOGRAM_BITS;
+    /**
+     * 透明值小於此值的像素會被當作完全透明。
+     */
+    private static final int ALPHA_THRESHOLD = 128;
+
+    // -----類別方法-----
+    /**
+     * 將BufferedImage物件量化成256色，並進行抖色。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @return 傳回量化之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage quantize(final BufferedImage bi) {
+	return quantize(bi, 256, true);
+    }
+
+    /**
+     * 將BufferedImage物件量化成指定的顏色數量。透明值小於128的像素會使用色盤中一個獨立的透明顏色，其餘的像素會被視為不透明。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param maxColors 傳入色盤的最大顏色數量(2~256)，若圖片有透明的像素，透明顏色也算在內
+     * @param dither 傳入是否使用Floyd–Steinberg演算法進行抖色
+     * @return 傳回量化之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage quantize(final BufferedImage bi, final int maxColors, final boolean dither) {
+	if (bi == null || maxColors < 2 || maxColors > 256) {
+	    return null;
+	}
+	final int width = bi.getWidth(), height = bi.getHeight();
+	final int[] data = ImagePixels.getDirectData(bi);
+	final int[] row = new int[width];
+
+	// 建立色彩直方圖，並記錄每一格實際顏色的總和，用來計算色盤顏色
+	final int binCount = HISTOGRAM_SIDE * HISTOGRAM_SIDE * HISTOGRAM_SIDE;
+	final int[] counts = new int[binCount];
+	final long[] sums = new long[binCount * 3];
+	boolean hasTransparency = false;
+	for (int y = 0; y < height; ++y) {
+	    ImagePixels.getRow(bi, data, y, row);
+	    for (int x = 0; x < width; ++x) {
+		final int argb = row[x];
+		if ((argb >>> 24) < ALPHA_THRESHOLD) {
+		    hasTransparency = true;
+		    continue;
+		}
+		final int r = (argb >> 16) & 0xFF, g = (argb >> 8) & 0xFF, b = argb & 0xFF;
+		final int bin = binIndex(r, g, b);
+		++counts[bin];
+		sums[bin * 3] += r;
+		sums[bin * 3 + 1] += g;
+		sums[bin * 3 + 2] += b;
+	    }
+	}
+
+	final int colorLimit = hasTransparency ? maxColors - 1 : maxColors;
+	final ArrayList<Box> boxes = medianCut(counts, colorLimit);
+	final int paletteSize = boxes.size() + (hasTransparency ? 1 : 0);
+	final byte[] paletteR = new byte[Math.max(paletteSize, 2)], paletteG = new byte[paletteR.length], paletteB = new byte[paletteR.length];
+	final int[] palette = new int[boxes.size()];
+	for (int i = 0; i < boxes.size(); ++i) {
+	    final Box box = boxes.get(i);
+	    long count = 0, sumR = 0, sumG = 0, sumB = 0;
+	    for (int r = box.r0; r <= box.r1; ++r) {
+		for (int g = box.g0; g <= box.g1; ++g) {
+		    for (int b = box.b0; b <= box.b1; ++b) {
+			final int bin = (r << (HISTOGRAM_BITS * 2)) | (g << HISTOGRAM_BITS) | b;
+			count += counts[bin];
+			sumR += sums[bin * 3];
+			sumG += sums[bin * 3 + 1];
+			sumB += sums[bin * 3 + 2];
+		    }
+		}
+	    }
+	    final int r = (int) ((sumR + count / 2) / count), g = (int) ((sumG + count / 2) / count), b = (int) ((sumB + count / 2) / count);
+	    palette[i] = (r << 16) | (g << 8) | b;
+	    paletteR[i] = (byte) r;
+	    paletteG[i] = (byte) g;
+	    paletteB[i] = (byte) b;
+	}
+	final int transparentIndex = hasTransparency ? boxes.size() : -1;
+	final IndexColorModel colorModel = new IndexColorModel(8, paletteR.length, paletteR, paletteG, paletteB, transparentIndex);
+	final BufferedImage dest = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+	final WritableRaster raster = dest.getRaster();
+
+	// 色彩查找快取，以5位元的顏色為鍵值，記錄最接近的色盤索引
+	final short[] cache = new short[binCount];
+	Arrays.fill(cache, (short) -1);
+	final int[] indices = new int[width];
+	if (dither) {
+	    // 目前這列和下一列的誤差，各多留兩格避免邊界判斷
+	    int[] currentError = new int[(width + 2) * 3], nextError = new int[(width + 2) * 3];
+	    for (int y = 0; y < height; ++y) {
+		ImagePixels.getRow(bi, data, y, row);
+		for (int x = 0; x < width; ++x) {
+		    final int argb = row[x];
+		    if ((argb >>> 24) < ALPHA_THRESHOLD) {
+			indices[x] = transparentIndex;
+			continue;
+		    }
+		    final int e = (x + 1) * 3;
+		    final int r = clamp(((argb >> 16) & 0xFF) + (currentError[e] >> 4)), g = clamp(((argb >> 8) & 0xFF) + (currentError[e + 1] >> 4)), b = clamp((argb & 0xFF) + (currentError[e + 2] >> 4));
+		    final int index = lookup(cache, palette, r, g, b);
+		    indices[x] = index;
+		    final int color = palette[index];
+		    final int er = r - ((color >> 16) & 0xFF), eg = g - ((color >> 8) & 0xFF), eb = b - (color & 0xFF);
+		    // 誤差以16倍儲存，依照7/16、3/16、5/16、1/16分配
+		    currentError[e + 3] += er * 7;
+		    currentError[e + 4] += eg * 7;
+		    currentError[e + 5] += eb * 7;
+		    nextError[e - 3] += er * 3;
+		    nextError[e - 2] += eg * 3;
+		    nextError[e - 1] += eb * 3;
+		    nextError[e] += er * 5;
+		    nextError[e + 1] += eg * 5;
+		    nextError[e + 2] += eb * 5;
+		    nextError[e + 3] += er;
+		    nextError[e + 4] += eg;
+		    nextError[e + 5] += eb;
+		}
+		raster.setSamples(0, y, width, 1, 0, indices);
+		final int[] temp = currentError;
+		currentError = nextError;
+		nextError = temp;
+		Arrays.fill(nextError, 0);
+	    }
+	} else {
+	    for (int y = 0; y < height; ++y) {
+		ImagePixels.getRow(bi, data, y, row);
+		for (int x = 0; x < width; ++x) {
+		    final int argb = row[x];
+		    if ((argb >>> 24) < ALPHA_THRESHOLD) {
+			indices[x] = transparentIndex;
+		    } else {
+			indices[x] = lookup(cache, palette, (argb >> 16) & 0xFF, (argb >> 8) & 0xFF, argb & 0xFF);
+		    }
+		}
+		raster.setSamples(0, y, width, 1, 0, indices);
+	    }
+	}
+	return dest;
+    }
+
+    /**
+     * 使用中位切割法切割色彩直方圖。
+     *
+     * @param counts 傳入色彩直方圖
+     * @param maxBoxes 傳入最多的區塊數量
+     * @return 傳回切割後的區塊，每個區塊都至少有一個像素
+     */
+    private static ArrayList<Box> medianCut(final int[] counts, final int maxBoxes) {
+	final ArrayList<Box> boxes = new ArrayList<>(maxBoxes);
+	final Box first = new Box(0, HISTOGRAM_SIDE - 1, 0, HISTOGRAM_SIDE - 1, 0, HISTOGRAM_SIDE - 1);
+	first.shrink(counts);
+	if (first.count > 0) {
+	    boxes.add(first);
+	}
+	while (boxes.size() < maxBoxes) {
+	    // 選擇像素數量乘上最長邊最大的區塊切割
+	    Box target = null;
+	    long bestScore = 0;
+	    for (final Box box : boxes) {
+		final int longest = Math.max(box.r1 - box.r0, Math.max(box.g1 - box.g0, box.b1 - box.b0));
+		if (longest > 0) {
+		    final long score = box.count * (longest + 1);
+		    if (score > bestScore) {
+			bestScore = score;
+			target = box;
+		    }
+		}
+	    }
+	    if (target == null) {
+		break;
+	    }
+	    boxes.remove(target);
+	    final Box[] halves = target.split(counts);
+	    boxes.add(halves[0]);
+	    boxes.add(halves[1]);
+	}
+	return boxes;
+    }
+
+    /**
+     * 從快取中找出最接近的色盤索引，若快取未命中，則搜尋整個色盤並放入快取。
+     *
+     * @param cache 傳入色彩查找快取
+     * @param palette 傳入色盤
+     * @param r 傳入紅色
+     * @param g 傳入綠色
+     * @param b 傳入藍色
+     * @return 傳回色盤索引
+     */
+    private static int lookup(final short[] cache, final int[] palette, final int r, final int g, final int b) {
+	final int bin = binIndex(r, g, b);
+	final int cached = cache[bin];
+	if (cached >= 0) {
+	    return cached;
+	}
+	// 使用格子的中心點搜尋，讓快取的結果和格子內的顏色無關
+	final int shift = 8 - HISTOGRAM_BITS, half = 1 << (shift - 1);
+	final int cr = ((r >> shift) << shift) | half, cg = ((g >> shift) << shift) | half, cb = ((b >> shift) << shift) | half;
+	int best = 0, bestDistance = Integer.MAX_VALUE;
+	for (int i = 0; i < palette.length; ++i) {
+	    final int color = palette[i];
+	    final int dr = cr - ((color >> 16) & 0xFF), dg = cg - ((color >> 8) & 0xFF), db = cb - (color & 0xFF);
+	    final int distance = dr * dr * 2 + dg * dg * 4 + db * db * 3;
+	    if (distance < bestDistance) {
+		bestDistance = distance;
+		best = i;
+	    }
+	}
+	cache[bin] = (short) best;
+	return best;
+    }
+
+    /**
+     * 計算顏色在直方圖中的位置。
+     *
+     * @param r 傳入紅色
+     * @param g 傳入綠色
+     * @param b 傳入藍色
+     * @return 傳回直方圖中的位置
+     */
+    private static int binIndex(final int r, final int g, final int b) {
+	final int shift = 8 - HISTOGRAM_BITS;
+	return ((r >> shift) << (HISTOGRAM_BITS * 2)) | ((g >> shift) << HISTOGRAM_BITS) | (b >> shift);
+    }
+
+    /**
+     * 將數值限制在0~255之間。
+     *
+     * @param value 傳入數值
+     * @return 傳回0~255的顏色值
+     */
+    private static int clamp(final int value) {
+	return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    // -----內部類別-----
+    /**
+     * 直方圖中的一個長方體區塊。
+     */
+    private static final class Box {
+
+	/**
+	 * 各色版的範圍(包含)。
+	 */
+	private int r0, r1, g0, g1, b0, b1;
+	/**
+	 * 區塊內的像素數量。
+	 */
+	private long count;
+
+	Box(final int r0, final int r1, final int g0, final int g1, final int b0, final int b1) {
+	    this.r0 = r0;
+	    this.r1 = r1;
+	    this.g0 = g0;
+	    this.g1 = g1;
+	    this.b0 = b0;
+	    this.b1 = b1;
+	}
+
+	/**
+	 * 將區塊縮小到剛好包含所有的像素，並計算像素數量。
+	 *
+	 * @param counts 傳入色彩直方圖
+	 */
+	void shrink(final int[] counts) {
+	    int minR = r1, maxR = r0, minG = g1, maxG = g0, minB = b1, maxB = b0;
+	    long total = 0;
+	    for (int r = r0; r <= r1; ++r) {
+		for (int g = g0; g <= g1; ++g) {
+		    for (int b = b0; b <= b1; ++b) {
+			final int count = counts[(r << (HISTOGRAM_BITS * 2)) | (g << HISTOGRAM_BITS) | b];
+			if (count > 0) {
+			    total += count;
+			    minR = Math.min(minR, r);
+			    maxR = Math.max(maxR, r);
+			    minG = Math.min(minG, g);
+			    maxG = Math.max(maxG, g);
+			    minB = Math.min(minB, b);
+			    maxB = Math.max(maxB, b);
+			}
+		    }
+		}
+	    }
+	    count = total;
+	    if (total > 0) {
+		r0 = minR;
+		r1 = maxR;
+		g0 = minG;
+		g1 = maxG;
+		b0 = minB;
+		b1 = maxB;
+	    }
+	}
+
+	/**
+	 * 沿著最長邊，在像素數量的中位數切割區塊。
+	 *
+	 * @param counts 傳入色彩直方圖
+	 * @return 傳回切割後的兩個區塊
+	 */
+	Box[] split(final int[] counts) {
+	    final int lengthR = r1 - r0, lengthG = g1 - g0, lengthB = b1 - b0;
+	    final int axis = lengthR >= lengthG && lengthR >= lengthB ? 0 : (lengthG >= lengthB ? 1 : 2);
+	    final int start = axis == 0 ? r0 : (axis == 1 ? g0 : b0), end = axis == 0 ? r1 : (axis == 1 ? g1 : b1);
+	    // 計算每一層的像素數量
+	    final long[] slices = new long[end - start + 1];
+	    for (int r = r0; r <= r1; ++r) {
+		for (int g = g0; g <= g1; ++g) {
+		    for (int b = b0; b <= b1; ++b) {
+			final int count = counts[(r << (HISTOGRAM_BITS * 2)) | (g << HISTOGRAM_BITS) | b];
+			slices[(axis == 0 ? r : (axis == 1 ? g : b)) - start] += count;
+		    }
+		}
+	    }
+	    long accumulated = 0;
+	    int cut = start;
+	    for (int i = 0; i < slices.length - 1; ++i) {
+		accumulated += slices[i];
+		cut = start + i;
+		if (accumulated * 2 >= count) {
+		    break;
+		}
+	    }
+	    final Box low = new Box(r0, axis == 0 ? cut : r1, g0, axis == 1 ? cut : g1, b0, axis == 2 ? cut : b1);
+	    final Box high = new Box(axis == 0 ? cut + 1 : r0, r1, axis == 1 ? cut + 1 : g0, g1, axis == 2 ? cut + 1 : b0, b1);
+	    low.shrink(counts);
+	    high.shrink(counts);
+	    return new Box[]{low, high};
+	}
+    }
+
+    // -----建構子-----
+    /**
+     * 私有的建構子，將無法被實體化。
+     */
+    private ImageQuantizer() {
+
+    }
+}
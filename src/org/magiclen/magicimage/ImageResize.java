@@ -18,7 +18,14 @@
 package org.magiclen.magicimage;
 
 import com.mortennobel.imagescaling.AdvancedResizeOp;
+import com.mortennobel.imagescaling.ResampleFilter;
+import com.mortennobel.imagescaling.ResampleFilters;
 import com.mortennobel.imagescaling.ResampleOp;
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 
 /**
@@ -29,6 +36,120 @@ import java.awt.image.BufferedImage;
  */
 public final class ImageResize {
 
+    // -----類別列舉-----
+    /**
+     * 剪裁的方式。
+     */
+    public static enum CropMode {
+        /**
+         * 和原圖共用像素資料，不會複製，適合剪裁後立即處理的情況。只要剪裁出來的圖片還存在，原圖的像素資料就不會被釋放。
+         */
+        SHARED,
+        /**
+         * 將剪裁區域的像素資料複製成新的緊密Raster，不會佔住原圖的記憶體，適合需要長時間保存的情況。
+         */
+        COMPACT
+    }
+
+    /**
+     * 縮放的品質。品質愈低速度愈快。
+     */
+    public static enum Quality {
+        /**
+         * 最近鄰取樣，速度最快，縮圖時會產生明顯的鋸齒。
+         */
+        NEAREST(null),
+        /**
+         * 雙線性(三角形)濾波。
+         */
+        BILINEAR(ResampleFilters.getTriangleFilter()),
+        /**
+         * 方框(面積平均)濾波，適合大幅度縮圖。
+         */
+        BOX(ResampleFilters.getBoxFilter()),
+        /**
+         * Mitchell濾波，品質與速度的折衷。
+         */
+        MITCHELL(ResampleFilters.getMitchellFilter()),
+        /**
+         * Lanczos3濾波，品質最好，也是預設的品質。
+         */
+        LANCZOS3(ResampleFilters.getLanczos3Filter());
+
+        /**
+         * ResampleOp使用的濾波器。
+         */
+        private final ResampleFilter filter;
+
+        Quality(final ResampleFilter filter) {
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * 填滿縮放時，決定要保留原圖哪個部份的方式。
+     */
+    public static enum Gravity {
+        /**
+         * 保留中間。
+         */
+        CENTER(0.5f, 0.5f),
+        /**
+         * 保留上方。
+         */
+        NORTH(0.5f, 0),
+        /**
+         * 保留下方。
+         */
+        SOUTH(0.5f, 1),
+        /**
+         * 保留右方。
+         */
+        EAST(1, 0.5f),
+        /**
+         * 保留左方。
+         */
+        WEST(0, 0.5f),
+        /**
+         * 保留右上方。
+         */
+        NORTH_EAST(1, 0),
+        /**
+         * 保留左上方。
+         */
+        NORTH_WEST(0, 0),
+        /**
+         * 保留右下方。
+         */
+        SOUTH_EAST(1, 1),
+        /**
+         * 保留左下方。
+         */
+        SOUTH_WEST(0, 1),
+        /**
+         * 保留亮度分布最複雜(熵最大)的部份。
+         */
+        ENTROPY(0.5f, 0.5f),
+        /**
+         * 保留邊緣最多的部份。
+         */
+        EDGE(0.5f, 0.5f);
+
+        /**
+         * 水平方向的定位比例(0~1)。
+         */
+        private final float x;
+        /**
+         * 垂直方向的定位比例(0~1)。
+         */
+        private final float y;
+
+        Gravity(final float x, final float y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
     // -----類別方法-----
     /**
      * 縮小傳入的BufferedImage物件。
@@ -88,6 +209,43 @@ public final class ImageResize {
         }
     }
 
+    /**
+     * 縮小傳入的BufferedImage物件。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param maxWidth 傳入最大的寬度
+     * @param maxHeight 傳入最大的高度
+     * @param sharpen 傳入JPEG的銳化程度(0~10)，愈大愈銳利，建議值為0~1.5；若小於0，則自動計算銳化程度
+     * @param quality 傳入縮放的品質
+     * @param progressive 傳入大幅度縮圖時，是否先快速地以面積平均將圖片逐次縮小一半，再使用指定的品質縮放
+     * @return 傳回未縮小或是縮小之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage shrink(final BufferedImage bi, int maxWidth, int maxHeight, final float sharpen, final Quality quality, final boolean progressive) {
+        if (bi == null || (maxWidth <= 0 && maxHeight <= 0) || quality == null) {
+            return null;
+        }
+
+        final int originalWidth = bi.getWidth();
+        final int originalHeight = bi.getHeight();
+
+        if (maxWidth <= 0) {
+            maxWidth = originalWidth;
+        }
+        if (maxHeight <= 0) {
+            maxHeight = originalHeight;
+        }
+
+        final float wRatio = maxWidth * 1.0f / originalWidth;
+        final float hRatio = maxHeight * 1.0f / originalHeight;
+        if (wRatio < hRatio && originalWidth > maxWidth) {
+            return resize(bi, originalWidth, originalHeight, maxWidth, -1, sharpen, true, quality, progressive);
+        } else if (wRatio > hRatio && originalHeight > maxHeight) {
+            return resize(bi, originalWidth, originalHeight, -1, maxHeight, sharpen, true, quality, progressive);
+        } else {
+            return bi;
+        }
+    }
+
     /**
      * 重新縮放傳入的BufferedImage物件。
      *
@@ -137,6 +295,28 @@ public final class ImageResize {
      * 重新縮放傳入的BufferedImage物件。
      *
      * @param bi 傳入BufferedImage物件
+     * @param width 傳入要修改成的寬度，若小於等於0，則依照比例自動計算
+     * @param height 傳入要修改成的高度，若小於等於0，則依照比例自動計算
+     * @param sharpen 傳入JPEG的銳化程度(0~10)，愈大愈銳利，建議值為0~1.5；若小於0，則自動計算銳化程度
+     * @param sharpenOnlyShrink 傳入是否只在縮圖時使用銳化
+     * @param quality 傳入縮放的品質
+     * @param progressive 傳入大幅度縮圖時，是否先快速地以面積平均將圖片逐次縮小一半，再使用指定的品質縮放
+     * @return 傳回重新縮放之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage resize(final BufferedImage bi, final int width, final int height, final float sharpen, final boolean sharpenOnlyShrink, final Quality quality, final boolean progressive) {
+        if (bi == null || (width <= 0 && height <= 0) || quality == null) {
+            return null;
+        }
+        final int originalWidth = bi.getWidth();
+        final int originalHeight = bi.getHeight();
+
+        return resize(bi, originalWidth, originalHeight, width, height, sharpen, sharpenOnlyShrink, quality, progressive);
+    }
+
+    /**
+     * 重新縮放傳入的BufferedImage物件，使用Lanczos3濾波。
+     *
+     * @param bi 傳入BufferedImage物件
      * @param originalWidth 傳入原始圖片的寬度
      * @param originalHeight 傳入原始圖片的高度
      * @param width 傳入要修改成的寬度，若小於等於0，則依照比例自動計算
@@ -146,7 +326,25 @@ public final class ImageResize {
      * @return 傳回重新縮放之後的新的BufferedImage物件，若失敗，則傳回null
      */
     private static BufferedImage resize(final BufferedImage bi, final int originalWidth, final int originalHeight, final int width, final int height, final float sharpen, final boolean sharpenOnlyShrink) {
-        assert (bi != null && (width > 0 || height > 0));
+        return resize(bi, originalWidth, originalHeight, width, height, sharpen, sharpenOnlyShrink, Quality.LANCZOS3, false);
+    }
+
+    /**
+     * 重新縮放傳入的BufferedImage物件。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param originalWidth 傳入原始圖片的寬度
+     * @param originalHeight 傳入原始圖片的高度
+     * @param width 傳入要修改成的寬度，若小於等於0，則依照比例自動計算
+     * @param height 傳入要修改成的高度，若小於等於0，則依照比例自動計算
+     * @param sharpen 傳入JPEG的銳化程度(0~10)，愈大愈銳利，建議值為0~1.5；若小於0，則自動計算銳化程度
+     * @param sharpenOnlyShrink 傳入是否只在縮圖時使用銳化
+     * @param quality 傳入縮放的品質
+     * @param progressive 傳入大幅度縮圖時，是否先快速地將圖片逐次縮小一半
+     * @return 傳回重新縮放之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    private static BufferedImage resize(final BufferedImage bi, final int originalWidth, final int originalHeight, final int width, final int height, final float sharpen, final boolean sharpenOnlyShrink, final Quality quality, final boolean progressive) {
+        assert (bi != null && (width > 0 || height > 0) && quality != null);
 
         BufferedImage result;
 
@@ -164,9 +362,7 @@ public final class ImageResize {
         }
 
         // 縮放
-        final ResampleOp resampleOp = new ResampleOp(resizeWidth, resizeHeight);
-        resampleOp.setUnsharpenMask(AdvancedResizeOp.UnsharpenMask.None);
-        final BufferedImage scaledBi = resampleOp.filter(bi, null); // 縮放原始的BufferedImage
+        final BufferedImage scaledBi = scale(bi, resizeWidth, resizeHeight, quality, progressive); // 縮放原始的BufferedImage
         result = scaledBi;
 
         // 銳化
@@ -206,7 +402,112 @@ public final class ImageResize {
     }
 
     /**
-     * 剪裁傳入的BufferedImage物件。
+     * 將傳入的BufferedImage物件縮放成指定的尺寸。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param width 傳入要修改成的寬度
+     * @param height 傳入要修改成的高度
+     * @param quality 傳入縮放的品質
+     * @param progressive 傳入大幅度縮圖時，是否先快速地將圖片逐次縮小一半
+     * @return 傳回縮放之後的新的BufferedImage物件
+     */
+    private static BufferedImage scale(final BufferedImage bi, final int width, final int height, final Quality quality, final boolean progressive) {
+        BufferedImage source = bi;
+        if (progressive) {
+            // 每次縮小一半，直到剩下不到兩倍的差距，再交給指定的濾波器處理
+            while (source.getWidth() >= width * 2 && source.getHeight() >= height * 2) {
+                final BufferedImage halved = halve(source);
+                if (source != bi) {
+                    source.flush();
+                }
+                source = halved;
+            }
+        }
+
+        final BufferedImage scaledBi;
+        if (quality == Quality.NEAREST) {
+            scaledBi = new BufferedImage(width, height, getWorkingType(source));
+            final Graphics2D graphics = scaledBi.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            graphics.setComposite(AlphaComposite.Src);
+            graphics.drawImage(source, 0, 0, width, height, null);
+            graphics.dispose();
+        } else {
+            final ResampleOp resampleOp = new ResampleOp(width, height);
+            resampleOp.setFilter(quality.filter);
+            resampleOp.setUnsharpenMask(AdvancedResizeOp.UnsharpenMask.None);
+            scaledBi = resampleOp.filter(source, null);
+        }
+        if (source != bi) {
+            source.flush();
+        }
+        return scaledBi;
+    }
+
+    /**
+     * 以2x2的面積平均將傳入的BufferedImage物件縮小一半。透明度會作為權重，避免透明像素的顏色滲入。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @return 傳回縮小之後的新的BufferedImage物件
+     */
+    private static BufferedImage halve(final BufferedImage bi) {
+        final int width = bi.getWidth(), height = bi.getHeight();
+        final int halfWidth = width / 2, halfHeight = height / 2;
+        final boolean hasAlpha = bi.getColorModel().hasAlpha();
+        final BufferedImage dest = new BufferedImage(halfWidth, halfHeight, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final int[] row0 = new int[width], row1 = new int[width], destRow = new int[halfWidth];
+        for (int y = 0; y < halfHeight; ++y) {
+            bi.getRGB(0, y * 2, width, 1, row0, 0, width);
+            bi.getRGB(0, y * 2 + 1, width, 1, row1, 0, width);
+            for (int x = 0; x < halfWidth; ++x) {
+                final int p0 = row0[x * 2], p1 = row0[x * 2 + 1], p2 = row1[x * 2], p3 = row1[x * 2 + 1];
+                if (hasAlpha) {
+                    final int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+                    final int a = a0 + a1 + a2 + a3;
+                    if (a == 0) {
+                        destRow[x] = 0;
+                        continue;
+                    }
+                    final int r = (((p0 >> 16) & 0xFF) * a0 + ((p1 >> 16) & 0xFF) * a1 + ((p2 >> 16) & 0xFF) * a2 + ((p3 >> 16) & 0xFF) * a3 + a / 2) / a;
+                    final int g = (((p0 >> 8) & 0xFF) * a0 + ((p1 >> 8) & 0xFF) * a1 + ((p2 >> 8) & 0xFF) * a2 + ((p3 >> 8) & 0xFF) * a3 + a / 2) / a;
+                    final int b = ((p0 & 0xFF) * a0 + (p1 & 0xFF) * a1 + (p2 & 0xFF) * a2 + (p3 & 0xFF) * a3 + a / 2) / a;
+                    destRow[x] = ((a + 2) / 4) << 24 | r << 16 | g << 8 | b;
+                } else {
+                    final int r = (((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF) + 2) / 4;
+                    final int g = (((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF) + 2) / 4;
+                    final int b = ((p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF) + 2) / 4;
+                    destRow[x] = 0xFF000000 | r << 16 | g << 8 | b;
+                }
+            }
+            dest.setRGB(0, y, halfWidth, 1, destRow, 0, halfWidth);
+        }
+        return dest;
+    }
+
+    /**
+     * 取得適合用來存放處理結果的BufferedImage類型。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @return 傳回BufferedImage類型
+     */
+    private static int getWorkingType(final BufferedImage bi) {
+        switch (bi.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return bi.getType();
+            default:
+                return bi.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        }
+    }
+
+    /**
+     * 剪裁傳入的BufferedImage物件，剪裁出來的圖片會和原圖共用像素資料。
      *
      * @param bi 傳入BufferedImage物件
      * @param width 傳入要剪裁的寬度
@@ -216,6 +517,78 @@ public final class ImageResize {
      * @return 傳回剪裁出來的新的BufferedImage物件，若失敗，則傳回null
      */
     public static BufferedImage crop(final BufferedImage bi, final int width, final int height, final int x, final int y) {
+        return crop(bi, width, height, x, y, CropMode.SHARED);
+    }
+
+    /**
+     * 剪裁傳入的BufferedImage物件。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param width 傳入要剪裁的寬度
+     * @param height 傳入要剪裁的高度
+     * @param x 傳入要剪裁的寬度起點
+     * @param y 傳入要剪裁的高度起點
+     * @param mode 傳入剪裁的方式
+     * @return 傳回剪裁出來的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage crop(final BufferedImage bi, final int width, final int height, final int x, final int y, final CropMode mode) {
+        if (mode == null) {
+            return null;
+        }
+        final Rectangle cropBounds = getCropBounds(bi, width, height, x, y);
+        if (cropBounds == null) {
+            return null;
+        }
+
+        final BufferedImage cropImage = bi.getSubimage(cropBounds.x, cropBounds.y, cropBounds.width, cropBounds.height);
+
+        switch (mode) {
+            case COMPACT:
+                return ImageBuffer.cloneBufferedImage(cropImage); // 複製成不含偏移量的緊密Raster
+            default:
+                return cropImage;
+        }
+    }
+
+    /**
+     * 剪裁並重新縮放傳入的BufferedImage物件。縮放時只會讀取剪裁的區域，不會另外複製剪裁出來的圖片。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param cropWidth 傳入要剪裁的寬度
+     * @param cropHeight 傳入要剪裁的高度
+     * @param x 傳入要剪裁的寬度起點
+     * @param y 傳入要剪裁的高度起點
+     * @param width 傳入要修改成的寬度，若小於等於0，則依照比例自動計算
+     * @param height 傳入要修改成的高度，若小於等於0，則依照比例自動計算
+     * @param sharpen 傳入JPEG的銳化程度(0~10)，愈大愈銳利，建議值為0~1.5；若小於0，則自動計算銳化程度
+     * @param sharpenOnlyShrink 傳入是否只在縮圖時使用銳化
+     * @return 傳回剪裁並重新縮放之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage cropAndResize(final BufferedImage bi, final int cropWidth, final int cropHeight, final int x, final int y, final int width, final int height, final float sharpen, final boolean sharpenOnlyShrink) {
+        if (width <= 0 && height <= 0) {
+            return null;
+        }
+        final Rectangle cropBounds = getCropBounds(bi, cropWidth, cropHeight, x, y);
+        if (cropBounds == null) {
+            return null;
+        }
+
+        final BufferedImage cropImage = bi.getSubimage(cropBounds.x, cropBounds.y, cropBounds.width, cropBounds.height);
+
+        return resize(cropImage, cropBounds.width, cropBounds.height, width, height, sharpen, sharpenOnlyShrink);
+    }
+
+    /**
+     * 計算剪裁的範圍。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param width 傳入要剪裁的寬度
+     * @param height 傳入要剪裁的高度
+     * @param x 傳入要剪裁的寬度起點
+     * @param y 傳入要剪裁的高度起點
+     * @return 傳回剪裁的範圍，若無法剪裁，則傳回null
+     */
+    private static Rectangle getCropBounds(final BufferedImage bi, final int width, final int height, final int x, final int y) {
         if (bi == null || (width <= 0 && height <= 0)) {
             return null;
         }
@@ -227,31 +600,240 @@ public final class ImageResize {
             return null;
         }
 
-        int cropWidth = width;
+        final int cropX = Math.max(x, 0);
+        final int cropY = Math.max(y, 0);
+        final int cropWidth = Math.min(x + width, originalWidth) - cropX; // 若太寬，或是起點超出左側
+        final int cropHeight = Math.min(y + height, originalHeight) - cropY; // 若太高，或是起點超出上側
 
-        if (cropWidth + x > originalWidth) { // 若太寬
-            cropWidth = originalWidth - x;
+        if (cropWidth <= 0 || cropHeight <= 0) {
+            return null;
         }
 
-        int cropHeight = height;
+        return new Rectangle(cropX, cropY, cropWidth, cropHeight);
+    }
 
-        if (cropHeight + y > originalHeight) { // 若太高
-            cropHeight = originalHeight - y;
+    /**
+     * 填滿縮放傳入的BufferedImage物件。依照比例縮放到剛好蓋滿指定的尺寸，超出的部份會被剪裁掉，只會重新取樣一次。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param width 傳入要修改成的寬度
+     * @param height 傳入要修改成的高度
+     * @param gravity 傳入要保留原圖哪個部份
+     * @return 傳回填滿縮放之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage cover(final BufferedImage bi, final int width, final int height, final Gravity gravity) {
+        return cover(bi, width, height, gravity, -1, true);
+    }
+
+    /**
+     * 填滿縮放傳入的BufferedImage物件。依照比例縮放到剛好蓋滿指定的尺寸，超出的部份會被剪裁掉，只會重新取樣一次。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param width 傳入要修改成的寬度
+     * @param height 傳入要修改成的高度
+     * @param gravity 傳入要保留原圖哪個部份
+     * @param sharpen 傳入JPEG的銳化程度(0~10)，愈大愈銳利，建議值為0~1.5；若小於0，則自動計算銳化程度
+     * @param sharpenOnlyShrink 傳入是否只在縮圖時使用銳化
+     * @return 傳回填滿縮放之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage cover(final BufferedImage bi, final int width, final int height, final Gravity gravity, final float sharpen, final boolean sharpenOnlyShrink) {
+        if (bi == null || width <= 0 || height <= 0 || gravity == null) {
+            return null;
         }
+        final int originalWidth = bi.getWidth();
+        final int originalHeight = bi.getHeight();
 
-        int cropX = x;
-        if (cropX < 0) {
-            cropX = 0;
+        // 計算原圖中要被取樣的區域
+        final float scale = Math.max(width * 1.0f / originalWidth, height * 1.0f / originalHeight);
+        final int sourceWidth = Math.max(1, Math.min(originalWidth, Math.round(width / scale)));
+        final int sourceHeight = Math.max(1, Math.min(originalHeight, Math.round(height / scale)));
+
+        final int sourceX, sourceY;
+        switch (gravity) {
+            case ENTROPY:
+            case EDGE:
+                final int[] offset = findInterestingOffset(bi, sourceWidth, sourceHeight, gravity == Gravity.ENTROPY);
+                sourceX = offset[0];
+                sourceY = offset[1];
+                break;
+            default:
+                sourceX = Math.round((originalWidth - sourceWidth) * gravity.x);
+                sourceY = Math.round((originalHeight - sourceHeight) * gravity.y);
+                break;
         }
 
-        int cropY = y;
-        if (cropY < 0) {
-            cropY = 0;
+        final BufferedImage sourceImage = (sourceWidth == originalWidth && sourceHeight == originalHeight) ? bi : bi.getSubimage(sourceX, sourceY, sourceWidth, sourceHeight);
+
+        return resize(sourceImage, sourceWidth, sourceHeight, width, height, sharpen, sharpenOnlyShrink);
+    }
+
+    /**
+     * 容納縮放傳入的BufferedImage物件。依照比例縮放到剛好可以完整放進指定的尺寸，並置中在背景上，只會重新取樣一次。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param width 傳入要修改成的寬度
+     * @param height 傳入要修改成的高度
+     * @param background 傳入背景顏色，若為null，則使用透明背景
+     * @return 傳回容納縮放之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage contain(final BufferedImage bi, final int width, final int height, final Color background) {
+        return contain(bi, width, height, background, -1, true);
+    }
+
+    /**
+     * 容納縮放傳入的BufferedImage物件。依照比例縮放到剛好可以完整放進指定的尺寸，並置中在背景上，只會重新取樣一次。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param width 傳入要修改成的寬度
+     * @param height 傳入要修改成的高度
+     * @param background 傳入背景顏色，若為null，則使用透明背景
+     * @param sharpen 傳入JPEG的銳化程度(0~10)，愈大愈銳利，建議值為0~1.5；若小於0，則自動計算銳化程度
+     * @param sharpenOnlyShrink 傳入是否只在縮圖時使用銳化
+     * @return 傳回容納縮放之後的新的BufferedImage物件，若失敗，則傳回null
+     */
+    public static BufferedImage contain(final BufferedImage bi, final int width, final int height, final Color background, final float sharpen, final boolean sharpenOnlyShrink) {
+        if (bi == null || width <= 0 || height <= 0) {
+            return null;
+        }
+        final int originalWidth = bi.getWidth();
+        final int originalHeight = bi.getHeight();
+
+        final float scale = Math.min(width * 1.0f / originalWidth, height * 1.0f / originalHeight);
+        final int fitWidth = Math.max(1, Math.min(width, Math.round(originalWidth * scale)));
+        final int fitHeight = Math.max(1, Math.min(height, Math.round(originalHeight * scale)));
+
+        final BufferedImage fitImage = resize(bi, originalWidth, originalHeight, fitWidth, fitHeight, sharpen, sharpenOnlyShrink);
+        if (fitWidth == width && fitHeight == height) {
+            return fitImage;
+        }
+
+        final boolean opaque = background != null && background.getAlpha() == 255;
+        final BufferedImage result = new BufferedImage(width, height, opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = result.createGraphics();
+        if (background != null) {
+            graphics.setBackground(background);
+            graphics.clearRect(0, 0, width, height);
+        }
+        graphics.drawImage(fitImage, (width - fitWidth) / 2, (height - fitHeight) / 2, null);
+        graphics.dispose();
+        fitImage.flush();
+        return result;
+    }
+
+    /**
+     * 在可以移動的方向上，找出取樣區域最有內容的位置。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param sourceWidth 傳入取樣區域的寬度
+     * @param sourceHeight 傳入取樣區域的高度
+     * @param entropy 傳入是否使用熵來判斷，否則使用邊緣強度
+     * @return 傳回取樣區域的起點
+     */
+    private static int[] findInterestingOffset(final BufferedImage bi, final int sourceWidth, final int sourceHeight, final boolean entropy) {
+        final int originalWidth = bi.getWidth();
+        final int originalHeight = bi.getHeight();
+
+        // 以固定間隔取樣亮度，避免讀取整張大圖
+        final int step = Math.max(1, Math.max(originalWidth, originalHeight) / 128);
+        final int gridWidth = (originalWidth + step - 1) / step, gridHeight = (originalHeight + step - 1) / step;
+        final int[] luma = new int[gridWidth * gridHeight];
+        final int[] row = new int[originalWidth];
+        for (int gy = 0; gy < gridHeight; ++gy) {
+            bi.getRGB(0, gy * step, originalWidth, 1, row, 0, originalWidth);
+            for (int gx = 0; gx < gridWidth; ++gx) {
+                final int rgb = row[gx * step];
+                luma[gy * gridWidth + gx] = (((rgb >> 16) & 0xFF) * 77 + ((rgb >> 8) & 0xFF) * 150 + (rgb & 0xFF) * 29) >> 8;
+            }
         }
 
-        final BufferedImage cropImage = bi.getSubimage(cropX, cropY, cropWidth, cropHeight);
+        final int[] offset = new int[2];
+        if (sourceWidth < originalWidth) {
+            offset[0] = findInterestingOffset(luma, gridWidth, gridHeight, true, Math.max(1, sourceWidth / step), entropy) * step;
+            offset[0] = Math.min(offset[0], originalWidth - sourceWidth);
+        }
+        if (sourceHeight < originalHeight) {
+            offset[1] = findInterestingOffset(luma, gridWidth, gridHeight, false, Math.max(1, sourceHeight / step), entropy) * step;
+            offset[1] = Math.min(offset[1], originalHeight - sourceHeight);
+        }
+        return offset;
+    }
 
-        return cropImage;
+    /**
+     * 在單一方向上滑動視窗，找出最有內容的位置。
+     *
+     * @param luma 傳入亮度取樣
+     * @param gridWidth 傳入取樣的寬度
+     * @param gridHeight 傳入取樣的高度
+     * @param horizontal 傳入是否是在水平方向上滑動
+     * @param window 傳入視窗大小
+     * @param entropy 傳入是否使用熵來判斷，否則使用邊緣強度
+     * @return 傳回視窗的起點
+     */
+    private static int findInterestingOffset(final int[] luma, final int gridWidth, final int gridHeight, final boolean horizontal, final int window, final boolean entropy) {
+        final int lineCount = horizontal ? gridWidth : gridHeight;
+        final int lineLength = horizontal ? gridHeight : gridWidth;
+        if (window >= lineCount) {
+            return 0;
+        }
+        final int bins = 32;
+        // 每一條線(欄或列)的亮度直方圖與邊緣強度
+        final int[][] histograms = new int[lineCount][bins];
+        final long[] edges = new long[lineCount];
+        for (int line = 0; line < lineCount; ++line) {
+            for (int i = 0; i < lineLength; ++i) {
+                final int x = horizontal ? line : i, y = horizontal ? i : line;
+                final int value = luma[y * gridWidth + x];
+                ++histograms[line][value * bins / 256];
+                if (x + 1 < gridWidth) {
+                    edges[line] += Math.abs(value - luma[y * gridWidth + x + 1]);
+                }
+                if (y + 1 < gridHeight) {
+                    edges[line] += Math.abs(value - luma[(y + 1) * gridWidth + x]);
+                }
+            }
+        }
+
+        final int[] histogram = new int[bins];
+        long edge = 0;
+        for (int line = 0; line < window; ++line) {
+            for (int b = 0; b < bins; ++b) {
+                histogram[b] += histograms[line][b];
+            }
+            edge += edges[line];
+        }
+        int best = 0;
+        double bestScore = entropy ? entropy(histogram, window * lineLength) : edge;
+        for (int start = 1; start + window <= lineCount; ++start) {
+            final int removed = start - 1, added = start + window - 1;
+            for (int b = 0; b < bins; ++b) {
+                histogram[b] += histograms[added][b] - histograms[removed][b];
+            }
+            edge += edges[added] - edges[removed];
+            final double score = entropy ? entropy(histogram, window * lineLength) : edge;
+            if (score > bestScore) {
+                bestScore = score;
+                best = start;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 計算直方圖的熵。
+     *
+     * @param histogram 傳入直方圖
+     * @param total 傳入直方圖的總數
+     * @return 傳回熵
+     */
+    private static double entropy(final int[] histogram, final int total) {
+        double result = 0;
+        for (final int count : histogram) {
+            if (count > 0) {
+                final double p = count * 1.0 / total;
+                result -= p * Math.log(p);
+            }
+        }
+        return result;
     }
 
     // -----建構子-----
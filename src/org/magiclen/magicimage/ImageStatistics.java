@@ -0,0 +1,306 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.awt.image.BufferedImage;
+import java.util.stream.IntStream;
+
+/**
+ * <p>
+ * 圖片的統計資料。</p>
+ *
+ * <p>
+ * 只掃描一次像素，就能得到紅、綠、藍和透明值各色版的直方圖、最小值、最大值、平均值和透明像素的數量。較大的圖片會被切成數個列的區段平行計算。統計資料計算完成後不會再改變，可以重複交給其它需要統計資料的方法使用，避免重新掃描圖片。</p>
+ *
+ * @author Magic Len
+ * @see ImageColor
+ * @see ImageExport
+ */
+public final class ImageStatistics {
+
+    // -----類別常數-----
+    /**
+     * 紅色的色版。
+     */
+    public static final int RED = 0;
+    /**
+     * 綠色的色版。
+     */
+    public static final int GREEN = 1;
+    /**
+     * 藍色的色版。
+     */
+    public static final int BLUE = 2;
+    /**
+     * 透明值的色版。
+     */
+    public static final int ALPHA = 3;
+    /**
+     * 像素數量小於此值的圖片不進行平行計算。
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    // -----類別方法-----
+    /**
+     * 快速判斷BufferedImage物件是否完全不透明。若色彩模型沒有透明層，不必掃描像素；否則遇到第一個透明值不為255的像素就會停止掃描。結果不會被快取，每次呼叫都會重新掃描，因此修改圖片的像素之後仍然能得到正確的結果。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @return 傳回圖片是否完全不透明
+     */
+    public static boolean isOpaque(final BufferedImage bi) {
+	if (bi == null) {
+	    return false;
+	}
+	if (!bi.getColorModel().hasAlpha()) {
+	    return true;
+	}
+	final int width = bi.getWidth(), height = bi.getHeight();
+	final int[] data = ImagePixels.getDirectData(bi);
+	final int[] row = new int[width];
+	for (int y = 0; y < height; ++y) {
+	    ImagePixels.getRow(bi, data, y, row);
+	    for (int x = 0; x < width; ++x) {
+		if ((row[x] >>> 24) != 0xFF) {
+		    return false;
+		}
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * 判斷BufferedImage物件是否完全不透明。若有已經計算好的統計資料，就直接使用，不會掃描圖片。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，若為null，則掃描圖片
+     * @return 傳回圖片是否完全不透明
+     */
+    static boolean isOpaque(final BufferedImage bi, final ImageStatistics statistics) {
+	return statistics != null ? statistics.isOpaque() : isOpaque(bi);
+    }
+
+    /**
+     * 計算BufferedImage物件的統計資料。
+     *
+     * @param bi 傳入BufferedImage物件
+     * @return 傳回統計資料，若失敗，則傳回null
+     */
+    public static ImageStatistics compute(final BufferedImage bi) {
+	if (bi == null) {
+	    return null;
+	}
+	final int width = bi.getWidth(), height = bi.getHeight();
+	final int[] data = ImagePixels.getDirectData(bi);
+	final int bands = (long) width * height < PARALLEL_THRESHOLD ? 1 : Math.min(height, Runtime.getRuntime().availableProcessors() * 4);
+	final IntStream stream = IntStream.range(0, bands);
+	final int[] histogram = (bands > 1 ? stream.parallel() : stream).mapToObj(band -> {
+	    final int[] bandHistogram = new int[1024];
+	    final int[] row = new int[width];
+	    final int startY = (int) ((long) height * band / bands), endY = (int) ((long) height * (band + 1) / bands);
+	    for (int y = startY; y < endY; ++y) {
+		ImagePixels.getRow(bi, data, y, row);
+		for (int x = 0; x < width; ++x) {
+		    final int argb = row[x];
+		    ++bandHistogram[(argb >> 16) & 0xFF];
+		    ++bandHistogram[256 | ((argb >> 8) & 0xFF)];
+		    ++bandHistogram[512 | (argb & 0xFF)];
+		    ++bandHistogram[768 | (argb >>> 24)];
+		}
+	    }
+	    return bandHistogram;
+	}).reduce((a, b) -> {
+	    for (int i = 0; i < 1024; ++i) {
+		a[i] += b[i];
+	    }
+	    return a;
+	}).orElseGet(() -> new int[1024]);
+	final int[][] histograms = new int[4][256];
+	for (int channel = 0; channel < 4; ++channel) {
+	    System.arraycopy(histogram, channel << 8, histograms[channel], 0, 256);
+	}
+	return new ImageStatistics(histograms, width * height);
+    }
+
+    // -----物件常數-----
+    /**
+     * 各色版的直方圖。
+     */
+    private final int[][] histograms;
+    /**
+     * 像素數量。
+     */
+    private final int pixelCount;
+    /**
+     * 各色版的最小值。
+     */
+    private final int[] min = new int[4];
+    /**
+     * 各色版的最大值。
+     */
+    private final int[] max = new int[4];
+    /**
+     * 各色版的平均值。
+     */
+    private final double[] mean = new double[4];
+
+    // -----建構子-----
+    /**
+     * 私有的建構子，由直方圖推算出其它的統計資料。
+     *
+     * @param histograms 傳入各色版的直方圖
+     * @param pixelCount 傳入像素數量
+     */
+    private ImageStatistics(final int[][] histograms, final int pixelCount) {
+	this.histograms = histograms;
+	this.pixelCount = pixelCount;
+	for (int channel = 0; channel < 4; ++channel) {
+	    final int[] histogram = histograms[channel];
+	    int channelMin = -1, channelMax = -1;
+	    long sum = 0;
+	    for (int i = 0; i < 256; ++i) {
+		if (histogram[i] > 0) {
+		    if (channelMin < 0) {
+			channelMin = i;
+		    }
+		    channelMax = i;
+		    sum += (long) histogram[i] * i;
+		}
+	    }
+	    min[channel] = Math.max(0, channelMin);
+	    max[channel] = Math.max(0, channelMax);
+	    mean[channel] = pixelCount > 0 ? (double) sum / pixelCount : 0;
+	}
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得色版的直方圖。
+     *
+     * @param channel 傳入色版，RED、GREEN、BLUE或ALPHA
+     * @return 傳回長度為256的直方圖的複製品
+     */
+    public int[] getHistogram(final int channel) {
+	return histograms[channel].clone();
+    }
+
+    /**
+     * 取得色版在直方圖中某個值的像素數量。
+     *
+     * @param channel 傳入色版，RED、GREEN、BLUE或ALPHA
+     * @param value 傳入顏色值(0~255)
+     * @return 傳回像素數量
+     */
+    public int getCount(final int channel, final int value) {
+	return histograms[channel][value];
+    }
+
+    /**
+     * 取得色版的最小值。
+     *
+     * @param channel 傳入色版，RED、GREEN、BLUE或ALPHA
+     * @return 傳回最小值
+     */
+    public int getMin(final int channel) {
+	return min[channel];
+    }
+
+    /**
+     * 取得色版的最大值。
+     *
+     * @param channel 傳入色版，RED、GREEN、BLUE或ALPHA
+     * @return 傳回最大值
+     */
+    public int getMax(final int channel) {
+	return max[channel];
+    }
+
+    /**
+     * 取得色版的平均值。
+     *
+     * @param channel 傳入色版，RED、GREEN、BLUE或ALPHA
+     * @return 傳回平均值
+     */
+    public double getMean(final int channel) {
+	return mean[channel];
+    }
+
+    /**
+     * 取得色版的百分位數，也就是讓至少fraction比例的像素小於等於此值的最小顏色值。
+     *
+     * @param channel 傳入色版，RED、GREEN、BLUE或ALPHA
+     * @param fraction 傳入比例(0~1)
+     * @return 傳回顏色值
+     */
+    public int getPercentile(final int channel, final float fraction) {
+	final int[] histogram = histograms[channel];
+	final long target = (long) Math.ceil(Math.min(Math.max(fraction, 0f), 1f) * (double) pixelCount);
+	long count = 0;
+	for (int i = 0; i < 256; ++i) {
+	    count += histogram[i];
+	    if (count >= target && count > 0) {
+		return i;
+	    }
+	}
+	return max[channel];
+    }
+
+    /**
+     * 取得像素數量。
+     *
+     * @return 傳回像素數量
+     */
+    public int getPixelCount() {
+	return pixelCount;
+    }
+
+    /**
+     * 取得完全不透明(透明值為255)的像素數量。
+     *
+     * @return 傳回像素數量
+     */
+    public int getOpaquePixelCount() {
+	return histograms[ALPHA][255];
+    }
+
+    /**
+     * 取得完全透明(透明值為0)的像素數量。
+     *
+     * @return 傳回像素數量
+     */
+    public int getTransparentPixelCount() {
+	return histograms[ALPHA][0];
+    }
+
+    /**
+     * 判斷圖片是否完全不透明。
+     *
+     * @return 傳回圖片是否完全不透明
+     */
+    public boolean isOpaque() {
+	return histograms[ALPHA][255] == pixelCount;
+    }
+
+    /**
+     * 判斷圖片是否有透明或半透明的像素。
+     *
+     * @return 傳回圖片是否有透明或半透明的像素
+     */
+    public boolean hasTransparency() {
+	return !isOpaque();
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.magiclen.magiccommand.Command;
+import org.magiclen.magiccommand.CommandListener;
+import org.magiclen.magicimage.ImageInterlacer.Interlace;
+
+/**
+ * <p>
+ * 交錯、去交錯化圖片。</p>
+ *
+ * <p>
+ * 和ImageInterlacer相同，需要ImageMagick的支援，但「magick」執行檔的路徑在建構時就決定，之後不能修改，因此同一個Interlacer物件可以在多個執行緒中共用。改寫圖片時，會先讓ImageMagick輸出到同一個目錄中名稱不會重複的暫存檔，成功之後再以原子操作取代原本的檔案，失敗時原本的檔案不會被改變。同時執行的ImageMagick程序數量有上限，超過時呼叫的執行緒會等待。</p>
+ *
+ * @author Magic Len
+ */
+public final class Interlacer {
+
+    // -----物件常數-----
+    /**
+     * 「magick」執行檔的完整路徑。
+     */
+    private final String magickPath;
+    /**
+     * 限制同時執行的ImageMagick程序數量。
+     */
+    private final Semaphore processes;
+    /**
+     * 同時執行的ImageMagick程序數量上限。
+     */
+    private final int maxProcesses;
+
+    // -----物件變數-----
+    /**
+     * 執行檔是否可用，若為null，表示尚未檢查。
+     */
+    private volatile Boolean available;
+
+    // -----建構子-----
+    /**
+     * 建構子。同時執行的ImageMagick程序數量上限為CPU的數量。
+     *
+     * @param magickPath 傳入「magick」執行檔的路徑
+     */
+    public Interlacer(final String magickPath) {
+	this(magickPath, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 建構子。
+     *
+     * @param magickPath 傳入「magick」執行檔的路徑
+     * @param maxProcesses 傳入同時執行的ImageMagick程序數量上限
+     */
+    public Interlacer(final String magickPath, final int maxProcesses) {
+	if (magickPath == null) {
+	    throw new NullPointerException("The path of magick must not be null.");
+	}
+	if (maxProcesses < 1) {
+	    throw new IllegalArgumentException("The maximum number of processes must be positive.");
+	}
+	this.magickPath = new File(magickPath).getAbsolutePath();
+	this.maxProcesses = maxProcesses;
+	this.processes = new Semaphore(maxProcesses, true);
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得「magick」執行檔的完整路徑。
+     *
+     * @return 傳回「magick」執行檔的完整路徑
+     */
+    public String getMagickPath() {
+	return magickPath;
+    }
+
+    /**
+     * 取得同時執行的ImageMagick程序數量上限。
+     *
+     * @return 傳回同時執行的ImageMagick程序數量上限
+     */
+    public int getMaxProcesses() {
+	return maxProcesses;
+    }
+
+    /**
+     * 判斷「magick」執行檔是否可用。檢查成功之後，結果會被保留，不會再重新執行。
+     *
+     * @return 傳回「magick」執行檔是否可用
+     */
+    public boolean isAvailable() {
+	final Boolean a = available;
+	if (a != null && a) {
+	    return true;
+	}
+	final boolean result = checkAvailable();
+	if (result) {
+	    available = true;
+	}
+	return result;
+    }
+
+    /**
+     * 執行「magick -version」來檢查執行檔。
+     *
+     * @return 傳回「magick」執行檔是否可用
+     */
+    private boolean checkAvailable() {
+	try {
+	    final File magick = new File(magickPath);
+	    if (!magick.isFile()) {
+		return false;
+	    }
+	    magick.setExecutable(true);
+	    if (!magick.canExecute()) {
+		return false;
+	    }
+	    final boolean[] success = new boolean[]{false};
+	    final int[] line = new int[]{0};
+	    final Command command = new Command(magickPath, "-version");
+	    command.setCommandListener(new CommandListener() {
+
+		@Override
+		public void commandStart(final String id) {
+		}
+
+		@Override
+		public void commandRunning(final String id, final String message, final boolean isError) {
+		    if (!isError) {
+			++line[0];
+			if (line[0] == 1 && message.contains("ImageMagick")) {
+			    success[0] = true;
+			}
+		    }
+		}
+
+		@Override
+		public void commandException(final String id, final Exception exception) {
+
+		}
+
+		@Override
+		public void commandEnd(final String id, final int returnValue) {
+		    if (returnValue != 0) {
+			success[0] = false;
+		    }
+		}
+	    });
+	    run(command);
+	    return success[0];
+	} catch (final Exception ex) {
+	    return false;
+	}
+    }
+
+    /**
+     * 判斷檔案是否為交錯式圖片(interlaced image)。
+     *
+     * @param file 傳入圖片檔案
+     * @return 傳回檔案是否為交錯式圖片
+     */
+    public boolean isInterlaced(final File file) {
+	return isInterlaced(file, true);
+    }
+
+    /**
+     * 判斷檔案是否為交錯式圖片(interlaced image)。
+     *
+     * @param file 傳入圖片檔案
+     * @param checkExecute 傳入是否要先檢查執行檔
+     * @return 傳回檔案是否為交錯式圖片
+     */
+    boolean isInterlaced(final File file, final boolean checkExecute) {
+	if (file == null || !file.isFile() || (checkExecute && !isAvailable())) {
+	    return false;
+	}
+	final boolean[] isInterlaced = new boolean[]{false};
+	final Command command = new Command(magickPath, "identify", "-verbose", file.getAbsolutePath());
+	command.setCommandListener(new CommandListener() {
+
+	    @Override
+	    public void commandStart(final String id) {
+	    }
+
+	    @Override
+	    public void commandRunning(final String id, final String message, final boolean isError) {
+		if (!isError && !isInterlaced[0]) {
+		    if (message.contains("Interlace: Plane") || message.contains("Interlace: Line") || message.contains("Interlace: JPEG") || message.contains("Interlace: PNG") || message.contains("Interlace: GIF")) {
+			isInterlaced[0] = true;
+			command.stopAll();
+		    }
+		}
+	    }
+
+	    @Override
+	    public void commandException(final String id, final Exception exception) {
+
+	    }
+
+	    @Override
+	    public void commandEnd(final String id, final int returnValue) {
+
+	    }
+	});
+	try {
+	    run(command);
+	} catch (final InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    return false;
+	}
+	return isInterlaced[0];
+    }
+
+    /**
+     * 設定圖片檔案使用的交錯方式。ImageMagick會先輸出到同一個目錄中的暫存檔，成功之後才以原子操作取代原本的檔案。
+     *
+     * @param file 傳入圖片檔案
+     * @param interlace 傳入交錯方式
+     * @return 傳回交錯方式是否設定成功
+     */
+    public boolean setInterlace(final File file, final Interlace interlace) {
+	return setInterlace(file, interlace, true);
+    }
+
+    /**
+     * 設定圖片檔案使用的交錯方式。ImageMagick會先輸出到同一個目錄中的暫存檔，成功之後才以原子操作取代原本的檔案。
+     *
+     * @param file 傳入圖片檔案
+     * @param interlace 傳入交錯方式
+     * @param checkExecute 傳入是否要先檢查執行檔
+     * @return 傳回交錯方式是否設定成功
+     */
+    boolean setInterlace(final File file, final Interlace interlace, final boolean checkExecute) {
+	if (file == null || interlace == null || !file.isFile() || (checkExecute && !isAvailable())) {
+	    return false;
+	}
+	final Path target = file.getAbsoluteFile().toPath();
+	Path temp = null;
+	try {
+	    // 保留副檔名，ImageMagick才知道要輸出的格式；建立暫存檔本身是原子操作，名稱不會和其它執行緒衝突，權限和原本的檔案相同
+	    temp = MetadataRewriter.createTempFile(target, ".".concat(file.getName()).concat("-"), "-".concat(file.getName()));
+	    final boolean[] success = new boolean[]{false};
+	    final Command command = new Command(magickPath, "convert", target.toString(), "-interlace", interlace.option, temp.toString());
+	    command.setCommandListener(new CommandListener() {
+
+		@Override
+		public void commandStart(final String id) {
+
+		}
+
+		@Override
+		public void commandRunning(final String id, final String message, final boolean isError) {
+		}
+
+		@Override
+		public void commandException(final String id, final Exception exception) {
+
+		}
+
+		@Override
+		public void commandEnd(final String id, final int returnValue) {
+		    success[0] = returnValue == 0;
+		}
+	    });
+	    run(command);
+	    if (!success[0] || Files.size(temp) == 0) {
+		return false;
+	    }
+	    MetadataRewriter.move(temp, target);
+	    temp = null;
+	    return true;
+	} catch (final InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    return false;
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return false;
+	} finally {
+	    if (temp != null) {
+		try {
+		    Files.deleteIfExists(temp);
+		} catch (final Exception ex) {
+		    // 忽略
+		}
+	    }
+	}
+    }
+
+    /**
+     * 平行設定多個圖片檔案使用的交錯方式。
+     *
+     * @param files 傳入圖片檔案
+     * @param interlace 傳入交錯方式
+     * @param parallelism 傳入同時處理的檔案數量，若小於1，則使用同時執行的ImageMagick程序數量上限
+     * @return 傳回各個檔案的交錯方式是否設定成功，順序和傳入的檔案相同；若被中斷，傳回null
+     */
+    public boolean[] setInterlace(final List<File> files, final Interlace interlace, final int parallelism) {
+	if (files == null) {
+	    return null;
+	}
+	final int size = files.size();
+	final boolean[] results = new boolean[size];
+	if (size == 0) {
+	    return results;
+	}
+	final int threads = Math.min(size, parallelism > 0 ? parallelism : maxProcesses);
+	final ExecutorService executor = Executors.newFixedThreadPool(threads);
+	try {
+	    final List<Future<Boolean>> futures = new ArrayList<>(size);
+	    for (final File file : files) {
+		futures.add(executor.submit(() -> setInterlace(file, interlace)));
+	    }
+	    for (int i = 0; i < size; ++i) {
+		try {
+		    results[i] = futures.get(i).get();
+		} catch (final ExecutionException ex) {
+		    ex.printStackTrace(System.out);
+		}
+	    }
+	    return results;
+	} catch (final InterruptedException ex) {
+	    executor.shutdownNow();
+	    Thread.currentThread().interrupt();
+	    return null;
+	} finally {
+	    executor.shutdown();
+	}
+    }
+
+    /**
+     * 在程序數量的上限之內執行指令。
+     *
+     * @param command 傳入指令
+     * @throws InterruptedException 等待時被中斷時拋出
+     */
+    private void run(final Command command) throws InterruptedException {
+	processes.acquire();
+	try {
+	    command.run();
+	} finally {
+	    processes.release();
+	}
+    }
+}
@@ -0,0 +1,1379 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * JPEG的無損轉換。</p>
+ *
+ * <p>
+ * 直接在DCT係數上完成90度倍數的旋轉、翻轉和裁切，只會解開霍夫曼編碼，不會進行反DCT和重新量化，因此畫質和原本的檔案完全相同，速度也比解碼再編碼快得多。輸出時會重新計算最佳化的霍夫曼表。和jpegtran的-trim選項相同，若翻轉的方向上有不完整的MCU，邊緣不完整的MCU會被裁掉；裁切的起點會對齊MCU的格線。只支援基線(Baseline)和延伸循序(Extended Sequential)的霍夫曼編碼JPEG，漸進式(Progressive)和算術編碼的JPEG會轉換失敗。</p>
+ *
+ * @author Magic Len
+ * @see ImageBuffer#orient(java.awt.image.BufferedImage, int)
+ */
+public final class JPEGTransform {
+
+    // -----類別列舉-----
+    /**
+     * 轉換方式。
+     */
+    public enum Transform {
+
+	/**
+	 * 不轉換。
+	 */
+	NONE(false, false, false),
+	/**
+	 * 水平翻轉。
+	 */
+	FLIP_HORIZONTAL(true, false, false),
+	/**
+	 * 垂直翻轉。
+	 */
+	FLIP_VERTICAL(false, true, false),
+	/**
+	 * 順時針旋轉90度。
+	 */
+	ROTATE_90(false, true, true),
+	/**
+	 * 旋轉180度。
+	 */
+	ROTATE_180(true, true, false),
+	/**
+	 * 順時針旋轉270度。
+	 */
+	ROTATE_270(true, false, true),
+	/**
+	 * 沿著左上到右下的對角線翻轉。
+	 */
+	TRANSPOSE(false, false, true),
+	/**
+	 * 沿著右上到左下的對角線翻轉。
+	 */
+	TRANSVERSE(true, true, true);
+
+	/**
+	 * 來源的每一列是否要左右反轉。
+	 */
+	private final boolean reverse;
+	/**
+	 * 來源的列是否要上下反轉。
+	 */
+	private final boolean flip;
+	/**
+	 * 是否要交換行和列。
+	 */
+	private final boolean transpose;
+
+	/**
+	 * 建構子。
+	 *
+	 * @param reverse 傳入來源的每一列是否要左右反轉
+	 * @param flip 傳入來源的列是否要上下反轉
+	 * @param transpose 傳入是否要交換行和列
+	 */
+	Transform(final boolean reverse, final boolean flip, final boolean transpose) {
+	    this.reverse = reverse;
+	    this.flip = flip;
+	    this.transpose = transpose;
+	}
+
+	/**
+	 * 取得將EXIF的方向(Orientation)轉正所需的轉換方式。
+	 *
+	 * @param orientation 傳入EXIF的方向(1~8)
+	 * @return 傳回轉換方式
+	 */
+	public static Transform fromOrientation(final int orientation) {
+	    switch (orientation) {
+		case 2:
+		    return FLIP_HORIZONTAL;
+		case 3:
+		    return ROTATE_180;
+		case 4:
+		    return FLIP_VERTICAL;
+		case 5:
+		    return TRANSPOSE;
+		case 6:
+		    return ROTATE_90;
+		case 7:
+		    return TRANSVERSE;
+		case 8:
+		    return ROTATE_270;
+		default:
+		    return NONE;
+	    }
+	}
+    }
+
+    // -----類別常數-----
+    /**
+     * Zigzag順序到自然順序的索引。
+     */
+    private static final int[] NATURAL_ORDER = {
+	0, 1, 8, 16, 9, 2, 3, 10,
+	17, 24, 32, 25, 18, 11, 4, 5,
+	12, 19, 26, 33, 40, 48, 41, 34,
+	27, 20, 13, 6, 7, 14, 21, 28,
+	35, 42, 49, 56, 57, 50, 43, 36,
+	29, 22, 15, 23, 30, 37, 44, 51,
+	58, 59, 52, 45, 38, 31, 39, 46,
+	53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // -----類別方法-----
+    /**
+     * 無損轉換JPEG檔案。
+     *
+     * @param file 傳入JPEG檔案
+     * @param outputFile 傳入輸出的檔案，可以和JPEG檔案相同
+     * @param transform 傳入轉換方式
+     * @return 傳回是否轉換成功
+     */
+    public static boolean transform(final File file, final File outputFile, final Transform transform) {
+	return transform(file, outputFile, transform, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * 無損轉換JPEG檔案，並裁切轉換後的圖片。裁切的起點會往左上對齊到MCU的格線(通常是8或16個像素)。
+     *
+     * @param file 傳入JPEG檔案
+     * @param outputFile 傳入輸出的檔案，可以和JPEG檔案相同
+     * @param transform 傳入轉換方式
+     * @param x 傳入裁切的X座標(轉換後的座標)
+     * @param y 傳入裁切的Y座標(轉換後的座標)
+     * @param width 傳入裁切的寬度
+     * @param height 傳入裁切的高度
+     * @return 傳回是否轉換成功
+     */
+    public static boolean transform(final File file, final File outputFile, final Transform transform, final int x, final int y, final int width, final int height) {
+	return transform(file, outputFile, transform, x, y, width, height, false);
+    }
+
+    /**
+     * 無損裁切JPEG檔案。裁切的起點會往左上對齊到MCU的格線(通常是8或16個像素)。
+     *
+     * @param file 傳入JPEG檔案
+     * @param outputFile 傳入輸出的檔案，可以和JPEG檔案相同
+     * @param x 傳入裁切的X座標
+     * @param y 傳入裁切的Y座標
+     * @param width 傳入裁切的寬度
+     * @param height 傳入裁切的高度
+     * @return 傳回是否裁切成功，若裁切的起點在圖片之外，傳回false
+     */
+    public static boolean crop(final File file, final File outputFile, final int x, final int y, final int width, final int height) {
+	return transform(file, outputFile, Transform.NONE, x, y, width, height, false);
+    }
+
+    /**
+     * 依照EXIF的方向(Orientation)無損轉正JPEG檔案，並將EXIF的方向改為1。
+     *
+     * @param file 傳入JPEG檔案
+     * @param outputFile 傳入輸出的檔案，可以和JPEG檔案相同
+     * @return 傳回是否轉換成功
+     */
+    public static boolean autoOrient(final File file, final File outputFile) {
+	final ImageExif exif = ImageExif.read(file);
+	final Transform transform = Transform.fromOrientation(exif != null ? exif.getOrientation() : 1);
+	return transform(file, outputFile, transform, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * 無損轉換JPEG檔案。
+     *
+     * @param file 傳入JPEG檔案
+     * @param outputFile 傳入輸出的檔案
+     * @param transform 傳入轉換方式
+     * @param x 傳入裁切的X座標
+     * @param y 傳入裁切的Y座標
+     * @param width 傳入裁切的寬度
+     * @param height 傳入裁切的高度
+     * @param resetOrientation 傳入是否將EXIF的方向改為1
+     * @return 傳回是否轉換成功
+     */
+    private static boolean transform(final File file, final File outputFile, final Transform transform, final int x, final int y, final int width, final int height, final boolean resetOrientation) {
+	if (file == null || outputFile == null || transform == null || !file.isFile() || !file.canRead() || x < 0 || y < 0 || width <= 0 || height <= 0) {
+	    return false;
+	}
+	try {
+	    MetadataRewriter.rewrite(file, outputFile, (final FileChannel in, final FileChannel out) -> {
+		final long size = in.size();
+		if (size > Integer.MAX_VALUE) {
+		    throw new IOException("The JPEG file is too large.");
+		}
+		final byte[] data = new byte[(int) size];
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		ImageExif.readFully(in, buffer, 0);
+		final JPEGTransform jpeg = new JPEGTransform(data);
+		jpeg.decode();
+		final OutputStream os = new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16);
+		jpeg.encode(os, transform, x, y, width, height, resetOrientation);
+		os.flush();
+	    });
+	    return true;
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return false;
+	}
+    }
+
+    /**
+     * 將EXIF的APP1區段中的方向改為1。
+     *
+     * @param segment 傳入完整的APP1區段，包含標記和長度
+     */
+    private static void resetOrientation(final byte[] segment) {
+	final int base = 10; // FF E1 長度(2) Exif\0\0
+	if (segment.length < base + 8) {
+	    return;
+	}
+	final ByteBuffer tiff = ByteBuffer.wrap(segment, base, segment.length - base).slice();
+	tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	final long offset = tiff.getInt(4) & 0xFFFFFFFFL;
+	if (offset + 2 > tiff.limit()) {
+	    return;
+	}
+	final int count = tiff.getShort((int) offset) & 0xFFFF;
+	for (int i = 0; i < count; ++i) {
+	    final int position = (int) offset + 2 + i * 12;
+	    if (position + 12 > tiff.limit()) {
+		return;
+	    }
+	    if ((tiff.getShort(position) & 0xFFFF) == ImageExif.TAG_ORIENTATION && (tiff.getShort(position + 2) & 0xFFFF) == 3) {
+		tiff.putShort(position + 8, (short) 1);
+		return;
+	    }
+	}
+    }
+
+    /**
+     * 計算數值的位元數(JPEG的SSSS類別)。
+     *
+     * @param value 傳入數值
+     * @return 傳回位元數
+     */
+    private static int bitSize(int value) {
+	if (value < 0) {
+	    value = -value;
+	}
+	return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * 向上取整的除法。
+     *
+     * @param a 傳入被除數
+     * @param b 傳入除數
+     * @return 傳回商
+     */
+    private static int ceilDiv(final int a, final int b) {
+	return (a + b - 1) / b;
+    }
+
+    // -----物件常數-----
+    /**
+     * JPEG檔案的資料。
+     */
+    private final byte[] data;
+    /**
+     * 要保留的APPn和COM區段。
+     */
+    private final ArrayList<byte[]> segments = new ArrayList<>();
+    /**
+     * 量化表，自然順序。
+     */
+    private final int[][] quantizationTables = new int[4][];
+    /**
+     * 量化表的精度(0為8位元，1為16位元)。
+     */
+    private final int[] quantizationPrecisions = new int[4];
+    /**
+     * DC的霍夫曼表。
+     */
+    private final HuffmanDecoder[] dcTables = new HuffmanDecoder[4];
+    /**
+     * AC的霍夫曼表。
+     */
+    private final HuffmanDecoder[] acTables = new HuffmanDecoder[4];
+
+    // -----物件變數-----
+    /**
+     * SOF標記。
+     */
+    private int frameMarker;
+    /**
+     * 圖片寬度。
+     */
+    private int width;
+    /**
+     * 圖片高度。
+     */
+    private int height;
+    /**
+     * 色彩元件。
+     */
+    private Component[] components;
+    /**
+     * 最大的水平取樣係數。
+     */
+    private int maxH;
+    /**
+     * 最大的垂直取樣係數。
+     */
+    private int maxV;
+    /**
+     * 重新開始的間隔(MCU數量)。
+     */
+    private int restartInterval;
+
+    // -----建構子-----
+    /**
+     * 私有的建構子。
+     *
+     * @param data 傳入JPEG檔案的資料
+     */
+    private JPEGTransform(final byte[] data) {
+	this.data = data;
+    }
+
+    // -----物件方法-----
+    /**
+     * 解析JPEG檔案，並將所有的DCT係數解碼出來。
+     *
+     * @throws IOException 檔案格式不正確或不支援時拋出
+     */
+    private void decode() throws IOException {
+	if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8) {
+	    throw new IOException("Not a JPEG file.");
+	}
+	int position = 2;
+	while (position + 4 <= data.length) {
+	    if ((data[position] & 0xFF) != 0xFF) {
+		throw new IOException("Invalid JPEG marker.");
+	    }
+	    final int marker = data[position + 1] & 0xFF;
+	    if (marker == 0xFF) {
+		++position;
+		continue;
+	    }
+	    if (marker == 0xD9) {
+		break;
+	    }
+	    final int length = ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+	    final int start = position + 4, end = position + 2 + length;
+	    if (length < 2 || end > data.length) {
+		throw new IOException("Invalid JPEG segment length.");
+	    }
+	    switch (marker) {
+		case 0xDB:
+		    readQuantizationTables(start, end);
+		    break;
+		case 0xC4:
+		    readHuffmanTables(start, end);
+		    break;
+		case 0xC0:
+		case 0xC1:
+		    readFrame(marker, start);
+		    break;
+		case 0xC2:
+		case 0xC3:
+		case 0xC5:
+		case 0xC6:
+		case 0xC7:
+		case 0xC9:
+		case 0xCA:
+		case 0xCB:
+		case 0xCD:
+		case 0xCE:
+		case 0xCF:
+		    throw new IOException("Only baseline and extended sequential Huffman JPEG files are supported.");
+		case 0xDD:
+		    restartInterval = ((data[start] & 0xFF) << 8) | (data[start + 1] & 0xFF);
+		    break;
+		case 0xDA:
+		    position = readScan(start, end);
+		    continue;
+		default:
+		    if ((marker >= 0xE0 && marker <= 0xEF) || marker == 0xFE) {
+			segments.add(Arrays.copyOfRange(data, position, end));
+		    }
+	    }
+	    position = end;
+	}
+	if (components == null) {
+	    throw new IOException("No frame in the JPEG file.");
+	}
+    }
+
+    /**
+     * 讀取DQT區段。
+     *
+     * @param start 傳入區段內容的開始位置
+     * @param end 傳入區段的結束位置
+     */
+    private void readQuantizationTables(int start, final int end) {
+	while (start < end) {
+	    final int pq = (data[start] & 0xFF) >> 4, tq = data[start] & 0x03;
+	    ++start;
+	    final int[] table = new int[64];
+	    for (int k = 0; k < 64; ++k) {
+		if (pq == 0) {
+		    table[NATURAL_ORDER[k]] = data[start++] & 0xFF;
+		} else {
+		    table[NATURAL_ORDER[k]] = ((data[start] & 0xFF) << 8) | (data[start + 1] & 0xFF);
+		    start += 2;
+		}
+	    }
+	    quantizationTables[tq] = table;
+	    quantizationPrecisions[tq] = pq;
+	}
+    }
+
+    /**
+     * 讀取DHT區段。
+     *
+     * @param start 傳入區段內容的開始位置
+     * @param end 傳入區段的結束位置
+     */
+    private void readHuffmanTables(int start, final int end) {
+	while (start < end) {
+	    final int tc = (data[start] & 0xFF) >> 4, th = data[start] & 0x03;
+	    ++start;
+	    final int[] counts = new int[17];
+	    int total = 0;
+	    for (int i = 1; i <= 16; ++i) {
+		counts[i] = data[start++] & 0xFF;
+		total += counts[i];
+	    }
+	    final int[] values = new int[total];
+	    for (int i = 0; i < total; ++i) {
+		values[i] = data[start++] & 0xFF;
+	    }
+	    (tc == 0 ? dcTables : acTables)[th] = new HuffmanDecoder(counts, values);
+	}
+    }
+
+    /**
+     * 讀取SOF區段，並配置存放DCT係數的空間。
+     *
+     * @param marker 傳入SOF標記
+     * @param start 傳入區段內容的開始位置
+     * @throws IOException 格式不支援時拋出
+     */
+    private void readFrame(final int marker, int start) throws IOException {
+	if ((data[start] & 0xFF) != 8) {
+	    throw new IOException("Only 8-bit JPEG files are supported.");
+	}
+	frameMarker = marker;
+	height = ((data[start + 1] & 0xFF) << 8) | (data[start + 2] & 0xFF);
+	width = ((data[start + 3] & 0xFF) << 8) | (data[start + 4] & 0xFF);
+	if (width == 0 || height == 0) {
+	    throw new IOException("JPEG files with a DNL marker are not supported.");
+	}
+	final int count = data[start + 5] & 0xFF;
+	start += 6;
+	components = new Component[count];
+	for (int i = 0; i < count; ++i) {
+	    final Component component = new Component();
+	    component.id = data[start] & 0xFF;
+	    component.h = (data[start + 1] & 0xFF) >> 4;
+	    component.v = data[start + 1] & 0x0F;
+	    component.tq = data[start + 2] & 0x03;
+	    components[i] = component;
+	    maxH = Math.max(maxH, component.h);
+	    maxV = Math.max(maxV, component.v);
+	    start += 3;
+	}
+	final int mcusX = ceilDiv(width, 8 * maxH), mcusY = ceilDiv(height, 8 * maxV);
+	for (final Component component : components) {
+	    component.blocksWide = mcusX * component.h;
+	    component.blocksHigh = mcusY * component.v;
+	    component.coefficients = new short[component.blocksWide * component.blocksHigh * 64];
+	}
+    }
+
+    /**
+     * 讀取SOS區段，並解碼這個掃描的所有區塊。
+     *
+     * @param start 傳入區段內容的開始位置
+     * @param end 傳入區段的結束位置，也就是熵編碼資料的開始位置
+     * @return 傳回下一個標記的位置
+     * @throws IOException 格式不正確時拋出
+     */
+    private int readScan(int start, final int end) throws IOException {
+	if (components == null) {
+	    throw new IOException("SOS before SOF.");
+	}
+	final int count = data[start++] & 0xFF;
+	final Component[] scanComponents = new Component[count];
+	for (int i = 0; i < count; ++i) {
+	    final int id = data[start] & 0xFF;
+	    for (final Component component : components) {
+		if (component.id == id) {
+		    scanComponents[i] = component;
+		}
+	    }
+	    if (scanComponents[i] == null) {
+		throw new IOException("Unknown component in SOS.");
+	    }
+	    scanComponents[i].dcDecoder = dcTables[(data[start + 1] & 0xFF) >> 4];
+	    scanComponents[i].acDecoder = acTables[data[start + 1] & 0x03];
+	    if (scanComponents[i].dcDecoder == null || scanComponents[i].acDecoder == null) {
+		throw new IOException("Missing Huffman table.");
+	    }
+	    scanComponents[i].prediction = 0;
+	    start += 2;
+	}
+	final BitReader reader = new BitReader(data, end);
+	if (count == 1) {
+	    final Component component = scanComponents[0];
+	    final int blocksX = ceilDiv(ceilDiv(width * component.h, maxH), 8), blocksY = ceilDiv(ceilDiv(height * component.v, maxV), 8);
+	    int mcu = 0;
+	    for (int by = 0; by < blocksY; ++by) {
+		for (int bx = 0; bx < blocksX; ++bx) {
+		    if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+			reader.restart();
+			component.prediction = 0;
+		    }
+		    decodeBlock(reader, component, (by * component.blocksWide + bx) * 64);
+		    ++mcu;
+		}
+	    }
+	} else {
+	    final int mcusX = ceilDiv(width, 8 * maxH), mcusY = ceilDiv(height, 8 * maxV);
+	    int mcu = 0;
+	    for (int my = 0; my < mcusY; ++my) {
+		for (int mx = 0; mx < mcusX; ++mx) {
+		    if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+			reader.restart();
+			for (final Component component : scanComponents) {
+			    component.prediction = 0;
+			}
+		    }
+		    for (final Component component : scanComponents) {
+			for (int v = 0; v < component.v; ++v) {
+			    for (int h = 0; h < component.h; ++h) {
+				decodeBlock(reader, component, ((my * component.v + v) * component.blocksWide + mx * component.h + h) * 64);
+			    }
+			}
+		    }
+		    ++mcu;
+		}
+	    }
+	}
+	return reader.nextMarker();
+    }
+
+    /**
+     * 解碼一個區塊的DCT係數。
+     *
+     * @param reader 傳入BitReader物件
+     * @param component 傳入色彩元件
+     * @param offset 傳入區塊在係數陣列中的位置
+     * @throws IOException 資料不正確時拋出
+     */
+    private void decodeBlock(final BitReader reader, final Component component, final int offset) throws IOException {
+	final short[] coefficients = component.coefficients;
+	final int s = reader.decode(component.dcDecoder);
+	component.prediction += s == 0 ? 0 : reader.receiveExtend(s);
+	coefficients[offset] = (short) component.prediction;
+	for (int k = 1; k < 64;) {
+	    final int rs = reader.decode(component.acDecoder);
+	    final int r = rs >> 4, size = rs & 0x0F;
+	    if (size == 0) {
+		if (r != 15) {
+		    break;
+		}
+		k += 16;
+		continue;
+	    }
+	    k += r;
+	    if (k > 63) {
+		throw new IOException("Invalid AC coefficient index.");
+	    }
+	    coefficients[offset + NATURAL_ORDER[k]] = (short) reader.receiveExtend(size);
+	    ++k;
+	}
+    }
+
+    /**
+     * 轉換DCT係數並輸出新的JPEG檔案。
+     *
+     * @param out 傳入輸出串流
+     * @param transform 傳入轉換方式
+     * @param cropX 傳入裁切的X座標
+     * @param cropY 傳入裁切的Y座標
+     * @param cropWidth 傳入裁切的寬度
+     * @param cropHeight 傳入裁切的高度
+     * @param resetOrientation 傳入是否將EXIF的方向改為1
+     * @throws IOException 無法轉換或輸出失敗時拋出
+     */
+    private void encode(final OutputStream out, final Transform transform, final int cropX, final int cropY, final int cropWidth, final int cropHeight, final boolean resetOrientation) throws IOException {
+	// 翻轉的方向上，不完整的MCU無法移動到另一側，必須裁掉
+	final int sourceWidth = transform.reverse ? width / (8 * maxH) * (8 * maxH) : width;
+	final int sourceHeight = transform.flip ? height / (8 * maxV) * (8 * maxV) : height;
+	if (sourceWidth == 0 || sourceHeight == 0) {
+	    throw new IOException("The image is smaller than one MCU.");
+	}
+	final int destMaxH = transform.transpose ? maxV : maxH, destMaxV = transform.transpose ? maxH : maxV;
+	final int destWidth = transform.transpose ? sourceHeight : sourceWidth, destHeight = transform.transpose ? sourceWidth : sourceHeight;
+	if (cropX >= destWidth || cropY >= destHeight) {
+	    throw new IOException("The crop area is outside the image.");
+	}
+	final int mcuWidth = 8 * destMaxH, mcuHeight = 8 * destMaxV;
+	final int x0 = cropX / mcuWidth * mcuWidth, y0 = cropY / mcuHeight * mcuHeight;
+	final int outWidth = (int) Math.min((long) cropX + cropWidth, destWidth) - x0, outHeight = (int) Math.min((long) cropY + cropHeight, destHeight) - y0;
+	final int outMcusX = ceilDiv(outWidth, mcuWidth), outMcusY = ceilDiv(outHeight, mcuHeight);
+
+	// 重新排列區塊
+	final Component[] outComponents = new Component[components.length];
+	for (int c = 0; c < components.length; ++c) {
+	    final Component source = components[c];
+	    final Component dest = new Component();
+	    dest.id = source.id;
+	    dest.h = transform.transpose ? source.v : source.h;
+	    dest.v = transform.transpose ? source.h : source.v;
+	    dest.tq = source.tq;
+	    dest.blocksWide = outMcusX * dest.h;
+	    dest.blocksHigh = outMcusY * dest.v;
+	    dest.coefficients = new short[dest.blocksWide * dest.blocksHigh * 64];
+	    final int sourceBlocksX = sourceWidth / (8 * maxH) * source.h, sourceBlocksY = sourceHeight / (8 * maxV) * source.v;
+	    final int offsetX = x0 / mcuWidth * dest.h, offsetY = y0 / mcuHeight * dest.v;
+	    for (int oy = 0; oy < dest.blocksHigh; ++oy) {
+		for (int ox = 0; ox < dest.blocksWide; ++ox) {
+		    final int dx = ox + offsetX, dy = oy + offsetY;
+		    int sx = transform.transpose ? dy : dx, sy = transform.transpose ? dx : dy;
+		    if (transform.reverse) {
+			sx = sourceBlocksX - 1 - sx;
+		    }
+		    if (transform.flip) {
+			sy = sourceBlocksY - 1 - sy;
+		    }
+		    if (sx < 0 || sy < 0 || sx >= source.blocksWide || sy >= source.blocksHigh) {
+			continue; // 填充的區域
+		    }
+		    transformBlock(source.coefficients, (sy * source.blocksWide + sx) * 64, dest.coefficients, (oy * dest.blocksWide + ox) * 64, transform);
+		}
+	    }
+	    outComponents[c] = dest;
+	}
+
+	// 統計符號並建立最佳化的霍夫曼表
+	final int tables = components.length > 1 ? 2 : 1;
+	final int[][] dcFrequencies = new int[tables][257], acFrequencies = new int[tables][257];
+	for (int c = 0; c < outComponents.length; ++c) {
+	    outComponents[c].table = Math.min(c, tables - 1);
+	}
+	final ScanWriter counter = new ScanWriter(null, dcFrequencies, acFrequencies, null, null);
+	writeScan(counter, outComponents, outWidth, outHeight, destMaxH, destMaxV);
+	final HuffmanEncoder[] dcEncoders = new HuffmanEncoder[tables], acEncoders = new HuffmanEncoder[tables];
+	for (int t = 0; t < tables; ++t) {
+	    dcEncoders[t] = new HuffmanEncoder(dcFrequencies[t]);
+	    acEncoders[t] = new HuffmanEncoder(acFrequencies[t]);
+	}
+
+	// 輸出
+	out.write(0xFF);
+	out.write(0xD8);
+	for (final byte[] segment : segments) {
+	    if (resetOrientation && (segment[1] & 0xFF) == 0xE1 && segment.length > 10 && segment[4] == 'E' && segment[5] == 'x' && segment[6] == 'i' && segment[7] == 'f') {
+		final byte[] patched = segment.clone();
+		resetOrientation(patched);
+		out.write(patched);
+	    } else {
+		out.write(segment);
+	    }
+	}
+	for (int t = 0; t < 4; ++t) {
+	    boolean used = false;
+	    for (final Component component : outComponents) {
+		used |= component.tq == t;
+	    }
+	    if (!used || quantizationTables[t] == null) {
+		continue;
+	    }
+	    final int precision = quantizationPrecisions[t];
+	    final int length = 2 + 1 + 64 * (precision + 1);
+	    writeMarker(out, 0xDB, length);
+	    out.write((precision << 4) | t);
+	    final int[] table = quantizationTables[t];
+	    for (int k = 0; k < 64; ++k) {
+		final int natural = NATURAL_ORDER[k];
+		// 交換行和列時，量化表也要轉置
+		final int value = table[transform.transpose ? ((natural & 7) << 3) | (natural >> 3) : natural];
+		if (precision != 0) {
+		    out.write(value >> 8);
+		}
+		out.write(value);
+	    }
+	}
+	writeMarker(out, frameMarker, 2 + 6 + 3 * outComponents.length);
+	out.write(8);
+	out.write(outHeight >> 8);
+	out.write(outHeight);
+	out.write(outWidth >> 8);
+	out.write(outWidth);
+	out.write(outComponents.length);
+	for (final Component component : outComponents) {
+	    out.write(component.id);
+	    out.write((component.h << 4) | component.v);
+	    out.write(component.tq);
+	}
+	for (int t = 0; t < tables; ++t) {
+	    dcEncoders[t].write(out, 0x00 | t);
+	    acEncoders[t].write(out, 0x10 | t);
+	}
+	writeMarker(out, 0xDA, 2 + 1 + 2 * outComponents.length + 3);
+	out.write(outComponents.length);
+	for (final Component component : outComponents) {
+	    out.write(component.id);
+	    out.write((component.table << 4) | component.table);
+	}
+	out.write(0);
+	out.write(63);
+	out.write(0);
+	final ScanWriter writer = new ScanWriter(out, null, null, dcEncoders, acEncoders);
+	writeScan(writer, outComponents, outWidth, outHeight, destMaxH, destMaxV);
+	writer.flush();
+	out.write(0xFF);
+	out.write(0xD9);
+    }
+
+    /**
+     * 寫出(或統計)一個掃描的所有區塊。
+     *
+     * @param writer 傳入ScanWriter物件
+     * @param outComponents 傳入色彩元件
+     * @param outWidth 傳入圖片寬度
+     * @param outHeight 傳入圖片高度
+     * @param outMaxH 傳入最大的水平取樣係數
+     * @param outMaxV 傳入最大的垂直取樣係數
+     * @throws IOException 輸出失敗時拋出
+     */
+    private static void writeScan(final ScanWriter writer, final Component[] outComponents, final int outWidth, final int outHeight, final int outMaxH, final int outMaxV) throws IOException {
+	for (final Component component : outComponents) {
+	    component.prediction = 0;
+	}
+	if (outComponents.length == 1) {
+	    final Component component = outComponents[0];
+	    final int blocksX = ceilDiv(ceilDiv(outWidth * component.h, outMaxH), 8), blocksY = ceilDiv(ceilDiv(outHeight * component.v, outMaxV), 8);
+	    for (int by = 0; by < blocksY; ++by) {
+		for (int bx = 0; bx < blocksX; ++bx) {
+		    writer.writeBlock(component, (by * component.blocksWide + bx) * 64);
+		}
+	    }
+	} else {
+	    final int mcusX = ceilDiv(outWidth, 8 * outMaxH), mcusY = ceilDiv(outHeight, 8 * outMaxV);
+	    for (int my = 0; my < mcusY; ++my) {
+		for (int mx = 0; mx < mcusX; ++mx) {
+		    for (final Component component : outComponents) {
+			for (int v = 0; v < component.v; ++v) {
+			    for (int h = 0; h < component.h; ++h) {
+				writer.writeBlock(component, ((my * component.v + v) * component.blocksWide + mx * component.h + h) * 64);
+			    }
+			}
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * 轉換一個區塊的DCT係數。左右反轉會讓奇數的水平頻率變號，上下反轉會讓奇數的垂直頻率變號，交換行和列則轉置係數矩陣。
+     *
+     * @param source 傳入來源的係數陣列
+     * @param sourceOffset 傳入來源區塊的位置
+     * @param dest 傳入目標的係數陣列
+     * @param destOffset 傳入目標區塊的位置
+     * @param transform 傳入轉換方式
+     */
+    private static void transformBlock(final short[] source, final int sourceOffset, final short[] dest, final int destOffset, final Transform transform) {
+	for (int v = 0; v < 8; ++v) {
+	    for (int u = 0; u < 8; ++u) {
+		int value = source[sourceOffset + (v << 3) + u];
+		if ((transform.reverse && (u & 1) == 1) ^ (transform.flip && (v & 1) == 1)) {
+		    value = -value;
+		}
+		dest[destOffset + (transform.transpose ? (u << 3) + v : (v << 3) + u)] = (short) value;
+	    }
+	}
+    }
+
+    /**
+     * 寫出標記和長度。
+     *
+     * @param out 傳入輸出串流
+     * @param marker 傳入標記
+     * @param length 傳入長度
+     * @throws IOException 輸出失敗時拋出
+     */
+    private static void writeMarker(final OutputStream out, final int marker, final int length) throws IOException {
+	out.write(0xFF);
+	out.write(marker);
+	out.write(length >> 8);
+	out.write(length);
+    }
+
+    // -----內部類別-----
+    /**
+     * 色彩元件。
+     */
+    private static final class Component {
+
+	/**
+	 * 元件編號。
+	 */
+	int id;
+	/**
+	 * 水平取樣係數。
+	 */
+	int h;
+	/**
+	 * 垂直取樣係數。
+	 */
+	int v;
+	/**
+	 * 量化表編號。
+	 */
+	int tq;
+	/**
+	 * 輸出時使用的霍夫曼表編號。
+	 */
+	int table;
+	/**
+	 * 水平的區塊數量(補滿MCU)。
+	 */
+	int blocksWide;
+	/**
+	 * 垂直的區塊數量(補滿MCU)。
+	 */
+	int blocksHigh;
+	/**
+	 * 所有區塊的DCT係數，每個區塊64個，自然順序。
+	 */
+	short[] coefficients;
+	/**
+	 * DC的預測值。
+	 */
+	int prediction;
+	/**
+	 * 解碼DC用的霍夫曼表。
+	 */
+	HuffmanDecoder dcDecoder;
+	/**
+	 * 解碼AC用的霍夫曼表。
+	 */
+	HuffmanDecoder acDecoder;
+    }
+
+    /**
+     * 霍夫曼解碼表。
+     */
+    private static final class HuffmanDecoder {
+
+	/**
+	 * 前8個位元的查找表，值為(碼長 &lt;&lt; 8) | 符號，0表示碼長超過8。
+	 */
+	final int[] lookup = new int[256];
+	/**
+	 * 各碼長的最大碼。
+	 */
+	final int[] maxCode = new int[18];
+	/**
+	 * 各碼長的第一個碼在符號陣列中的位置減去最小碼。
+	 */
+	final int[] valueOffset = new int[17];
+	/**
+	 * 符號。
+	 */
+	final int[] values;
+
+	/**
+	 * 建構子。
+	 *
+	 * @param counts 傳入各碼長的碼的數量
+	 * @param values 傳入符號
+	 */
+	HuffmanDecoder(final int[] counts, final int[] values) {
+	    this.values = values;
+	    int code = 0, index = 0;
+	    for (int length = 1; length <= 16; ++length) {
+		valueOffset[length] = index - code;
+		for (int i = 0; i < counts[length]; ++i) {
+		    if (length <= 8) {
+			final int shift = 8 - length;
+			for (int j = 0; j < (1 << shift); ++j) {
+			    lookup[(code << shift) | j] = (length << 8) | values[index];
+			}
+		    }
+		    ++code;
+		    ++index;
+		}
+		maxCode[length] = counts[length] > 0 ? code - 1 : -1;
+		code <<= 1;
+	    }
+	    maxCode[17] = Integer.MAX_VALUE;
+	}
+    }
+
+    /**
+     * 讀取熵編碼資料的位元，會處理0xFF00的填充和標記。
+     */
+    private static final class BitReader {
+
+	/**
+	 * JPEG檔案的資料。
+	 */
+	private final byte[] data;
+	/**
+	 * 目前的位置。
+	 */
+	private int position;
+	/**
+	 * 位元緩衝區，有效的位元靠左對齊。
+	 */
+	private long buffer;
+	/**
+	 * 位元緩衝區中的位元數。
+	 */
+	private int bits;
+	/**
+	 * 是否已經遇到標記。
+	 */
+	private boolean markerReached;
+
+	/**
+	 * 建構子。
+	 *
+	 * @param data 傳入JPEG檔案的資料
+	 * @param position 傳入熵編碼資料的開始位置
+	 */
+	BitReader(final byte[] data, final int position) {
+	    this.data = data;
+	    this.position = position;
+	}
+
+	/**
+	 * 填滿位元緩衝區。遇到標記之後會補0。
+	 */
+	private void fill() {
+	    while (bits <= 56) {
+		int b = 0;
+		if (!markerReached) {
+		    if (position >= data.length) {
+			markerReached = true;
+		    } else {
+			b = data[position] & 0xFF;
+			if (b == 0xFF) {
+			    final int next = position + 1 < data.length ? data[position + 1] & 0xFF : 0xD9;
+			    if (next == 0) {
+				position += 2;
+			    } else {
+				markerReached = true;
+				b = 0;
+			    }
+			} else {
+			    ++position;
+			}
+		    }
+		}
+		buffer |= (long) b << (56 - bits);
+		bits += 8;
+	    }
+	}
+
+	/**
+	 * 讀取位元。
+	 *
+	 * @param n 傳入位元數(1~16)
+	 * @return 傳回位元
+	 */
+	int get(final int n) {
+	    if (bits < n) {
+		fill();
+	    }
+	    final int value = (int) (buffer >>> (64 - n));
+	    buffer <<= n;
+	    bits -= n;
+	    return value;
+	}
+
+	/**
+	 * 解碼一個霍夫曼符號。
+	 *
+	 * @param decoder 傳入霍夫曼解碼表
+	 * @return 傳回符號
+	 * @throws IOException 資料不正確時拋出
+	 */
+	int decode(final HuffmanDecoder decoder) throws IOException {
+	    if (bits < 16) {
+		fill();
+	    }
+	    final int entry = decoder.lookup[(int) (buffer >>> 56)];
+	    if (entry != 0) {
+		final int length = entry >> 8;
+		buffer <<= length;
+		bits -= length;
+		return entry & 0xFF;
+	    }
+	    for (int length = 9; length <= 16; ++length) {
+		final int code = (int) (buffer >>> (64 - length));
+		if (code <= decoder.maxCode[length]) {
+		    buffer <<= length;
+		    bits -= length;
+		    return decoder.values[decoder.valueOffset[length] + code];
+		}
+	    }
+	    throw new IOException("Invalid Huffman code.");
+	}
+
+	/**
+	 * 讀取數值的位元並轉成有號數。
+	 *
+	 * @param size 傳入位元數
+	 * @return 傳回數值
+	 */
+	int receiveExtend(final int size) {
+	    final int value = get(size);
+	    return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+	}
+
+	/**
+	 * 處理RST標記，捨棄剩下的位元。
+	 */
+	void restart() {
+	    buffer = 0;
+	    bits = 0;
+	    markerReached = false;
+	    position = nextMarker();
+	    if (position + 1 < data.length && (data[position + 1] & 0xFF) >= 0xD0 && (data[position + 1] & 0xFF) <= 0xD7) {
+		position += 2;
+	    }
+	}
+
+	/**
+	 * 尋找下一個標記的位置。
+	 *
+	 * @return 傳回標記的位置
+	 */
+	int nextMarker() {
+	    int p = position;
+	    while (p + 1 < data.length && !((data[p] & 0xFF) == 0xFF && (data[p + 1] & 0xFF) != 0 && (data[p + 1] & 0xFF) != 0xFF)) {
+		++p;
+	    }
+	    return p;
+	}
+    }
+
+    /**
+     * 霍夫曼編碼表，由符號的出現次數建立最佳化的碼長(ITU T.81 K.2)。
+     */
+    private static final class HuffmanEncoder {
+
+	/**
+	 * 各碼長的碼的數量。
+	 */
+	final int[] counts = new int[17];
+	/**
+	 * 符號，依照碼長排列。
+	 */
+	final int[] values;
+	/**
+	 * 各符號的碼。
+	 */
+	final int[] codes = new int[256];
+	/**
+	 * 各符號的碼長。
+	 */
+	final int[] lengths = new int[256];
+
+	/**
+	 * 建構子。
+	 *
+	 * @param frequencies 傳入長度為257的符號出現次數，會被修改
+	 */
+	HuffmanEncoder(final int[] frequencies) {
+	    final int[] codeSize = new int[257];
+	    final int[] others = new int[257];
+	    Arrays.fill(others, -1);
+	    frequencies[256] = 1; // 保留一個碼，避免出現全部是1的碼
+	    while (true) {
+		int c1 = -1, c2 = -1;
+		long v1 = Long.MAX_VALUE, v2 = Long.MAX_VALUE;
+		for (int i = 0; i <= 256; ++i) {
+		    final int f = frequencies[i];
+		    if (f > 0) {
+			if (f <= v1) {
+			    v2 = v1;
+			    c2 = c1;
+			    v1 = f;
+			    c1 = i;
+			} else if (f <= v2) {
+			    v2 = f;
+			    c2 = i;
+			}
+		    }
+		}
+		if (c2 < 0) {
+		    break;
+		}
+		frequencies[c1] += frequencies[c2];
+		frequencies[c2] = 0;
+		++codeSize[c1];
+		while (others[c1] >= 0) {
+		    c1 = others[c1];
+		    ++codeSize[c1];
+		}
+		others[c1] = c2;
+		++codeSize[c2];
+		while (others[c2] >= 0) {
+		    c2 = others[c2];
+		    ++codeSize[c2];
+		}
+	    }
+	    final int[] bits = new int[33];
+	    for (int i = 0; i <= 256; ++i) {
+		if (codeSize[i] > 0) {
+		    ++bits[codeSize[i]];
+		}
+	    }
+	    // 限制碼長不超過16
+	    for (int i = 32; i > 16; --i) {
+		while (bits[i] > 0) {
+		    int j = i - 2;
+		    while (bits[j] == 0) {
+			--j;
+		    }
+		    bits[i] -= 2;
+		    ++bits[i - 1];
+		    bits[j + 1] += 2;
+		    --bits[j];
+		}
+	    }
+	    // 移除保留的碼
+	    int last = 16;
+	    while (bits[last] == 0) {
+		--last;
+	    }
+	    --bits[last];
+	    System.arraycopy(bits, 1, counts, 1, 16);
+	    int total = 0;
+	    for (int i = 1; i <= 16; ++i) {
+		total += counts[i];
+	    }
+	    values = new int[total];
+	    int index = 0;
+	    for (int size = 1; size <= 32 && index < total; ++size) {
+		for (int symbol = 0; symbol < 256 && index < total; ++symbol) {
+		    if (codeSize[symbol] == size) {
+			values[index++] = symbol;
+		    }
+		}
+	    }
+	    int code = 0;
+	    index = 0;
+	    for (int length = 1; length <= 16; ++length) {
+		for (int i = 0; i < counts[length]; ++i) {
+		    codes[values[index]] = code++;
+		    lengths[values[index]] = length;
+		    ++index;
+		}
+		code <<= 1;
+	    }
+	}
+
+	/**
+	 * 寫出DHT區段。
+	 *
+	 * @param out 傳入輸出串流
+	 * @param tableId 傳入表的類別和編號
+	 * @throws IOException 輸出失敗時拋出
+	 */
+	void write(final OutputStream out, final int tableId) throws IOException {
+	    writeMarker(out, 0xC4, 2 + 1 + 16 + values.length);
+	    out.write(tableId);
+	    for (int i = 1; i <= 16; ++i) {
+		out.write(counts[i]);
+	    }
+	    for (final int value : values) {
+		out.write(value);
+	    }
+	}
+    }
+
+    /**
+     * 寫出熵編碼資料，或是只統計符號的出現次數。
+     */
+    private static final class ScanWriter {
+
+	/**
+	 * 輸出串流，若為null，則只統計符號。
+	 */
+	private final OutputStream out;
+	/**
+	 * DC符號的出現次數。
+	 */
+	private final int[][] dcFrequencies;
+	/**
+	 * AC符號的出現次數。
+	 */
+	private final int[][] acFrequencies;
+	/**
+	 * DC的霍夫曼編碼表。
+	 */
+	private final HuffmanEncoder[] dcEncoders;
+	/**
+	 * AC的霍夫曼編碼表。
+	 */
+	private final HuffmanEncoder[] acEncoders;
+	/**
+	 * 位元緩衝區。
+	 */
+	private int buffer;
+	/**
+	 * 位元緩衝區中的位元數。
+	 */
+	private int bits;
+
+	/**
+	 * 建構子。
+	 *
+	 * @param out 傳入輸出串流，若為null，則只統計符號
+	 * @param dcFrequencies 傳入DC符號的出現次數
+	 * @param acFrequencies 傳入AC符號的出現次數
+	 * @param dcEncoders 傳入DC的霍夫曼編碼表
+	 * @param acEncoders 傳入AC的霍夫曼編碼表
+	 */
+	ScanWriter(final OutputStream out, final int[][] dcFrequencies, final int[][] acFrequencies, final HuffmanEncoder[] dcEncoders, final HuffmanEncoder[] acEncoders) {
+	    this.out = out;
+	    this.dcFrequencies = dcFrequencies;
+	    this.acFrequencies = acFrequencies;
+	    this.dcEncoders = dcEncoders;
+	    this.acEncoders = acEncoders;
+	}
+
+	/**
+	 * 寫出一個區塊。
+	 *
+	 * @param component 傳入色彩元件
+	 * @param offset 傳入區塊在係數陣列中的位置
+	 * @throws IOException 輸出失敗時拋出
+	 */
+	void writeBlock(final Component component, final int offset) throws IOException {
+	    final short[] coefficients = component.coefficients;
+	    final int table = component.table;
+	    final int dc = coefficients[offset];
+	    final int diff = dc - component.prediction;
+	    component.prediction = dc;
+	    final int dcSize = bitSize(diff);
+	    if (out == null) {
+		++dcFrequencies[table][dcSize];
+	    } else {
+		writeSymbol(dcEncoders[table], dcSize);
+		if (dcSize > 0) {
+		    writeBits(diff < 0 ? diff - 1 : diff, dcSize);
+		}
+	    }
+	    int run = 0;
+	    for (int k = 1; k < 64; ++k) {
+		final int value = coefficients[offset + NATURAL_ORDER[k]];
+		if (value == 0) {
+		    ++run;
+		    continue;
+		}
+		while (run > 15) {
+		    if (out == null) {
+			++acFrequencies[table][0xF0];
+		    } else {
+			writeSymbol(acEncoders[table], 0xF0);
+		    }
+		    run -= 16;
+		}
+		final int size = bitSize(value);
+		if (out == null) {
+		    ++acFrequencies[table][(run << 4) | size];
+		} else {
+		    writeSymbol(acEncoders[table], (run << 4) | size);
+		    writeBits(value < 0 ? value - 1 : value, size);
+		}
+		run = 0;
+	    }
+	    if (run > 0) {
+		if (out == null) {
+		    ++acFrequencies[table][0];
+		} else {
+		    writeSymbol(acEncoders[table], 0);
+		}
+	    }
+	}
+
+	/**
+	 * 寫出霍夫曼符號。
+	 *
+	 * @param encoder 傳入霍夫曼編碼表
+	 * @param symbol 傳入符號
+	 * @throws IOException 輸出失敗時拋出
+	 */
+	private void writeSymbol(final HuffmanEncoder encoder, final int symbol) throws IOException {
+	    writeBits(encoder.codes[symbol], encoder.lengths[symbol]);
+	}
+
+	/**
+	 * 寫出位元。輸出0xFF時會補上0x00。
+	 *
+	 * @param value 傳入位元，只使用低位的length個位元
+	 * @param length 傳入位元數
+	 * @throws IOException 輸出失敗時拋出
+	 */
+	private void writeBits(final int value, final int length) throws IOException {
+	    buffer = (buffer << length) | (value & ((1 << length) - 1));
+	    bits += length;
+	    while (bits >= 8) {
+		final int b = (buffer >> (bits - 8)) & 0xFF;
+		out.write(b);
+		if (b == 0xFF) {
+		    out.write(0);
+		}
+		bits -= 8;
+	    }
+	}
+
+	/**
+	 * 用1補滿最後一個位元組。
+	 *
+	 * @throws IOException 輸出失敗時拋出
+	 */
+	void flush() throws IOException {
+	    if (bits > 0) {
+		writeBits(0x7F, 8 - bits);
+	    }
+	}
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.apache.commons.imaging.common.bytesource.ByteSource;
+
+/**
+ * 以ByteBuffer(通常是記憶體映射的檔案)作為Commons Imaging的資料來源。讀取時只會複製被要求的區塊，不會事先將整個檔案讀進記憶體。
+ *
+ * @author Magic Len
+ */
+final class MappedByteSource extends ByteSource {
+
+    // -----物件常數-----
+    /**
+     * 資料，位置0為檔案的開頭。
+     */
+    private final ByteBuffer buffer;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param buffer 傳入資料，位置0為檔案的開頭
+     * @param filename 傳入檔案名稱，可以為null
+     */
+    MappedByteSource(final ByteBuffer buffer, final String filename) {
+	super(filename);
+	this.buffer = buffer.duplicate();
+	this.buffer.clear();
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得資料。
+     *
+     * @return 傳回唯讀的資料，位置0為檔案的開頭
+     */
+    ByteBuffer getBuffer() {
+	return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+	final ByteBuffer b = buffer.duplicate();
+	return new InputStream() {
+	    @Override
+	    public int read() {
+		return b.hasRemaining() ? b.get() & 0xFF : -1;
+	    }
+
+	    @Override
+	    public int read(final byte[] bytes, final int offset, final int length) {
+		if (length == 0) {
+		    return 0;
+		}
+		if (!b.hasRemaining()) {
+		    return -1;
+		}
+		final int n = Math.min(length, b.remaining());
+		b.get(bytes, offset, n);
+		return n;
+	    }
+
+	    @Override
+	    public long skip(final long n) {
+		final int skipped = (int) Math.max(0, Math.min(n, b.remaining()));
+		b.position(b.position() + skipped);
+		return skipped;
+	    }
+
+	    @Override
+	    public int available() {
+		return b.remaining();
+	    }
+	};
+    }
+
+    @Override
+    public byte[] getBlock(final long start, final int length) throws IOException {
+	if (start < 0 || length < 0 || start + length > buffer.limit()) {
+	    throw new IOException("Could not read block (block start: " + start + ", block length: " + length + ", data length: " + buffer.limit() + ").");
+	}
+	final byte[] block = new byte[length];
+	final ByteBuffer b = buffer.duplicate();
+	b.position((int) start);
+	b.get(block);
+	return block;
+    }
+
+    @Override
+    public byte[] getAll() throws IOException {
+	final byte[] all = new byte[buffer.limit()];
+	buffer.duplicate().get(all);
+	return all;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+	return buffer.limit();
+    }
+
+    @Override
+    public String getDescription() {
+	return buffer.limit() + " byte buffer";
+    }
+}
@@ -0,0 +1,838 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.apache.commons.imaging.ImageWriteException;
+import org.apache.commons.imaging.common.RationalNumber;
+import org.apache.commons.imaging.formats.tiff.constants.TiffDirectoryType;
+import org.apache.commons.imaging.formats.tiff.fieldtypes.FieldType;
+import org.apache.commons.imaging.formats.tiff.taginfos.TagInfo;
+import org.magiclen.json.JSONArray;
+import org.magiclen.json.JSONObject;
+
+/**
+ * 不重新編碼像素，只改寫圖片檔案的Metadata。JPEG檔案會逐一複製APPn區段，PNG檔案會逐一複製區塊，TIFF檔案則直接修補IFD。影像資料都使用FileChannel的transferTo直接複製，不會讀進記憶體。
+ *
+ * @author Magic Len
+ * @see ImageMetadata
+ */
+final class MetadataRewriter {
+
+    // -----類別列舉-----
+    /**
+     * 支援的檔案格式。
+     */
+    enum Format {
+	JPEG, PNG, TIFF
+    }
+
+    // -----類別介面-----
+    /**
+     * 從來源的FileChannel改寫到目標的FileChannel。
+     */
+    interface Rewriting {
+
+	/**
+	 * 改寫檔案。
+	 *
+	 * @param in 傳入來源的FileChannel
+	 * @param out 傳入目標的FileChannel，可讀可寫，位置在檔案開頭
+	 * @throws IOException 改寫失敗時拋出
+	 */
+	void rewrite(FileChannel in, FileChannel out) throws IOException;
+    }
+
+    // -----類別常數-----
+    /**
+     * PNG的檔頭。
+     */
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    /**
+     * JPEG的APP1區段中，EXIF的識別字。
+     */
+    private static final byte[] EXIF_IDENTIFIER = {'E', 'x', 'i', 'f', 0, 0};
+    /**
+     * JPEG的APP0區段中，JFIF的識別字。
+     */
+    private static final byte[] JFIF_IDENTIFIER = {'J', 'F', 'I', 'F', 0};
+    /**
+     * JPEG的APP2區段中，ICC色彩描述檔的識別字。
+     */
+    private static final byte[] ICC_IDENTIFIER = {'I', 'C', 'C', '_', 'P', 'R', 'O', 'F', 'I', 'L', 'E', 0};
+    /**
+     * 移除Metadata時，PNG中要移除的區塊。色彩相關的區塊(gAMA、cHRM、sRGB、iCCP)和透明色(tRNS)會被保留。
+     */
+    private static final HashSet<String> PNG_METADATA_CHUNKS = new HashSet<>(Arrays.asList("tEXt", "zTXt", "iTXt", "eXIf", "tIME"));
+    /**
+     * 移除Metadata時，TIFF中要從IFD移除的標籤，已排序。
+     */
+    private static final int[] TIFF_METADATA_TAGS = {
+	0x010E, // ImageDescription
+	0x010F, // Make
+	0x0110, // Model
+	0x0131, // Software
+	0x0132, // DateTime
+	0x013B, // Artist
+	0x013C, // HostComputer
+	0x02BC, // XMP
+	0x8298, // Copyright
+	0x83BB, // IPTC
+	0x8649, // Photoshop
+	0x8769, // ExifOffset
+	0x8825, // GPSInfo
+	0x9C9B, // XPTitle
+	0x9C9C, // XPComment
+	0x9C9D, // XPAuthor
+	0x9C9E, // XPKeywords
+	0x9C9F // XPSubject
+    };
+    /**
+     * 指向子目錄的標籤，已排序。
+     */
+    private static final int[] SUB_DIRECTORY_TAGS = {0x8769, 0x8825, 0xA005};
+    /**
+     * 描述檔案結構的標籤，寫入Metadata時會忽略，已排序。
+     */
+    private static final int[] STRUCTURE_TAGS = {0x0111, 0x0117, 0x0144, 0x0145, 0x0201, 0x0202, 0x8769, 0x8825, 0xA005};
+    /**
+     * TIFF檔案的IFD0中描述影像資料的標籤，寫入Metadata時會忽略，已排序。
+     */
+    private static final int[] IMAGE_TAGS = {0x00FE, 0x00FF, 0x0100, 0x0101, 0x0102, 0x0103, 0x0106, 0x0107, 0x0108, 0x0109, 0x010A, 0x0111, 0x0115, 0x0116, 0x0117, 0x0118, 0x0119, 0x011C, 0x0122, 0x0123, 0x0124, 0x0125, 0x013D, 0x0140, 0x0142, 0x0143, 0x0144, 0x0145, 0x0147, 0x014A, 0x014C, 0x0152, 0x0153, 0x0154, 0x0155, 0x015B, 0x0200, 0x0201, 0x0202, 0x0211, 0x0212, 0x0213, 0x0214};
+    /**
+     * GPS以外的目錄，欄位原本所在的目錄和標籤資訊不同時，依照此順序尋找。
+     */
+    private static final int[] GENERAL_DIRECTORIES = {ImageExif.DIRECTORY_IFD0, ImageExif.DIRECTORY_EXIF, ImageExif.DIRECTORY_INTEROP};
+    /**
+     * 各欄位類型每個值的位元組數，索引為TIFF的欄位類型編號。
+     */
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    // -----類別方法-----
+    /**
+     * 判斷檔案格式。
+     *
+     * @param channel 傳入FileChannel
+     * @return 傳回檔案格式，若不支援，傳回null
+     * @throws IOException 讀取失敗時拋出
+     */
+    static Format detect(final FileChannel channel) throws IOException {
+	final ByteBuffer header = ByteBuffer.allocate(8);
+	final int length = ImageExif.readFully(channel, header, 0);
+	if (length >= 2 && (header.get(0) & 0xFF) == 0xFF && (header.get(1) & 0xFF) == 0xD8) {
+	    return Format.JPEG;
+	}
+	if (length == 8 && Arrays.equals(header.array(), PNG_SIGNATURE)) {
+	    return Format.PNG;
+	}
+	if (length >= 4 && ((header.get(0) == 'I' && header.get(1) == 'I' && header.get(2) == 42 && header.get(3) == 0) || (header.get(0) == 'M' && header.get(1) == 'M' && header.get(2) == 0 && header.get(3) == 42))) {
+	    return Format.TIFF;
+	}
+	return null;
+    }
+
+    /**
+     * 改寫檔案。先寫到目標檔案所在目錄中的暫存檔，完成後再以原子操作取代目標檔案，因此目標檔案可以和來源檔案相同。目標檔案原本的權限會被保留，新的目標檔案則使用預設的權限。
+     *
+     * @param file 傳入來源檔案
+     * @param outputFile 傳入目標檔案
+     * @param rewriting 傳入改寫的方式
+     * @throws IOException 改寫失敗時拋出
+     */
+    static void rewrite(final File file, final File outputFile, final Rewriting rewriting) throws IOException {
+	final Path target = outputFile.getAbsoluteFile().toPath();
+	final Path temp = createTempFile(target, "." + target.getFileName() + "-", ".tmp");
+	try {
+	    try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ); FileChannel out = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+		rewriting.rewrite(in, out);
+		out.force(true);
+	    }
+	    move(temp, target);
+	} finally {
+	    Files.deleteIfExists(temp);
+	}
+    }
+
+    /**
+     * 在目標檔案所在的目錄中建立用來取代目標檔案的暫存檔。暫存檔和一般建立的檔案一樣使用受umask影響的預設權限；若目標檔案已經存在，則改用目標檔案的POSIX權限，因此以暫存檔取代目標檔案之後，權限不會改變。
+     *
+     * @param target 傳入目標檔案的路徑
+     * @param prefix 傳入暫存檔名稱的前綴，至少3個字元
+     * @param suffix 傳入暫存檔名稱的後綴
+     * @return 傳回暫存檔的路徑
+     * @throws IOException 建立失敗時拋出
+     */
+    static Path createTempFile(final Path target, final String prefix, final String suffix) throws IOException {
+	// Files.createTempFile的權限固定為0600，File.createTempFile才會使用預設權限
+	final Path temp = File.createTempFile(prefix, suffix, target.getParent().toFile()).toPath();
+	try {
+	    if (Files.exists(target) && Files.getFileAttributeView(target, PosixFileAttributeView.class) != null) {
+		Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+	    }
+	} catch (final IOException | RuntimeException ex) {
+	    Files.deleteIfExists(temp);
+	    throw ex;
+	}
+	return temp;
+    }
+
+    /**
+     * 以原子操作移動檔案並取代目標檔案。若檔案系統不支援原子操作，則使用一般的移動。
+     *
+     * @param source 傳入來源路徑
+     * @param target 傳入目標路徑
+     * @throws IOException 移動失敗時拋出
+     */
+    static void move(final Path source, final Path target) throws IOException {
+	try {
+	    Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	} catch (final AtomicMoveNotSupportedException ex) {
+	    Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+    }
+
+    /**
+     * 改寫JPEG檔案的APPn區段，SOS之後的影像資料直接複製。
+     *
+     * @param in 傳入來源的FileChannel
+     * @param out 傳入目標的FileChannel
+     * @param exif 傳入新的EXIF(TIFF結構)，若為null，則保留原本的EXIF(strip為false時)
+     * @param strip 傳入是否移除EXIF、XMP、IPTC、註解等Metadata，JFIF、ICC色彩描述檔和Adobe區段會被保留
+     * @throws IOException 改寫失敗時拋出
+     */
+    static void rewriteJPEG(final FileChannel in, final FileChannel out, final byte[] exif, final boolean strip) throws IOException {
+	if (exif != null && exif.length + EXIF_IDENTIFIER.length + 2 > 0xFFFF) {
+	    throw new IOException("The EXIF data is too large for a JPEG APP1 segment.");
+	}
+	write(out, new byte[]{(byte) 0xFF, (byte) 0xD8});
+	final ByteBuffer marker = ByteBuffer.allocate(4);
+	final long size = in.size();
+	long position = 2;
+	boolean exifWritten = exif == null;
+	while (true) {
+	    marker.clear();
+	    if (ImageExif.readFully(in, marker, position) < 2 || (marker.get(0) & 0xFF) != 0xFF) {
+		throw new IOException("Invalid JPEG marker.");
+	    }
+	    final int type = marker.get(1) & 0xFF;
+	    if (type == 0xFF) {
+		// 填充的位元組
+		++position;
+		continue;
+	    }
+	    if (type == 0x01 || (type >= 0xD0 && type <= 0xD7)) {
+		// 沒有長度的標記
+		transfer(in, position, 2, out);
+		position += 2;
+		continue;
+	    }
+	    if (type == 0xDA || type == 0xD9) {
+		if (!exifWritten) {
+		    writeJPEGExif(out, exif);
+		}
+		// 影像資料不必解析，直接複製到檔案結尾
+		transfer(in, position, size - position, out);
+		return;
+	    }
+	    if (marker.position() < 4) {
+		throw new IOException("Invalid JPEG marker.");
+	    }
+	    final int length = marker.getShort(2) & 0xFFFF;
+	    if (length < 2 || position + 2 + length > size) {
+		throw new IOException("Invalid JPEG segment length.");
+	    }
+	    boolean keep = true, isExif = false;
+	    if ((type >= 0xE0 && type <= 0xEF) || type == 0xFE) {
+		final ByteBuffer identifier = ByteBuffer.allocate(Math.min(length - 2, ICC_IDENTIFIER.length));
+		ImageExif.readFully(in, identifier, position + 4);
+		final byte[] id = identifier.array();
+		if (type == 0xE1 && startsWith(id, EXIF_IDENTIFIER)) {
+		    isExif = true;
+		    keep = exif == null && !strip;
+		} else if (strip) {
+		    keep = (type == 0xE0 && startsWith(id, JFIF_IDENTIFIER)) || (type == 0xE2 && startsWith(id, ICC_IDENTIFIER)) || type == 0xEE;
+		}
+	    }
+	    if (!exifWritten && (isExif || type != 0xE0)) {
+		// EXIF放在JFIF之後，或是原本EXIF的位置
+		writeJPEGExif(out, exif);
+		exifWritten = true;
+	    }
+	    if (keep) {
+		transfer(in, position, 2 + length, out);
+	    }
+	    position += 2 + length;
+	}
+    }
+
+    /**
+     * 改寫PNG檔案的附屬區塊，其它區塊直接複製。
+     *
+     * @param in 傳入來源的FileChannel
+     * @param out 傳入目標的FileChannel
+     * @param exif 傳入新的EXIF(TIFF結構)，若為null，則保留原本的eXIf區塊(strip為false時)
+     * @param strip 傳入是否移除文字、時間和EXIF等Metadata區塊
+     * @throws IOException 改寫失敗時拋出
+     */
+    static void rewritePNG(final FileChannel in, final FileChannel out, final byte[] exif, final boolean strip) throws IOException {
+	write(out, PNG_SIGNATURE);
+	final ByteBuffer header = ByteBuffer.allocate(8);
+	final long size = in.size();
+	long position = PNG_SIGNATURE.length;
+	boolean exifWritten = exif == null;
+	while (position + 12 <= size) {
+	    header.clear();
+	    ImageExif.readFully(in, header, position);
+	    final long length = header.getInt(0) & 0xFFFFFFFFL;
+	    final String type = new String(header.array(), 4, 4, StandardCharsets.US_ASCII);
+	    if (position + 12 + length > size) {
+		throw new IOException("Invalid PNG chunk length.");
+	    }
+	    if (!exifWritten && (type.equals("IDAT") || type.equals("IEND"))) {
+		writePNGChunk(out, "eXIf", exif);
+		exifWritten = true;
+	    }
+	    final boolean keep;
+	    if (type.equals("eXIf")) {
+		keep = exif == null && !strip;
+	    } else {
+		keep = !strip || !PNG_METADATA_CHUNKS.contains(type);
+	    }
+	    if (keep) {
+		transfer(in, position, 12 + length, out);
+	    }
+	    position += 12 + length;
+	    if (type.equals("IEND")) {
+		break;
+	    }
+	}
+    }
+
+    /**
+     * 複製TIFF檔案，並修補每個IFD，移除Metadata的欄位。被移除的欄位的值和Exif、GPS子目錄都會被清為0，影像資料的位置不變。
+     *
+     * @param in 傳入來源的FileChannel
+     * @param out 傳入目標的FileChannel
+     * @param keepOrientation 傳入是否保留方向(Orientation)欄位
+     * @throws IOException 改寫失敗時拋出
+     */
+    static void stripTIFF(final FileChannel in, final FileChannel out, final boolean keepOrientation) throws IOException {
+	transfer(in, 0, in.size(), out);
+	final ByteBuffer header = ByteBuffer.allocate(8);
+	ImageExif.readFully(out, header, 0);
+	header.order(header.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	final HashSet<Long> visited = new HashSet<>();
+	long offset = header.getInt(4) & 0xFFFFFFFFL;
+	while (offset != 0 && visited.size() < 1024) {
+	    offset = stripTIFFDirectory(out, header.order(), offset, visited, keepOrientation);
+	}
+    }
+
+    /**
+     * 修補一個IFD，移除Metadata的欄位。
+     *
+     * @param channel 傳入FileChannel
+     * @param order 傳入位元組順序
+     * @param offset 傳入IFD的位置
+     * @param visited 傳入已經處理過的IFD位置
+     * @param keepOrientation 傳入是否保留方向(Orientation)欄位
+     * @return 傳回下一個IFD的位置，若沒有，傳回0
+     * @throws IOException 讀寫失敗時拋出
+     */
+    private static long stripTIFFDirectory(final FileChannel channel, final ByteOrder order, final long offset, final HashSet<Long> visited, final boolean keepOrientation) throws IOException {
+	final ByteBuffer directory = readDirectory(channel, order, offset, visited);
+	if (directory == null) {
+	    return 0;
+	}
+	final int count = directory.getShort(0) & 0xFFFF;
+	final ByteBuffer patched = ByteBuffer.allocate(directory.capacity()).order(order);
+	patched.position(2);
+	int kept = 0;
+	for (int i = 0; i < count; ++i) {
+	    final int position = 2 + i * 12;
+	    final int tag = directory.getShort(position) & 0xFFFF;
+	    if (Arrays.binarySearch(TIFF_METADATA_TAGS, tag) >= 0 || (!keepOrientation && tag == ImageExif.TAG_ORIENTATION)) {
+		clearValue(channel, directory, position, visited);
+	    } else {
+		patched.put(directory.array(), position, 12);
+		++kept;
+	    }
+	}
+	final long next = directory.getInt(2 + count * 12) & 0xFFFFFFFFL;
+	patched.putShort(0, (short) kept);
+	patched.putInt((int) next);
+	// 剩下的空間保持為0
+	patched.clear();
+	write(channel, patched, offset);
+	return next;
+    }
+
+    /**
+     * 將欄位在IFD之外的值清為0。若欄位指向子目錄，則整個子目錄都會被清為0。
+     *
+     * @param channel 傳入FileChannel
+     * @param directory 傳入欄位所在的IFD
+     * @param position 傳入欄位在IFD中的位置
+     * @param visited 傳入已經處理過的IFD位置
+     * @throws IOException 讀寫失敗時拋出
+     */
+    private static void clearValue(final FileChannel channel, final ByteBuffer directory, final int position, final HashSet<Long> visited) throws IOException {
+	final int tag = directory.getShort(position) & 0xFFFF;
+	final int type = directory.getShort(position + 2) & 0xFFFF;
+	final long count = directory.getInt(position + 4) & 0xFFFFFFFFL;
+	final long offset = directory.getInt(position + 8) & 0xFFFFFFFFL;
+	if (Arrays.binarySearch(SUB_DIRECTORY_TAGS, tag) >= 0) {
+	    final ByteBuffer subDirectory = readDirectory(channel, directory.order(), offset, visited);
+	    if (subDirectory != null) {
+		final int subCount = subDirectory.getShort(0) & 0xFFFF;
+		for (int i = 0; i < subCount; ++i) {
+		    clearValue(channel, subDirectory, 2 + i * 12, visited);
+		}
+		write(channel, ByteBuffer.allocate(subDirectory.capacity()), offset);
+	    }
+	    return;
+	}
+	if (type <= 0 || type >= TYPE_SIZES.length) {
+	    return;
+	}
+	final long size = count * TYPE_SIZES[type];
+	if (size > 4 && offset + size <= channel.size()) {
+	    final ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(size, 1 << 16));
+	    for (long written = 0; written < size; written += zeros.capacity()) {
+		zeros.clear();
+		zeros.limit((int) Math.min(zeros.capacity(), size - written));
+		write(channel, zeros, offset + written);
+	    }
+	}
+    }
+
+    /**
+     * 讀取一個IFD，包含項目數量、所有項目和下一個IFD的位置。
+     *
+     * @param channel 傳入FileChannel
+     * @param order 傳入位元組順序
+     * @param offset 傳入IFD的位置
+     * @param visited 傳入已經處理過的IFD位置
+     * @return 傳回IFD的資料，若位置不正確或已經處理過，傳回null
+     * @throws IOException 讀取失敗時拋出
+     */
+    private static ByteBuffer readDirectory(final FileChannel channel, final ByteOrder order, final long offset, final HashSet<Long> visited) throws IOException {
+	if (offset < 8 || offset + 2 > channel.size() || !visited.add(offset)) {
+	    return null;
+	}
+	final ByteBuffer countBuffer = ByteBuffer.allocate(2).order(order);
+	ImageExif.readFully(channel, countBuffer, offset);
+	final int count = countBuffer.getShort(0) & 0xFFFF;
+	final int length = 2 + count * 12 + 4;
+	if (offset + length > channel.size()) {
+	    return null;
+	}
+	final ByteBuffer directory = ByteBuffer.allocate(length).order(order);
+	ImageExif.readFully(channel, directory, offset);
+	return directory;
+    }
+
+    /**
+     * 建立只有方向(Orientation)欄位的EXIF。
+     *
+     * @param orientation 傳入方向
+     * @return 傳回TIFF結構的EXIF
+     */
+    static byte[] createOrientationExif(final int orientation) {
+	final ByteBuffer buffer = ByteBuffer.allocate(26).order(ByteOrder.BIG_ENDIAN);
+	buffer.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+	buffer.putShort((short) 1);
+	buffer.putShort((short) ImageExif.TAG_ORIENTATION).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+	buffer.putInt(0);
+	return buffer.array();
+    }
+
+    /**
+     * 將JSONArray格式的Metadata合併到原本的EXIF中。格式和ImageMetadata.readMetadataFromFile的Metadata相同，值為null的欄位會被移除，描述檔案結構的欄位(例如ExifOffset)和id小於0的項目會被忽略。原本的EXIF不會被重新排列，只有被修改的目錄會附加在結尾，因此沒有被修改的欄位(例如MakerNote)都會原封不動地保留；若沒有任何欄位被修改，則傳回原本的EXIF。
+     *
+     * @param exif 傳入原本的EXIF(TIFF結構)，若為null，則建立新的EXIF
+     * @param metadata 傳入Metadata
+     * @return 傳回新的EXIF(TIFF結構)，若原本沒有EXIF且沒有任何欄位被寫入，傳回null
+     * @throws IOException 原本的EXIF無法讀取或是值無法轉換時拋出
+     */
+    static byte[] mergeExif(final byte[] exif, final JSONArray metadata) throws IOException {
+	final TiffPatch.ByteArrayChannel channel = new TiffPatch.ByteArrayChannel(exif != null ? exif : TiffPatch.createEmpty(ByteOrder.BIG_ENDIAN));
+	final TiffPatch patch = new TiffPatch(channel);
+	mergeMetadata(patch, metadata, false);
+	if (!patch.isModified()) {
+	    return exif;
+	}
+	patch.apply();
+	return channel.toByteArray();
+    }
+
+    /**
+     * 複製TIFF檔案，並將JSONArray格式的Metadata合併到IFD0、Exif、GPS和Interoperability目錄中。除了ImageMetadata.writeMetadataToFile會忽略的欄位之外，描述影像資料的欄位(例如ImageWidth、Compression)也會被忽略。影像資料和沒有被修改的欄位的位置都不變，被修改的目錄會附加在檔案的結尾。
+     *
+     * @param in 傳入來源的FileChannel
+     * @param out 傳入目標的FileChannel
+     * @param metadata 傳入Metadata
+     * @throws IOException 改寫失敗或是值無法轉換時拋出
+     */
+    static void mergeTIFF(final FileChannel in, final FileChannel out, final JSONArray metadata) throws IOException {
+	transfer(in, 0, in.size(), out);
+	final TiffPatch patch = new TiffPatch(out);
+	mergeMetadata(patch, metadata, true);
+	patch.apply();
+    }
+
+    /**
+     * 將JSONArray格式的Metadata寫入TiffPatch物件。
+     *
+     * @param patch 傳入TiffPatch物件
+     * @param metadata 傳入Metadata
+     * @param image 傳入TIFF結構是否為TIFF檔案，若是，則描述影像資料的欄位會被忽略
+     * @throws IOException 值無法轉換時拋出
+     */
+    private static void mergeMetadata(final TiffPatch patch, final JSONArray metadata, final boolean image) throws IOException {
+	final int length = metadata.length();
+	for (int i = 0; i < length; ++i) {
+	    final JSONObject obj = metadata.optJSONObject(i);
+	    if (obj == null) {
+		continue;
+	    }
+	    final int tag = obj.optInt(ImageMetadata.METADATA_ID, -1);
+	    if (tag < 0 || tag > 0xFFFF || Arrays.binarySearch(STRUCTURE_TAGS, tag) >= 0) {
+		continue;
+	    }
+	    final String name = obj.optString(ImageMetadata.METADATA_NAME, "");
+	    int directoryType;
+	    final TagInfo tagInfo;
+	    final TagInfo gpsTagInfo = ImageExif.getTagInfo(ImageExif.DIRECTORY_GPS, tag);
+	    if (gpsTagInfo != null && gpsTagInfo.name.equals(name)) {
+		directoryType = ImageExif.DIRECTORY_GPS;
+		tagInfo = gpsTagInfo;
+	    } else {
+		tagInfo = ImageExif.getTagInfo(ImageExif.DIRECTORY_IFD0, tag);
+		directoryType = getDirectoryType(tagInfo);
+		if (!patch.contains(directoryType, tag)) {
+		    // 欄位原本就存在於其它目錄時，修改原本的欄位
+		    for (final int other : GENERAL_DIRECTORIES) {
+			if (patch.contains(other, tag)) {
+			    directoryType = other;
+			    break;
+			}
+		    }
+		}
+	    }
+	    if (image && directoryType == ImageExif.DIRECTORY_IFD0 && Arrays.binarySearch(IMAGE_TAGS, tag) >= 0) {
+		continue;
+	    }
+	    patch.remove(directoryType, tag);
+	    if (!obj.isNull(ImageMetadata.METADATA_VALUE)) {
+		try {
+		    putField(patch, directoryType, tag, tagInfo, obj.optString(ImageMetadata.METADATA_TYPE, ""), obj.opt(ImageMetadata.METADATA_VALUE));
+		} catch (final ImageWriteException | RuntimeException ex) {
+		    throw new IOException(ex);
+		}
+	    }
+	}
+    }
+
+    /**
+     * 從標籤資訊判斷欄位應該放在哪個目錄。
+     *
+     * @param tagInfo 傳入標籤資訊
+     * @return 傳回目錄
+     */
+    private static int getDirectoryType(final TagInfo tagInfo) {
+	if (tagInfo == null) {
+	    return ImageExif.DIRECTORY_IFD0;
+	}
+	if (tagInfo.directoryType == TiffDirectoryType.EXIF_DIRECTORY_EXIF_IFD) {
+	    return ImageExif.DIRECTORY_EXIF;
+	} else if (tagInfo.directoryType == TiffDirectoryType.EXIF_DIRECTORY_GPS) {
+	    return ImageExif.DIRECTORY_GPS;
+	} else if (tagInfo.directoryType == TiffDirectoryType.EXIF_DIRECTORY_INTEROP_IFD) {
+	    return ImageExif.DIRECTORY_INTEROP;
+	}
+	return ImageExif.DIRECTORY_IFD0;
+    }
+
+    /**
+     * 依照Metadata的類型建立欄位並寫入TiffPatch物件，若標籤資訊有指定欄位類型，則優先使用。
+     *
+     * @param patch 傳入TiffPatch物件
+     * @param directoryType 傳入目錄
+     * @param tag 傳入標籤
+     * @param tagInfo 傳入標籤資訊，可以為null
+     * @param type 傳入Metadata的類型
+     * @param value 傳入值，可以是數值、字串、陣列或JSONArray
+     * @return 傳回是否有寫入欄位，若類型不支援，傳回false
+     * @throws ImageWriteException 值無法轉換時拋出
+     */
+    private static boolean putField(final TiffPatch patch, final int directoryType, final int tag, final TagInfo tagInfo, final String type, final Object value) throws ImageWriteException {
+	final ByteOrder order = patch.getByteOrder();
+	final List<FieldType> dataTypes = tagInfo != null ? tagInfo.dataTypes : null;
+	switch (type) {
+	    case ImageMetadata.METADATA_TYPE_STRING: {
+		final byte[] bytes = FieldType.ASCII.writeData(String.valueOf(value), order);
+		patch.put(directoryType, tag, FieldType.ASCII.getType(), bytes.length, bytes);
+		return true;
+	    }
+	    case ImageMetadata.METADATA_TYPE_INTEGER:
+	    case ImageMetadata.METADATA_TYPE_INTEGER_ARRAY: {
+		final double[] values = toDoubles(value);
+		double min = 0, max = 0;
+		for (final double v : values) {
+		    min = Math.min(min, v);
+		    max = Math.max(max, v);
+		}
+		final FieldType fieldType;
+		if (min >= 0 && max <= 0xFFFF && accepts(dataTypes, FieldType.SHORT, true)) {
+		    fieldType = FieldType.SHORT;
+		} else if (min >= 0 && accepts(dataTypes, FieldType.LONG, true)) {
+		    fieldType = FieldType.LONG;
+		} else if (min >= Short.MIN_VALUE && max <= Short.MAX_VALUE && accepts(dataTypes, FieldType.SSHORT, false)) {
+		    fieldType = FieldType.SSHORT;
+		} else {
+		    fieldType = FieldType.SLONG;
+		}
+		final byte[] bytes;
+		if (fieldType == FieldType.SHORT || fieldType == FieldType.SSHORT) {
+		    final short[] data = new short[values.length];
+		    for (int i = 0; i < data.length; ++i) {
+			data[i] = (short) (long) values[i];
+		    }
+		    bytes = fieldType.writeData(data, order);
+		} else {
+		    final int[] data = new int[values.length];
+		    for (int i = 0; i < data.length; ++i) {
+			data[i] = (int) (long) values[i];
+		    }
+		    bytes = fieldType.writeData(data, order);
+		}
+		patch.put(directoryType, tag, fieldType.getType(), values.length, bytes);
+		return true;
+	    }
+	    case ImageMetadata.METADATA_TYPE_REAL:
+	    case ImageMetadata.METADATA_TYPE_REAL_ARRAY: {
+		final double[] values = toDoubles(value);
+		boolean negative = false;
+		for (final double v : values) {
+		    negative |= v < 0;
+		}
+		if (accepts(dataTypes, FieldType.DOUBLE, false)) {
+		    patch.put(directoryType, tag, FieldType.DOUBLE.getType(), values.length, FieldType.DOUBLE.writeData(values, order));
+		    return true;
+		}
+		final RationalNumber[] data = new RationalNumber[values.length];
+		for (int i = 0; i < data.length; ++i) {
+		    data[i] = RationalNumber.valueOf(values[i]);
+		}
+		final FieldType fieldType = negative || accepts(dataTypes, FieldType.SRATIONAL, false) && !accepts(dataTypes, FieldType.RATIONAL, false) ? FieldType.SRATIONAL : FieldType.RATIONAL;
+		patch.put(directoryType, tag, fieldType.getType(), values.length, fieldType.writeData(data, order));
+		return true;
+	    }
+	    case ImageMetadata.METADATA_TYPE_BYTE_ARRAY: {
+		final double[] values = toDoubles(value);
+		final byte[] data = new byte[values.length];
+		for (int i = 0; i < data.length; ++i) {
+		    data[i] = (byte) (long) values[i];
+		}
+		final FieldType fieldType = accepts(dataTypes, FieldType.BYTE, false) ? FieldType.BYTE : accepts(dataTypes, FieldType.SBYTE, false) ? FieldType.SBYTE : FieldType.UNDEFINED;
+		patch.put(directoryType, tag, fieldType.getType(), data.length, fieldType.writeData(data, order));
+		return true;
+	    }
+	    default:
+		return false;
+	}
+    }
+
+    /**
+     * 判斷標籤資訊是否接受某個欄位類型。
+     *
+     * @param dataTypes 傳入標籤資訊的欄位類型，可以為null
+     * @param fieldType 傳入欄位類型
+     * @param unknown 傳入沒有標籤資訊時的結果
+     * @return 傳回是否接受
+     */
+    private static boolean accepts(final List<FieldType> dataTypes, final FieldType fieldType, final boolean unknown) {
+	if (dataTypes == null || dataTypes.isEmpty() || dataTypes == FieldType.ANY) {
+	    return unknown;
+	}
+	return dataTypes.contains(fieldType);
+    }
+
+    /**
+     * 將值轉成浮點數陣列。
+     *
+     * @param value 傳入值，可以是數值、數值字串、基本型別的陣列或JSONArray
+     * @return 傳回浮點數陣列
+     */
+    private static double[] toDoubles(final Object value) {
+	if (value instanceof JSONArray) {
+	    final JSONArray array = (JSONArray) value;
+	    final double[] values = new double[array.length()];
+	    for (int i = 0; i < values.length; ++i) {
+		values[i] = array.getDouble(i);
+	    }
+	    return values;
+	} else if (value != null && value.getClass().isArray()) {
+	    final double[] values = new double[Array.getLength(value)];
+	    for (int i = 0; i < values.length; ++i) {
+		values[i] = ((Number) Array.get(value, i)).doubleValue();
+	    }
+	    return values;
+	} else if (value instanceof Number) {
+	    return new double[]{((Number) value).doubleValue()};
+	}
+	return new double[]{Double.parseDouble(String.valueOf(value))};
+    }
+
+    /**
+     * 寫入JPEG的EXIF區段。
+     *
+     * @param out 傳入目標的FileChannel
+     * @param exif 傳入EXIF(TIFF結構)
+     * @throws IOException 寫入失敗時拋出
+     */
+    private static void writeJPEGExif(final FileChannel out, final byte[] exif) throws IOException {
+	final ByteBuffer segment = ByteBuffer.allocate(4 + EXIF_IDENTIFIER.length + exif.length);
+	segment.put((byte) 0xFF).put((byte) 0xE1).putShort((short) (2 + EXIF_IDENTIFIER.length + exif.length));
+	segment.put(EXIF_IDENTIFIER).put(exif);
+	segment.flip();
+	write(out, segment);
+    }
+
+    /**
+     * 寫入PNG的區塊。
+     *
+     * @param out 傳入目標的FileChannel
+     * @param type 傳入區塊類型
+     * @param data 傳入區塊資料
+     * @throws IOException 寫入失敗時拋出
+     */
+    private static void writePNGChunk(final FileChannel out, final String type, final byte[] data) throws IOException {
+	final byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+	final CRC32 crc = new CRC32();
+	crc.update(typeBytes);
+	crc.update(data);
+	final ByteBuffer chunk = ByteBuffer.allocate(12 + data.length);
+	chunk.putInt(data.length).put(typeBytes).put(data).putInt((int) crc.getValue());
+	chunk.flip();
+	write(out, chunk);
+    }
+
+    /**
+     * 判斷位元組陣列是否以某個前綴開頭。
+     *
+     * @param data 傳入位元組陣列
+     * @param prefix 傳入前綴
+     * @return 傳回是否以前綴開頭
+     */
+    private static boolean startsWith(final byte[] data, final byte[] prefix) {
+	if (data.length < prefix.length) {
+	    return false;
+	}
+	for (int i = 0; i < prefix.length; ++i) {
+	    if (data[i] != prefix[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * 將來源FileChannel的一段資料直接傳送到目標FileChannel。
+     *
+     * @param in 傳入來源的FileChannel
+     * @param position 傳入來源的位置
+     * @param count 傳入長度
+     * @param out 傳入目標的FileChannel
+     * @throws IOException 傳送失敗時拋出
+     */
+    private static void transfer(final FileChannel in, long position, long count, final FileChannel out) throws IOException {
+	while (count > 0) {
+	    final long n = in.transferTo(position, count, out);
+	    if (n <= 0) {
+		throw new IOException("Unexpected end of file.");
+	    }
+	    position += n;
+	    count -= n;
+	}
+    }
+
+    /**
+     * 在目前的位置寫入資料。
+     *
+     * @param out 傳入目標的FileChannel
+     * @param data 傳入資料
+     * @throws IOException 寫入失敗時拋出
+     */
+    private static void write(final FileChannel out, final byte[] data) throws IOException {
+	write(out, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * 在目前的位置寫入緩衝區剩下的資料。
+     *
+     * @param out 傳入目標的FileChannel
+     * @param buffer 傳入緩衝區
+     * @throws IOException 寫入失敗時拋出
+     */
+    private static void write(final FileChannel out, final ByteBuffer buffer) throws IOException {
+	while (buffer.hasRemaining()) {
+	    out.write(buffer);
+	}
+    }
+
+    /**
+     * 在指定的位置寫入緩衝區剩下的資料。
+     *
+     * @param out 傳入目標的FileChannel
+     * @param buffer 傳入緩衝區
+     * @param position 傳入檔案中的位置
+     * @throws IOException 寫入失敗時拋出
+     */
+    private static void write(final FileChannel out, final ByteBuffer buffer, long position) throws IOException {
+	while (buffer.hasRemaining()) {
+	    position += out.write(buffer, position);
+	}
+    }
+
+    // -----建構子-----
+    /**
+     * 私有的建構子，將無法被實體化。
+     */
+    private MetadataRewriter() {
+
+    }
+}
@@ -0,0 +1,833 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * <p>
+ * PNG編碼器。</p>
+ *
+ * <p>
+ * 可以設定zlib的壓縮等級、壓縮策略與每列的濾波方式。影像資料較大時，可以將IDAT的資料切成數個區段，參考pigz的做法，每個區段以前一個區段最後的32KB作為字典獨立壓縮，並在指定的Executor上平行執行，最後再串接成一個完整的zlib串流。設定完成之後，同一個PNGEncoder物件可以在多個執行緒中共用。</p>
+ *
+ * @author Magic Len
+ * @see ImageExport
+ */
+public final class PNGEncoder {
+
+    // -----類別列舉-----
+    /**
+     * 每列的濾波方式。
+     */
+    public static enum Filter {
+	/**
+	 * 不濾波。
+	 */
+	NONE(0),
+	/**
+	 * 和左邊的像素相減。
+	 */
+	SUB(1),
+	/**
+	 * 和上面的像素相減。
+	 */
+	UP(2),
+	/**
+	 * 和左邊與上面像素的平均相減。
+	 */
+	AVERAGE(3),
+	/**
+	 * 使用Paeth預測。
+	 */
+	PAETH(4),
+	/**
+	 * 每列都嘗試所有的濾波方式，選擇差值絕對值總和最小的結果。壓縮率通常最好，但速度較慢。
+	 */
+	ADAPTIVE(-1);
+
+	/**
+	 * PNG規範中的濾波類型編號。
+	 */
+	private final int type;
+
+	Filter(final int type) {
+	    this.type = type;
+	}
+    }
+
+    /**
+     * zlib的壓縮策略。
+     */
+    public static enum Strategy {
+	/**
+	 * 預設的策略。
+	 */
+	DEFAULT(Deflater.DEFAULT_STRATEGY),
+	/**
+	 * 適合濾波之後的資料，減少字串比對，偏重霍夫曼編碼。
+	 */
+	FILTERED(Deflater.FILTERED),
+	/**
+	 * 只使用霍夫曼編碼，速度最快。
+	 */
+	HUFFMAN_ONLY(Deflater.HUFFMAN_ONLY);
+
+	/**
+	 * Deflater使用的策略編號。
+	 */
+	private final int strategy;
+
+	Strategy(final int strategy) {
+	    this.strategy = strategy;
+	}
+    }
+
+    /**
+     * 預先組合好的設定。
+     */
+    public static enum Preset {
+	/**
+	 * 速度最快，檔案較大。使用壓縮等級1、SUB濾波與霍夫曼編碼。
+	 */
+	FASTEST(1, Filter.SUB, Strategy.HUFFMAN_ONLY),
+	/**
+	 * 速度較快。使用壓縮等級3、SUB濾波。
+	 */
+	FAST(3, Filter.SUB, Strategy.FILTERED),
+	/**
+	 * 預設的設定。使用壓縮等級6、自適應濾波。
+	 */
+	DEFAULT(6, Filter.ADAPTIVE, Strategy.FILTERED),
+	/**
+	 * 檔案最小，速度最慢。使用壓縮等級9、自適應濾波。
+	 */
+	SMALLEST(9, Filter.ADAPTIVE, Strategy.DEFAULT);
+
+	/**
+	 * 壓縮等級。
+	 */
+	private final int compressionLevel;
+	/**
+	 * 濾波方式。
+	 */
+	private final Filter filter;
+	/**
+	 * 壓縮策略。
+	 */
+	private final Strategy strategy;
+
+	Preset(final int compressionLevel, final Filter filter, final Strategy strategy) {
+	    this.compressionLevel = compressionLevel;
+	    this.filter = filter;
+	    this.strategy = strategy;
+	}
+    }
+
+    // -----類別常數-----
+    /**
+     * PNG檔案的簽章。
+     */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    /**
+     * 單一IDAT區塊的最大資料長度。
+     */
+    private static final int MAX_IDAT_SIZE = 65536;
+    /**
+     * deflate的視窗大小，也是平行壓縮時字典的大小。
+     */
+    private static final int WINDOW_SIZE = 32768;
+    /**
+     * 灰階的色彩類型。
+     */
+    private static final int COLOR_TYPE_GRAY = 0;
+    /**
+     * RGB的色彩類型。
+     */
+    private static final int COLOR_TYPE_RGB = 2;
+    /**
+     * RGBA的色彩類型。
+     */
+    private static final int COLOR_TYPE_RGBA = 6;
+    /**
+     * 索引色的色彩類型。
+     */
+    private static final int COLOR_TYPE_INDEXED = 3;
+
+    // -----類別方法-----
+    /**
+     * 計算Paeth預測值。
+     *
+     * @param a 傳入左邊的值
+     * @param b 傳入上面的值
+     * @param c 傳入左上的值
+     * @return 傳回預測值
+     */
+    private static int paeth(final int a, final int b, final int c) {
+	final int p = a + b - c;
+	final int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+	if (pa <= pb && pa <= pc) {
+	    return a;
+	} else if (pb <= pc) {
+	    return b;
+	}
+	return c;
+    }
+
+    /**
+     * 使用指定的濾波類型濾波一列資料。
+     *
+     * @param type 傳入濾波類型(0~4)
+     * @param row 傳入目前這列的原始資料
+     * @param prior 傳入上一列的原始資料
+     * @param bpp 傳入每個像素的位元組數
+     * @param out 傳入輸出的陣列，第一個位元組為濾波類型，長度必須比原始資料多1
+     * @return 傳回差值絕對值的總和
+     */
+    private static long filterRow(final int type, final byte[] row, final byte[] prior, final int bpp, final byte[] out) {
+	final int length = row.length;
+	out[0] = (byte) type;
+	long sum = 0;
+	for (int i = 0; i < length; ++i) {
+	    final int x = row[i] & 0xFF;
+	    final int a = i >= bpp ? row[i - bpp] & 0xFF : 0, b = prior[i] & 0xFF, c = i >= bpp ? prior[i - bpp] & 0xFF : 0;
+	    final int predictor;
+	    switch (type) {
+		case 1:
+		    predictor = a;
+		    break;
+		case 2:
+		    predictor = b;
+		    break;
+		case 3:
+		    predictor = (a + b) >>> 1;
+		    break;
+		case 4:
+		    predictor = paeth(a, b, c);
+		    break;
+		default:
+		    predictor = 0;
+	    }
+	    final byte value = (byte) (x - predictor);
+	    out[i + 1] = value;
+	    sum += Math.abs(value);
+	}
+	return sum;
+    }
+
+    /**
+     * 寫入一個PNG區塊。
+     *
+     * @param out 傳入輸出串流
+     * @param type 傳入區塊類型
+     * @param data 傳入資料
+     * @param offset 傳入資料的起始位置
+     * @param length 傳入資料的長度
+     * @throws IOException 寫入失敗時拋出
+     */
+    private static void writeChunk(final DataOutputStream out, final String type, final byte[] data, final int offset, final int length) throws IOException {
+	final byte[] typeBytes = type.getBytes("US-ASCII");
+	final CRC32 crc = new CRC32();
+	crc.update(typeBytes);
+	crc.update(data, offset, length);
+	out.writeInt(length);
+	out.write(typeBytes);
+	out.write(data, offset, length);
+	out.writeInt((int) crc.getValue());
+    }
+
+    // -----物件變數-----
+    /**
+     * zlib的壓縮等級(0~9)。
+     */
+    private int compressionLevel;
+    /**
+     * 每列的濾波方式。
+     */
+    private Filter filter;
+    /**
+     * zlib的壓縮策略。
+     */
+    private Strategy strategy;
+    /**
+     * 是否平行壓縮。
+     */
+    private boolean parallel;
+    /**
+     * 平行壓縮時每個區段的原始資料大小(位元組)。
+     */
+    private int chunkSize = 131072;
+    /**
+     * 平行壓縮時使用的Executor，若為null，則使用ForkJoinPool的共用池。
+     */
+    private Executor executor;
+
+    // -----建構子-----
+    /**
+     * 建構子，使用預設的設定。
+     */
+    public PNGEncoder() {
+	this(Preset.DEFAULT);
+    }
+
+    /**
+     * 建構子。
+     *
+     * @param preset 傳入預先組合好的設定
+     */
+    public PNGEncoder(final Preset preset) {
+	final Preset p = preset != null ? preset : Preset.DEFAULT;
+	this.compressionLevel = p.compressionLevel;
+	this.filter = p.filter;
+	this.strategy = p.strategy;
+    }
+
+    // -----物件方法-----
+    /**
+     * 設定zlib的壓縮等級。
+     *
+     * @param compressionLevel 傳入壓縮等級(0~9)，0為不壓縮，9為壓縮率最高
+     */
+    public void setCompressionLevel(final int compressionLevel) {
+	this.compressionLevel = Math.min(Math.max(compressionLevel, 0), 9);
+    }
+
+    /**
+     * 取得zlib的壓縮等級。
+     *
+     * @return 傳回壓縮等級
+     */
+    public int getCompressionLevel() {
+	return compressionLevel;
+    }
+
+    /**
+     * 設定每列的濾波方式。
+     *
+     * @param filter 傳入濾波方式
+     */
+    public void setFilter(final Filter filter) {
+	if (filter != null) {
+	    this.filter = filter;
+	}
+    }
+
+    /**
+     * 取得每列的濾波方式。
+     *
+     * @return 傳回濾波方式
+     */
+    public Filter getFilter() {
+	return filter;
+    }
+
+    /**
+     * 設定zlib的壓縮策略。
+     *
+     * @param strategy 傳入壓縮策略
+     */
+    public void setStrategy(final Strategy strategy) {
+	if (strategy != null) {
+	    this.strategy = strategy;
+	}
+    }
+
+    /**
+     * 取得zlib的壓縮策略。
+     *
+     * @return 傳回壓縮策略
+     */
+    public Strategy getStrategy() {
+	return strategy;
+    }
+
+    /**
+     * 設定是否將IDAT的資料切成區段平行壓縮。平行壓縮的檔案會稍微大一點。
+     *
+     * @param parallel 傳入是否平行壓縮
+     */
+    public void setParallel(final boolean parallel) {
+	this.parallel = parallel;
+    }
+
+    /**
+     * 取得是否平行壓縮。
+     *
+     * @return 傳回是否平行壓縮
+     */
+    public boolean isParallel() {
+	return parallel;
+    }
+
+    /**
+     * 設定平行壓縮時每個區段的原始資料大小。
+     *
+     * @param chunkSize 傳入區段大小(位元組)，至少為32768
+     */
+    public void setChunkSize(final int chunkSize) {
+	this.chunkSize = Math.max(chunkSize, WINDOW_SIZE);
+    }
+
+    /**
+     * 取得平行壓縮時每個區段的原始資料大小。
+     *
+     * @return 傳回區段大小(位元組)
+     */
+    public int getChunkSize() {
+	return chunkSize;
+    }
+
+    /**
+     * 設定平行壓縮時使用的Executor。
+     *
+     * @param executor 傳入Executor，若為null，則使用ForkJoinPool的共用池
+     */
+    public void setExecutor(final Executor executor) {
+	this.executor = executor;
+    }
+
+    /**
+     * 取得平行壓縮時使用的Executor。
+     *
+     * @return 傳回Executor，若為null，表示使用ForkJoinPool的共用池
+     */
+    public Executor getExecutor() {
+	return executor;
+    }
+
+    /**
+     * 複製這個編碼器的設定，建立新的PNGEncoder物件。
+     *
+     * @return 傳回新的PNGEncoder物件
+     */
+    PNGEncoder copy() {
+	final PNGEncoder encoder = new PNGEncoder();
+	encoder.compressionLevel = compressionLevel;
+	encoder.filter = filter;
+	encoder.strategy = strategy;
+	encoder.parallel = parallel;
+	encoder.chunkSize = chunkSize;
+	encoder.executor = executor;
+	return encoder;
+    }
+
+    /**
+     * 將BufferedImage物件編碼成PNG格式。完全不透明的圖片會以RGB輸出，TYPE_BYTE_GRAY的圖片會以灰階輸出，使用IndexColorModel的TYPE_BYTE_INDEXED圖片會以8位元的索引色輸出，其它的圖片以RGBA輸出。
+     *
+     * @param bi 傳入要編碼的BufferedImage物件
+     * @param out 傳入輸出串流，編碼完成後不會被關閉
+     * @throws IOException 寫入失敗時拋出
+     */
+    public void encode(final BufferedImage bi, final OutputStream out) throws IOException {
+	encode(bi, null, out);
+    }
+
+    /**
+     * 將BufferedImage物件編碼成PNG格式。使用已經計算好的統計資料判斷圖片是否完全不透明，不會再掃描一次圖片。
+     *
+     * @param bi 傳入要編碼的BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，若為null，則在需要時重新掃描圖片
+     * @param out 傳入輸出串流，編碼完成後不會被關閉
+     * @throws IOException 寫入失敗時拋出
+     */
+    public void encode(final BufferedImage bi, final ImageStatistics statistics, final OutputStream out) throws IOException {
+	final int width = bi.getWidth(), height = bi.getHeight();
+	final int colorType;
+	if (bi.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+	    colorType = COLOR_TYPE_GRAY;
+	} else if (bi.getType() == BufferedImage.TYPE_BYTE_INDEXED && bi.getColorModel() instanceof IndexColorModel) {
+	    colorType = COLOR_TYPE_INDEXED;
+	} else if (ImageStatistics.isOpaque(bi, statistics)) {
+	    colorType = COLOR_TYPE_RGB;
+	} else {
+	    colorType = COLOR_TYPE_RGBA;
+	}
+	final int bpp = colorType == COLOR_TYPE_GRAY || colorType == COLOR_TYPE_INDEXED ? 1 : (colorType == COLOR_TYPE_RGB ? 3 : 4);
+
+	final DataOutputStream dos = new DataOutputStream(out);
+	dos.write(SIGNATURE);
+	final byte[] ihdr = new byte[13];
+	ihdr[0] = (byte) (width >>> 24);
+	ihdr[1] = (byte) (width >>> 16);
+	ihdr[2] = (byte) (width >>> 8);
+	ihdr[3] = (byte) width;
+	ihdr[4] = (byte) (height >>> 24);
+	ihdr[5] = (byte) (height >>> 16);
+	ihdr[6] = (byte) (height >>> 8);
+	ihdr[7] = (byte) height;
+	ihdr[8] = 8; // 位元深度
+	ihdr[9] = (byte) colorType;
+	writeChunk(dos, "IHDR", ihdr, 0, ihdr.length);
+	if (colorType == COLOR_TYPE_INDEXED) {
+	    final IndexColorModel colorModel = (IndexColorModel) bi.getColorModel();
+	    final int size = colorModel.getMapSize();
+	    final byte[] plte = new byte[size * 3];
+	    final byte[] trns = new byte[size];
+	    int trnsLength = 0;
+	    for (int i = 0; i < size; ++i) {
+		final int argb = colorModel.getRGB(i);
+		plte[i * 3] = (byte) (argb >> 16);
+		plte[i * 3 + 1] = (byte) (argb >> 8);
+		plte[i * 3 + 2] = (byte) argb;
+		trns[i] = (byte) (argb >>> 24);
+		if ((argb >>> 24) != 0xFF) {
+		    trnsLength = i + 1;
+		}
+	    }
+	    writeChunk(dos, "PLTE", plte, 0, plte.length);
+	    if (trnsLength > 0) {
+		writeChunk(dos, "tRNS", trns, 0, trnsLength);
+	    }
+	}
+
+	final IDATOutputStream idat = new IDATOutputStream(dos);
+	final long rawSize = (long) (width * bpp + 1) * height;
+	if (parallel && rawSize > chunkSize) {
+	    encodeParallel(bi, colorType, bpp, idat);
+	} else {
+	    final Deflater deflater = new Deflater(compressionLevel);
+	    deflater.setStrategy(strategy.strategy);
+	    try {
+		try (DeflaterOutputStream dout = new DeflaterOutputStream(idat, deflater, MAX_IDAT_SIZE)) {
+		    final RowFilter rowFilter = new RowFilter(bi, colorType, bpp);
+		    for (int y = 0; y < height; ++y) {
+			dout.write(rowFilter.filter(y));
+		    }
+		}
+	    } finally {
+		deflater.end();
+	    }
+	}
+	writeChunk(dos, "IEND", new byte[0], 0, 0);
+	dos.flush();
+    }
+
+    /**
+     * 將濾波後的資料切成區段，平行壓縮之後依序寫入。
+     *
+     * @param bi 傳入要編碼的BufferedImage物件
+     * @param colorType 傳入色彩類型
+     * @param bpp 傳入每個像素的位元組數
+     * @param idat 傳入IDAT的輸出串流
+     * @throws IOException 寫入失敗時拋出
+     */
+    private void encodeParallel(final BufferedImage bi, final int colorType, final int bpp, final IDATOutputStream idat) throws IOException {
+	final Executor ex = executor != null ? executor : ForkJoinPool.commonPool();
+	final int height = bi.getHeight();
+	final int rowSize = bi.getWidth() * bpp + 1;
+	final int rowsPerChunk = Math.max(1, chunkSize / rowSize);
+	final int chunkCount = (height + rowsPerChunk - 1) / rowsPerChunk;
+
+	// 每個區段各自濾波，濾波只需要上一列的原始資料
+	final ArrayList<CompletableFuture<byte[]>> filtered = new ArrayList<>(chunkCount);
+	for (int i = 0; i < chunkCount; ++i) {
+	    final int startY = i * rowsPerChunk, endY = Math.min(height, startY + rowsPerChunk);
+	    filtered.add(CompletableFuture.supplyAsync(() -> {
+		final RowFilter rowFilter = new RowFilter(bi, colorType, bpp);
+		if (startY > 0) {
+		    rowFilter.read(startY - 1);
+		}
+		final byte[] data = new byte[(endY - startY) * rowSize];
+		for (int y = startY; y < endY; ++y) {
+		    System.arraycopy(rowFilter.filter(y), 0, data, (y - startY) * rowSize, rowSize);
+		}
+		return data;
+	    }, ex));
+	}
+	// 每個區段以前一個區段最後的32KB作為字典壓縮
+	final ArrayList<CompletableFuture<byte[]>> compressed = new ArrayList<>(chunkCount);
+	for (int i = 0; i < chunkCount; ++i) {
+	    final boolean last = i == chunkCount - 1;
+	    final CompletableFuture<byte[]> current = filtered.get(i);
+	    if (i == 0) {
+		compressed.add(current.thenApplyAsync(data -> deflate(data, null, last), ex));
+	    } else {
+		compressed.add(current.thenCombineAsync(filtered.get(i - 1), (data, previous) -> deflate(data, previous, last), ex));
+	    }
+	}
+
+	int flevel;
+	if (compressionLevel < 2) {
+	    flevel = 0;
+	} else if (compressionLevel < 6) {
+	    flevel = 1;
+	} else if (compressionLevel == 6) {
+	    flevel = 2;
+	} else {
+	    flevel = 3;
+	}
+	final int cmf = 0x78;
+	int flg = flevel << 6;
+	flg += 31 - ((cmf << 8) + flg) % 31;
+	idat.write(cmf);
+	idat.write(flg);
+
+	final Adler32 adler = new Adler32();
+	try {
+	    for (int i = 0; i < chunkCount; ++i) {
+		adler.update(filtered.get(i).join());
+		idat.write(compressed.get(i).join());
+		filtered.set(i, null);
+		compressed.set(i, null);
+	    }
+	} catch (final CompletionException ex2) {
+	    throw new IOException(ex2.getCause());
+	}
+	final long checksum = adler.getValue();
+	idat.write((int) (checksum >>> 24));
+	idat.write((int) (checksum >>> 16));
+	idat.write((int) (checksum >>> 8));
+	idat.write((int) checksum);
+	idat.close();
+    }
+
+    /**
+     * 以raw deflate壓縮一個區段。
+     *
+     * @param data 傳入區段的原始資料
+     * @param previous 傳入上一個區段的原始資料，若為null，表示沒有字典
+     * @param last 傳入是否為最後一個區段
+     * @return 傳回壓縮後的資料
+     */
+    private byte[] deflate(final byte[] data, final byte[] previous, final boolean last) {
+	final Deflater deflater = new Deflater(compressionLevel, true);
+	try {
+	    deflater.setStrategy(strategy.strategy);
+	    if (previous != null) {
+		final int dictionaryLength = Math.min(WINDOW_SIZE, previous.length);
+		deflater.setDictionary(previous, previous.length - dictionaryLength, dictionaryLength);
+	    }
+	    deflater.setInput(data);
+	    final ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2 + 64);
+	    final byte[] buffer = new byte[MAX_IDAT_SIZE];
+	    if (last) {
+		deflater.finish();
+		while (!deflater.finished()) {
+		    final int length = deflater.deflate(buffer);
+		    baos.write(buffer, 0, length);
+		}
+	    } else {
+		// SYNC_FLUSH讓區段結束在位元組邊界，串接後仍是合法的deflate串流
+		int length;
+		do {
+		    length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+		    baos.write(buffer, 0, length);
+		} while (length == buffer.length || !deflater.needsInput());
+	    }
+	    return baos.toByteArray();
+	} finally {
+	    deflater.end();
+	}
+    }
+
+    // -----內部類別-----
+    /**
+     * 讀取並濾波每列資料。
+     */
+    private final class RowFilter {
+
+	/**
+	 * 要編碼的BufferedImage物件。
+	 */
+	private final BufferedImage bi;
+	/**
+	 * 可以直接存取的像素陣列。
+	 */
+	private final int[] data;
+	/**
+	 * 每個像素的位元組數。
+	 */
+	private final int bpp;
+	/**
+	 * ARGB像素的暫存。
+	 */
+	private final int[] pixels;
+	/**
+	 * 灰階或索引像素的暫存。
+	 */
+	private final int[] samples;
+	/**
+	 * 目前這列的原始資料。
+	 */
+	private byte[] row;
+	/**
+	 * 上一列的原始資料。
+	 */
+	private byte[] prior;
+	/**
+	 * 濾波後的資料。
+	 */
+	private final byte[][] candidates = new byte[5][];
+	/**
+	 * 實際使用的濾波方式。索引色的資料不適合預測，自適應濾波會改為不濾波。
+	 */
+	private final Filter effectiveFilter;
+
+	RowFilter(final BufferedImage bi, final int colorType, final int bpp) {
+	    this.bi = bi;
+	    this.data = ImagePixels.getDirectData(bi);
+	    this.bpp = bpp;
+	    final int width = bi.getWidth();
+	    final boolean sampled = colorType == COLOR_TYPE_GRAY || colorType == COLOR_TYPE_INDEXED;
+	    this.pixels = sampled ? null : new int[width];
+	    this.samples = sampled ? new int[width] : null;
+	    this.effectiveFilter = colorType == COLOR_TYPE_INDEXED && filter == Filter.ADAPTIVE ? Filter.NONE : filter;
+	    this.row = new byte[width * bpp];
+	    this.prior = new byte[width * bpp];
+	    for (int i = 0; i < 5; ++i) {
+		candidates[i] = new byte[width * bpp + 1];
+	    }
+	}
+
+	/**
+	 * 讀取一列的原始資料，作為下一列的上一列。
+	 *
+	 * @param y 傳入列的位置
+	 */
+	void read(final int y) {
+	    final byte[] temp = prior;
+	    prior = row;
+	    row = temp;
+	    final int width = bi.getWidth();
+	    if (samples != null) {
+		final Raster raster = bi.getRaster();
+		raster.getSamples(0, y, width, 1, 0, samples);
+		for (int x = 0; x < width; ++x) {
+		    row[x] = (byte) samples[x];
+		}
+	    } else {
+		ImagePixels.getRow(bi, data, y, pixels);
+		int i = 0;
+		for (int x = 0; x < width; ++x) {
+		    final int argb = pixels[x];
+		    row[i++] = (byte) (argb >> 16);
+		    row[i++] = (byte) (argb >> 8);
+		    row[i++] = (byte) argb;
+		    if (bpp == 4) {
+			row[i++] = (byte) (argb >>> 24);
+		    }
+		}
+	    }
+	}
+
+	/**
+	 * 讀取並濾波一列資料。必須依序呼叫，第一次呼叫前若不是第一列，需先讀取上一列。
+	 *
+	 * @param y 傳入列的位置
+	 * @return 傳回濾波後的資料，第一個位元組為濾波類型
+	 */
+	byte[] filter(final int y) {
+	    if (y == 0) {
+		Arrays.fill(row, (byte) 0);
+	    }
+	    read(y);
+	    if (effectiveFilter != Filter.ADAPTIVE) {
+		filterRow(effectiveFilter.type, row, prior, bpp, candidates[0]);
+		return candidates[0];
+	    }
+	    int best = 0;
+	    long bestSum = Long.MAX_VALUE;
+	    for (int type = 0; type < 5; ++type) {
+		final long sum = filterRow(type, row, prior, bpp, candidates[type]);
+		if (sum < bestSum) {
+		    bestSum = sum;
+		    best = type;
+		}
+	    }
+	    return candidates[best];
+	}
+    }
+
+    /**
+     * 將寫入的資料切成IDAT區塊的輸出串流。
+     */
+    private static final class IDATOutputStream extends OutputStream {
+
+	/**
+	 * PNG的輸出串流。
+	 */
+	private final DataOutputStream out;
+	/**
+	 * 區塊資料的緩衝區。
+	 */
+	private final byte[] buffer = new byte[MAX_IDAT_SIZE];
+	/**
+	 * 緩衝區中的資料長度。
+	 */
+	private int count;
+
+	IDATOutputStream(final DataOutputStream out) {
+	    this.out = out;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+	    if (count == buffer.length) {
+		flushChunk();
+	    }
+	    buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(final byte[] b, int offset, int length) throws IOException {
+	    while (length > 0) {
+		if (count == buffer.length) {
+		    flushChunk();
+		}
+		final int n = Math.min(length, buffer.length - count);
+		System.arraycopy(b, offset, buffer, count, n);
+		count += n;
+		offset += n;
+		length -= n;
+	    }
+	}
+
+	@Override
+	public void close() throws IOException {
+	    flushChunk();
+	}
+
+	/**
+	 * 將緩衝區的資料寫成一個IDAT區塊。
+	 *
+	 * @throws IOException 寫入失敗時拋出
+	 */
+	private void flushChunk() throws IOException {
+	    if (count > 0) {
+		writeChunk(out, "IDAT", buffer, 0, count);
+		count = 0;
+	    }
+	}
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.apache.commons.imaging.ImageFormat;
+import org.apache.commons.imaging.ImageParser;
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.Imaging;
+import org.apache.commons.imaging.common.bytesource.ByteSource;
+import org.apache.commons.imaging.common.bytesource.ByteSourceFile;
+
+/**
+ * <p>
+ * 來源圖片。</p>
+ *
+ * <p>
+ * 圖片檔案只會被開啟一次，並映射到記憶體(或是直接使用記憶體中的位元組陣列)，讀取圖片資訊、EXIF、其他Metadata和解碼像素時都共用同一份資料，只有被讀到的區域才會真的從磁碟載入。SourceImage物件是不可變的，可以在多個執行緒中共用。</p>
+ *
+ * @author Magic Len
+ * @see ImageMetadata#readMetadata(org.magiclen.magicimage.SourceImage)
+ * @see ImageBuffer#getBufferedImages(org.magiclen.magicimage.SourceImage)
+ */
+public final class SourceImage {
+
+    // -----類別方法-----
+    /**
+     * 開啟圖片檔案。檔案會被映射到記憶體，超過2GB的檔案則會在需要時才從檔案讀取。
+     *
+     * @param file 傳入圖片檔案
+     * @return 傳回SourceImage物件，若檔案無法讀取，傳回null
+     */
+    public static SourceImage open(final File file) {
+	if (file == null || !file.isFile() || !file.canRead()) {
+	    return null;
+	}
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    final long size = channel.size();
+	    final ByteBuffer buffer = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+	    return new SourceImage(buffer, file, file.getName());
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return null;
+	}
+    }
+
+    /**
+     * 使用記憶體中的圖片資料。陣列不會被複製，之後不應再修改。
+     *
+     * @param data 傳入圖片資料
+     * @param name 傳入檔案名稱，無法從資料判斷格式時會依照副檔名判斷，可以為null
+     * @return 傳回SourceImage物件，若資料為null，傳回null
+     */
+    public static SourceImage wrap(final byte[] data, final String name) {
+	if (data == null) {
+	    return null;
+	}
+	return new SourceImage(ByteBuffer.wrap(data), null, name);
+    }
+
+    /**
+     * 將串流中的圖片資料全部讀進記憶體。串流不會被關閉。
+     *
+     * @param inputStream 傳入輸入串流
+     * @param name 傳入檔案名稱，無法從資料判斷格式時會依照副檔名判斷，可以為null
+     * @return 傳回SourceImage物件，若讀取失敗，傳回null
+     */
+    public static SourceImage read(final InputStream inputStream, final String name) {
+	if (inputStream == null) {
+	    return null;
+	}
+	try {
+	    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	    final byte[] buffer = new byte[8192];
+	    int c;
+	    while ((c = inputStream.read(buffer)) >= 0) {
+		baos.write(buffer, 0, c);
+	    }
+	    return wrap(baos.toByteArray(), name);
+	} catch (final Exception ex) {
+	    ex.printStackTrace(System.out);
+	    return null;
+	}
+    }
+
+    // -----物件常數-----
+    /**
+     * 圖片資料，若為null，表示檔案太大，需要時才從檔案讀取。
+     */
+    private final ByteBuffer buffer;
+    /**
+     * 圖片檔案，若資料來自記憶體，則為null。
+     */
+    private final File file;
+    /**
+     * 檔案名稱。
+     */
+    private final String name;
+
+    // -----物件變數-----
+    /**
+     * 依照檔頭判斷出的解析器。
+     */
+    private volatile ImageParser parser;
+    /**
+     * 是否已經判斷過解析器。
+     */
+    private volatile boolean parserResolved;
+
+    // -----建構子-----
+    /**
+     * 私有的建構子。
+     *
+     * @param buffer 傳入圖片資料
+     * @param file 傳入圖片檔案
+     * @param name 傳入檔案名稱
+     */
+    private SourceImage(final ByteBuffer buffer, final File file, final String name) {
+	this.buffer = buffer;
+	this.file = file;
+	this.name = name;
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得檔案名稱。
+     *
+     * @return 傳回檔案名稱，可能為null
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * 取得圖片檔案。
+     *
+     * @return 傳回圖片檔案，若資料來自記憶體，傳回null
+     */
+    public File getFile() {
+	return file;
+    }
+
+    /**
+     * 取得資料的長度。
+     *
+     * @return 傳回位元組數
+     */
+    public long getLength() {
+	return buffer != null ? buffer.limit() : file.length();
+    }
+
+    /**
+     * 判斷資料是否映射自檔案。
+     *
+     * @return 傳回資料是否映射自檔案
+     */
+    public boolean isMapped() {
+	return buffer instanceof MappedByteBuffer;
+    }
+
+    /**
+     * 取得唯讀的資料。
+     *
+     * @return 傳回唯讀的資料，位置0為檔案的開頭；若檔案超過2GB，傳回null
+     */
+    public ByteBuffer getBuffer() {
+	return buffer != null ? buffer.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * 取得讀取資料的輸入串流。
+     *
+     * @return 傳回輸入串流
+     * @throws IOException 讀取失敗時拋出
+     */
+    public InputStream getInputStream() throws IOException {
+	return getByteSource().getInputStream();
+    }
+
+    /**
+     * 取得Commons Imaging的資料來源。
+     *
+     * @return 傳回資料來源
+     */
+    ByteSource getByteSource() {
+	return buffer != null ? new MappedByteSource(buffer, name) : new ByteSourceFile(file);
+    }
+
+    /**
+     * 依照檔頭取得Commons Imaging的解析器。
+     *
+     * @return 傳回解析器，若無法從檔頭判斷格式，傳回null
+     * @throws ImageReadException 圖片格式不正確時拋出
+     * @throws IOException 讀取失敗時拋出
+     */
+    ImageParser getParser() throws ImageReadException, IOException {
+	if (!parserResolved) {
+	    final ImageFormat format = Imaging.guessFormat(getByteSource());
+	    ImageParser found = null;
+	    for (final ImageParser p : ImageParser.getAllImageParsers()) {
+		if (p.canAcceptType(format)) {
+		    found = p;
+		    break;
+		}
+	    }
+	    parser = found;
+	    parserResolved = true;
+	}
+	return parser;
+    }
+
+    /**
+     * 讀取EXIF。
+     *
+     * @return 傳回EXIF的檢視，若沒有EXIF，傳回null
+     * @throws IOException 讀取失敗時拋出
+     */
+    ImageExif readExif() throws IOException {
+	if (buffer == null) {
+	    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+		final ByteBuffer tiff = ImageExif.find(channel);
+		return tiff != null ? ImageExif.parse(tiff) : null;
+	    }
+	}
+	final ByteBuffer tiff = ImageExif.find(buffer);
+	return tiff != null ? ImageExif.parse(tiff) : null;
+    }
+}
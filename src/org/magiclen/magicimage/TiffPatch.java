@@ -0,0 +1,567 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * 修補TIFF結構(TIFF檔案或EXIF)中IFD0、Exif、GPS和Interoperability目錄的欄位。</p>
+ *
+ * <p>
+ * 原本的資料完全不會被移動：有被修改的目錄會連同新的值一起附加在資料的結尾，沒有被修改的欄位直接複製原本的12個位元組，因此它們指向的值(例如MakerNote、影像資料)的位置都不變，最後再將指向目錄的位置改成新的目錄。沒有修改任何欄位時，資料不會有任何改變。</p>
+ *
+ * @author Magic Len
+ * @see MetadataRewriter
+ */
+final class TiffPatch {
+
+    // -----類別常數-----
+    /**
+     * LONG欄位類型。
+     */
+    private static final int TYPE_LONG = 4;
+    /**
+     * 目錄在陣列中的索引。
+     */
+    private static final int IFD0 = 0, EXIF = 1, GPS = 2, INTEROP = 3;
+    /**
+     * 各目錄的上層目錄，IFD0沒有上層目錄。
+     */
+    private static final int[] PARENTS = {-1, IFD0, IFD0, EXIF};
+    /**
+     * 上層目錄中指向各目錄的標籤。
+     */
+    private static final int[] POINTER_TAGS = {0, 0x8769, 0x8825, 0xA005};
+    /**
+     * 套用修改時處理目錄的順序，下層目錄必須先處理，才能更新上層目錄中的位置。
+     */
+    private static final int[] APPLY_ORDER = {INTEROP, EXIF, GPS, IFD0};
+
+    // -----類別方法-----
+    /**
+     * 建立只有空的IFD0的TIFF結構。
+     *
+     * @param order 傳入位元組順序
+     * @return 傳回TIFF結構
+     */
+    static byte[] createEmpty(final ByteOrder order) {
+	final ByteBuffer buffer = ByteBuffer.allocate(14).order(order);
+	buffer.put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+	buffer.put(buffer.get(0));
+	buffer.putShort((short) 42).putInt(8).putShort((short) 0).putInt(0);
+	return buffer.array();
+    }
+
+    /**
+     * 將ImageExif的目錄編號轉成陣列的索引。
+     *
+     * @param directory 傳入ImageExif的目錄編號
+     * @return 傳回索引，若不支援此目錄，傳回-1
+     */
+    private static int index(final int directory) {
+	switch (directory) {
+	    case ImageExif.DIRECTORY_IFD0:
+		return IFD0;
+	    case ImageExif.DIRECTORY_EXIF:
+		return EXIF;
+	    case ImageExif.DIRECTORY_GPS:
+		return GPS;
+	    case ImageExif.DIRECTORY_INTEROP:
+		return INTEROP;
+	    default:
+		return -1;
+	}
+    }
+
+    /**
+     * 檢查位置是否能以TIFF的32位元位置表示。
+     *
+     * @param offset 傳入位置
+     * @return 傳回位置
+     * @throws IOException 超過4GB時拋出
+     */
+    private static long checkOffset(final long offset) throws IOException {
+	if (offset > 0xFFFFFFFFL) {
+	    throw new IOException("The TIFF data is too large.");
+	}
+	return offset;
+    }
+
+    /**
+     * 從指定的位置讀取資料，直到緩衝區填滿或是資料結束。
+     *
+     * @param channel 傳入SeekableByteChannel
+     * @param buffer 傳入緩衝區
+     * @param position 傳入位置
+     * @return 傳回讀取的位元組數
+     * @throws IOException 讀取失敗時拋出
+     */
+    private static int readFully(final SeekableByteChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+	channel.position(position);
+	int total = 0;
+	while (buffer.hasRemaining()) {
+	    final int n = channel.read(buffer);
+	    if (n < 0) {
+		break;
+	    }
+	    total += n;
+	}
+	return total;
+    }
+
+    /**
+     * 在指定的位置寫入緩衝區剩下的資料。
+     *
+     * @param channel 傳入SeekableByteChannel
+     * @param buffer 傳入緩衝區
+     * @param position 傳入位置
+     * @throws IOException 寫入失敗時拋出
+     */
+    private static void writeFully(final SeekableByteChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+	channel.position(position);
+	while (buffer.hasRemaining()) {
+	    channel.write(buffer);
+	}
+    }
+
+    // -----物件常數-----
+    /**
+     * 存放TIFF結構的SeekableByteChannel。
+     */
+    private final SeekableByteChannel channel;
+    /**
+     * 位元組順序。
+     */
+    private final ByteOrder order;
+    /**
+     * IFD0、Exif、GPS和Interoperability目錄。
+     */
+    private final Directory[] directories = new Directory[4];
+
+    // -----建構子-----
+    /**
+     * 建構子，讀取TIFF結構中的目錄。
+     *
+     * @param channel 傳入存放TIFF結構的SeekableByteChannel，位置0為TIFF的檔頭，必須可讀可寫
+     * @throws IOException 不是TIFF結構或是讀取失敗時拋出
+     */
+    TiffPatch(final SeekableByteChannel channel) throws IOException {
+	this.channel = channel;
+	final ByteBuffer header = ByteBuffer.allocate(8);
+	if (readFully(channel, header, 0) < 8 || header.get(0) != header.get(1) || (header.get(0) != 'I' && header.get(0) != 'M')) {
+	    throw new IOException("Invalid TIFF header.");
+	}
+	order = header.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	header.order(order);
+	if (header.getShort(2) != 42) {
+	    throw new IOException("Invalid TIFF header.");
+	}
+	directories[IFD0] = readDirectory(header.getInt(4) & 0xFFFFFFFFL);
+	for (int i = EXIF; i <= INTEROP; ++i) {
+	    final Entry pointer = directories[PARENTS[i]].entries.get(POINTER_TAGS[i]);
+	    directories[i] = readDirectory(pointer != null ? pointer.getOffset(order) : 0);
+	}
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得位元組順序，新欄位的值必須使用此順序編碼。
+     *
+     * @return 傳回位元組順序
+     */
+    ByteOrder getByteOrder() {
+	return order;
+    }
+
+    /**
+     * 判斷目錄中是否有某個欄位。
+     *
+     * @param directory 傳入ImageExif的目錄編號
+     * @param tag 傳入標籤
+     * @return 傳回是否有此欄位
+     */
+    boolean contains(final int directory, final int tag) {
+	final int i = index(directory);
+	return i >= 0 && directories[i].entries.containsKey(tag);
+    }
+
+    /**
+     * 設定欄位的值。若目錄不存在，會在套用修改時建立。
+     *
+     * @param directory 傳入ImageExif的目錄編號
+     * @param tag 傳入標籤
+     * @param type 傳入TIFF的欄位類型編號
+     * @param count 傳入值的數量
+     * @param value 傳入已經以getByteOrder的順序編碼的值
+     */
+    void put(final int directory, final int tag, final int type, final int count, final byte[] value) {
+	final int i = index(directory);
+	if (i < 0) {
+	    throw new IllegalArgumentException("Unsupported directory.");
+	}
+	final Directory target = directories[i];
+	target.entries.put(tag, new Entry(tag, type, count, null, value));
+	target.modified = true;
+    }
+
+    /**
+     * 移除欄位。
+     *
+     * @param directory 傳入ImageExif的目錄編號
+     * @param tag 傳入標籤
+     */
+    void remove(final int directory, final int tag) {
+	final int i = index(directory);
+	if (i >= 0 && directories[i].entries.remove(tag) != null) {
+	    directories[i].modified = true;
+	}
+    }
+
+    /**
+     * 判斷是否有欄位被修改。
+     *
+     * @return 傳回是否有欄位被修改
+     */
+    boolean isModified() {
+	for (final Directory directory : directories) {
+	    if (directory.modified) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * 套用修改。被修改的目錄和新的值會附加在資料的結尾，再更新指向目錄的位置。變成空的Exif、GPS或Interoperability目錄會被移除。
+     *
+     * @throws IOException 寫入失敗或是資料超過4GB時拋出
+     */
+    void apply() throws IOException {
+	long end = channel.size();
+	for (final int i : APPLY_ORDER) {
+	    final Directory directory = directories[i];
+	    if (!directory.modified) {
+		continue;
+	    }
+	    if (i != IFD0 && directory.entries.isEmpty()) {
+		if (directory.offset != 0) {
+		    directories[PARENTS[i]].entries.remove(POINTER_TAGS[i]);
+		    directories[PARENTS[i]].modified = true;
+		}
+		continue;
+	    }
+	    // 先寫入超過4個位元組的新值，每個值都從偶數的位置開始
+	    for (final Entry entry : directory.entries.values()) {
+		if (entry.value == null) {
+		    continue;
+		}
+		if (entry.value.length <= 4) {
+		    entry.field = Arrays.copyOf(entry.value, 4);
+		    continue;
+		}
+		end = align(end);
+		writeFully(channel, ByteBuffer.wrap(entry.value), end);
+		entry.field = ByteBuffer.allocate(4).order(order).putInt((int) checkOffset(end)).array();
+		end += entry.value.length;
+	    }
+	    end = align(end);
+	    final ByteBuffer buffer = ByteBuffer.allocate(2 + directory.entries.size() * 12 + 4).order(order);
+	    buffer.putShort((short) directory.entries.size());
+	    for (final Entry entry : directory.entries.values()) {
+		buffer.putShort((short) entry.tag).putShort((short) entry.type).putInt(entry.count).put(entry.field);
+	    }
+	    buffer.putInt((int) directory.next);
+	    buffer.flip();
+	    final long offset = checkOffset(end);
+	    writeFully(channel, buffer, offset);
+	    end += buffer.capacity();
+	    if (i == IFD0) {
+		writeFully(channel, ByteBuffer.allocate(4).order(order).putInt(0, (int) offset), 4);
+	    } else {
+		final Directory parent = directories[PARENTS[i]];
+		final byte[] field = ByteBuffer.allocate(4).order(order).putInt((int) offset).array();
+		parent.entries.put(POINTER_TAGS[i], new Entry(POINTER_TAGS[i], TYPE_LONG, 1, field, null));
+		parent.modified = true;
+	    }
+	    directory.offset = offset;
+	    directory.modified = false;
+	}
+    }
+
+    /**
+     * 讓位置對齊偶數，必要時寫入一個填充的位元組。
+     *
+     * @param position 傳入位置
+     * @return 傳回對齊之後的位置
+     * @throws IOException 寫入失敗時拋出
+     */
+    private long align(final long position) throws IOException {
+	if ((position & 1) == 0) {
+	    return position;
+	}
+	writeFully(channel, ByteBuffer.allocate(1), position);
+	return position + 1;
+    }
+
+    /**
+     * 讀取一個目錄。
+     *
+     * @param offset 傳入目錄的位置，若為0，表示目錄不存在
+     * @return 傳回目錄，若位置不正確，傳回空的目錄
+     * @throws IOException 讀取失敗時拋出
+     */
+    private Directory readDirectory(final long offset) throws IOException {
+	final Directory directory = new Directory();
+	final long size = channel.size();
+	if (offset < 8 || offset + 2 > size) {
+	    return directory;
+	}
+	final ByteBuffer countBuffer = ByteBuffer.allocate(2).order(order);
+	readFully(channel, countBuffer, offset);
+	final int count = countBuffer.getShort(0) & 0xFFFF;
+	final int length = 2 + count * 12 + 4;
+	if (offset + length > size) {
+	    return directory;
+	}
+	final ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+	readFully(channel, buffer, offset);
+	for (int i = 0; i < count; ++i) {
+	    final int position = 2 + i * 12;
+	    final int tag = buffer.getShort(position) & 0xFFFF;
+	    final byte[] field = new byte[4];
+	    System.arraycopy(buffer.array(), position + 8, field, 0, 4);
+	    directory.entries.putIfAbsent(tag, new Entry(tag, buffer.getShort(position + 2) & 0xFFFF, buffer.getInt(position + 4), field, null));
+	}
+	directory.offset = offset;
+	directory.next = buffer.getInt(length - 4) & 0xFFFFFFFFL;
+	return directory;
+    }
+
+    // -----內部類別-----
+    /**
+     * 目錄。
+     */
+    private static final class Directory {
+
+	/**
+	 * 依照標籤排序的欄位。
+	 */
+	final TreeMap<Integer, Entry> entries = new TreeMap<>();
+	/**
+	 * 目錄的位置，若為0，表示目錄不存在。
+	 */
+	long offset;
+	/**
+	 * 下一個IFD的位置，只有IFD0會使用。
+	 */
+	long next;
+	/**
+	 * 是否有欄位被修改。
+	 */
+	boolean modified;
+    }
+
+    /**
+     * 目錄中的欄位。
+     */
+    private static final class Entry {
+
+	/**
+	 * 標籤。
+	 */
+	final int tag;
+	/**
+	 * 欄位類型。
+	 */
+	final int type;
+	/**
+	 * 值的數量。
+	 */
+	final int count;
+	/**
+	 * 新的值，若為null，表示使用原本的值。
+	 */
+	final byte[] value;
+	/**
+	 * IFD項目中最後4個位元組，也就是值本身或是值的位置。
+	 */
+	byte[] field;
+
+	/**
+	 * 建構子。
+	 *
+	 * @param tag 傳入標籤
+	 * @param type 傳入欄位類型
+	 * @param count 傳入值的數量
+	 * @param field 傳入IFD項目中最後4個位元組
+	 * @param value 傳入新的值
+	 */
+	Entry(final int tag, final int type, final int count, final byte[] field, final byte[] value) {
+	    this.tag = tag;
+	    this.type = type;
+	    this.count = count;
+	    this.field = field;
+	    this.value = value;
+	}
+
+	/**
+	 * 將欄位的值當作位置讀取。
+	 *
+	 * @param order 傳入位元組順序
+	 * @return 傳回位置
+	 */
+	long getOffset(final ByteOrder order) {
+	    return ByteBuffer.wrap(field).order(order).getInt(0) & 0xFFFFFFFFL;
+	}
+    }
+
+    /**
+     * 在記憶體中的SeekableByteChannel，用來修補EXIF。
+     */
+    static final class ByteArrayChannel implements SeekableByteChannel {
+
+	/**
+	 * 資料。
+	 */
+	private byte[] data;
+	/**
+	 * 資料的長度。
+	 */
+	private int size;
+	/**
+	 * 目前的位置。
+	 */
+	private long position;
+	/**
+	 * 是否已經關閉。
+	 */
+	private boolean closed;
+
+	/**
+	 * 建構子。
+	 *
+	 * @param data 傳入初始的資料，會被複製
+	 */
+	ByteArrayChannel(final byte[] data) {
+	    this.data = data.clone();
+	    this.size = data.length;
+	}
+
+	/**
+	 * 取得目前的資料。
+	 *
+	 * @return 傳回資料的複製品
+	 */
+	byte[] toByteArray() {
+	    return Arrays.copyOf(data, size);
+	}
+
+	@Override
+	public int read(final ByteBuffer dst) throws IOException {
+	    ensureOpen();
+	    if (position >= size) {
+		return -1;
+	    }
+	    final int n = (int) Math.min(dst.remaining(), size - position);
+	    dst.put(data, (int) position, n);
+	    position += n;
+	    return n;
+	}
+
+	@Override
+	public int write(final ByteBuffer src) throws IOException {
+	    ensureOpen();
+	    final int n = src.remaining();
+	    final long end = position + n;
+	    if (end > Integer.MAX_VALUE - 8) {
+		throw new IOException("The data is too large.");
+	    }
+	    if (end > data.length) {
+		data = Arrays.copyOf(data, (int) Math.max(end, Math.min(Integer.MAX_VALUE - 8, (long) data.length << 1)));
+	    }
+	    if (position > size) {
+		Arrays.fill(data, size, (int) position, (byte) 0);
+	    }
+	    src.get(data, (int) position, n);
+	    position = end;
+	    size = (int) Math.max(size, end);
+	    return n;
+	}
+
+	@Override
+	public long position() throws IOException {
+	    ensureOpen();
+	    return position;
+	}
+
+	@Override
+	public SeekableByteChannel position(final long newPosition) throws IOException {
+	    ensureOpen();
+	    if (newPosition < 0) {
+		throw new IllegalArgumentException("Negative position.");
+	    }
+	    position = newPosition;
+	    return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+	    ensureOpen();
+	    return size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(final long newSize) throws IOException {
+	    ensureOpen();
+	    if (newSize < 0) {
+		throw new IllegalArgumentException("Negative size.");
+	    }
+	    size = (int) Math.min(size, newSize);
+	    position = Math.min(position, size);
+	    return this;
+	}
+
+	@Override
+	public boolean isOpen() {
+	    return !closed;
+	}
+
+	@Override
+	public void close() {
+	    closed = true;
+	}
+
+	/**
+	 * 確認還沒有關閉。
+	 *
+	 * @throws ClosedChannelException 已經關閉時拋出
+	 */
+	private void ensureOpen() throws ClosedChannelException {
+	    if (closed) {
+		throw new ClosedChannelException();
+	    }
+	}
+    }
+}
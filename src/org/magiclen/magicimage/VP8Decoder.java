@@ -0,0 +1,1820 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * VP8(WebP有損壓縮)的解碼器。</p>
+ *
+ * <p>
+ * 只支援WebP使用的關鍵畫格(key frame)。解碼的流程與libwebp相同：先解析每個巨集區塊的預測模式與係數，在工作緩衝區中預測並加上反轉換後的殘差，再對整個畫面進行迴路濾波，最後以雙線性的色度升頻(fancy upsampling)轉換成ARGB，輸出的像素和libwebp的結果一致。</p>
+ *
+ * @author Magic Len
+ * @see WebPDecoder
+ */
+final class VP8Decoder {
+
+    // -----類別常數-----
+    /**
+     * 工作緩衝區每列的寬度。
+     */
+    static final int BPS = 32;
+    /**
+     * 工作緩衝區中Y的開始位置。
+     */
+    static final int Y_OFF = BPS + 8;
+    /**
+     * 工作緩衝區中U的開始位置。
+     */
+    static final int U_OFF = Y_OFF + BPS * 16 + BPS;
+    /**
+     * 工作緩衝區中V的開始位置。
+     */
+    static final int V_OFF = U_OFF + 16;
+    /**
+     * 工作緩衝區的大小。
+     */
+    static final int YUV_SIZE = BPS * 17 + BPS * 9;
+    /**
+     * 16x16區塊與色度區塊的預測模式。
+     */
+    static final int DC_PRED = 0, TM_PRED = 1, V_PRED = 2, H_PRED = 3;
+    /**
+     * 4x4區塊的預測模式。
+     */
+    static final int B_DC_PRED = 0, B_TM_PRED = 1, B_VE_PRED = 2, B_HE_PRED = 3, B_RD_PRED = 4, B_VR_PRED = 5, B_LD_PRED = 6, B_VL_PRED = 7, B_HD_PRED = 8, B_HU_PRED = 9;
+    /**
+     * 4x4區塊預測模式的數量。
+     */
+    static final int NUM_BMODES = 10;
+    /**
+     * 4x4區塊預測模式的解碼樹。
+     */
+    static final int[] YMODES_INTRA4 = {
+	-B_DC_PRED, 1,
+	-B_TM_PRED, 2,
+	-B_VE_PRED, 3,
+	4, 6,
+	-B_HE_PRED, 5,
+	-B_RD_PRED, -B_VR_PRED,
+	-B_LD_PRED, 7,
+	-B_VL_PRED, 8,
+	-B_HD_PRED, -B_HU_PRED
+    };
+    /**
+     * 係數的鋸齒狀掃描順序。
+     */
+    static final int[] ZIGZAG = {0, 1, 4, 8, 5, 2, 3, 6, 9, 12, 13, 10, 7, 11, 14, 15};
+    /**
+     * 係數位置對應的頻帶，最後一個是結束的哨兵。
+     */
+    static final int[] BANDS = {0, 1, 2, 3, 6, 4, 5, 6, 6, 6, 6, 6, 6, 6, 6, 7, 0};
+    /**
+     * 大係數(類別3~6)額外位元的機率。
+     */
+    static final int[][] CAT3456 = {
+	{173, 148, 140},
+	{176, 155, 140, 135},
+	{180, 157, 141, 134, 130},
+	{254, 254, 243, 230, 196, 177, 153, 140, 133, 130, 129}
+    };
+    /**
+     * 16個4x4區塊在工作緩衝區中的相對位置。
+     */
+    static final int[] SCAN = new int[16];
+
+    /**
+     * DC係數的量化步長，依照量化索引。
+     */
+    static final int[] DC_TABLE = {
+	4, 5, 6, 7, 8, 9, 10, 10, 11, 12, 13, 14, 15, 16, 17, 17,
+	18, 19, 20, 20, 21, 21, 22, 22, 23, 23, 24, 25, 25, 26, 27, 28,
+	29, 30, 31, 32, 33, 34, 35, 36, 37, 37, 38, 39, 40, 41, 42, 43,
+	44, 45, 46, 46, 47, 48, 49, 50, 51, 52, 53, 54, 55, 56, 57, 58,
+	59, 60, 61, 62, 63, 64, 65, 66, 67, 68, 69, 70, 71, 72, 73, 74,
+	75, 76, 76, 77, 78, 79, 80, 81, 82, 83, 84, 85, 86, 87, 88, 89,
+	91, 93, 95, 96, 98, 100, 101, 102, 104, 106, 108, 110, 112, 114, 116, 118,
+	122, 124, 126, 128, 130, 132, 134, 136, 138, 140, 143, 145, 148, 151, 154, 157
+    };
+
+    /**
+     * AC係數的量化步長，依照量化索引。
+     */
+    static final int[] AC_TABLE = {
+	4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19,
+	20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35,
+	36, 37, 38, 39, 40, 41, 42, 43, 44, 45, 46, 47, 48, 49, 50, 51,
+	52, 53, 54, 55, 56, 57, 58, 60, 62, 64, 66, 68, 70, 72, 74, 76,
+	78, 80, 82, 84, 86, 88, 90, 92, 94, 96, 98, 100, 102, 104, 106, 108,
+	110, 112, 114, 116, 119, 122, 125, 128, 131, 134, 137, 140, 143, 146, 149, 152,
+	155, 158, 161, 164, 167, 170, 173, 177, 181, 185, 189, 193, 197, 201, 205, 209,
+	213, 217, 221, 225, 229, 234, 239, 245, 249, 254, 259, 264, 269, 274, 279, 284
+    };
+
+    /**
+     * 預設的係數機率。
+     */
+    static final int[][][][] COEFFS_PROBA_0 = {
+	{
+	    {{128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128}, {128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128}, {128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128}},
+	    {{253, 136, 254, 255, 228, 219, 128, 128, 128, 128, 128}, {189, 129, 242, 255, 227, 213, 255, 219, 128, 128, 128}, {106, 126, 227, 252, 214, 209, 255, 255, 128, 128, 128}},
+	    {{1, 98, 248, 255, 236, 226, 255, 255, 128, 128, 128}, {181, 133, 238, 254, 221, 234, 255, 154, 128, 128, 128}, {78, 134, 202, 247, 198, 180, 255, 219, 128, 128, 128}},
+	    {{1, 185, 249, 255, 243, 255, 128, 128, 128, 128, 128}, {184, 150, 247, 255, 236, 224, 128, 128, 128, 128, 128}, {77, 110, 216, 255, 236, 230, 128, 128, 128, 128, 128}},
+	    {{1, 101, 251, 255, 241, 255, 128, 128, 128, 128, 128}, {170, 139, 241, 252, 236, 209, 255, 255, 128, 128, 128}, {37, 116, 196, 243, 228, 255, 255, 255, 128, 128, 128}},
+	    {{1, 204, 254, 255, 245, 255, 128, 128, 128, 128, 128}, {207, 160, 250, 255, 238, 128, 128, 128, 128, 128, 128}, {102, 103, 231, 255, 211, 171, 128, 128, 128, 128, 128}},
+	    {{1, 152, 252, 255, 240, 255, 128, 128, 128, 128, 128}, {177, 135, 243, 255, 234, 225, 128, 128, 128, 128, 128}, {80, 129, 211, 255, 194, 224, 128, 128, 128, 128, 128}},
+	    {{1, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128}, {246, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128}, {255, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128}}
+	},
+	{
+	    {{198, 35, 237, 223, 193, 187, 162, 160, 145, 155, 62}, {131, 45, 198, 221, 172, 176, 220, 157, 252, 221, 1}, {68, 47, 146, 208, 149, 167, 221, 162, 255, 223, 128}},
+	    {{1, 149, 241, 255, 221, 224, 255, 255, 128, 128, 128}, {184, 141, 234, 253, 222, 220, 255, 199, 128, 128, 128}, {81, 99, 181, 242, 176, 190, 249, 202, 255, 255, 128}},
+	    {{1, 129, 232, 253, 214, 197, 242, 196, 255, 255, 128}, {99, 121, 210, 250, 201, 198, 255, 202, 128, 128, 128}, {23, 91, 163, 242, 170, 187, 247, 210, 255, 255, 128}},
+	    {{1, 200, 246, 255, 234, 255, 128, 128, 128, 128, 128}, {109, 178, 241, 255, 231, 245, 255, 255, 128, 128, 128}, {44, 130, 201, 253, 205, 192, 255, 255, 128, 128, 128}},
+	    {{1, 132, 239, 251, 219, 209, 255, 165, 128, 128, 128}, {94, 136, 225, 251, 218, 190, 255, 255, 128, 128, 128}, {22, 100, 174, 245, 186, 161, 255, 199, 128, 128, 128}},
+	    {{1, 182, 249, 255, 232, 235, 128, 128, 128, 128, 128}, {124, 143, 241, 255, 227, 234, 128, 128, 128, 128, 128}, {35, 77, 181, 251, 193, 211, 255, 205, 128, 128, 128}},
+	    {{1, 157, 247, 255, 236, 231, 255, 255, 128, 128, 128}, {121, 141, 235, 255, 225, 227, 255, 255, 128, 128, 128}, {45, 99, 188, 251, 195, 217, 255, 224, 128, 128, 128}},
+	    {{1, 1, 251, 255, 213, 255, 128, 128, 128, 128, 128}, {203, 1, 248, 255, 255, 128, 128, 128, 128, 128, 128}, {137, 1, 177, 255, 224, 255, 128, 128, 128, 128, 128}}
+	},
+	{
+	    {{253, 9, 248, 251, 207, 208, 255, 192, 128, 128, 128}, {175, 13, 224, 243, 193, 185, 249, 198, 255, 255, 128}, {73, 17, 171, 221, 161, 179, 236, 167, 255, 234, 128}},
+	    {{1, 95, 247, 253, 212, 183, 255, 255, 128, 128, 128}, {239, 90, 244, 250, 211, 209, 255, 255, 128, 128, 128}, {155, 77, 195, 248, 188, 195, 255, 255, 128, 128, 128}},
+	    {{1, 24, 239, 251, 218, 219, 255, 205, 128, 128, 128}, {201, 51, 219, 255, 196, 186, 128, 128, 128, 128, 128}, {69, 46, 190, 239, 201, 218, 255, 228, 128, 128, 128}},
+	    {{1, 191, 251, 255, 255, 128, 128, 128, 128, 128, 128}, {223, 165, 249, 255, 213, 255, 128, 128, 128, 128, 128}, {141, 124, 248, 255, 255, 128, 128, 128, 128, 128, 128}},
+	    {{1, 16, 248, 255, 255, 128, 128, 128, 128, 128, 128}, {190, 36, 230, 255, 236, 255, 128, 128, 128, 128, 128}, {149, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128}},
+	    {{1, 226, 255, 128, 128, 128, 128, 128, 128, 128, 128}, {247, 192, 255, 128, 128, 128, 128, 128, 128, 128, 128}, {240, 128, 255, 128, 128, 128, 128, 128, 128, 128, 128}},
+	    {{1, 134, 252, 255, 255, 128, 128, 128, 128, 128, 128}, {213, 62, 250, 255, 255, 128, 128, 128, 128, 128, 128}, {55, 93, 255, 128, 128, 128, 128, 128, 128, 128, 128}},
+	    {{128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128}, {128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128}, {128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128}}
+	},
+	{
+	    {{202, 24, 213, 235, 186, 191, 220, 160, 240, 175, 255}, {126, 38, 182, 232, 169, 184, 228, 174, 255, 187, 128}, {61, 46, 138, 219, 151, 178, 240, 170, 255, 216, 128}},
+	    {{1, 112, 230, 250, 199, 191, 247, 159, 255, 255, 128}, {166, 109, 228, 252, 211, 215, 255, 174, 128, 128, 128}, {39, 77, 162, 232, 172, 180, 245, 178, 255, 255, 128}},
+	    {{1, 52, 220, 246, 198, 199, 249, 220, 255, 255, 128}, {124, 74, 191, 243, 183, 193, 250, 221, 255, 255, 128}, {24, 71, 130, 219, 154, 170, 243, 182, 255, 255, 128}},
+	    {{1, 182, 225, 249, 219, 240, 255, 224, 128, 128, 128}, {149, 150, 226, 252, 216, 205, 255, 171, 128, 128, 128}, {28, 108, 170, 242, 183, 194, 254, 223, 255, 255, 128}},
+	    {{1, 81, 230, 252, 204, 203, 255, 192, 128, 128, 128}, {123, 102, 209, 247, 188, 196, 255, 233, 128, 128, 128}, {20, 95, 153, 243, 164, 173, 255, 203, 128, 128, 128}},
+	    {{1, 222, 248, 255, 216, 213, 128, 128, 128, 128, 128}, {168, 175, 246, 252, 235, 205, 255, 255, 128, 128, 128}, {47, 116, 215, 255, 211, 212, 255, 255, 128, 128, 128}},
+	    {{1, 121, 236, 253, 212, 214, 255, 255, 128, 128, 128}, {141, 84, 213, 252, 201, 202, 255, 219, 128, 128, 128}, {42, 80, 160, 240, 162, 185, 255, 205, 128, 128, 128}},
+	    {{1, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128}, {244, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128}, {238, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128}}
+	}
+    };
+
+    /**
+     * 更新係數機率時使用的機率。
+     */
+    static final int[][][][] COEFFS_UPDATE_PROBA = {
+	{
+	    {{255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{176, 246, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {223, 241, 252, 255, 255, 255, 255, 255, 255, 255, 255}, {249, 253, 253, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 244, 252, 255, 255, 255, 255, 255, 255, 255, 255}, {234, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {253, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 246, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {239, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {254, 255, 254, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 248, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {251, 255, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {251, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {254, 255, 254, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 254, 253, 255, 254, 255, 255, 255, 255, 255, 255}, {250, 255, 254, 255, 254, 255, 255, 255, 255, 255, 255}, {254, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}}
+	},
+	{
+	    {{217, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {225, 252, 241, 253, 255, 255, 254, 255, 255, 255, 255}, {234, 250, 241, 250, 253, 255, 253, 254, 255, 255, 255}},
+	    {{255, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {223, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {238, 253, 254, 254, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 248, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {249, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 253, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {247, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {252, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {253, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 254, 253, 255, 255, 255, 255, 255, 255, 255, 255}, {250, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {254, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}}
+	},
+	{
+	    {{186, 251, 250, 255, 255, 255, 255, 255, 255, 255, 255}, {234, 251, 244, 254, 255, 255, 255, 255, 255, 255, 255}, {251, 251, 243, 253, 254, 255, 254, 255, 255, 255, 255}},
+	    {{255, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {236, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {251, 253, 253, 254, 254, 255, 255, 255, 255, 255, 255}},
+	    {{255, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {254, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {254, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {254, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {254, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}}
+	},
+	{
+	    {{248, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {250, 254, 252, 254, 255, 255, 255, 255, 255, 255, 255}, {248, 254, 249, 253, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 253, 253, 255, 255, 255, 255, 255, 255, 255, 255}, {246, 253, 253, 255, 255, 255, 255, 255, 255, 255, 255}, {252, 254, 251, 254, 254, 255, 255, 255, 255, 255, 255}},
+	    {{255, 254, 252, 255, 255, 255, 255, 255, 255, 255, 255}, {248, 254, 253, 255, 255, 255, 255, 255, 255, 255, 255}, {253, 255, 254, 254, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 251, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {245, 251, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {253, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 251, 253, 255, 255, 255, 255, 255, 255, 255, 255}, {252, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 252, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {249, 255, 254, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 254, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 255, 253, 255, 255, 255, 255, 255, 255, 255, 255}, {250, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}},
+	    {{255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {254, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}, {255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255}}
+	}
+    };
+
+    /**
+     * 4x4區塊預測模式的機率，依照上方與左方區塊的模式索引。
+     */
+    static final int[][][] BMODES_PROBA = {
+	{{231, 120, 48, 89, 115, 113, 120, 152, 112}, {152, 179, 64, 126, 170, 118, 46, 70, 95}, {175, 69, 143, 80, 85, 82, 72, 155, 103}, {56, 58, 10, 171, 218, 189, 17, 13, 152}, {114, 26, 17, 163, 44, 195, 21, 10, 173}, {121, 24, 80, 195, 26, 62, 44, 64, 85}, {144, 71, 10, 38, 171, 213, 144, 34, 26}, {170, 46, 55, 19, 136, 160, 33, 206, 71}, {63, 20, 8, 114, 114, 208, 12, 9, 226}, {81, 40, 11, 96, 182, 84, 29, 16, 36}},
+	{{134, 183, 89, 137, 98, 101, 106, 165, 148}, {72, 187, 100, 130, 157, 111, 32, 75, 80}, {66, 102, 167, 99, 74, 62, 40, 234, 128}, {41, 53, 9, 178, 241, 141, 26, 8, 107}, {74, 43, 26, 146, 73, 166, 49, 23, 157}, {65, 38, 105, 160, 51, 52, 31, 115, 128}, {104, 79, 12, 27, 217, 255, 87, 17, 7}, {87, 68, 71, 44, 114, 51, 15, 186, 23}, {47, 41, 14, 110, 182, 183, 21, 17, 194}, {66, 45, 25, 102, 197, 189, 23, 18, 22}},
+	{{88, 88, 147, 150, 42, 46, 45, 196, 205}, {43, 97, 183, 117, 85, 38, 35, 179, 61}, {39, 53, 200, 87, 26, 21, 43, 232, 171}, {56, 34, 51, 104, 114, 102, 29, 93, 77}, {39, 28, 85, 171, 58, 165, 90, 98, 64}, {34, 22, 116, 206, 23, 34, 43, 166, 73}, {107, 54, 32, 26, 51, 1, 81, 43, 31}, {68, 25, 106, 22, 64, 171, 36, 225, 114}, {34, 19, 21, 102, 132, 188, 16, 76, 124}, {62, 18, 78, 95, 85, 57, 50, 48, 51}},
+	{{193, 101, 35, 159, 215, 111, 89, 46, 111}, {60, 148, 31, 172, 219, 228, 21, 18, 111}, {112, 113, 77, 85, 179, 255, 38, 120, 114}, {40, 42, 1, 196, 245, 209, 10, 25, 109}, {88, 43, 29, 140, 166, 213, 37, 43, 154}, {61, 63, 30, 155, 67, 45, 68, 1, 209}, {100, 80, 8, 43, 154, 1, 51, 26, 71}, {142, 78, 78, 16, 255, 128, 34, 197, 171}, {41, 40, 5, 102, 211, 183, 4, 1, 221}, {51, 50, 17, 168, 209, 192, 23, 25, 82}},
+	{{138, 31, 36, 171, 27, 166, 38, 44, 229}, {67, 87, 58, 169, 82, 115, 26, 59, 179}, {63, 59, 90, 180, 59, 166, 93, 73, 154}, {40, 40, 21, 116, 143, 209, 34, 39, 175}, {47, 15, 16, 183, 34, 223, 49, 45, 183}, {46, 17, 33, 183, 6, 98, 15, 32, 183}, {57, 46, 22, 24, 128, 1, 54, 17, 37}, {65, 32, 73, 115, 28, 128, 23, 128, 205}, {40, 3, 9, 115, 51, 192, 18, 6, 223}, {87, 37, 9, 115, 59, 77, 64, 21, 47}},
+	{{104, 55, 44, 218, 9, 54, 53, 130, 226}, {64, 90, 70, 205, 40, 41, 23, 26, 57}, {54, 57, 112, 184, 5, 41, 38, 166, 213}, {30, 34, 26, 133, 152, 116, 10, 32, 134}, {39, 19, 53, 221, 26, 114, 32, 73, 255}, {31, 9, 65, 234, 2, 15, 1, 118, 73}, {75, 32, 12, 51, 192, 255, 160, 43, 51}, {88, 31, 35, 67, 102, 85, 55, 186, 85}, {56, 21, 23, 111, 59, 205, 45, 37, 192}, {55, 38, 70, 124, 73, 102, 1, 34, 98}},
+	{{125, 98, 42, 88, 104, 85, 117, 175, 82}, {95, 84, 53, 89, 128, 100, 113, 101, 45}, {75, 79, 123, 47, 51, 128, 81, 171, 1}, {57, 17, 5, 71, 102, 57, 53, 41, 49}, {38, 33, 13, 121, 57, 73, 26, 1, 85}, {41, 10, 67, 138, 77, 110, 90, 47, 114}, {115, 21, 2, 10, 102, 255, 166, 23, 6}, {101, 29, 16, 10, 85, 128, 101, 196, 26}, {57, 18, 10, 102, 102, 213, 34, 20, 43}, {117, 20, 15, 36, 163, 128, 68, 1, 26}},
+	{{102, 61, 71, 37, 34, 53, 31, 243, 192}, {69, 60, 71, 38, 73, 119, 28, 222, 37}, {68, 45, 128, 34, 1, 47, 11, 245, 171}, {62, 17, 19, 70, 146, 85, 55, 62, 70}, {37, 43, 37, 154, 100, 163, 85, 160, 1}, {63, 9, 92, 136, 28, 64, 32, 201, 85}, {75, 15, 9, 9, 64, 255, 184, 119, 16}, {86, 6, 28, 5, 64, 255, 25, 248, 1}, {56, 8, 17, 132, 137, 255, 55, 116, 128}, {58, 15, 20, 82, 135, 57, 26, 121, 40}},
+	{{164, 50, 31, 137, 154, 133, 25, 35, 218}, {51, 103, 44, 131, 131, 123, 31, 6, 158}, {86, 40, 64, 135, 148, 224, 45, 183, 128}, {22, 26, 17, 131, 240, 154, 14, 1, 209}, {45, 16, 21, 91, 64, 222, 7, 1, 197}, {56, 21, 39, 155, 60, 138, 23, 102, 213}, {83, 12, 13, 54, 192, 255, 68, 47, 28}, {85, 26, 85, 85, 128, 128, 32, 146, 171}, {18, 11, 7, 63, 144, 171, 4, 4, 246}, {35, 27, 10, 146, 174, 171, 12, 26, 128}},
+	{{190, 80, 35, 99, 180, 80, 126, 54, 45}, {85, 126, 47, 87, 176, 51, 41, 20, 32}, {101, 75, 128, 139, 118, 146, 116, 128, 85}, {56, 41, 15, 176, 236, 85, 37, 9, 62}, {71, 30, 17, 119, 118, 255, 17, 18, 138}, {101, 38, 60, 138, 55, 70, 43, 26, 142}, {146, 36, 19, 30, 171, 255, 97, 27, 20}, {138, 45, 61, 62, 219, 1, 81, 188, 64}, {32, 41, 20, 117, 151, 142, 20, 21, 163}, {112, 19, 12, 61, 195, 128, 48, 4, 24}}
+    };
+
+    static {
+	for (int n = 0; n < 16; ++n) {
+	    SCAN[n] = (n & 3) * 4 + (n >> 2) * 4 * BPS;
+	}
+    }
+
+    // -----類別方法-----
+    /**
+     * 將數值限制在0~255之間。
+     *
+     * @param v 傳入數值
+     * @return 傳回限制後的數值
+     */
+    static int clip8(final int v) {
+	return v < 0 ? 0 : v > 255 ? 255 : v;
+    }
+
+    /**
+     * 反離散餘弦轉換，並加到預測值上。
+     *
+     * @param in 傳入係數
+     * @param inOffset 傳入係數的開始位置
+     * @param dst 傳入工作緩衝區
+     * @param dstOffset 傳入4x4區塊的開始位置
+     */
+    static void transform(final int[] in, final int inOffset, final int[] dst, final int dstOffset) {
+	final int[] tmp = new int[16];
+	for (int i = 0; i < 4; ++i) {
+	    final int i0 = in[inOffset + i], i4 = in[inOffset + 4 + i], i8 = in[inOffset + 8 + i], i12 = in[inOffset + 12 + i];
+	    final int a = i0 + i8;
+	    final int b = i0 - i8;
+	    final int c = mul2(i4) - mul1(i12);
+	    final int d = mul1(i4) + mul2(i12);
+	    tmp[i * 4] = a + d;
+	    tmp[i * 4 + 1] = b + c;
+	    tmp[i * 4 + 2] = b - c;
+	    tmp[i * 4 + 3] = a - d;
+	}
+	for (int i = 0; i < 4; ++i) {
+	    final int dc = tmp[i] + 4;
+	    final int a = dc + tmp[8 + i];
+	    final int b = dc - tmp[8 + i];
+	    final int c = mul2(tmp[4 + i]) - mul1(tmp[12 + i]);
+	    final int d = mul1(tmp[4 + i]) + mul2(tmp[12 + i]);
+	    final int p = dstOffset + i * BPS;
+	    dst[p] = clip8(dst[p] + ((a + d) >> 3));
+	    dst[p + 1] = clip8(dst[p + 1] + ((b + c) >> 3));
+	    dst[p + 2] = clip8(dst[p + 2] + ((b - c) >> 3));
+	    dst[p + 3] = clip8(dst[p + 3] + ((a - d) >> 3));
+	}
+    }
+
+    /**
+     * 乘上sqrt(2)*cos(pi/8)。
+     *
+     * @param a 傳入數值
+     * @return 傳回結果
+     */
+    private static int mul1(final int a) {
+	return ((a * 20091) >> 16) + a;
+    }
+
+    /**
+     * 乘上sqrt(2)*sin(pi/8)。
+     *
+     * @param a 傳入數值
+     * @return 傳回結果
+     */
+    private static int mul2(final int a) {
+	return (a * 35468) >> 16;
+    }
+
+    /**
+     * 反Walsh-Hadamard轉換，將Y2區塊的結果分配到16個Y區塊的DC係數。
+     *
+     * @param in 傳入Y2區塊的係數
+     * @param out 傳入巨集區塊的係數，每個區塊佔16個
+     */
+    static void transformWHT(final int[] in, final int[] out) {
+	final int[] tmp = new int[16];
+	for (int i = 0; i < 4; ++i) {
+	    final int a0 = in[i] + in[12 + i];
+	    final int a1 = in[4 + i] + in[8 + i];
+	    final int a2 = in[4 + i] - in[8 + i];
+	    final int a3 = in[i] - in[12 + i];
+	    tmp[i] = a0 + a1;
+	    tmp[8 + i] = a0 - a1;
+	    tmp[4 + i] = a3 + a2;
+	    tmp[12 + i] = a3 - a2;
+	}
+	for (int i = 0; i < 4; ++i) {
+	    final int dc = tmp[i * 4] + 3;
+	    final int a0 = dc + tmp[i * 4 + 3];
+	    final int a1 = tmp[i * 4 + 1] + tmp[i * 4 + 2];
+	    final int a2 = tmp[i * 4 + 1] - tmp[i * 4 + 2];
+	    final int a3 = dc - tmp[i * 4 + 3];
+	    final int o = i * 64;
+	    out[o] = (short) ((a0 + a1) >> 3);
+	    out[o + 16] = (short) ((a3 + a2) >> 3);
+	    out[o + 32] = (short) ((a0 - a1) >> 3);
+	    out[o + 48] = (short) ((a3 - a2) >> 3);
+	}
+    }
+
+    /**
+     * 預測16x16的亮度區塊。
+     *
+     * @param mode 傳入預測模式
+     * @param hasTop 傳入上方是否有巨集區塊
+     * @param hasLeft 傳入左方是否有巨集區塊
+     * @param dst 傳入工作緩衝區
+     * @param off 傳入區塊的開始位置
+     */
+    static void predictLuma16(final int mode, final boolean hasTop, final boolean hasLeft, final int[] dst, final int off) {
+	predict(mode, 16, hasTop, hasLeft, dst, off);
+    }
+
+    /**
+     * 預測8x8的色度區塊。
+     *
+     * @param mode 傳入預測模式
+     * @param hasTop 傳入上方是否有巨集區塊
+     * @param hasLeft 傳入左方是否有巨集區塊
+     * @param dst 傳入工作緩衝區
+     * @param off 傳入區塊的開始位置
+     */
+    static void predictChroma8(final int mode, final boolean hasTop, final boolean hasLeft, final int[] dst, final int off) {
+	predict(mode, 8, hasTop, hasLeft, dst, off);
+    }
+
+    /**
+     * 預測正方形的區塊。
+     *
+     * @param mode 傳入預測模式
+     * @param size 傳入區塊的大小
+     * @param hasTop 傳入上方是否有巨集區塊
+     * @param hasLeft 傳入左方是否有巨集區塊
+     * @param dst 傳入工作緩衝區
+     * @param off 傳入區塊的開始位置
+     */
+    private static void predict(final int mode, final int size, final boolean hasTop, final boolean hasLeft, final int[] dst, final int off) {
+	final int top = off - BPS;
+	switch (mode) {
+	    case DC_PRED: {
+		final int shift = size == 16 ? 4 : 3;
+		int dc;
+		if (hasTop && hasLeft) {
+		    dc = size;
+		    for (int j = 0; j < size; ++j) {
+			dc += dst[top + j] + dst[off - 1 + j * BPS];
+		    }
+		    dc >>= shift + 1;
+		} else if (hasTop) {
+		    dc = size >> 1;
+		    for (int j = 0; j < size; ++j) {
+			dc += dst[top + j];
+		    }
+		    dc >>= shift;
+		} else if (hasLeft) {
+		    dc = size >> 1;
+		    for (int j = 0; j < size; ++j) {
+			dc += dst[off - 1 + j * BPS];
+		    }
+		    dc >>= shift;
+		} else {
+		    dc = 0x80;
+		}
+		for (int y = 0; y < size; ++y) {
+		    final int p = off + y * BPS;
+		    for (int x = 0; x < size; ++x) {
+			dst[p + x] = dc;
+		    }
+		}
+		break;
+	    }
+	    case TM_PRED: {
+		final int topLeft = dst[top - 1];
+		for (int y = 0; y < size; ++y) {
+		    final int p = off + y * BPS;
+		    final int d = dst[p - 1] - topLeft;
+		    for (int x = 0; x < size; ++x) {
+			dst[p + x] = clip8(dst[top + x] + d);
+		    }
+		}
+		break;
+	    }
+	    case V_PRED:
+		for (int y = 0; y < size; ++y) {
+		    System.arraycopy(dst, top, dst, off + y * BPS, size);
+		}
+		break;
+	    default: // H_PRED
+		for (int y = 0; y < size; ++y) {
+		    final int p = off + y * BPS;
+		    final int l = dst[p - 1];
+		    for (int x = 0; x < size; ++x) {
+			dst[p + x] = l;
+		    }
+		}
+		break;
+	}
+    }
+
+    /**
+     * 預測4x4的亮度區塊。
+     *
+     * @param mode 傳入預測模式
+     * @param dst 傳入工作緩衝區
+     * @param off 傳入區塊的開始位置
+     */
+    static void predictLuma4(final int mode, final int[] dst, final int off) {
+	final int top = off - BPS;
+	final int x0 = dst[top - 1];
+	final int a = dst[top], b = dst[top + 1], c = dst[top + 2], d = dst[top + 3];
+	final int i = dst[off - 1], j = dst[off - 1 + BPS], k = dst[off - 1 + 2 * BPS], l = dst[off - 1 + 3 * BPS];
+	switch (mode) {
+	    case B_DC_PRED: {
+		final int dc = (a + b + c + d + i + j + k + l + 4) >> 3;
+		fill4(dst, off, dc, dc, dc, dc);
+		break;
+	    }
+	    case B_TM_PRED:
+		for (int y = 0; y < 4; ++y) {
+		    final int p = off + y * BPS;
+		    final int dl = dst[p - 1] - x0;
+		    dst[p] = clip8(a + dl);
+		    dst[p + 1] = clip8(b + dl);
+		    dst[p + 2] = clip8(c + dl);
+		    dst[p + 3] = clip8(d + dl);
+		}
+		break;
+	    case B_VE_PRED: {
+		final int e = dst[top + 4];
+		final int v0 = avg3(x0, a, b), v1 = avg3(a, b, c), v2 = avg3(b, c, d), v3 = avg3(c, d, e);
+		for (int y = 0; y < 4; ++y) {
+		    final int p = off + y * BPS;
+		    dst[p] = v0;
+		    dst[p + 1] = v1;
+		    dst[p + 2] = v2;
+		    dst[p + 3] = v3;
+		}
+		break;
+	    }
+	    case B_HE_PRED:
+		fill4(dst, off, avg3(x0, i, j), avg3(i, j, k), avg3(j, k, l), avg3(k, l, l));
+		break;
+	    case B_RD_PRED:
+		set(dst, off, 0, 3, avg3(j, k, l));
+		set(dst, off, 1, 3, set(dst, off, 0, 2, avg3(i, j, k)));
+		set(dst, off, 2, 3, set(dst, off, 1, 2, set(dst, off, 0, 1, avg3(x0, i, j))));
+		set(dst, off, 3, 3, set(dst, off, 2, 2, set(dst, off, 1, 1, set(dst, off, 0, 0, avg3(a, x0, i)))));
+		set(dst, off, 3, 2, set(dst, off, 2, 1, set(dst, off, 1, 0, avg3(b, a, x0))));
+		set(dst, off, 3, 1, set(dst, off, 2, 0, avg3(c, b, a)));
+		set(dst, off, 3, 0, avg3(d, c, b));
+		break;
+	    case B_VR_PRED:
+		set(dst, off, 0, 0, set(dst, off, 1, 2, avg2(x0, a)));
+		set(dst, off, 1, 0, set(dst, off, 2, 2, avg2(a, b)));
+		set(dst, off, 2, 0, set(dst, off, 3, 2, avg2(b, c)));
+		set(dst, off, 3, 0, avg2(c, d));
+		set(dst, off, 0, 3, avg3(k, j, i));
+		set(dst, off, 0, 2, avg3(j, i, x0));
+		set(dst, off, 0, 1, set(dst, off, 1, 3, avg3(i, x0, a)));
+		set(dst, off, 1, 1, set(dst, off, 2, 3, avg3(x0, a, b)));
+		set(dst, off, 2, 1, set(dst, off, 3, 3, avg3(a, b, c)));
+		set(dst, off, 3, 1, avg3(b, c, d));
+		break;
+	    case B_LD_PRED: {
+		final int e = dst[top + 4], f = dst[top + 5], g = dst[top + 6], h = dst[top + 7];
+		set(dst, off, 0, 0, avg3(a, b, c));
+		set(dst, off, 1, 0, set(dst, off, 0, 1, avg3(b, c, d)));
+		set(dst, off, 2, 0, set(dst, off, 1, 1, set(dst, off, 0, 2, avg3(c, d, e))));
+		set(dst, off, 3, 0, set(dst, off, 2, 1, set(dst, off, 1, 2, set(dst, off, 0, 3, avg3(d, e, f)))));
+		set(dst, off, 3, 1, set(dst, off, 2, 2, set(dst, off, 1, 3, avg3(e, f, g))));
+		set(dst, off, 3, 2, set(dst, off, 2, 3, avg3(f, g, h)));
+		set(dst, off, 3, 3, avg3(g, h, h));
+		break;
+	    }
+	    case B_VL_PRED: {
+		final int e = dst[top + 4], f = dst[top + 5], g = dst[top + 6], h = dst[top + 7];
+		set(dst, off, 0, 0, avg2(a, b));
+		set(dst, off, 1, 0, set(dst, off, 0, 2, avg2(b, c)));
+		set(dst, off, 2, 0, set(dst, off, 1, 2, avg2(c, d)));
+		set(dst, off, 3, 0, set(dst, off, 2, 2, avg2(d, e)));
+		set(dst, off, 0, 1, avg3(a, b, c));
+		set(dst, off, 1, 1, set(dst, off, 0, 3, avg3(b, c, d)));
+		set(dst, off, 2, 1, set(dst, off, 1, 3, avg3(c, d, e)));
+		set(dst, off, 3, 1, set(dst, off, 2, 3, avg3(d, e, f)));
+		set(dst, off, 3, 2, avg3(e, f, g));
+		set(dst, off, 3, 3, avg3(f, g, h));
+		break;
+	    }
+	    case B_HD_PRED:
+		set(dst, off, 0, 0, set(dst, off, 2, 1, avg2(i, x0)));
+		set(dst, off, 0, 1, set(dst, off, 2, 2, avg2(j, i)));
+		set(dst, off, 0, 2, set(dst, off, 2, 3, avg2(k, j)));
+		set(dst, off, 0, 3, avg2(l, k));
+		set(dst, off, 3, 0, avg3(a, b, c));
+		set(dst, off, 2, 0, avg3(x0, a, b));
+		set(dst, off, 1, 0, set(dst, off, 3, 1, avg3(i, x0, a)));
+		set(dst, off, 1, 1, set(dst, off, 3, 2, avg3(j, i, x0)));
+		set(dst, off, 1, 2, set(dst, off, 3, 3, avg3(k, j, i)));
+		set(dst, off, 1, 3, avg3(l, k, j));
+		break;
+	    default: // B_HU_PRED
+		set(dst, off, 0, 0, avg2(i, j));
+		set(dst, off, 2, 0, set(dst, off, 0, 1, avg2(j, k)));
+		set(dst, off, 2, 1, set(dst, off, 0, 2, avg2(k, l)));
+		set(dst, off, 1, 0, avg3(i, j, k));
+		set(dst, off, 3, 0, set(dst, off, 1, 1, avg3(j, k, l)));
+		set(dst, off, 3, 1, set(dst, off, 1, 2, avg3(k, l, l)));
+		set(dst, off, 3, 2, set(dst, off, 2, 2, set(dst, off, 0, 3, set(dst, off, 1, 3, set(dst, off, 2, 3, set(dst, off, 3, 3, l))))));
+		break;
+	}
+    }
+
+    /**
+     * 以每列相同的數值填滿4x4區塊。
+     *
+     * @param dst 傳入工作緩衝區
+     * @param off 傳入區塊的開始位置
+     * @param r0 傳入第1列的數值
+     * @param r1 傳入第2列的數值
+     * @param r2 傳入第3列的數值
+     * @param r3 傳入第4列的數值
+     */
+    private static void fill4(final int[] dst, final int off, final int r0, final int r1, final int r2, final int r3) {
+	for (int x = 0; x < 4; ++x) {
+	    dst[off + x] = r0;
+	    dst[off + BPS + x] = r1;
+	    dst[off + 2 * BPS + x] = r2;
+	    dst[off + 3 * BPS + x] = r3;
+	}
+    }
+
+    /**
+     * 設定4x4區塊中的一個像素。
+     *
+     * @param dst 傳入工作緩衝區
+     * @param off 傳入區塊的開始位置
+     * @param x 傳入X座標
+     * @param y 傳入Y座標
+     * @param v 傳入數值
+     * @return 傳回數值
+     */
+    private static int set(final int[] dst, final int off, final int x, final int y, final int v) {
+	dst[off + x + y * BPS] = v;
+	return v;
+    }
+
+    /**
+     * 三個數值的加權平均。
+     *
+     * @param a 傳入數值
+     * @param b 傳入中間的數值
+     * @param c 傳入數值
+     * @return 傳回結果
+     */
+    private static int avg3(final int a, final int b, final int c) {
+	return (a + 2 * b + c + 2) >> 2;
+    }
+
+    /**
+     * 兩個數值的平均。
+     *
+     * @param a 傳入數值
+     * @param b 傳入數值
+     * @return 傳回結果
+     */
+    private static int avg2(final int a, final int b) {
+	return (a + b + 1) >> 1;
+    }
+
+    /**
+     * 將YUV轉成RGB。
+     *
+     * @param y 傳入Y
+     * @param u 傳入U
+     * @param v 傳入V
+     * @return 傳回不透明的ARGB
+     */
+    private static int yuvToARGB(final int y, final int u, final int v) {
+	final int yy = (y * 19077) >> 8;
+	final int r = clipYUV(yy + ((v * 26149) >> 8) - 14234);
+	final int g = clipYUV(yy - ((u * 6419) >> 8) - ((v * 13320) >> 8) + 8708);
+	final int b = clipYUV(yy + ((u * 33050) >> 8) - 17685);
+	return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * 將YUV轉換的定點數結果限制在0~255之間。
+     *
+     * @param v 傳入定點數
+     * @return 傳回結果
+     */
+    private static int clipYUV(final int v) {
+	return (v & ~16383) == 0 ? v >> 6 : v < 0 ? 0 : 255;
+    }
+
+    /**
+     * 以雙線性的色度升頻轉換一對相鄰的列。
+     *
+     * @param topY 傳入上方列的Y
+     * @param topYOffset 傳入上方列的開始位置
+     * @param bottomY 傳入下方列的Y，若為null，則只轉換上方的列
+     * @param bottomYOffset 傳入下方列的開始位置
+     * @param u 傳入U平面
+     * @param v 傳入V平面
+     * @param topUV 傳入上方色度列的開始位置
+     * @param curUV 傳入目前色度列的開始位置
+     * @param out 傳入輸出的ARGB
+     * @param topOut 傳入上方列的輸出位置
+     * @param bottomOut 傳入下方列的輸出位置
+     * @param len 傳入寬度
+     */
+    private static void upsampleLinePair(final byte[] topY, final int topYOffset, final byte[] bottomY, final int bottomYOffset, final byte[] u, final byte[] v, final int topUV, final int curUV, final int[] out, final int topOut, final int bottomOut, final int len) {
+	final int lastPixelPair = (len - 1) >> 1;
+	int tlUV = (u[topUV] & 0xFF) | ((v[topUV] & 0xFF) << 16);
+	int lUV = (u[curUV] & 0xFF) | ((v[curUV] & 0xFF) << 16);
+	{
+	    final int uv0 = (3 * tlUV + lUV + 0x00020002) >> 2;
+	    out[topOut] = yuvToARGB(topY[topYOffset] & 0xFF, uv0 & 0xFF, (uv0 >> 16) & 0xFF);
+	}
+	if (bottomY != null) {
+	    final int uv0 = (3 * lUV + tlUV + 0x00020002) >> 2;
+	    out[bottomOut] = yuvToARGB(bottomY[bottomYOffset] & 0xFF, uv0 & 0xFF, (uv0 >> 16) & 0xFF);
+	}
+	for (int x = 1; x <= lastPixelPair; ++x) {
+	    final int tUV = (u[topUV + x] & 0xFF) | ((v[topUV + x] & 0xFF) << 16);
+	    final int uv = (u[curUV + x] & 0xFF) | ((v[curUV + x] & 0xFF) << 16);
+	    final int avg = tlUV + tUV + lUV + uv + 0x00080008;
+	    final int diag12 = (avg + 2 * (tUV + lUV)) >> 3;
+	    final int diag03 = (avg + 2 * (tlUV + uv)) >> 3;
+	    {
+		final int uv0 = (diag12 + tlUV) >> 1;
+		final int uv1 = (diag03 + tUV) >> 1;
+		out[topOut + 2 * x - 1] = yuvToARGB(topY[topYOffset + 2 * x - 1] & 0xFF, uv0 & 0xFF, (uv0 >> 16) & 0xFF);
+		out[topOut + 2 * x] = yuvToARGB(topY[topYOffset + 2 * x] & 0xFF, uv1 & 0xFF, (uv1 >> 16) & 0xFF);
+	    }
+	    if (bottomY != null) {
+		final int uv0 = (diag03 + lUV) >> 1;
+		final int uv1 = (diag12 + uv) >> 1;
+		out[bottomOut + 2 * x - 1] = yuvToARGB(bottomY[bottomYOffset + 2 * x - 1] & 0xFF, uv0 & 0xFF, (uv0 >> 16) & 0xFF);
+		out[bottomOut + 2 * x] = yuvToARGB(bottomY[bottomYOffset + 2 * x] & 0xFF, uv1 & 0xFF, (uv1 >> 16) & 0xFF);
+	    }
+	    tlUV = tUV;
+	    lUV = uv;
+	}
+	if ((len & 1) == 0) {
+	    {
+		final int uv0 = (3 * tlUV + lUV + 0x00020002) >> 2;
+		out[topOut + len - 1] = yuvToARGB(topY[topYOffset + len - 1] & 0xFF, uv0 & 0xFF, (uv0 >> 16) & 0xFF);
+	    }
+	    if (bottomY != null) {
+		final int uv0 = (3 * lUV + tlUV + 0x00020002) >> 2;
+		out[bottomOut + len - 1] = yuvToARGB(bottomY[bottomYOffset + len - 1] & 0xFF, uv0 & 0xFF, (uv0 >> 16) & 0xFF);
+	    }
+	}
+    }
+
+    // -----物件常數-----
+    /**
+     * VP8的資料。
+     */
+    private final byte[] data;
+    /**
+     * 資料的開始位置。
+     */
+    private final int offset;
+    /**
+     * 資料的長度。
+     */
+    private final int length;
+    /**
+     * 圖片的寬度。
+     */
+    private final int width;
+    /**
+     * 圖片的高度。
+     */
+    private final int height;
+
+    // -----物件變數-----
+    /**
+     * 水平的巨集區塊數量。
+     */
+    private int mbW;
+    /**
+     * 垂直的巨集區塊數量。
+     */
+    private int mbH;
+    /**
+     * 是否使用分段。
+     */
+    private boolean useSegment;
+    /**
+     * 是否更新分段的對應。
+     */
+    private boolean updateMap;
+    /**
+     * 分段的數值是否為絕對值。
+     */
+    private boolean absoluteDelta = true;
+    /**
+     * 各分段的量化索引。
+     */
+    private final int[] segmentQuantizer = new int[4];
+    /**
+     * 各分段的濾波強度。
+     */
+    private final int[] segmentFilterStrength = new int[4];
+    /**
+     * 分段對應的機率。
+     */
+    private final int[] segmentProba = {255, 255, 255};
+    /**
+     * 是否使用簡單的迴路濾波。
+     */
+    private boolean simpleFilter;
+    /**
+     * 迴路濾波的等級。
+     */
+    private int filterLevel;
+    /**
+     * 迴路濾波的銳利度。
+     */
+    private int sharpness;
+    /**
+     * 是否使用濾波等級的差值。
+     */
+    private boolean useLfDelta;
+    /**
+     * 參考畫格的濾波等級差值。
+     */
+    private final int[] refLfDelta = new int[4];
+    /**
+     * 預測模式的濾波等級差值。
+     */
+    private final int[] modeLfDelta = new int[4];
+    /**
+     * 迴路濾波的類型，0為不濾波，1為簡單，2為複雜。
+     */
+    private int filterType;
+    /**
+     * 各分段的量化步長，依序為Y1的DC與AC、Y2的DC與AC、UV的DC與AC。
+     */
+    private final int[][] dqm = new int[4][6];
+    /**
+     * 係數的機率。
+     */
+    private final int[][][][] proba = new int[4][8][3][11];
+    /**
+     * 是否使用略過的機率。
+     */
+    private boolean useSkipProba;
+    /**
+     * 略過的機率。
+     */
+    private int skipP;
+    /**
+     * 各分段與是否為4x4預測的濾波參數，依序為限制、內部限制、高邊緣變化門檻。
+     */
+    private final int[][][] filterStrengths = new int[4][2][3];
+
+    // -----建構子-----
+    /**
+     * 建構子，會讀取畫格的標頭。
+     *
+     * @param data 傳入VP8的資料
+     * @param offset 傳入資料的開始位置
+     * @param length 傳入資料的長度
+     * @throws IOException 資料不正確時拋出
+     */
+    VP8Decoder(final byte[] data, final int offset, final int length) throws IOException {
+	if (length < 10) {
+	    throw new IOException("The VP8 data is too short.");
+	}
+	final int bits = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16);
+	if ((bits & 1) != 0) {
+	    throw new IOException("Only VP8 key frames are supported.");
+	}
+	if (((bits >> 1) & 7) > 3) {
+	    throw new IOException("Unknown VP8 profile.");
+	}
+	if ((data[offset + 3] & 0xFF) != 0x9D || (data[offset + 4] & 0xFF) != 0x01 || (data[offset + 5] & 0xFF) != 0x2A) {
+	    throw new IOException("Bad VP8 start code.");
+	}
+	this.data = data;
+	this.offset = offset;
+	this.length = length;
+	this.width = ((data[offset + 6] & 0xFF) | ((data[offset + 7] & 0xFF) << 8)) & 0x3FFF;
+	this.height = ((data[offset + 8] & 0xFF) | ((data[offset + 9] & 0xFF) << 8)) & 0x3FFF;
+	if (width == 0 || height == 0) {
+	    throw new IOException("Bad VP8 dimension.");
+	}
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得圖片的寬度。
+     *
+     * @return 傳回寬度
+     */
+    int getWidth() {
+	return width;
+    }
+
+    /**
+     * 取得圖片的高度。
+     *
+     * @return 傳回高度
+     */
+    int getHeight() {
+	return height;
+    }
+
+    /**
+     * 解碼成不透明的ARGB像素。
+     *
+     * @return 傳回ARGB像素，依照列的順序排列
+     * @throws IOException 資料不正確時拋出
+     */
+    int[] decode() throws IOException {
+	final int bits = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16);
+	final int partitionLength = bits >>> 5;
+	if (10 + partitionLength > length) {
+	    throw new IOException("Bad VP8 partition length.");
+	}
+	final BoolDecoder br = new BoolDecoder(data, offset + 10, partitionLength);
+	br.getValue(1); // 色彩空間
+	br.getValue(1); // 限制類型
+	parseSegmentHeader(br);
+	parseFilterHeader(br);
+	final BoolDecoder[] parts = parsePartitions(br, offset + 10 + partitionLength, length - 10 - partitionLength);
+	parseQuant(br);
+	br.getValue(1); // 關鍵畫格必定重設機率
+	parseProba(br);
+	precomputeFilterStrengths();
+
+	mbW = (width + 15) >> 4;
+	mbH = (height + 15) >> 4;
+	final int yStride = mbW * 16, uvStride = mbW * 8;
+	final byte[] yPlane = new byte[yStride * mbH * 16];
+	final byte[] uPlane = new byte[uvStride * mbH * 8];
+	final byte[] vPlane = new byte[uvStride * mbH * 8];
+	final int[] filterInfo = filterType > 0 ? new int[mbW * mbH] : null;
+
+	final int[] yuv = new int[YUV_SIZE];
+	final int[] coeffs = new int[384];
+	final int[] dc = new int[16];
+	final int[] modes = new int[16];
+	final int[] intraT = new int[mbW * 4];
+	final int[] intraL = new int[4];
+	final int[] nzT = new int[mbW];
+	final int[] nzDcT = new int[mbW];
+	final int[] topY = new int[mbW * 16];
+	final int[] topU = new int[mbW * 8];
+	final int[] topV = new int[mbW * 8];
+	final int[] nzL = new int[2]; // 左方的非零旗標與DC的非零旗標
+
+	for (int mbY = 0; mbY < mbH; ++mbY) {
+	    final BoolDecoder tokenBr = parts[mbY & (parts.length - 1)];
+	    intraL[0] = intraL[1] = intraL[2] = intraL[3] = B_DC_PRED;
+	    nzL[0] = nzL[1] = 0;
+	    // 初始化最左邊的區塊
+	    for (int j = 0; j < 16; ++j) {
+		yuv[Y_OFF + j * BPS - 1] = 129;
+	    }
+	    for (int j = 0; j < 8; ++j) {
+		yuv[U_OFF + j * BPS - 1] = 129;
+		yuv[V_OFF + j * BPS - 1] = 129;
+	    }
+	    if (mbY > 0) {
+		yuv[Y_OFF - 1 - BPS] = yuv[U_OFF - 1 - BPS] = yuv[V_OFF - 1 - BPS] = 129;
+	    } else {
+		for (int j = -1; j < 20; ++j) {
+		    yuv[Y_OFF - BPS + j] = 127;
+		}
+		for (int j = -1; j < 8; ++j) {
+		    yuv[U_OFF - BPS + j] = 127;
+		    yuv[V_OFF - BPS + j] = 127;
+		}
+	    }
+	    for (int mbX = 0; mbX < mbW; ++mbX) {
+		// 預測模式
+		int segment = 0;
+		if (updateMap) {
+		    segment = br.getBit(segmentProba[0]) == 0 ? br.getBit(segmentProba[1]) : br.getBit(segmentProba[2]) + 2;
+		}
+		final boolean skip = useSkipProba && br.getBit(skipP) == 1;
+		final boolean isI4x4 = br.getBit(145) == 0;
+		final int topIndex = mbX * 4;
+		if (!isI4x4) {
+		    final int ymode = br.getBit(156) != 0 ? (br.getBit(128) != 0 ? TM_PRED : H_PRED) : (br.getBit(163) != 0 ? V_PRED : DC_PRED);
+		    modes[0] = ymode;
+		    for (int i = 0; i < 4; ++i) {
+			intraT[topIndex + i] = ymode;
+			intraL[i] = ymode;
+		    }
+		} else {
+		    for (int y = 0; y < 4; ++y) {
+			int ymode = intraL[y];
+			for (int x = 0; x < 4; ++x) {
+			    final int[] prob = BMODES_PROBA[intraT[topIndex + x]][ymode];
+			    int i = YMODES_INTRA4[br.getBit(prob[0])];
+			    while (i > 0) {
+				i = YMODES_INTRA4[2 * i + br.getBit(prob[i])];
+			    }
+			    ymode = -i;
+			    intraT[topIndex + x] = ymode;
+			    modes[y * 4 + x] = ymode;
+			}
+			intraL[y] = ymode;
+		    }
+		}
+		final int uvmode = br.getBit(142) == 0 ? DC_PRED : br.getBit(114) == 0 ? V_PRED : br.getBit(183) != 0 ? TM_PRED : H_PRED;
+
+		// 係數
+		Arrays.fill(coeffs, 0);
+		final boolean noCoeffs;
+		if (!skip) {
+		    noCoeffs = parseResiduals(tokenBr, dqm[segment], isI4x4, mbX, nzT, nzDcT, nzL, coeffs, dc);
+		} else {
+		    nzT[mbX] = nzL[0] = 0;
+		    if (!isI4x4) {
+			nzDcT[mbX] = nzL[1] = 0;
+		    }
+		    noCoeffs = true;
+		}
+		if (filterInfo != null) {
+		    final int[] f = filterStrengths[segment][isI4x4 ? 1 : 0];
+		    final int inner = (isI4x4 || !noCoeffs) ? 1 : 0;
+		    filterInfo[mbY * mbW + mbX] = f[0] | (f[1] << 8) | (f[2] << 16) | (inner << 24);
+		}
+
+		// 重建
+		if (mbX > 0) {
+		    for (int j = -1; j < 16; ++j) {
+			System.arraycopy(yuv, Y_OFF + j * BPS + 12, yuv, Y_OFF + j * BPS - 4, 4);
+		    }
+		    for (int j = -1; j < 8; ++j) {
+			System.arraycopy(yuv, U_OFF + j * BPS + 4, yuv, U_OFF + j * BPS - 4, 4);
+			System.arraycopy(yuv, V_OFF + j * BPS + 4, yuv, V_OFF + j * BPS - 4, 4);
+		    }
+		}
+		if (mbY > 0) {
+		    System.arraycopy(topY, mbX * 16, yuv, Y_OFF - BPS, 16);
+		    System.arraycopy(topU, mbX * 8, yuv, U_OFF - BPS, 8);
+		    System.arraycopy(topV, mbX * 8, yuv, V_OFF - BPS, 8);
+		}
+		if (isI4x4) {
+		    final int topRight = Y_OFF - BPS + 16;
+		    if (mbY > 0) {
+			if (mbX >= mbW - 1) {
+			    final int p = topY[mbX * 16 + 15];
+			    yuv[topRight] = yuv[topRight + 1] = yuv[topRight + 2] = yuv[topRight + 3] = p;
+			} else {
+			    System.arraycopy(topY, mbX * 16 + 16, yuv, topRight, 4);
+			}
+		    }
+		    for (int k = 1; k <= 3; ++k) {
+			System.arraycopy(yuv, topRight, yuv, topRight + k * 4 * BPS, 4);
+		    }
+		    for (int n = 0; n < 16; ++n) {
+			final int dst = Y_OFF + SCAN[n];
+			predictLuma4(modes[n], yuv, dst);
+			transform(coeffs, n * 16, yuv, dst);
+		    }
+		} else {
+		    predictLuma16(modes[0], mbY > 0, mbX > 0, yuv, Y_OFF);
+		    if (!noCoeffs) {
+			for (int n = 0; n < 16; ++n) {
+			    transform(coeffs, n * 16, yuv, Y_OFF + SCAN[n]);
+			}
+		    }
+		}
+		predictChroma8(uvmode, mbY > 0, mbX > 0, yuv, U_OFF);
+		predictChroma8(uvmode, mbY > 0, mbX > 0, yuv, V_OFF);
+		for (int n = 0; n < 4; ++n) {
+		    final int o = (n & 1) * 4 + (n >> 1) * 4 * BPS;
+		    transform(coeffs, 256 + n * 16, yuv, U_OFF + o);
+		    transform(coeffs, 320 + n * 16, yuv, V_OFF + o);
+		}
+		if (mbY < mbH - 1) {
+		    System.arraycopy(yuv, Y_OFF + 15 * BPS, topY, mbX * 16, 16);
+		    System.arraycopy(yuv, U_OFF + 7 * BPS, topU, mbX * 8, 8);
+		    System.arraycopy(yuv, V_OFF + 7 * BPS, topV, mbX * 8, 8);
+		}
+		// 複製到畫面
+		for (int j = 0; j < 16; ++j) {
+		    final int s = Y_OFF + j * BPS, d = (mbY * 16 + j) * yStride + mbX * 16;
+		    for (int i = 0; i < 16; ++i) {
+			yPlane[d + i] = (byte) yuv[s + i];
+		    }
+		}
+		for (int j = 0; j < 8; ++j) {
+		    final int su = U_OFF + j * BPS, sv = V_OFF + j * BPS, d = (mbY * 8 + j) * uvStride + mbX * 8;
+		    for (int i = 0; i < 8; ++i) {
+			uPlane[d + i] = (byte) yuv[su + i];
+			vPlane[d + i] = (byte) yuv[sv + i];
+		    }
+		}
+	    }
+	}
+
+	if (filterInfo != null) {
+	    for (int mbY = 0; mbY < mbH; ++mbY) {
+		for (int mbX = 0; mbX < mbW; ++mbX) {
+		    filterMacroblock(filterInfo[mbY * mbW + mbX], mbX, mbY, yPlane, yStride, uPlane, vPlane, uvStride);
+		}
+	    }
+	}
+
+	final int[] argb = new int[width * height];
+	upsampleLinePair(yPlane, 0, null, 0, uPlane, vPlane, 0, 0, argb, 0, 0, width);
+	for (int y = 1; y < height; y += 2) {
+	    final int top = ((y - 1) >> 1) * uvStride, cur = ((y + 1) >> 1) * uvStride;
+	    if (y + 1 < height) {
+		upsampleLinePair(yPlane, y * yStride, yPlane, (y + 1) * yStride, uPlane, vPlane, top, cur, argb, y * width, (y + 1) * width, width);
+	    } else {
+		upsampleLinePair(yPlane, y * yStride, null, 0, uPlane, vPlane, top, top, argb, y * width, 0, width);
+	    }
+	}
+	return argb;
+    }
+
+    /**
+     * 讀取分段的標頭。
+     *
+     * @param br 傳入第一個分割區的解碼器
+     */
+    private void parseSegmentHeader(final BoolDecoder br) {
+	useSegment = br.getValue(1) == 1;
+	if (useSegment) {
+	    updateMap = br.getValue(1) == 1;
+	    if (br.getValue(1) == 1) {
+		absoluteDelta = br.getValue(1) == 1;
+		for (int s = 0; s < 4; ++s) {
+		    segmentQuantizer[s] = br.getValue(1) == 1 ? br.getSignedValue(7) : 0;
+		}
+		for (int s = 0; s < 4; ++s) {
+		    segmentFilterStrength[s] = br.getValue(1) == 1 ? br.getSignedValue(6) : 0;
+		}
+	    }
+	    if (updateMap) {
+		for (int s = 0; s < 3; ++s) {
+		    segmentProba[s] = br.getValue(1) == 1 ? br.getValue(8) : 255;
+		}
+	    }
+	} else {
+	    updateMap = false;
+	}
+    }
+
+    /**
+     * 讀取迴路濾波的標頭。
+     *
+     * @param br 傳入第一個分割區的解碼器
+     */
+    private void parseFilterHeader(final BoolDecoder br) {
+	simpleFilter = br.getValue(1) == 1;
+	filterLevel = br.getValue(6);
+	sharpness = br.getValue(3);
+	useLfDelta = br.getValue(1) == 1;
+	if (useLfDelta && br.getValue(1) == 1) {
+	    for (int i = 0; i < 4; ++i) {
+		if (br.getValue(1) == 1) {
+		    refLfDelta[i] = br.getSignedValue(6);
+		}
+	    }
+	    for (int i = 0; i < 4; ++i) {
+		if (br.getValue(1) == 1) {
+		    modeLfDelta[i] = br.getSignedValue(6);
+		}
+	    }
+	}
+	filterType = filterLevel == 0 ? 0 : simpleFilter ? 1 : 2;
+    }
+
+    /**
+     * 讀取係數分割區。
+     *
+     * @param br 傳入第一個分割區的解碼器
+     * @param start 傳入係數分割區的開始位置
+     * @param size 傳入剩下的資料長度
+     * @return 傳回各個係數分割區的解碼器
+     * @throws IOException 資料不正確時拋出
+     */
+    private BoolDecoder[] parsePartitions(final BoolDecoder br, final int start, final int size) throws IOException {
+	final int lastPart = (1 << br.getValue(2)) - 1;
+	if (size < 3 * lastPart) {
+	    throw new IOException("Bad VP8 partitions.");
+	}
+	final BoolDecoder[] parts = new BoolDecoder[lastPart + 1];
+	int partStart = start + lastPart * 3;
+	int sizeLeft = size - lastPart * 3;
+	for (int p = 0; p < lastPart; ++p) {
+	    final int s = start + p * 3;
+	    int psize = (data[s] & 0xFF) | ((data[s + 1] & 0xFF) << 8) | ((data[s + 2] & 0xFF) << 16);
+	    if (psize > sizeLeft) {
+		psize = sizeLeft;
+	    }
+	    parts[p] = new BoolDecoder(data, partStart, psize);
+	    partStart += psize;
+	    sizeLeft -= psize;
+	}
+	parts[lastPart] = new BoolDecoder(data, partStart, sizeLeft);
+	return parts;
+    }
+
+    /**
+     * 讀取量化的參數。
+     *
+     * @param br 傳入第一個分割區的解碼器
+     */
+    private void parseQuant(final BoolDecoder br) {
+	final int baseQ0 = br.getValue(7);
+	final int dqy1Dc = br.getValue(1) == 1 ? br.getSignedValue(4) : 0;
+	final int dqy2Dc = br.getValue(1) == 1 ? br.getSignedValue(4) : 0;
+	final int dqy2Ac = br.getValue(1) == 1 ? br.getSignedValue(4) : 0;
+	final int dquvDc = br.getValue(1) == 1 ? br.getSignedValue(4) : 0;
+	final int dquvAc = br.getValue(1) == 1 ? br.getSignedValue(4) : 0;
+	for (int i = 0; i < 4; ++i) {
+	    int q;
+	    if (useSegment) {
+		q = segmentQuantizer[i];
+		if (!absoluteDelta) {
+		    q += baseQ0;
+		}
+	    } else {
+		if (i > 0) {
+		    dqm[i] = dqm[0];
+		    continue;
+		}
+		q = baseQ0;
+	    }
+	    final int[] m = dqm[i];
+	    m[0] = DC_TABLE[clip(q + dqy1Dc, 127)];
+	    m[1] = AC_TABLE[clip(q, 127)];
+	    m[2] = DC_TABLE[clip(q + dqy2Dc, 127)] * 2;
+	    m[3] = Math.max(8, (AC_TABLE[clip(q + dqy2Ac, 127)] * 101581) >> 16);
+	    m[4] = DC_TABLE[clip(q + dquvDc, 117)];
+	    m[5] = AC_TABLE[clip(q + dquvAc, 127)];
+	}
+    }
+
+    /**
+     * 將數值限制在0到上限之間。
+     *
+     * @param v 傳入數值
+     * @param max 傳入上限
+     * @return 傳回限制後的數值
+     */
+    private static int clip(final int v, final int max) {
+	return v < 0 ? 0 : v > max ? max : v;
+    }
+
+    /**
+     * 讀取係數的機率。
+     *
+     * @param br 傳入第一個分割區的解碼器
+     */
+    private void parseProba(final BoolDecoder br) {
+	for (int t = 0; t < 4; ++t) {
+	    for (int b = 0; b < 8; ++b) {
+		for (int c = 0; c < 3; ++c) {
+		    for (int p = 0; p < 11; ++p) {
+			proba[t][b][c][p] = br.getBit(COEFFS_UPDATE_PROBA[t][b][c][p]) != 0 ? br.getValue(8) : COEFFS_PROBA_0[t][b][c][p];
+		    }
+		}
+	    }
+	}
+	useSkipProba = br.getValue(1) == 1;
+	if (useSkipProba) {
+	    skipP = br.getValue(8);
+	}
+    }
+
+    /**
+     * 計算各分段的迴路濾波參數。
+     */
+    private void precomputeFilterStrengths() {
+	if (filterType == 0) {
+	    return;
+	}
+	for (int s = 0; s < 4; ++s) {
+	    int baseLevel;
+	    if (useSegment) {
+		baseLevel = segmentFilterStrength[s];
+		if (!absoluteDelta) {
+		    baseLevel += filterLevel;
+		}
+	    } else {
+		baseLevel = filterLevel;
+	    }
+	    for (int i4x4 = 0; i4x4 <= 1; ++i4x4) {
+		final int[] info = filterStrengths[s][i4x4];
+		int level = baseLevel;
+		if (useLfDelta) {
+		    level += refLfDelta[0];
+		    if (i4x4 == 1) {
+			level += modeLfDelta[0];
+		    }
+		}
+		level = level < 0 ? 0 : level > 63 ? 63 : level;
+		if (level > 0) {
+		    int ilevel = level;
+		    if (sharpness > 0) {
+			if (sharpness > 4) {
+			    ilevel >>= 2;
+			} else {
+			    ilevel >>= 1;
+			}
+			if (ilevel > 9 - sharpness) {
+			    ilevel = 9 - sharpness;
+			}
+		    }
+		    if (ilevel < 1) {
+			ilevel = 1;
+		    }
+		    info[0] = 2 * level + ilevel;
+		    info[1] = ilevel;
+		    info[2] = level >= 40 ? 2 : level >= 15 ? 1 : 0;
+		} else {
+		    info[0] = 0;
+		    info[1] = 0;
+		    info[2] = 0;
+		}
+	    }
+	}
+    }
+
+    /**
+     * 讀取一個巨集區塊的係數。
+     *
+     * @param br 傳入係數分割區的解碼器
+     * @param q 傳入量化步長
+     * @param isI4x4 傳入是否為4x4預測
+     * @param mbX 傳入巨集區塊的X座標
+     * @param nzT 傳入上方的非零旗標
+     * @param nzDcT 傳入上方的DC非零旗標
+     * @param nzL 傳入左方的非零旗標與DC非零旗標
+     * @param coeffs 傳入輸出的係數
+     * @param dc 傳入Y2係數的暫存空間
+     * @return 傳回是否所有的係數都是零
+     */
+    private boolean parseResiduals(final BoolDecoder br, final int[] q, final boolean isI4x4, final int mbX, final int[] nzT, final int[] nzDcT, final int[] nzL, final int[] coeffs, final int[] dc) {
+	final int first;
+	final int[][][] acProba;
+	boolean nonZero = false;
+	if (!isI4x4) {
+	    Arrays.fill(dc, 0);
+	    final int ctx = nzDcT[mbX] + nzL[1];
+	    final int nz = getCoeffs(br, proba[1], ctx, q[2], q[3], 0, dc, 0);
+	    nzDcT[mbX] = nzL[1] = nz > 0 ? 1 : 0;
+	    transformWHT(dc, coeffs);
+	    first = 1;
+	    acProba = proba[0];
+	} else {
+	    first = 0;
+	    acProba = proba[3];
+	}
+
+	int tnz = nzT[mbX] & 0x0F;
+	int lnz = nzL[0] & 0x0F;
+	for (int y = 0; y < 4; ++y) {
+	    int l = lnz & 1;
+	    for (int x = 0; x < 4; ++x) {
+		final int ctx = l + (tnz & 1);
+		final int block = (y * 4 + x) * 16;
+		final int nz = getCoeffs(br, acProba, ctx, q[0], q[1], first, coeffs, block);
+		l = nz > first ? 1 : 0;
+		tnz = (tnz >> 1) | (l << 7);
+		if (nz > 1 || coeffs[block] != 0) {
+		    nonZero = true;
+		}
+	    }
+	    tnz >>= 4;
+	    lnz = (lnz >> 1) | (l << 7);
+	}
+	int outTnz = tnz;
+	int outLnz = lnz >> 4;
+	for (int ch = 0; ch < 4; ch += 2) {
+	    tnz = nzT[mbX] >> (4 + ch);
+	    lnz = nzL[0] >> (4 + ch);
+	    for (int y = 0; y < 2; ++y) {
+		int l = lnz & 1;
+		for (int x = 0; x < 2; ++x) {
+		    final int ctx = l + (tnz & 1);
+		    final int block = 256 + (ch * 2 + y * 2 + x) * 16;
+		    final int nz = getCoeffs(br, proba[2], ctx, q[4], q[5], 0, coeffs, block);
+		    l = nz > 0 ? 1 : 0;
+		    tnz = (tnz >> 1) | (l << 3);
+		    if (nz > 1 || coeffs[block] != 0) {
+			nonZero = true;
+		    }
+		}
+		tnz >>= 2;
+		lnz = (lnz >> 1) | (l << 5);
+	    }
+	    outTnz |= (tnz << 4) << ch;
+	    outLnz |= (lnz & 0xF0) << ch;
+	}
+	nzT[mbX] = outTnz;
+	nzL[0] = outLnz;
+	return !nonZero;
+    }
+
+    /**
+     * 讀取一個4x4區塊的係數。
+     *
+     * @param br 傳入係數分割區的解碼器
+     * @param prob 傳入此類型區塊的機率
+     * @param ctx 傳入上下文
+     * @param dcq 傳入DC的量化步長
+     * @param acq 傳入AC的量化步長
+     * @param start 傳入開始的係數位置
+     * @param out 傳入輸出的係數
+     * @param outOffset 傳入輸出的開始位置
+     * @return 傳回最後一個非零係數的下一個位置
+     */
+    private static int getCoeffs(final BoolDecoder br, final int[][][] prob, final int ctx, final int dcq, final int acq, final int start, final int[] out, final int outOffset) {
+	int n = start;
+	int[] p = prob[BANDS[n]][ctx];
+	for (; n < 16; ++n) {
+	    if (br.getBit(p[0]) == 0) {
+		return n;
+	    }
+	    while (br.getBit(p[1]) == 0) {
+		p = prob[BANDS[++n]][0];
+		if (n == 16) {
+		    return 16;
+		}
+	    }
+	    final int[][] pCtx = prob[BANDS[n + 1]];
+	    final int v;
+	    if (br.getBit(p[2]) == 0) {
+		v = 1;
+		p = pCtx[1];
+	    } else {
+		v = getLargeValue(br, p);
+		p = pCtx[2];
+	    }
+	    out[outOffset + ZIGZAG[n]] = (short) (br.getSigned(v) * (n > 0 ? acq : dcq));
+	}
+	return 16;
+    }
+
+    /**
+     * 讀取大於1的係數值。
+     *
+     * @param br 傳入係數分割區的解碼器
+     * @param p 傳入機率
+     * @return 傳回係數值
+     */
+    private static int getLargeValue(final BoolDecoder br, final int[] p) {
+	int v;
+	if (br.getBit(p[3]) == 0) {
+	    if (br.getBit(p[4]) == 0) {
+		v = 2;
+	    } else {
+		v = 3 + br.getBit(p[5]);
+	    }
+	} else if (br.getBit(p[6]) == 0) {
+	    if (br.getBit(p[7]) == 0) {
+		v = 5 + br.getBit(159);
+	    } else {
+		v = 7 + 2 * br.getBit(165);
+		v += br.getBit(145);
+	    }
+	} else {
+	    final int bit1 = br.getBit(p[8]);
+	    final int bit0 = br.getBit(p[9 + bit1]);
+	    final int cat = 2 * bit1 + bit0;
+	    v = 0;
+	    for (final int tab : CAT3456[cat]) {
+		v += v + br.getBit(tab);
+	    }
+	    v += 3 + (8 << cat);
+	}
+	return v;
+    }
+
+    /**
+     * 對一個巨集區塊進行迴路濾波。
+     *
+     * @param info 傳入濾波參數
+     * @param mbX 傳入巨集區塊的X座標
+     * @param mbY 傳入巨集區塊的Y座標
+     * @param y 傳入Y平面
+     * @param yStride 傳入Y平面每列的寬度
+     * @param u 傳入U平面
+     * @param v 傳入V平面
+     * @param uvStride 傳入UV平面每列的寬度
+     */
+    private void filterMacroblock(final int info, final int mbX, final int mbY, final byte[] y, final int yStride, final byte[] u, final byte[] v, final int uvStride) {
+	final int limit = info & 0xFF;
+	if (limit == 0) {
+	    return;
+	}
+	final int ilevel = (info >> 8) & 0xFF;
+	final int hevThresh = (info >> 16) & 0xFF;
+	final boolean inner = (info >>> 24) != 0;
+	final int yOff = mbY * 16 * yStride + mbX * 16;
+	if (filterType == 1) {
+	    if (mbX > 0) {
+		simpleFilter16(y, yOff, 1, yStride, limit + 4);
+	    }
+	    if (inner) {
+		for (int k = 1; k <= 3; ++k) {
+		    simpleFilter16(y, yOff + 4 * k, 1, yStride, limit);
+		}
+	    }
+	    if (mbY > 0) {
+		simpleFilter16(y, yOff, yStride, 1, limit + 4);
+	    }
+	    if (inner) {
+		for (int k = 1; k <= 3; ++k) {
+		    simpleFilter16(y, yOff + 4 * k * yStride, yStride, 1, limit);
+		}
+	    }
+	} else {
+	    final int uvOff = mbY * 8 * uvStride + mbX * 8;
+	    if (mbX > 0) {
+		filterLoop26(y, yOff, 1, yStride, 16, limit + 4, ilevel, hevThresh);
+		filterLoop26(u, uvOff, 1, uvStride, 8, limit + 4, ilevel, hevThresh);
+		filterLoop26(v, uvOff, 1, uvStride, 8, limit + 4, ilevel, hevThresh);
+	    }
+	    if (inner) {
+		for (int k = 1; k <= 3; ++k) {
+		    filterLoop24(y, yOff + 4 * k, 1, yStride, 16, limit, ilevel, hevThresh);
+		}
+		filterLoop24(u, uvOff + 4, 1, uvStride, 8, limit, ilevel, hevThresh);
+		filterLoop24(v, uvOff + 4, 1, uvStride, 8, limit, ilevel, hevThresh);
+	    }
+	    if (mbY > 0) {
+		filterLoop26(y, yOff, yStride, 1, 16, limit + 4, ilevel, hevThresh);
+		filterLoop26(u, uvOff, uvStride, 1, 8, limit + 4, ilevel, hevThresh);
+		filterLoop26(v, uvOff, uvStride, 1, 8, limit + 4, ilevel, hevThresh);
+	    }
+	    if (inner) {
+		for (int k = 1; k <= 3; ++k) {
+		    filterLoop24(y, yOff + 4 * k * yStride, yStride, 1, 16, limit, ilevel, hevThresh);
+		}
+		filterLoop24(u, uvOff + 4 * uvStride, uvStride, 1, 8, limit, ilevel, hevThresh);
+		filterLoop24(v, uvOff + 4 * uvStride, uvStride, 1, 8, limit, ilevel, hevThresh);
+	    }
+	}
+    }
+
+    /**
+     * 簡單的迴路濾波，處理16個像素的邊緣。
+     *
+     * @param p 傳入平面
+     * @param off 傳入邊緣的開始位置
+     * @param hstride 傳入跨越邊緣的間距
+     * @param vstride 傳入沿著邊緣的間距
+     * @param thresh 傳入門檻
+     */
+    private static void simpleFilter16(final byte[] p, final int off, final int hstride, final int vstride, final int thresh) {
+	final int thresh2 = 2 * thresh + 1;
+	for (int i = 0; i < 16; ++i) {
+	    final int o = off + i * vstride;
+	    if (needsFilter(p, o, hstride, thresh2)) {
+		doFilter2(p, o, hstride);
+	    }
+	}
+    }
+
+    /**
+     * 複雜的迴路濾波，用在巨集區塊的邊緣。
+     *
+     * @param p 傳入平面
+     * @param off 傳入邊緣的開始位置
+     * @param hstride 傳入跨越邊緣的間距
+     * @param vstride 傳入沿著邊緣的間距
+     * @param size 傳入邊緣的長度
+     * @param thresh 傳入門檻
+     * @param ithresh 傳入內部的門檻
+     * @param hevThresh 傳入高邊緣變化的門檻
+     */
+    private static void filterLoop26(final byte[] p, final int off, final int hstride, final int vstride, final int size, final int thresh, final int ithresh, final int hevThresh) {
+	final int thresh2 = 2 * thresh + 1;
+	for (int i = 0; i < size; ++i) {
+	    final int o = off + i * vstride;
+	    if (needsFilter2(p, o, hstride, thresh2, ithresh)) {
+		if (hev(p, o, hstride, hevThresh)) {
+		    doFilter2(p, o, hstride);
+		} else {
+		    doFilter6(p, o, hstride);
+		}
+	    }
+	}
+    }
+
+    /**
+     * 複雜的迴路濾波，用在區塊內部的邊緣。
+     *
+     * @param p 傳入平面
+     * @param off 傳入邊緣的開始位置
+     * @param hstride 傳入跨越邊緣的間距
+     * @param vstride 傳入沿著邊緣的間距
+     * @param size 傳入邊緣的長度
+     * @param thresh 傳入門檻
+     * @param ithresh 傳入內部的門檻
+     * @param hevThresh 傳入高邊緣變化的門檻
+     */
+    private static void filterLoop24(final byte[] p, final int off, final int hstride, final int vstride, final int size, final int thresh, final int ithresh, final int hevThresh) {
+	final int thresh2 = 2 * thresh + 1;
+	for (int i = 0; i < size; ++i) {
+	    final int o = off + i * vstride;
+	    if (needsFilter2(p, o, hstride, thresh2, ithresh)) {
+		if (hev(p, o, hstride, hevThresh)) {
+		    doFilter2(p, o, hstride);
+		} else {
+		    doFilter4(p, o, hstride);
+		}
+	    }
+	}
+    }
+
+    /**
+     * 將數值限制在-128~127之間。
+     *
+     * @param v 傳入數值
+     * @return 傳回限制後的數值
+     */
+    private static int sclip1(final int v) {
+	return v < -128 ? -128 : v > 127 ? 127 : v;
+    }
+
+    /**
+     * 將數值限制在-16~15之間。
+     *
+     * @param v 傳入數值
+     * @return 傳回限制後的數值
+     */
+    private static int sclip2(final int v) {
+	return v < -16 ? -16 : v > 15 ? 15 : v;
+    }
+
+    /**
+     * 修改邊緣兩側各一個像素。
+     *
+     * @param p 傳入平面
+     * @param o 傳入邊緣後的第一個像素位置
+     * @param step 傳入跨越邊緣的間距
+     */
+    private static void doFilter2(final byte[] p, final int o, final int step) {
+	final int p1 = p[o - 2 * step] & 0xFF, p0 = p[o - step] & 0xFF, q0 = p[o] & 0xFF, q1 = p[o + step] & 0xFF;
+	final int a = 3 * (q0 - p0) + sclip1(p1 - q1);
+	final int a1 = sclip2((a + 4) >> 3);
+	final int a2 = sclip2((a + 3) >> 3);
+	p[o - step] = (byte) clip8(p0 + a2);
+	p[o] = (byte) clip8(q0 - a1);
+    }
+
+    /**
+     * 修改邊緣兩側各兩個像素。
+     *
+     * @param p 傳入平面
+     * @param o 傳入邊緣後的第一個像素位置
+     * @param step 傳入跨越邊緣的間距
+     */
+    private static void doFilter4(final byte[] p, final int o, final int step) {
+	final int p1 = p[o - 2 * step] & 0xFF, p0 = p[o - step] & 0xFF, q0 = p[o] & 0xFF, q1 = p[o + step] & 0xFF;
+	final int a = 3 * (q0 - p0);
+	final int a1 = sclip2((a + 4) >> 3);
+	final int a2 = sclip2((a + 3) >> 3);
+	final int a3 = (a1 + 1) >> 1;
+	p[o - 2 * step] = (byte) clip8(p1 + a3);
+	p[o - step] = (byte) clip8(p0 + a2);
+	p[o] = (byte) clip8(q0 - a1);
+	p[o + step] = (byte) clip8(q1 - a3);
+    }
+
+    /**
+     * 修改邊緣兩側各三個像素。
+     *
+     * @param p 傳入平面
+     * @param o 傳入邊緣後的第一個像素位置
+     * @param step 傳入跨越邊緣的間距
+     */
+    private static void doFilter6(final byte[] p, final int o, final int step) {
+	final int p2 = p[o - 3 * step] & 0xFF, p1 = p[o - 2 * step] & 0xFF, p0 = p[o - step] & 0xFF;
+	final int q0 = p[o] & 0xFF, q1 = p[o + step] & 0xFF, q2 = p[o + 2 * step] & 0xFF;
+	final int a = sclip1(3 * (q0 - p0) + sclip1(p1 - q1));
+	final int a1 = (27 * a + 63) >> 7;
+	final int a2 = (18 * a + 63) >> 7;
+	final int a3 = (9 * a + 63) >> 7;
+	p[o - 3 * step] = (byte) clip8(p2 + a3);
+	p[o - 2 * step] = (byte) clip8(p1 + a2);
+	p[o - step] = (byte) clip8(p0 + a1);
+	p[o] = (byte) clip8(q0 - a1);
+	p[o + step] = (byte) clip8(q1 - a2);
+	p[o + 2 * step] = (byte) clip8(q2 - a3);
+    }
+
+    /**
+     * 判斷邊緣是否有高變化。
+     *
+     * @param p 傳入平面
+     * @param o 傳入邊緣後的第一個像素位置
+     * @param step 傳入跨越邊緣的間距
+     * @param thresh 傳入門檻
+     * @return 傳回是否有高變化
+     */
+    private static boolean hev(final byte[] p, final int o, final int step, final int thresh) {
+	final int p1 = p[o - 2 * step] & 0xFF, p0 = p[o - step] & 0xFF, q0 = p[o] & 0xFF, q1 = p[o + step] & 0xFF;
+	return Math.abs(p1 - p0) > thresh || Math.abs(q1 - q0) > thresh;
+    }
+
+    /**
+     * 判斷簡單濾波是否需要處理此位置。
+     *
+     * @param p 傳入平面
+     * @param o 傳入邊緣後的第一個像素位置
+     * @param step 傳入跨越邊緣的間距
+     * @param t 傳入門檻
+     * @return 傳回是否需要濾波
+     */
+    private static boolean needsFilter(final byte[] p, final int o, final int step, final int t) {
+	final int p1 = p[o - 2 * step] & 0xFF, p0 = p[o - step] & 0xFF, q0 = p[o] & 0xFF, q1 = p[o + step] & 0xFF;
+	return 4 * Math.abs(p0 - q0) + Math.abs(p1 - q1) <= t;
+    }
+
+    /**
+     * 判斷複雜濾波是否需要處理此位置。
+     *
+     * @param p 傳入平面
+     * @param o 傳入邊緣後的第一個像素位置
+     * @param step 傳入跨越邊緣的間距
+     * @param t 傳入門檻
+     * @param it 傳入內部的門檻
+     * @return 傳回是否需要濾波
+     */
+    private static boolean needsFilter2(final byte[] p, final int o, final int step, final int t, final int it) {
+	final int p3 = p[o - 4 * step] & 0xFF, p2 = p[o - 3 * step] & 0xFF, p1 = p[o - 2 * step] & 0xFF, p0 = p[o - step] & 0xFF;
+	final int q0 = p[o] & 0xFF, q1 = p[o + step] & 0xFF, q2 = p[o + 2 * step] & 0xFF, q3 = p[o + 3 * step] & 0xFF;
+	if (4 * Math.abs(p0 - q0) + Math.abs(p1 - q1) > t) {
+	    return false;
+	}
+	return Math.abs(p3 - p2) <= it && Math.abs(p2 - p1) <= it && Math.abs(p1 - p0) <= it && Math.abs(q3 - q2) <= it && Math.abs(q2 - q1) <= it && Math.abs(q1 - q0) <= it;
+    }
+
+    // -----內部類別-----
+    /**
+     * 布林算術解碼器。
+     */
+    static final class BoolDecoder {
+
+	/**
+	 * 正規化時需要左移的位元數，依照range。
+	 */
+	private static final int[] NORM = new int[256];
+
+	static {
+	    for (int r = 1; r < 256; ++r) {
+		int s = 0;
+		while ((r << s) < 128) {
+		    ++s;
+		}
+		NORM[r] = s;
+	    }
+	}
+
+	/**
+	 * 資料。
+	 */
+	private final byte[] buffer;
+	/**
+	 * 下一個要讀取的位置。
+	 */
+	private int position;
+	/**
+	 * 資料的結束位置。
+	 */
+	private final int end;
+	/**
+	 * 目前的數值。
+	 */
+	private int value;
+	/**
+	 * 目前的範圍。
+	 */
+	private int range = 255;
+	/**
+	 * 已經移出的位元數。
+	 */
+	private int bitCount;
+
+	/**
+	 * 建構子。
+	 *
+	 * @param buffer 傳入資料
+	 * @param offset 傳入開始位置
+	 * @param length 傳入長度
+	 */
+	BoolDecoder(final byte[] buffer, final int offset, final int length) {
+	    this.buffer = buffer;
+	    this.position = offset;
+	    this.end = offset + Math.max(0, length);
+	    value = (nextByte() << 8) | nextByte();
+	}
+
+	/**
+	 * 讀取下一個位元組，超過結尾時傳回0。
+	 *
+	 * @return 傳回位元組
+	 */
+	private int nextByte() {
+	    return position < end ? buffer[position++] & 0xFF : 0;
+	}
+
+	/**
+	 * 讀取一個位元。
+	 *
+	 * @param prob 傳入位元為0的機率(0~255)
+	 * @return 傳回位元
+	 */
+	int getBit(final int prob) {
+	    final int split = 1 + (((range - 1) * prob) >> 8);
+	    final int bigSplit = split << 8;
+	    final int bit;
+	    if (value >= bigSplit) {
+		range -= split;
+		value -= bigSplit;
+		bit = 1;
+	    } else {
+		range = split;
+		bit = 0;
+	    }
+	    if (range < 128) {
+		final int shift = NORM[range];
+		range <<= shift;
+		value <<= shift;
+		bitCount += shift;
+		if (bitCount >= 8) {
+		    bitCount -= 8;
+		    value |= nextByte() << bitCount;
+		}
+	    }
+	    return bit;
+	}
+
+	/**
+	 * 讀取無號數。
+	 *
+	 * @param bits 傳入位元數
+	 * @return 傳回數值
+	 */
+	int getValue(final int bits) {
+	    int v = 0;
+	    for (int b = bits - 1; b >= 0; --b) {
+		v |= getBit(0x80) << b;
+	    }
+	    return v;
+	}
+
+	/**
+	 * 讀取有號數，數值之後是正負號。
+	 *
+	 * @param bits 傳入數值的位元數
+	 * @return 傳回數值
+	 */
+	int getSignedValue(final int bits) {
+	    final int v = getValue(bits);
+	    return getValue(1) == 1 ? -v : v;
+	}
+
+	/**
+	 * 讀取正負號並套用到數值。
+	 *
+	 * @param v 傳入數值
+	 * @return 傳回加上正負號的數值
+	 */
+	int getSigned(final int v) {
+	    return getBit(0x80) == 1 ? -v : v;
+	}
+    }
+}
@@ -0,0 +1,1323 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * VP8(WebP有損壓縮)關鍵畫格的編碼器。</p>
+ *
+ * <p>
+ * 將像素轉成YUV 4:2:0之後，每個巨集區塊以位元率與失真的分數選擇16x16或4x4的亮度預測模式與色度預測模式，係數經過量化之後，先統計一次各個記號的次數來更新係數的機率，再以布林編碼器輸出。預測、反轉換與各種表格都和VP8Decoder共用，因此編碼時重建的畫面和解碼器完全相同。只使用一個分段與一個係數分割區。</p>
+ *
+ * @author Magic Len
+ * @see VP8Decoder
+ */
+final class VP8Encoder {
+
+    // -----類別常數-----
+    /**
+     * 量化時使用的定點數位元數。
+     */
+    private static final int QFIX = 17;
+    /**
+     * 量化後係數的最大值。
+     */
+    private static final int MAX_LEVEL = 2047;
+    /**
+     * 係數機率的數量。
+     */
+    private static final int NUM_PROBAS = 4 * 8 * 3 * 11;
+    /**
+     * 一個巨集區塊的量化係數數量，依序為Y2、16個Y、4個U、4個V區塊。
+     */
+    private static final int LEVELS_PER_MB = 16 + 256 + 128;
+    /**
+     * 以1/256位元為單位，位元0在機率為p/256時的成本。
+     */
+    private static final int[] BIT_COST = new int[257];
+    /**
+     * 寫入4x4區塊預測模式時經過的解碼樹節點，依照預測模式。
+     */
+    private static final int[][] BMODE_NODES = new int[VP8Decoder.NUM_BMODES][];
+    /**
+     * 寫入4x4區塊預測模式時在各個節點的位元，依照預測模式。
+     */
+    private static final boolean[][] BMODE_BITS = new boolean[VP8Decoder.NUM_BMODES][];
+    /**
+     * 工作緩衝區的寬度。
+     */
+    private static final int BPS = VP8Decoder.BPS;
+    /**
+     * 工作緩衝區中Y區塊的位置。
+     */
+    private static final int Y_OFF = VP8Decoder.Y_OFF;
+    /**
+     * 工作緩衝區中U區塊的位置。
+     */
+    private static final int U_OFF = VP8Decoder.U_OFF;
+    /**
+     * 工作緩衝區中V區塊的位置。
+     */
+    private static final int V_OFF = VP8Decoder.V_OFF;
+
+    static {
+	for (int p = 1; p <= 256; ++p) {
+	    BIT_COST[p] = (int) Math.round(-Math.log(p / 256.0) / Math.log(2) * 256);
+	}
+	BIT_COST[0] = BIT_COST[1];
+	for (int mode = 0; mode < VP8Decoder.NUM_BMODES; ++mode) {
+	    // 從解碼樹的葉子往回找到根節點
+	    final int[] nodes = new int[9];
+	    final boolean[] bits = new boolean[9];
+	    int depth = 0;
+	    int target = -mode;
+	    boolean found = true;
+	    while (found) {
+		found = false;
+		for (int i = 0; i < VP8Decoder.YMODES_INTRA4.length; ++i) {
+		    if (VP8Decoder.YMODES_INTRA4[i] == target) {
+			nodes[depth] = i >> 1;
+			bits[depth] = (i & 1) != 0;
+			++depth;
+			target = i >> 1;
+			found = target > 0;
+			break;
+		    }
+		}
+	    }
+	    BMODE_NODES[mode] = new int[depth];
+	    BMODE_BITS[mode] = new boolean[depth];
+	    for (int i = 0; i < depth; ++i) {
+		BMODE_NODES[mode][i] = nodes[depth - 1 - i];
+		BMODE_BITS[mode][i] = bits[depth - 1 - i];
+	    }
+	}
+    }
+
+    // -----類別方法-----
+    /**
+     * 編碼成VP8區塊的內容。
+     *
+     * @param argb 傳入ARGB像素，透明度會被忽略
+     * @param width 傳入寬度
+     * @param height 傳入高度
+     * @param quality 傳入品質(0~1)
+     * @return 傳回VP8的資料
+     * @throws IOException 圖片太大時拋出
+     */
+    static byte[] encode(final int[] argb, final int width, final int height, final float quality) throws IOException {
+	if (width > 16383 || height > 16383) {
+	    throw new IOException("The image is too large for WebP.");
+	}
+	return new VP8Encoder(argb, width, height, quality).encode();
+    }
+
+    /**
+     * 將品質轉成量化索引，品質越高，量化索引越小。
+     *
+     * @param quality 傳入品質(0~1)
+     * @return 傳回量化索引(0~127)
+     */
+    static int qualityToQuantizer(final float quality) {
+	final double q = Math.max(0, Math.min(1, quality));
+	final double linear = q < 0.75 ? q * 2 / 3 : 2 * q - 1;
+	return Math.max(0, Math.min(127, (int) Math.round(127 * (1 - Math.cbrt(linear)))));
+    }
+
+    /**
+     * 計算一個位元的成本。
+     *
+     * @param bit 傳入位元
+     * @param prob 傳入位元為0的機率(0~255)
+     * @return 傳回成本，單位為1/256位元
+     */
+    private static int bitCost(final boolean bit, final int prob) {
+	return bit ? BIT_COST[256 - prob] : BIT_COST[prob];
+    }
+
+    /**
+     * 離散餘弦轉換。
+     *
+     * @param src 傳入來源
+     * @param srcOffset 傳入來源4x4區塊的開始位置
+     * @param ref 傳入預測
+     * @param refOffset 傳入預測4x4區塊的開始位置
+     * @param out 傳入輸出的係數
+     * @param outOffset 傳入輸出的開始位置
+     */
+    private static void forwardTransform(final int[] src, final int srcOffset, final int[] ref, final int refOffset, final int[] out, final int outOffset) {
+	final int[] tmp = new int[16];
+	for (int i = 0; i < 4; ++i) {
+	    final int s = srcOffset + i * BPS, r = refOffset + i * BPS;
+	    final int d0 = src[s] - ref[r];
+	    final int d1 = src[s + 1] - ref[r + 1];
+	    final int d2 = src[s + 2] - ref[r + 2];
+	    final int d3 = src[s + 3] - ref[r + 3];
+	    final int a0 = d0 + d3;
+	    final int a1 = d1 + d2;
+	    final int a2 = d1 - d2;
+	    final int a3 = d0 - d3;
+	    tmp[i * 4] = (a0 + a1) * 8;
+	    tmp[i * 4 + 1] = (a2 * 2217 + a3 * 5352 + 1812) >> 9;
+	    tmp[i * 4 + 2] = (a0 - a1) * 8;
+	    tmp[i * 4 + 3] = (a3 * 2217 - a2 * 5352 + 937) >> 9;
+	}
+	for (int i = 0; i < 4; ++i) {
+	    final int a0 = tmp[i] + tmp[12 + i];
+	    final int a1 = tmp[4 + i] + tmp[8 + i];
+	    final int a2 = tmp[4 + i] - tmp[8 + i];
+	    final int a3 = tmp[i] - tmp[12 + i];
+	    out[outOffset + i] = (a0 + a1 + 7) >> 4;
+	    out[outOffset + 4 + i] = ((a2 * 2217 + a3 * 5352 + 12000) >> 16) + (a3 != 0 ? 1 : 0);
+	    out[outOffset + 8 + i] = (a0 - a1 + 7) >> 4;
+	    out[outOffset + 12 + i] = (a3 * 2217 - a2 * 5352 + 51000) >> 16;
+	}
+    }
+
+    /**
+     * Walsh-Hadamard轉換，將16個Y區塊的DC係數轉成Y2區塊的係數。
+     *
+     * @param in 傳入巨集區塊的係數，每個區塊佔16個
+     * @param out 傳入輸出的Y2係數
+     */
+    private static void forwardWHT(final int[] in, final int[] out) {
+	final int[] tmp = new int[16];
+	for (int i = 0; i < 4; ++i) {
+	    final int o = i * 64;
+	    final int a0 = in[o] + in[o + 32];
+	    final int a1 = in[o + 16] + in[o + 48];
+	    final int a2 = in[o + 16] - in[o + 48];
+	    final int a3 = in[o] - in[o + 32];
+	    tmp[i * 4] = a0 + a1;
+	    tmp[i * 4 + 1] = a3 + a2;
+	    tmp[i * 4 + 2] = a3 - a2;
+	    tmp[i * 4 + 3] = a0 - a1;
+	}
+	for (int i = 0; i < 4; ++i) {
+	    final int a0 = tmp[i] + tmp[8 + i];
+	    final int a1 = tmp[4 + i] + tmp[12 + i];
+	    final int a2 = tmp[4 + i] - tmp[12 + i];
+	    final int a3 = tmp[i] - tmp[8 + i];
+	    out[i] = (a0 + a1) >> 1;
+	    out[4 + i] = (a3 + a2) >> 1;
+	    out[8 + i] = (a3 - a2) >> 1;
+	    out[12 + i] = (a0 - a1) >> 1;
+	}
+    }
+
+    /**
+     * 量化一個4x4區塊的係數。
+     *
+     * @param in 傳入係數，會被換成反量化後的係數
+     * @param inOffset 傳入係數的開始位置
+     * @param levels 傳入輸出的量化係數，依照鋸齒狀的順序
+     * @param levelsOffset 傳入輸出的開始位置
+     * @param matrix 傳入量化矩陣
+     * @param first 傳入開始的係數位置
+     * @return 傳回是否有非零的量化係數
+     */
+    private static boolean quantize(final int[] in, final int inOffset, final short[] levels, final int levelsOffset, final Matrix matrix, final int first) {
+	boolean nonZero = false;
+	for (int n = 0; n < 16; ++n) {
+	    final int j = VP8Decoder.ZIGZAG[n];
+	    final int c = in[inOffset + j];
+	    final int i = j > 0 ? 1 : 0;
+	    final int coeff = c < 0 ? -c : c;
+	    int level = 0;
+	    if (n >= first && coeff > matrix.zthresh[i]) {
+		level = (int) (((long) coeff * matrix.iq[i] + matrix.bias[i]) >> QFIX);
+		if (level > MAX_LEVEL) {
+		    level = MAX_LEVEL;
+		}
+		if (c < 0) {
+		    level = -level;
+		}
+	    }
+	    levels[levelsOffset + n] = (short) level;
+	    in[inOffset + j] = level * matrix.q[i];
+	    if (level != 0) {
+		nonZero = true;
+	    }
+	}
+	return nonZero;
+    }
+
+    /**
+     * 計算區塊的誤差平方和。
+     *
+     * @param a 傳入工作緩衝區
+     * @param b 傳入工作緩衝區
+     * @param offset 傳入區塊的開始位置
+     * @param size 傳入區塊的大小
+     * @return 傳回誤差平方和
+     */
+    private static int sse(final int[] a, final int[] b, final int offset, final int size) {
+	int sum = 0;
+	for (int y = 0; y < size; ++y) {
+	    final int p = offset + y * BPS;
+	    for (int x = 0; x < size; ++x) {
+		final int d = a[p + x] - b[p + x];
+		sum += d * d;
+	    }
+	}
+	return sum;
+    }
+
+    /**
+     * 複製區塊。
+     *
+     * @param src 傳入來源
+     * @param dst 傳入目的
+     * @param offset 傳入區塊的開始位置
+     * @param size 傳入區塊的大小
+     */
+    private static void copyBlock(final int[] src, final int[] dst, final int offset, final int size) {
+	for (int y = 0; y < size; ++y) {
+	    System.arraycopy(src, offset + y * BPS, dst, offset + y * BPS, size);
+	}
+    }
+
+    /**
+     * 計算係數機率的索引。
+     *
+     * @param type 傳入區塊類型
+     * @param band 傳入頻帶
+     * @param ctx 傳入上下文
+     * @param p 傳入樹中的位置
+     * @return 傳回索引
+     */
+    private static int probaIndex(final int type, final int band, final int ctx, final int p) {
+	return ((type * 8 + band) * 3 + ctx) * 11 + p;
+    }
+
+    /**
+     * 寫入一個4x4區塊的係數。
+     *
+     * @param w 傳入記號的輸出
+     * @param type 傳入區塊類型
+     * @param ctx 傳入上下文
+     * @param levels 傳入量化係數，依照鋸齒狀的順序
+     * @param offset 傳入量化係數的開始位置
+     * @param first 傳入開始的係數位置
+     * @return 傳回是否有非零的係數
+     */
+    private static boolean putCoeffs(final TokenWriter w, final int type, final int ctx, final short[] levels, final int offset, final int first) {
+	int last = -1;
+	for (int n = 15; n >= first; --n) {
+	    if (levels[offset + n] != 0) {
+		last = n;
+		break;
+	    }
+	}
+	int n = first;
+	int band = VP8Decoder.BANDS[n], c = ctx;
+	if (!w.bit(last >= 0, probaIndex(type, band, c, 0))) {
+	    return false;
+	}
+	while (n < 16) {
+	    final int level = levels[offset + n++];
+	    int v = level < 0 ? -level : level;
+	    if (!w.bit(v != 0, probaIndex(type, band, c, 1))) {
+		band = VP8Decoder.BANDS[n];
+		c = 0;
+		continue;
+	    }
+	    if (!w.bit(v > 1, probaIndex(type, band, c, 2))) {
+		band = VP8Decoder.BANDS[n];
+		c = 1;
+	    } else {
+		if (!w.bit(v > 4, probaIndex(type, band, c, 3))) {
+		    if (w.bit(v != 2, probaIndex(type, band, c, 4))) {
+			w.bit(v == 4, probaIndex(type, band, c, 5));
+		    }
+		} else if (!w.bit(v > 10, probaIndex(type, band, c, 6))) {
+		    if (!w.bit(v > 6, probaIndex(type, band, c, 7))) {
+			w.fixed(v == 6, 159);
+		    } else {
+			w.fixed(v >= 9, 165);
+			w.fixed((v & 1) == 0, 145);
+		    }
+		} else {
+		    final int cat;
+		    if (v < 3 + (8 << 1)) {
+			w.bit(false, probaIndex(type, band, c, 8));
+			w.bit(false, probaIndex(type, band, c, 9));
+			cat = 0;
+		    } else if (v < 3 + (8 << 2)) {
+			w.bit(false, probaIndex(type, band, c, 8));
+			w.bit(true, probaIndex(type, band, c, 9));
+			cat = 1;
+		    } else if (v < 3 + (8 << 3)) {
+			w.bit(true, probaIndex(type, band, c, 8));
+			w.bit(false, probaIndex(type, band, c, 10));
+			cat = 2;
+		    } else {
+			w.bit(true, probaIndex(type, band, c, 8));
+			w.bit(true, probaIndex(type, band, c, 10));
+			cat = 3;
+		    }
+		    v -= 3 + (8 << cat);
+		    final int[] tab = VP8Decoder.CAT3456[cat];
+		    for (int i = 0, mask = 1 << (tab.length - 1); i < tab.length; ++i, mask >>= 1) {
+			w.fixed((v & mask) != 0, tab[i]);
+		    }
+		}
+		band = VP8Decoder.BANDS[n];
+		c = 2;
+	    }
+	    w.fixed(level < 0, 0x80);
+	    if (n == 16 || !w.bit(n <= last, probaIndex(type, band, c, 0))) {
+		return true;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * 依照解碼器的順序寫入一個巨集區塊的係數，並更新非零旗標。
+     *
+     * @param w 傳入記號的輸出
+     * @param levels 傳入量化係數
+     * @param base 傳入巨集區塊量化係數的開始位置
+     * @param isI4x4 傳入是否為4x4預測
+     * @param luma 傳入是否寫入亮度的係數
+     * @param chroma 傳入是否寫入色度的係數
+     * @param nzT 傳入上方的非零旗標
+     * @param nzDcT 傳入上方的DC非零旗標
+     * @param nzL 傳入左方的非零旗標與DC非零旗標
+     * @param mbX 傳入上方旗標的索引
+     */
+    private static void putResiduals(final TokenWriter w, final short[] levels, final int base, final boolean isI4x4, final boolean luma, final boolean chroma, final int[] nzT, final int[] nzDcT, final int[] nzL, final int mbX) {
+	int outTnz = nzT[mbX] & 0x0F;
+	int outLnz = nzL[0] & 0x0F;
+	if (luma) {
+	    final int first, type;
+	    if (!isI4x4) {
+		final int nz = putCoeffs(w, 1, nzDcT[mbX] + nzL[1], levels, base, 0) ? 1 : 0;
+		nzDcT[mbX] = nzL[1] = nz;
+		first = 1;
+		type = 0;
+	    } else {
+		first = 0;
+		type = 3;
+	    }
+	    int tnz = nzT[mbX] & 0x0F;
+	    int lnz = nzL[0] & 0x0F;
+	    for (int y = 0; y < 4; ++y) {
+		int l = lnz & 1;
+		for (int x = 0; x < 4; ++x) {
+		    final int ctx = l + (tnz & 1);
+		    l = putCoeffs(w, type, ctx, levels, base + 16 + (y * 4 + x) * 16, first) ? 1 : 0;
+		    tnz = (tnz >> 1) | (l << 7);
+		}
+		tnz >>= 4;
+		lnz = (lnz >> 1) | (l << 7);
+	    }
+	    outTnz = tnz;
+	    outLnz = lnz >> 4;
+	}
+	if (chroma) {
+	    outTnz &= 0x0F;
+	    outLnz &= 0x0F;
+	    for (int ch = 0; ch < 4; ch += 2) {
+		int tnz = nzT[mbX] >> (4 + ch);
+		int lnz = nzL[0] >> (4 + ch);
+		for (int y = 0; y < 2; ++y) {
+		    int l = lnz & 1;
+		    for (int x = 0; x < 2; ++x) {
+			final int ctx = l + (tnz & 1);
+			l = putCoeffs(w, 2, ctx, levels, base + 272 + (ch * 2 + y * 2 + x) * 16, 0) ? 1 : 0;
+			tnz = (tnz >> 1) | (l << 3);
+		    }
+		    tnz >>= 2;
+		    lnz = (lnz >> 1) | (l << 5);
+		}
+		outTnz |= (tnz << 4) << ch;
+		outLnz |= (lnz & 0xF0) << ch;
+	    }
+	} else {
+	    outTnz |= nzT[mbX] & 0xF0;
+	    outLnz |= nzL[0] & 0xF0;
+	}
+	nzT[mbX] = outTnz;
+	nzL[0] = outLnz;
+    }
+
+    /**
+     * 計算4x4區塊預測模式的成本。
+     *
+     * @param mode 傳入預測模式
+     * @param top 傳入上方區塊的預測模式
+     * @param left 傳入左方區塊的預測模式
+     * @return 傳回成本，單位為1/256位元
+     */
+    private static int bmodeCost(final int mode, final int top, final int left) {
+	final int[] prob = VP8Decoder.BMODES_PROBA[top][left];
+	final int[] nodes = BMODE_NODES[mode];
+	final boolean[] bits = BMODE_BITS[mode];
+	int cost = 0;
+	for (int i = 0; i < nodes.length; ++i) {
+	    cost += bitCost(bits[i], prob[nodes[i]]);
+	}
+	return cost;
+    }
+
+    /**
+     * 寫入4x4區塊的預測模式。
+     *
+     * @param bw 傳入布林編碼器
+     * @param mode 傳入預測模式
+     * @param top 傳入上方區塊的預測模式
+     * @param left 傳入左方區塊的預測模式
+     */
+    private static void putBmode(final BoolEncoder bw, final int mode, final int top, final int left) {
+	final int[] prob = VP8Decoder.BMODES_PROBA[top][left];
+	final int[] nodes = BMODE_NODES[mode];
+	final boolean[] bits = BMODE_BITS[mode];
+	for (int i = 0; i < nodes.length; ++i) {
+	    bw.putBit(bits[i], prob[nodes[i]]);
+	}
+    }
+
+    /**
+     * 寫入16x16亮度區塊或色度區塊的預測模式。
+     *
+     * @param bw 傳入布林編碼器，若為null，表示只計算成本
+     * @param mode 傳入預測模式
+     * @param chroma 傳入是否為色度區塊
+     * @return 傳回成本，單位為1/256位元
+     */
+    private static int putMode(final BoolEncoder bw, final int mode, final boolean chroma) {
+	final int[] probs;
+	final boolean[] bits;
+	if (chroma) {
+	    probs = new int[]{142, 114, 183};
+	    bits = new boolean[]{mode != VP8Decoder.DC_PRED, mode != VP8Decoder.V_PRED, mode == VP8Decoder.TM_PRED};
+	} else {
+	    final boolean h = mode == VP8Decoder.TM_PRED || mode == VP8Decoder.H_PRED;
+	    probs = new int[]{156, h ? 128 : 163};
+	    bits = new boolean[]{h, h ? mode == VP8Decoder.TM_PRED : mode == VP8Decoder.V_PRED};
+	}
+	int cost = 0;
+	for (int i = 0; i < probs.length; ++i) {
+	    if (bw != null) {
+		bw.putBit(bits[i], probs[i]);
+	    }
+	    cost += bitCost(bits[i], probs[i]);
+	    if (chroma && !bits[i]) {
+		break;
+	    }
+	}
+	return cost;
+    }
+
+    /**
+     * 將像素轉成亮度。
+     *
+     * @param r 傳入紅色
+     * @param g 傳入綠色
+     * @param b 傳入藍色
+     * @return 傳回亮度
+     */
+    private static int rgbToY(final int r, final int g, final int b) {
+	return (16839 * r + 33059 * g + 6420 * b + (16 << 16) + (1 << 15)) >> 16;
+    }
+
+    /**
+     * 將4個像素的總和轉成色度。
+     *
+     * @param uv 傳入加權後的總和
+     * @return 傳回色度
+     */
+    private static int clipUV(final int uv) {
+	final int v = (uv + (1 << 17) + (128 << 18)) >> 18;
+	return v < 0 ? 0 : v > 255 ? 255 : v;
+    }
+
+    // -----物件常數-----
+    /**
+     * 寬度。
+     */
+    private final int width;
+    /**
+     * 高度。
+     */
+    private final int height;
+    /**
+     * 水平的巨集區塊數量。
+     */
+    private final int mbW;
+    /**
+     * 垂直的巨集區塊數量。
+     */
+    private final int mbH;
+    /**
+     * 來源的亮度平面，大小補齊到巨集區塊的倍數。
+     */
+    private final int[] yPlane;
+    /**
+     * 來源的U平面，大小補齊到巨集區塊的倍數。
+     */
+    private final int[] uPlane;
+    /**
+     * 來源的V平面，大小補齊到巨集區塊的倍數。
+     */
+    private final int[] vPlane;
+    /**
+     * 量化索引。
+     */
+    private final int quantizer;
+    /**
+     * Y區塊的量化矩陣。
+     */
+    private final Matrix y1;
+    /**
+     * Y2區塊的量化矩陣。
+     */
+    private final Matrix y2;
+    /**
+     * 色度區塊的量化矩陣。
+     */
+    private final Matrix uv;
+    /**
+     * 位元率的權重，一個位元相當於多少誤差平方和。
+     */
+    private final int lambda;
+    /**
+     * 所有巨集區塊的量化係數。
+     */
+    private final short[] levels;
+    /**
+     * 所有巨集區塊的亮度預測模式，4x4預測時有16個，16x16預測時只使用第一個。
+     */
+    private final byte[] modes;
+    /**
+     * 所有巨集區塊的色度預測模式。
+     */
+    private final byte[] uvModes;
+    /**
+     * 所有巨集區塊是否使用4x4預測。
+     */
+    private final boolean[] i4x4;
+    /**
+     * 所有巨集區塊是否沒有任何非零的係數。
+     */
+    private final boolean[] noCoeffs;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param argb 傳入ARGB像素
+     * @param width 傳入寬度
+     * @param height 傳入高度
+     * @param quality 傳入品質(0~1)
+     */
+    private VP8Encoder(final int[] argb, final int width, final int height, final float quality) {
+	this.width = width;
+	this.height = height;
+	mbW = (width + 15) >> 4;
+	mbH = (height + 15) >> 4;
+	final int yStride = mbW * 16, uvStride = mbW * 8;
+	yPlane = new int[yStride * mbH * 16];
+	uPlane = new int[uvStride * mbH * 8];
+	vPlane = new int[uvStride * mbH * 8];
+	for (int y = 0; y < mbH * 16; ++y) {
+	    final int row = Math.min(y, height - 1) * width;
+	    for (int x = 0; x < mbW * 16; ++x) {
+		final int p = argb[row + Math.min(x, width - 1)];
+		yPlane[y * yStride + x] = rgbToY((p >> 16) & 0xFF, (p >> 8) & 0xFF, p & 0xFF);
+	    }
+	}
+	for (int y = 0; y < mbH * 8; ++y) {
+	    final int row0 = Math.min(y * 2, height - 1) * width, row1 = Math.min(y * 2 + 1, height - 1) * width;
+	    for (int x = 0; x < mbW * 8; ++x) {
+		final int x0 = Math.min(x * 2, width - 1), x1 = Math.min(x * 2 + 1, width - 1);
+		int r = 0, g = 0, b = 0;
+		for (final int p : new int[]{argb[row0 + x0], argb[row0 + x1], argb[row1 + x0], argb[row1 + x1]}) {
+		    r += (p >> 16) & 0xFF;
+		    g += (p >> 8) & 0xFF;
+		    b += p & 0xFF;
+		}
+		uPlane[y * uvStride + x] = clipUV(-9719 * r - 19081 * g + 28800 * b);
+		vPlane[y * uvStride + x] = clipUV(28800 * r - 24116 * g - 4684 * b);
+	    }
+	}
+
+	quantizer = qualityToQuantizer(quality);
+	final int q = quantizer;
+	y1 = new Matrix(VP8Decoder.DC_TABLE[q], VP8Decoder.AC_TABLE[q], 96, 110);
+	y2 = new Matrix(VP8Decoder.DC_TABLE[q] * 2, Math.max(8, (VP8Decoder.AC_TABLE[q] * 101581) >> 16), 96, 108);
+	uv = new Matrix(VP8Decoder.DC_TABLE[Math.min(q, 117)], VP8Decoder.AC_TABLE[q], 110, 115);
+	lambda = Math.max(1, (y1.q[1] * y1.q[1]) / 5);
+
+	final int count = mbW * mbH;
+	levels = new short[count * LEVELS_PER_MB];
+	modes = new byte[count * 16];
+	uvModes = new byte[count];
+	i4x4 = new boolean[count];
+	noCoeffs = new boolean[count];
+    }
+
+    // -----物件方法-----
+    /**
+     * 編碼。
+     *
+     * @return 傳回VP8的資料
+     * @throws IOException 第一個分割區太大時拋出
+     */
+    private byte[] encode() throws IOException {
+	analyze();
+
+	// 統計記號的次數來更新係數的機率
+	final int[] proba = new int[NUM_PROBAS];
+	final int[] updateProba = new int[NUM_PROBAS];
+	for (int t = 0; t < 4; ++t) {
+	    for (int b = 0; b < 8; ++b) {
+		for (int c = 0; c < 3; ++c) {
+		    for (int p = 0; p < 11; ++p) {
+			proba[probaIndex(t, b, c, p)] = VP8Decoder.COEFFS_PROBA_0[t][b][c][p];
+			updateProba[probaIndex(t, b, c, p)] = VP8Decoder.COEFFS_UPDATE_PROBA[t][b][c][p];
+		    }
+		}
+	    }
+	}
+	final int count = mbW * mbH;
+	int skipCount = 0;
+	for (int i = 0; i < count; ++i) {
+	    if (noCoeffs[i]) {
+		++skipCount;
+	    }
+	}
+	final int skipProba = Math.max(1, Math.min(255, 255 * (count - skipCount) / count));
+	// 使用略過旗標時，每個巨集區塊都要多一個位元，但沒有係數的巨集區塊不必寫入任何記號
+	final boolean useSkipProba = skipCount > 0 && (long) skipCount * bitCost(true, skipProba) + (long) (count - skipCount) * bitCost(false, skipProba) + 8 * 256 < writeTokens(null, proba, null, false) - writeTokens(null, proba, null, true);
+	final int[] stats = new int[NUM_PROBAS * 2];
+	writeTokens(null, proba, stats, useSkipProba);
+	final boolean[] updated = new boolean[NUM_PROBAS];
+	for (int i = 0; i < NUM_PROBAS; ++i) {
+	    final int n0 = stats[i * 2], n1 = stats[i * 2 + 1], total = n0 + n1;
+	    if (total == 0) {
+		continue;
+	    }
+	    final int newP = Math.max(1, Math.min(255, 255 - n1 * 255 / total));
+	    final long oldCost = (long) n0 * bitCost(false, proba[i]) + (long) n1 * bitCost(true, proba[i]) + bitCost(false, updateProba[i]);
+	    final long newCost = (long) n0 * bitCost(false, newP) + (long) n1 * bitCost(true, newP) + bitCost(true, updateProba[i]) + 8 * 256;
+	    if (newCost < oldCost) {
+		proba[i] = newP;
+		updated[i] = true;
+	    }
+	}
+
+	// 第一個分割區
+	final BoolEncoder bw = new BoolEncoder();
+	bw.putBits(0, 1); // 色彩空間
+	bw.putBits(0, 1); // 限制類型
+	bw.putBits(0, 1); // 不使用分段
+	bw.putBits(0, 1); // 一般的迴路濾波
+	bw.putBits(Math.min(63, (y1.q[1] * 9) >> 5), 6);
+	bw.putBits(0, 3); // 銳利度
+	bw.putBits(0, 1); // 不使用濾波的差值
+	bw.putBits(0, 2); // 一個係數分割區
+	bw.putBits(quantizer, 7);
+	for (int i = 0; i < 5; ++i) {
+	    bw.putBits(0, 1);
+	}
+	bw.putBits(0, 1); // 不保留機率
+	for (int i = 0; i < NUM_PROBAS; ++i) {
+	    bw.putBit(updated[i], updateProba[i]);
+	    if (updated[i]) {
+		bw.putBits(proba[i], 8);
+	    }
+	}
+	bw.putBits(useSkipProba ? 1 : 0, 1);
+	if (useSkipProba) {
+	    bw.putBits(skipProba, 8);
+	}
+	final int[] intraT = new int[mbW * 4];
+	final int[] intraL = new int[4];
+	for (int mbY = 0; mbY < mbH; ++mbY) {
+	    Arrays.fill(intraL, VP8Decoder.B_DC_PRED);
+	    for (int mbX = 0; mbX < mbW; ++mbX) {
+		final int mb = mbY * mbW + mbX;
+		if (useSkipProba) {
+		    bw.putBit(noCoeffs[mb], skipProba);
+		}
+		bw.putBit(!i4x4[mb], 145);
+		if (!i4x4[mb]) {
+		    final int ymode = modes[mb * 16];
+		    putMode(bw, ymode, false);
+		    Arrays.fill(intraT, mbX * 4, mbX * 4 + 4, ymode);
+		    Arrays.fill(intraL, ymode);
+		} else {
+		    for (int y = 0; y < 4; ++y) {
+			for (int x = 0; x < 4; ++x) {
+			    final int mode = modes[mb * 16 + y * 4 + x];
+			    putBmode(bw, mode, intraT[mbX * 4 + x], intraL[y]);
+			    intraT[mbX * 4 + x] = mode;
+			    intraL[y] = mode;
+			}
+		    }
+		}
+		putMode(bw, uvModes[mb], true);
+	    }
+	}
+	final byte[] first = bw.finish();
+	if (first.length > 0x7FFFF) {
+	    throw new IOException("The image is too large for WebP.");
+	}
+
+	// 係數分割區
+	final BoolEncoder tokens = new BoolEncoder();
+	writeTokens(tokens, proba, null, useSkipProba);
+	final byte[] second = tokens.finish();
+
+	final byte[] out = new byte[10 + first.length + second.length];
+	final int tag = (1 << 4) | (first.length << 5);
+	out[0] = (byte) tag;
+	out[1] = (byte) (tag >> 8);
+	out[2] = (byte) (tag >> 16);
+	out[3] = (byte) 0x9D;
+	out[4] = 0x01;
+	out[5] = 0x2A;
+	out[6] = (byte) width;
+	out[7] = (byte) (width >> 8);
+	out[8] = (byte) height;
+	out[9] = (byte) (height >> 8);
+	System.arraycopy(first, 0, out, 10, first.length);
+	System.arraycopy(second, 0, out, 10 + first.length, second.length);
+	return out;
+    }
+
+    /**
+     * 依照巨集區塊的順序寫入所有係數。
+     *
+     * @param bw 傳入布林編碼器，若為null，表示不寫入
+     * @param proba 傳入係數的機率
+     * @param stats 傳入記號次數的統計，若為null，表示不統計
+     * @param useSkipProba 傳入是否略過沒有係數的巨集區塊
+     * @return 傳回成本，單位為1/256位元
+     */
+    private long writeTokens(final BoolEncoder bw, final int[] proba, final int[] stats, final boolean useSkipProba) {
+	final TokenWriter w = new TokenWriter(bw, proba, stats);
+	final int[] nzT = new int[mbW];
+	final int[] nzDcT = new int[mbW];
+	final int[] nzL = new int[2];
+	for (int mbY = 0; mbY < mbH; ++mbY) {
+	    nzL[0] = nzL[1] = 0;
+	    for (int mbX = 0; mbX < mbW; ++mbX) {
+		final int mb = mbY * mbW + mbX;
+		if (useSkipProba && noCoeffs[mb]) {
+		    nzT[mbX] = nzL[0] = 0;
+		    if (!i4x4[mb]) {
+			nzDcT[mbX] = nzL[1] = 0;
+		    }
+		} else {
+		    putResiduals(w, levels, mb * LEVELS_PER_MB, i4x4[mb], true, true, nzT, nzDcT, nzL, mbX);
+		}
+	    }
+	}
+	return w.cost;
+    }
+
+    /**
+     * 以和解碼器相同的方式重建畫面，並替每個巨集區塊選擇預測模式與量化係數。
+     */
+    private void analyze() {
+	final int yStride = mbW * 16, uvStride = mbW * 8;
+	final int[] yuv = new int[VP8Decoder.YUV_SIZE];
+	final int[] src = new int[VP8Decoder.YUV_SIZE];
+	final int[] best = new int[VP8Decoder.YUV_SIZE];
+	final int[] coeffs = new int[384];
+	final int[] dc = new int[16];
+	final int[] block = new int[16];
+	final short[] saved = new short[16];
+	final int[] pixels = new int[16];
+	final short[] candidate = new short[LEVELS_PER_MB];
+	final short[] chosen = new short[LEVELS_PER_MB];
+	final int[] blockModes = new int[16];
+	final int[] intraT = new int[mbW * 4];
+	final int[] intraL = new int[4];
+	final int[] nzT = new int[mbW];
+	final int[] nzDcT = new int[mbW];
+	final int[] nzL = new int[2];
+	final int[] topY = new int[mbW * 16];
+	final int[] topU = new int[mbW * 8];
+	final int[] topV = new int[mbW * 8];
+	final int[] tT = new int[1], tDcT = new int[1], tL = new int[2];
+	final TokenWriter costWriter = new TokenWriter(null, flatProba(), null);
+
+	for (int mbY = 0; mbY < mbH; ++mbY) {
+	    Arrays.fill(intraL, VP8Decoder.B_DC_PRED);
+	    nzL[0] = nzL[1] = 0;
+	    for (int j = 0; j < 16; ++j) {
+		yuv[Y_OFF + j * BPS - 1] = 129;
+	    }
+	    for (int j = 0; j < 8; ++j) {
+		yuv[U_OFF + j * BPS - 1] = 129;
+		yuv[V_OFF + j * BPS - 1] = 129;
+	    }
+	    if (mbY > 0) {
+		yuv[Y_OFF - 1 - BPS] = yuv[U_OFF - 1 - BPS] = yuv[V_OFF - 1 - BPS] = 129;
+	    } else {
+		for (int j = -1; j < 20; ++j) {
+		    yuv[Y_OFF - BPS + j] = 127;
+		}
+		for (int j = -1; j < 8; ++j) {
+		    yuv[U_OFF - BPS + j] = 127;
+		    yuv[V_OFF - BPS + j] = 127;
+		}
+	    }
+	    for (int mbX = 0; mbX < mbW; ++mbX) {
+		final int mb = mbY * mbW + mbX;
+		// 載入來源
+		for (int j = 0; j < 16; ++j) {
+		    System.arraycopy(yPlane, (mbY * 16 + j) * yStride + mbX * 16, src, Y_OFF + j * BPS, 16);
+		}
+		for (int j = 0; j < 8; ++j) {
+		    System.arraycopy(uPlane, (mbY * 8 + j) * uvStride + mbX * 8, src, U_OFF + j * BPS, 8);
+		    System.arraycopy(vPlane, (mbY * 8 + j) * uvStride + mbX * 8, src, V_OFF + j * BPS, 8);
+		}
+		// 準備鄰近的像素
+		if (mbX > 0) {
+		    for (int j = -1; j < 16; ++j) {
+			System.arraycopy(yuv, Y_OFF + j * BPS + 12, yuv, Y_OFF + j * BPS - 4, 4);
+		    }
+		    for (int j = -1; j < 8; ++j) {
+			System.arraycopy(yuv, U_OFF + j * BPS + 4, yuv, U_OFF + j * BPS - 4, 4);
+			System.arraycopy(yuv, V_OFF + j * BPS + 4, yuv, V_OFF + j * BPS - 4, 4);
+		    }
+		}
+		if (mbY > 0) {
+		    System.arraycopy(topY, mbX * 16, yuv, Y_OFF - BPS, 16);
+		    System.arraycopy(topU, mbX * 8, yuv, U_OFF - BPS, 8);
+		    System.arraycopy(topV, mbX * 8, yuv, V_OFF - BPS, 8);
+		}
+
+		// 16x16預測
+		long bestScore = Long.MAX_VALUE;
+		int bestMode = 0;
+		for (int mode = 0; mode < 4; ++mode) {
+		    if ((mode == VP8Decoder.V_PRED && mbY == 0) || (mode == VP8Decoder.H_PRED && mbX == 0) || (mode == VP8Decoder.TM_PRED && (mbX == 0 || mbY == 0))) {
+			continue;
+		    }
+		    VP8Decoder.predictLuma16(mode, mbY > 0, mbX > 0, yuv, Y_OFF);
+		    for (int n = 0; n < 16; ++n) {
+			forwardTransform(src, Y_OFF + VP8Decoder.SCAN[n], yuv, Y_OFF + VP8Decoder.SCAN[n], coeffs, n * 16);
+		    }
+		    forwardWHT(coeffs, dc);
+		    quantize(dc, 0, candidate, 0, y2, 0);
+		    for (int n = 0; n < 16; ++n) {
+			quantize(coeffs, n * 16, candidate, 16 + n * 16, y1, 1);
+		    }
+		    VP8Decoder.transformWHT(dc, coeffs);
+		    for (int n = 0; n < 16; ++n) {
+			VP8Decoder.transform(coeffs, n * 16, yuv, Y_OFF + VP8Decoder.SCAN[n]);
+		    }
+		    costWriter.cost = putMode(null, mode, false) + bitCost(true, 145);
+		    tT[0] = nzT[mbX];
+		    tDcT[0] = nzDcT[mbX];
+		    tL[0] = nzL[0];
+		    tL[1] = nzL[1];
+		    putResiduals(costWriter, candidate, 0, false, true, false, tT, tDcT, tL, 0);
+		    final long score = 256L * sse(src, yuv, Y_OFF, 16) + (long) lambda * costWriter.cost;
+		    if (score < bestScore) {
+			bestScore = score;
+			bestMode = mode;
+			System.arraycopy(candidate, 0, chosen, 0, 272);
+			copyBlock(yuv, best, Y_OFF, 16);
+		    }
+		}
+
+		// 4x4預測
+		boolean useI4x4 = true;
+		final int topRight = Y_OFF - BPS + 16;
+		if (mbY > 0) {
+		    if (mbX >= mbW - 1) {
+			final int p = topY[mbX * 16 + 15];
+			yuv[topRight] = yuv[topRight + 1] = yuv[topRight + 2] = yuv[topRight + 3] = p;
+		    } else {
+			System.arraycopy(topY, mbX * 16 + 16, yuv, topRight, 4);
+		    }
+		}
+		for (int k = 1; k <= 3; ++k) {
+		    System.arraycopy(yuv, topRight, yuv, topRight + k * 4 * BPS, 4);
+		}
+		long score4 = (long) lambda * bitCost(false, 145);
+		int tnz = nzT[mbX] & 0x0F;
+		int lnz = nzL[0] & 0x0F;
+		for (int y = 0; y < 4 && useI4x4; ++y) {
+		    int l = lnz & 1;
+		    int left = intraL[y];
+		    for (int x = 0; x < 4; ++x) {
+			final int n = y * 4 + x;
+			final int dst = Y_OFF + VP8Decoder.SCAN[n];
+			final int ctx = l + (tnz & 1);
+			final int top = y == 0 ? intraT[mbX * 4 + x] : blockModes[n - 4];
+			long bestBlock = Long.MAX_VALUE;
+			int bestBlockMode = 0;
+			boolean bestNz = false;
+			for (int mode = 0; mode < VP8Decoder.NUM_BMODES; ++mode) {
+			    VP8Decoder.predictLuma4(mode, yuv, dst);
+			    forwardTransform(src, dst, yuv, dst, block, 0);
+			    final boolean nz = quantize(block, 0, candidate, 16 + n * 16, y1, 0);
+			    VP8Decoder.transform(block, 0, yuv, dst);
+			    costWriter.cost = bmodeCost(mode, top, left);
+			    putCoeffs(costWriter, 3, ctx, candidate, 16 + n * 16, 0);
+			    final long score = 256L * sse(src, yuv, dst, 4) + (long) lambda * costWriter.cost;
+			    if (score < bestBlock) {
+				bestBlock = score;
+				bestBlockMode = mode;
+				bestNz = nz;
+				System.arraycopy(candidate, 16 + n * 16, saved, 0, 16);
+				for (int j = 0; j < 4; ++j) {
+				    System.arraycopy(yuv, dst + j * BPS, pixels, j * 4, 4);
+				}
+			    }
+			}
+			// 以最好的模式重建
+			for (int j = 0; j < 4; ++j) {
+			    System.arraycopy(pixels, j * 4, yuv, dst + j * BPS, 4);
+			}
+			System.arraycopy(saved, 0, candidate, 16 + n * 16, 16);
+			blockModes[n] = bestBlockMode;
+			left = bestBlockMode;
+			score4 += bestBlock;
+			l = bestNz ? 1 : 0;
+			tnz = (tnz >> 1) | (l << 7);
+		    }
+		    tnz >>= 4;
+		    lnz = (lnz >> 1) | (l << 7);
+		    if (score4 >= bestScore) {
+			useI4x4 = false;
+		    }
+		}
+		final int base = mb * LEVELS_PER_MB;
+		if (useI4x4) {
+		    Arrays.fill(candidate, 0, 16, (short) 0);
+		    System.arraycopy(candidate, 0, levels, base, 272);
+		    for (int n = 0; n < 16; ++n) {
+			modes[mb * 16 + n] = (byte) blockModes[n];
+			intraT[mbX * 4 + (n & 3)] = blockModes[n];
+			intraL[n >> 2] = blockModes[n];
+		    }
+		} else {
+		    copyBlock(best, yuv, Y_OFF, 16);
+		    System.arraycopy(chosen, 0, levels, base, 272);
+		    modes[mb * 16] = (byte) bestMode;
+		    Arrays.fill(intraT, mbX * 4, mbX * 4 + 4, bestMode);
+		    Arrays.fill(intraL, bestMode);
+		}
+		i4x4[mb] = useI4x4;
+
+		// 色度預測
+		bestScore = Long.MAX_VALUE;
+		bestMode = 0;
+		for (int mode = 0; mode < 4; ++mode) {
+		    if ((mode == VP8Decoder.V_PRED && mbY == 0) || (mode == VP8Decoder.H_PRED && mbX == 0) || (mode == VP8Decoder.TM_PRED && (mbX == 0 || mbY == 0))) {
+			continue;
+		    }
+		    VP8Decoder.predictChroma8(mode, mbY > 0, mbX > 0, yuv, U_OFF);
+		    VP8Decoder.predictChroma8(mode, mbY > 0, mbX > 0, yuv, V_OFF);
+		    for (int n = 0; n < 4; ++n) {
+			final int o = (n & 1) * 4 + (n >> 1) * 4 * BPS;
+			forwardTransform(src, U_OFF + o, yuv, U_OFF + o, coeffs, n * 16);
+			forwardTransform(src, V_OFF + o, yuv, V_OFF + o, coeffs, 64 + n * 16);
+		    }
+		    for (int n = 0; n < 8; ++n) {
+			quantize(coeffs, n * 16, candidate, 272 + n * 16, uv, 0);
+		    }
+		    for (int n = 0; n < 4; ++n) {
+			final int o = (n & 1) * 4 + (n >> 1) * 4 * BPS;
+			VP8Decoder.transform(coeffs, n * 16, yuv, U_OFF + o);
+			VP8Decoder.transform(coeffs, 64 + n * 16, yuv, V_OFF + o);
+		    }
+		    costWriter.cost = putMode(null, mode, true);
+		    tT[0] = nzT[mbX];
+		    tL[0] = nzL[0];
+		    putResiduals(costWriter, candidate, 0, false, false, true, tT, tDcT, tL, 0);
+		    final long score = 256L * (sse(src, yuv, U_OFF, 8) + sse(src, yuv, V_OFF, 8)) + (long) lambda * costWriter.cost;
+		    if (score < bestScore) {
+			bestScore = score;
+			bestMode = mode;
+			System.arraycopy(candidate, 272, chosen, 272, 128);
+			copyBlock(yuv, best, U_OFF, 8);
+			copyBlock(yuv, best, V_OFF, 8);
+		    }
+		}
+		copyBlock(best, yuv, U_OFF, 8);
+		copyBlock(best, yuv, V_OFF, 8);
+		System.arraycopy(chosen, 272, levels, base + 272, 128);
+		uvModes[mb] = (byte) bestMode;
+
+		// 更新非零旗標
+		boolean nonZero = false;
+		for (int i = base; i < base + LEVELS_PER_MB; ++i) {
+		    if (levels[i] != 0) {
+			nonZero = true;
+			break;
+		    }
+		}
+		noCoeffs[mb] = !nonZero;
+		costWriter.cost = 0;
+		putResiduals(costWriter, levels, base, useI4x4, true, true, nzT, nzDcT, nzL, mbX);
+
+		if (mbY < mbH - 1) {
+		    System.arraycopy(yuv, Y_OFF + 15 * BPS, topY, mbX * 16, 16);
+		    System.arraycopy(yuv, U_OFF + 7 * BPS, topU, mbX * 8, 8);
+		    System.arraycopy(yuv, V_OFF + 7 * BPS, topV, mbX * 8, 8);
+		}
+	    }
+	}
+    }
+
+    /**
+     * 取得預設的係數機率。
+     *
+     * @return 傳回預設的係數機率
+     */
+    private static int[] flatProba() {
+	final int[] proba = new int[NUM_PROBAS];
+	for (int t = 0; t < 4; ++t) {
+	    for (int b = 0; b < 8; ++b) {
+		for (int c = 0; c < 3; ++c) {
+		    for (int p = 0; p < 11; ++p) {
+			proba[probaIndex(t, b, c, p)] = VP8Decoder.COEFFS_PROBA_0[t][b][c][p];
+		    }
+		}
+	    }
+	}
+	return proba;
+    }
+
+    // -----內部類別-----
+    /**
+     * 量化矩陣。
+     */
+    private static final class Matrix {
+
+	/**
+	 * DC與AC的量化步長。
+	 */
+	final int[] q = new int[2];
+	/**
+	 * DC與AC的量化步長倒數。
+	 */
+	final int[] iq = new int[2];
+	/**
+	 * DC與AC的捨入偏差。
+	 */
+	final int[] bias = new int[2];
+	/**
+	 * DC與AC量化成零的門檻。
+	 */
+	final int[] zthresh = new int[2];
+
+	/**
+	 * 建構子。
+	 *
+	 * @param dc 傳入DC的量化步長
+	 * @param ac 傳入AC的量化步長
+	 * @param dcBias 傳入DC的捨入偏差(0~255)
+	 * @param acBias 傳入AC的捨入偏差(0~255)
+	 */
+	Matrix(final int dc, final int ac, final int dcBias, final int acBias) {
+	    q[0] = dc;
+	    q[1] = ac;
+	    bias[0] = dcBias << (QFIX - 8);
+	    bias[1] = acBias << (QFIX - 8);
+	    for (int i = 0; i < 2; ++i) {
+		iq[i] = (1 << QFIX) / q[i];
+		zthresh[i] = ((1 << QFIX) - 1 - bias[i]) / iq[i];
+	    }
+	}
+    }
+
+    /**
+     * 係數記號的輸出，可以寫入布林編碼器、統計次數或是只計算成本。
+     */
+    private static final class TokenWriter {
+
+	/**
+	 * 布林編碼器，若為null，表示不寫入。
+	 */
+	private final BoolEncoder encoder;
+	/**
+	 * 係數的機率。
+	 */
+	private final int[] proba;
+	/**
+	 * 記號次數的統計，若為null，表示不統計。
+	 */
+	private final int[] stats;
+	/**
+	 * 累計的成本，單位為1/256位元。
+	 */
+	long cost;
+
+	/**
+	 * 建構子。
+	 *
+	 * @param encoder 傳入布林編碼器，若為null，表示不寫入
+	 * @param proba 傳入係數的機率
+	 * @param stats 傳入記號次數的統計，若為null，表示不統計
+	 */
+	TokenWriter(final BoolEncoder encoder, final int[] proba, final int[] stats) {
+	    this.encoder = encoder;
+	    this.proba = proba;
+	    this.stats = stats;
+	}
+
+	/**
+	 * 輸出使用係數機率的位元。
+	 *
+	 * @param bit 傳入位元
+	 * @param index 傳入機率的索引
+	 * @return 傳回位元
+	 */
+	boolean bit(final boolean bit, final int index) {
+	    if (stats != null) {
+		++stats[index * 2 + (bit ? 1 : 0)];
+	    }
+	    fixed(bit, proba[index]);
+	    return bit;
+	}
+
+	/**
+	 * 輸出使用固定機率的位元。
+	 *
+	 * @param bit 傳入位元
+	 * @param prob 傳入位元為0的機率(0~255)
+	 * @return 傳回位元
+	 */
+	boolean fixed(final boolean bit, final int prob) {
+	    if (encoder != null) {
+		encoder.putBit(bit, prob);
+	    }
+	    cost += bitCost(bit, prob);
+	    return bit;
+	}
+    }
+
+    /**
+     * 布林編碼器。
+     */
+    private static final class BoolEncoder {
+
+	/**
+	 * 輸出的資料。
+	 */
+	private byte[] buffer = new byte[1024];
+	/**
+	 * 輸出的資料長度。
+	 */
+	private int position;
+	/**
+	 * 目前的範圍減一。
+	 */
+	private int range = 254;
+	/**
+	 * 目前的數值。
+	 */
+	private int value;
+	/**
+	 * 尚未輸出的位元數減8。
+	 */
+	private int bitCount = -8;
+	/**
+	 * 等待進位而尚未輸出的0xFF數量。
+	 */
+	private int run;
+
+	/**
+	 * 輸出一個位元。
+	 *
+	 * @param bit 傳入位元
+	 * @param prob 傳入位元為0的機率(0~255)
+	 */
+	void putBit(final boolean bit, final int prob) {
+	    final int split = (range * prob) >> 8;
+	    if (bit) {
+		value += split + 1;
+		range -= split + 1;
+	    } else {
+		range = split;
+	    }
+	    if (range < 127) {
+		final int shift = 7 - (31 - Integer.numberOfLeadingZeros(range + 1));
+		range = ((range + 1) << shift) - 1;
+		value <<= shift;
+		bitCount += shift;
+		if (bitCount > 0) {
+		    flush();
+		}
+	    }
+	}
+
+	/**
+	 * 以相同的機率輸出數值，從最高位元開始。
+	 *
+	 * @param v 傳入數值
+	 * @param n 傳入位元數
+	 */
+	void putBits(final int v, final int n) {
+	    for (int mask = 1 << (n - 1); mask != 0; mask >>= 1) {
+		putBit((v & mask) != 0, 0x80);
+	    }
+	}
+
+	/**
+	 * 輸出一個位元組。
+	 */
+	private void flush() {
+	    final int s = 8 + bitCount;
+	    final int bits = value >> s;
+	    value -= bits << s;
+	    bitCount -= 8;
+	    if ((bits & 0xFF) != 0xFF) {
+		if (position + run + 1 > buffer.length) {
+		    buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + run + 1));
+		}
+		if ((bits & 0x100) != 0 && position > 0) {
+		    ++buffer[position - 1];
+		}
+		for (; run > 0; --run) {
+		    buffer[position++] = (byte) ((bits & 0x100) != 0 ? 0x00 : 0xFF);
+		}
+		buffer[position++] = (byte) bits;
+	    } else {
+		++run;
+	    }
+	}
+
+	/**
+	 * 結束編碼。
+	 *
+	 * @return 傳回輸出的資料
+	 */
+	byte[] finish() {
+	    putBits(0, 9 - bitCount);
+	    bitCount = 0;
+	    flush();
+	    return Arrays.copyOf(buffer, position);
+	}
+    }
+}
@@ -0,0 +1,907 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * VP8L(WebP無損壓縮)的解碼器。</p>
+ *
+ * <p>
+ * 支援所有的轉換(預測、色彩交叉、減去綠色、調色盤)、LZ77的向後參考、色彩快取與多組的霍夫曼編碼。也可以不讀取檔頭，直接解碼WebP透明度(ALPH)區塊中的影像串流。</p>
+ *
+ * @author Magic Len
+ * @see WebPDecoder
+ */
+final class VP8LDecoder {
+
+    // -----類別常數-----
+    /**
+     * VP8L的簽章。
+     */
+    static final int SIGNATURE = 0x2F;
+    /**
+     * 預測轉換。
+     */
+    static final int PREDICTOR_TRANSFORM = 0;
+    /**
+     * 色彩交叉轉換。
+     */
+    static final int CROSS_COLOR_TRANSFORM = 1;
+    /**
+     * 減去綠色轉換。
+     */
+    static final int SUBTRACT_GREEN = 2;
+    /**
+     * 調色盤轉換。
+     */
+    static final int COLOR_INDEXING_TRANSFORM = 3;
+    /**
+     * 長度前綴碼的數量。
+     */
+    static final int NUM_LENGTH_CODES = 24;
+    /**
+     * 距離前綴碼的數量。
+     */
+    static final int NUM_DISTANCE_CODES = 40;
+    /**
+     * 色彩快取位元數的上限。
+     */
+    static final int MAX_CACHE_BITS = 11;
+    /**
+     * 霍夫曼編碼長度的上限。
+     */
+    static final int MAX_CODE_LENGTH = 15;
+    /**
+     * 編碼長度的編碼，其長度的儲存順序。
+     */
+    static final int[] CODE_LENGTH_CODE_ORDER = {17, 18, 0, 1, 2, 3, 4, 5, 16, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+    /**
+     * 距離碼對應的鄰近位置，高4位元為Y的偏移，低4位元為8減去X的偏移。
+     */
+    static final int[] CODE_TO_PLANE = {
+	0x18, 0x07, 0x17, 0x19, 0x28, 0x06, 0x27, 0x29, 0x16, 0x1a,
+	0x26, 0x2a, 0x38, 0x05, 0x37, 0x39, 0x15, 0x1b, 0x36, 0x3a,
+	0x25, 0x2b, 0x48, 0x04, 0x47, 0x49, 0x14, 0x1c, 0x35, 0x3b,
+	0x46, 0x4a, 0x24, 0x2c, 0x58, 0x45, 0x4b, 0x34, 0x3c, 0x03,
+	0x57, 0x59, 0x13, 0x1d, 0x56, 0x5a, 0x23, 0x2d, 0x44, 0x4c,
+	0x55, 0x5b, 0x33, 0x3d, 0x68, 0x02, 0x67, 0x69, 0x12, 0x1e,
+	0x66, 0x6a, 0x22, 0x2e, 0x54, 0x5c, 0x43, 0x4d, 0x65, 0x6b,
+	0x32, 0x3e, 0x78, 0x01, 0x77, 0x79, 0x53, 0x5d, 0x11, 0x1f,
+	0x64, 0x6c, 0x42, 0x4e, 0x76, 0x7a, 0x21, 0x2f, 0x75, 0x7b,
+	0x31, 0x3f, 0x63, 0x6d, 0x52, 0x5e, 0x00, 0x74, 0x7c, 0x41,
+	0x4f, 0x10, 0x20, 0x62, 0x6e, 0x30, 0x73, 0x7d, 0x51, 0x5f,
+	0x40, 0x72, 0x7e, 0x61, 0x6f, 0x50, 0x71, 0x7f, 0x60, 0x70
+    };
+    /**
+     * 霍夫曼查表的第一層位元數。
+     */
+    private static final int ROOT_BITS = 8;
+
+    // -----類別方法-----
+    /**
+     * 計算縮小取樣後的大小。
+     *
+     * @param size 傳入原本的大小
+     * @param bits 傳入縮小的位元數
+     * @return 傳回縮小取樣後的大小
+     */
+    static int subSampleSize(final int size, final int bits) {
+	return (size + (1 << bits) - 1) >> bits;
+    }
+
+    /**
+     * 將兩個像素的各個通道分別相加。
+     *
+     * @param a 傳入像素
+     * @param b 傳入像素
+     * @return 傳回結果
+     */
+    static int addPixels(final int a, final int b) {
+	final int alphaAndGreen = (a & 0xFF00FF00) + (b & 0xFF00FF00);
+	final int redAndBlue = (a & 0x00FF00FF) + (b & 0x00FF00FF);
+	return (alphaAndGreen & 0xFF00FF00) | (redAndBlue & 0x00FF00FF);
+    }
+
+    /**
+     * 將兩個像素的各個通道分別相減。
+     *
+     * @param a 傳入像素
+     * @param b 傳入像素
+     * @return 傳回結果
+     */
+    static int subPixels(final int a, final int b) {
+	final int alphaAndGreen = 0x00FF00FF + (a & 0xFF00FF00) - (b & 0xFF00FF00);
+	final int redAndBlue = 0xFF00FF00 + (a & 0x00FF00FF) - (b & 0x00FF00FF);
+	return (alphaAndGreen & 0xFF00FF00) | (redAndBlue & 0x00FF00FF);
+    }
+
+    /**
+     * 計算色彩快取的索引。
+     *
+     * @param argb 傳入像素
+     * @param bits 傳入色彩快取的位元數
+     * @return 傳回索引
+     */
+    static int hashPixel(final int argb, final int bits) {
+	return (0x1E35A7BD * argb) >>> (32 - bits);
+    }
+
+    /**
+     * 計算色彩交叉轉換的差值。
+     *
+     * @param colorPred 傳入乘數
+     * @param color 傳入顏色
+     * @return 傳回差值
+     */
+    static int colorTransformDelta(final int colorPred, final int color) {
+	return ((byte) colorPred * (byte) color) >> 5;
+    }
+
+    /**
+     * 依照預測模式計算預測的像素。像素不能在第一列或第一行。
+     *
+     * @param mode 傳入預測模式(0~15)
+     * @param pixels 傳入像素
+     * @param pos 傳入要預測的像素位置
+     * @param width 傳入寬度
+     * @return 傳回預測的像素
+     */
+    static int predict(final int mode, final int[] pixels, final int pos, final int width) {
+	final int top = pos - width;
+	switch (mode) {
+	    case 1:
+		return pixels[pos - 1];
+	    case 2:
+		return pixels[top];
+	    case 3:
+		return pixels[top + 1];
+	    case 4:
+		return pixels[top - 1];
+	    case 5:
+		return average2(average2(pixels[pos - 1], pixels[top + 1]), pixels[top]);
+	    case 6:
+		return average2(pixels[pos - 1], pixels[top - 1]);
+	    case 7:
+		return average2(pixels[pos - 1], pixels[top]);
+	    case 8:
+		return average2(pixels[top - 1], pixels[top]);
+	    case 9:
+		return average2(pixels[top], pixels[top + 1]);
+	    case 10:
+		return average2(average2(pixels[pos - 1], pixels[top - 1]), average2(pixels[top], pixels[top + 1]));
+	    case 11:
+		return select(pixels[top], pixels[pos - 1], pixels[top - 1]);
+	    case 12:
+		return clampedAddSubtractFull(pixels[pos - 1], pixels[top], pixels[top - 1]);
+	    case 13:
+		return clampedAddSubtractHalf(average2(pixels[pos - 1], pixels[top]), pixels[top - 1]);
+	    default:
+		return 0xFF000000;
+	}
+    }
+
+    /**
+     * 計算兩個像素各通道的平均。
+     *
+     * @param a 傳入像素
+     * @param b 傳入像素
+     * @return 傳回結果
+     */
+    private static int average2(final int a, final int b) {
+	return (((a ^ b) & 0xFEFEFEFE) >>> 1) + (a & b);
+    }
+
+    /**
+     * 選擇和梯度預測比較接近的上方或左方像素。
+     *
+     * @param top 傳入上方的像素
+     * @param left 傳入左方的像素
+     * @param topLeft 傳入左上方的像素
+     * @return 傳回選擇的像素
+     */
+    private static int select(final int top, final int left, final int topLeft) {
+	int paMinusPb = 0;
+	for (int shift = 0; shift < 32; shift += 8) {
+	    final int a = (top >>> shift) & 0xFF, b = (left >>> shift) & 0xFF, c = (topLeft >>> shift) & 0xFF;
+	    paMinusPb += Math.abs(b - c) - Math.abs(a - c);
+	}
+	return paMinusPb <= 0 ? top : left;
+    }
+
+    /**
+     * 計算各通道的「a + b - c」並限制在0~255之間。
+     *
+     * @param a 傳入像素
+     * @param b 傳入像素
+     * @param c 傳入像素
+     * @return 傳回結果
+     */
+    private static int clampedAddSubtractFull(final int a, final int b, final int c) {
+	int result = 0;
+	for (int shift = 0; shift < 32; shift += 8) {
+	    result |= VP8Decoder.clip8(((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF) - ((c >>> shift) & 0xFF)) << shift;
+	}
+	return result;
+    }
+
+    /**
+     * 計算各通道的「a + (a - b) / 2」並限制在0~255之間。
+     *
+     * @param a 傳入像素
+     * @param b 傳入像素
+     * @return 傳回結果
+     */
+    private static int clampedAddSubtractHalf(final int a, final int b) {
+	int result = 0;
+	for (int shift = 0; shift < 32; shift += 8) {
+	    final int ac = (a >>> shift) & 0xFF;
+	    result |= VP8Decoder.clip8(ac + (ac - ((b >>> shift) & 0xFF)) / 2) << shift;
+	}
+	return result;
+    }
+
+    /**
+     * 建立霍夫曼解碼的查表。每個項目的高16位元為編碼長度，低16位元為符號；第一層中長度大於8的項目，則是指向第二層查表的位置。
+     *
+     * @param codeLengths 傳入各個符號的編碼長度
+     * @param size 傳入符號的數量
+     * @return 傳回查表
+     * @throws IOException 編碼長度不正確時拋出
+     */
+    static int[] buildTable(final int[] codeLengths, final int size) throws IOException {
+	final int[] count = new int[MAX_CODE_LENGTH + 1];
+	int numSymbols = 0, lastSymbol = 0;
+	for (int s = 0; s < size; ++s) {
+	    final int len = codeLengths[s];
+	    if (len > 0) {
+		++count[len];
+		++numSymbols;
+		lastSymbol = s;
+	    }
+	}
+	final int[] root = new int[1 << ROOT_BITS];
+	if (numSymbols == 0) {
+	    throw new IOException("Empty Huffman code.");
+	}
+	if (numSymbols == 1) {
+	    Arrays.fill(root, lastSymbol);
+	    return root;
+	}
+	int kraft = 0;
+	for (int len = 1; len <= MAX_CODE_LENGTH; ++len) {
+	    kraft += count[len] << (MAX_CODE_LENGTH - len);
+	}
+	if (kraft != 1 << MAX_CODE_LENGTH) {
+	    throw new IOException("Invalid Huffman code.");
+	}
+	final int[] nextCode = new int[MAX_CODE_LENGTH + 2];
+	for (int len = 2, code = 0; len <= MAX_CODE_LENGTH; ++len) {
+	    code = (code + count[len - 1]) << 1;
+	    nextCode[len] = code;
+	}
+	final int[] reversed = new int[size];
+	final int[] subBits = new int[1 << ROOT_BITS];
+	for (int s = 0; s < size; ++s) {
+	    final int len = codeLengths[s];
+	    if (len > 0) {
+		reversed[s] = Integer.reverse(nextCode[len]++) >>> (32 - len);
+		if (len > ROOT_BITS) {
+		    final int prefix = reversed[s] & ((1 << ROOT_BITS) - 1);
+		    subBits[prefix] = Math.max(subBits[prefix], len - ROOT_BITS);
+		}
+	    }
+	}
+	int total = 1 << ROOT_BITS;
+	for (int prefix = 0; prefix < 1 << ROOT_BITS; ++prefix) {
+	    if (subBits[prefix] > 0) {
+		root[prefix] = ((ROOT_BITS + subBits[prefix]) << 16) | total;
+		total += 1 << subBits[prefix];
+	    }
+	}
+	final int[] table = new int[total];
+	System.arraycopy(root, 0, table, 0, root.length);
+	for (int s = 0; s < size; ++s) {
+	    final int len = codeLengths[s];
+	    if (len == 0) {
+		continue;
+	    }
+	    if (len <= ROOT_BITS) {
+		for (int k = reversed[s]; k < 1 << ROOT_BITS; k += 1 << len) {
+		    table[k] = (len << 16) | s;
+		}
+	    } else {
+		final int pointer = table[reversed[s] & ((1 << ROOT_BITS) - 1)];
+		final int offset = pointer & 0xFFFF;
+		final int bits = (pointer >>> 16) - ROOT_BITS;
+		for (int k = reversed[s] >>> ROOT_BITS; k < 1 << bits; k += 1 << (len - ROOT_BITS)) {
+		    table[offset + k] = ((len - ROOT_BITS) << 16) | s;
+		}
+	    }
+	}
+	return table;
+    }
+
+    // -----物件常數-----
+    /**
+     * VP8L的資料。
+     */
+    private final byte[] data;
+    /**
+     * 資料的結束位置。
+     */
+    private final int end;
+    /**
+     * 圖片的寬度。
+     */
+    private final int width;
+    /**
+     * 圖片的高度。
+     */
+    private final int height;
+    /**
+     * 檔頭中的透明度旗標。
+     */
+    private final boolean alpha;
+
+    // -----物件變數-----
+    /**
+     * 下一個要讀取的位置。
+     */
+    private int position;
+    /**
+     * 位元緩衝區，低位元先讀取。
+     */
+    private long bitBuffer;
+    /**
+     * 位元緩衝區中的位元數。
+     */
+    private int bitCount;
+    /**
+     * 是否讀到了資料的結尾之後。
+     */
+    private boolean eos;
+    /**
+     * 已讀取的轉換。
+     */
+    private final Transform[] transforms = new Transform[4];
+    /**
+     * 已讀取的轉換數量。
+     */
+    private int numTransforms;
+
+    // -----建構子-----
+    /**
+     * 建構子，會讀取VP8L的檔頭。
+     *
+     * @param data 傳入VP8L的資料
+     * @param offset 傳入資料的開始位置
+     * @param length 傳入資料的長度
+     * @throws IOException 資料不正確時拋出
+     */
+    VP8LDecoder(final byte[] data, final int offset, final int length) throws IOException {
+	if (length < 5 || (data[offset] & 0xFF) != SIGNATURE) {
+	    throw new IOException("Bad VP8L signature.");
+	}
+	this.data = data;
+	this.position = offset + 1;
+	this.end = offset + length;
+	this.width = readBits(14) + 1;
+	this.height = readBits(14) + 1;
+	this.alpha = readBits(1) == 1;
+	if (readBits(3) != 0) {
+	    throw new IOException("Unknown VP8L version.");
+	}
+    }
+
+    /**
+     * 建構子，資料沒有檔頭，直接是影像串流。
+     *
+     * @param data 傳入影像串流的資料
+     * @param offset 傳入資料的開始位置
+     * @param length 傳入資料的長度
+     * @param width 傳入寬度
+     * @param height 傳入高度
+     */
+    VP8LDecoder(final byte[] data, final int offset, final int length, final int width, final int height) {
+	this.data = data;
+	this.position = offset;
+	this.end = offset + length;
+	this.width = width;
+	this.height = height;
+	this.alpha = true;
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得圖片的寬度。
+     *
+     * @return 傳回寬度
+     */
+    int getWidth() {
+	return width;
+    }
+
+    /**
+     * 取得圖片的高度。
+     *
+     * @return 傳回高度
+     */
+    int getHeight() {
+	return height;
+    }
+
+    /**
+     * 取得檔頭中的透明度旗標。
+     *
+     * @return 傳回圖片是否可能有透明度
+     */
+    boolean hasAlpha() {
+	return alpha;
+    }
+
+    /**
+     * 解碼成ARGB像素。
+     *
+     * @return 傳回ARGB像素，依照列的順序排列
+     * @throws IOException 資料不正確時拋出
+     */
+    int[] decode() throws IOException {
+	final int[] pixels = decodeImageStream(width, height, true);
+	if (eos) {
+	    throw new IOException("Truncated VP8L data.");
+	}
+	return pixels;
+    }
+
+    /**
+     * 補充位元緩衝區。
+     */
+    private void fill() {
+	while (bitCount <= 56 && position < end) {
+	    bitBuffer |= (long) (data[position++] & 0xFF) << bitCount;
+	    bitCount += 8;
+	}
+    }
+
+    /**
+     * 讀取位元。
+     *
+     * @param n 傳入位元數(0~32)
+     * @return 傳回數值
+     */
+    private int readBits(final int n) {
+	if (bitCount < n) {
+	    fill();
+	    if (bitCount < n) {
+		eos = true;
+		bitCount = n;
+	    }
+	}
+	final int v = (int) (bitBuffer & ((1L << n) - 1));
+	bitBuffer >>>= n;
+	bitCount -= n;
+	return v;
+    }
+
+    /**
+     * 讀取一個霍夫曼編碼的符號。
+     *
+     * @param table 傳入查表
+     * @return 傳回符號
+     */
+    private int readSymbol(final int[] table) {
+	if (bitCount < MAX_CODE_LENGTH) {
+	    fill();
+	}
+	int entry = table[(int) bitBuffer & ((1 << ROOT_BITS) - 1)];
+	int len = entry >>> 16;
+	if (len > ROOT_BITS) {
+	    bitBuffer >>>= ROOT_BITS;
+	    bitCount -= ROOT_BITS;
+	    entry = table[(entry & 0xFFFF) + ((int) bitBuffer & ((1 << (len - ROOT_BITS)) - 1))];
+	    len = entry >>> 16;
+	}
+	bitBuffer >>>= len;
+	bitCount -= len;
+	if (bitCount < 0) {
+	    eos = true;
+	    bitCount = 0;
+	}
+	return entry & 0xFFFF;
+    }
+
+    /**
+     * 解碼影像串流。
+     *
+     * @param xsize 傳入寬度
+     * @param ysize 傳入高度
+     * @param isLevel0 傳入是否為主要的影像(可以有轉換與多組霍夫曼編碼)
+     * @return 傳回ARGB像素
+     * @throws IOException 資料不正確時拋出
+     */
+    private int[] decodeImageStream(final int xsize, final int ysize, final boolean isLevel0) throws IOException {
+	int transformXsize = xsize;
+	if (isLevel0) {
+	    while (readBits(1) == 1) {
+		transformXsize = readTransform(transformXsize, ysize);
+	    }
+	}
+	int cacheBits = 0;
+	if (readBits(1) == 1) {
+	    cacheBits = readBits(4);
+	    if (cacheBits < 1 || cacheBits > MAX_CACHE_BITS) {
+		throw new IOException("Bad VP8L color cache size.");
+	    }
+	}
+	int huffmanBits = 0;
+	int[] huffmanImage = null;
+	int numGroups = 1;
+	if (isLevel0 && readBits(1) == 1) {
+	    huffmanBits = readBits(3) + 2;
+	    huffmanImage = decodeImageStream(subSampleSize(transformXsize, huffmanBits), subSampleSize(ysize, huffmanBits), false);
+	    for (int i = 0; i < huffmanImage.length; ++i) {
+		final int group = (huffmanImage[i] >> 8) & 0xFFFF;
+		huffmanImage[i] = group;
+		if (group >= numGroups) {
+		    numGroups = group + 1;
+		}
+	    }
+	}
+	if (eos) {
+	    throw new IOException("Truncated VP8L data.");
+	}
+	final int[][][] groups = new int[numGroups][][];
+	final int[] alphabetSizes = {256 + NUM_LENGTH_CODES + (cacheBits > 0 ? 1 << cacheBits : 0), 256, 256, 256, NUM_DISTANCE_CODES};
+	for (int g = 0; g < numGroups; ++g) {
+	    groups[g] = new int[5][];
+	    for (int i = 0; i < 5; ++i) {
+		groups[g][i] = readHuffmanCode(alphabetSizes[i]);
+	    }
+	}
+	final int[] pixels = decodeImageData(transformXsize, ysize, groups, huffmanImage, huffmanBits, cacheBits);
+	if (isLevel0) {
+	    return applyInverseTransforms(pixels, ysize);
+	}
+	return pixels;
+    }
+
+    /**
+     * 讀取一個轉換。
+     *
+     * @param xsize 傳入目前的寬度
+     * @param ysize 傳入高度
+     * @return 傳回轉換後的寬度
+     * @throws IOException 資料不正確時拋出
+     */
+    private int readTransform(final int xsize, final int ysize) throws IOException {
+	final int type = readBits(2);
+	for (int i = 0; i < numTransforms; ++i) {
+	    if (transforms[i].type == type) {
+		throw new IOException("Duplicate VP8L transform.");
+	    }
+	}
+	final Transform transform = new Transform();
+	transform.type = type;
+	transform.xsize = xsize;
+	transforms[numTransforms++] = transform;
+	switch (type) {
+	    case PREDICTOR_TRANSFORM:
+	    case CROSS_COLOR_TRANSFORM:
+		transform.bits = readBits(3) + 2;
+		transform.data = decodeImageStream(subSampleSize(xsize, transform.bits), subSampleSize(ysize, transform.bits), false);
+		return xsize;
+	    case COLOR_INDEXING_TRANSFORM: {
+		final int numColors = readBits(8) + 1;
+		transform.bits = numColors > 16 ? 0 : numColors > 4 ? 1 : numColors > 2 ? 2 : 3;
+		final int[] palette = decodeImageStream(numColors, 1, false);
+		final int[] colorMap = new int[1 << (8 >> transform.bits)];
+		colorMap[0] = palette[0];
+		for (int i = 1; i < numColors; ++i) {
+		    colorMap[i] = addPixels(palette[i], colorMap[i - 1]);
+		}
+		transform.data = colorMap;
+		return subSampleSize(xsize, transform.bits);
+	    }
+	    default:
+		return xsize;
+	}
+    }
+
+    /**
+     * 讀取一個霍夫曼編碼。
+     *
+     * @param alphabetSize 傳入符號的數量
+     * @return 傳回查表
+     * @throws IOException 資料不正確時拋出
+     */
+    private int[] readHuffmanCode(final int alphabetSize) throws IOException {
+	final int[] codeLengths = new int[Math.max(alphabetSize, 256)];
+	if (readBits(1) == 1) {
+	    final int numSymbols = readBits(1) + 1;
+	    final int firstSymbolLenCode = readBits(1);
+	    codeLengths[readBits(firstSymbolLenCode == 0 ? 1 : 8)] = 1;
+	    if (numSymbols == 2) {
+		codeLengths[readBits(8)] = 1;
+	    }
+	} else {
+	    final int[] codeLengthCodeLengths = new int[CODE_LENGTH_CODE_ORDER.length];
+	    final int numCodes = readBits(4) + 4;
+	    for (int i = 0; i < numCodes; ++i) {
+		codeLengthCodeLengths[CODE_LENGTH_CODE_ORDER[i]] = readBits(3);
+	    }
+	    readHuffmanCodeLengths(codeLengthCodeLengths, alphabetSize, codeLengths);
+	}
+	if (eos) {
+	    throw new IOException("Truncated VP8L data.");
+	}
+	return buildTable(codeLengths, alphabetSize);
+    }
+
+    /**
+     * 讀取各個符號的編碼長度。
+     *
+     * @param codeLengthCodeLengths 傳入編碼長度的編碼
+     * @param numSymbols 傳入符號的數量
+     * @param codeLengths 傳入輸出的編碼長度
+     * @throws IOException 資料不正確時拋出
+     */
+    private void readHuffmanCodeLengths(final int[] codeLengthCodeLengths, final int numSymbols, final int[] codeLengths) throws IOException {
+	final int[] table = buildTable(codeLengthCodeLengths, codeLengthCodeLengths.length);
+	int maxSymbol;
+	if (readBits(1) == 1) {
+	    final int lengthNBits = 2 + 2 * readBits(3);
+	    maxSymbol = 2 + readBits(lengthNBits);
+	    if (maxSymbol > numSymbols) {
+		throw new IOException("Bad VP8L code lengths.");
+	    }
+	} else {
+	    maxSymbol = numSymbols;
+	}
+	int symbol = 0;
+	int prevCodeLen = 8;
+	while (symbol < numSymbols) {
+	    if (maxSymbol-- == 0) {
+		break;
+	    }
+	    final int codeLen = readSymbol(table);
+	    if (codeLen < 16) {
+		codeLengths[symbol++] = codeLen;
+		if (codeLen != 0) {
+		    prevCodeLen = codeLen;
+		}
+	    } else {
+		final int slot = codeLen - 16;
+		int repeat = readBits(slot == 0 ? 2 : slot == 1 ? 3 : 7) + (slot == 2 ? 11 : 3);
+		if (symbol + repeat > numSymbols) {
+		    throw new IOException("Bad VP8L code lengths.");
+		}
+		final int length = slot == 0 ? prevCodeLen : 0;
+		while (repeat-- > 0) {
+		    codeLengths[symbol++] = length;
+		}
+	    }
+	}
+    }
+
+    /**
+     * 讀取前綴碼表示的長度或距離。
+     *
+     * @param symbol 傳入前綴碼
+     * @return 傳回數值
+     */
+    private int getCopyDistance(final int symbol) {
+	if (symbol < 4) {
+	    return symbol + 1;
+	}
+	final int extraBits = (symbol - 2) >> 1;
+	final int offset = (2 + (symbol & 1)) << extraBits;
+	return offset + readBits(extraBits) + 1;
+    }
+
+    /**
+     * 解碼像素資料。
+     *
+     * @param xsize 傳入寬度
+     * @param ysize 傳入高度
+     * @param groups 傳入各組霍夫曼編碼
+     * @param huffmanImage 傳入每個區塊使用的霍夫曼編碼組別，若為null，則只有一組
+     * @param huffmanBits 傳入區塊大小的位元數
+     * @param cacheBits 傳入色彩快取的位元數，若為0，則不使用色彩快取
+     * @return 傳回ARGB像素
+     * @throws IOException 資料不正確時拋出
+     */
+    private int[] decodeImageData(final int xsize, final int ysize, final int[][][] groups, final int[] huffmanImage, final int huffmanBits, final int cacheBits) throws IOException {
+	final int total = xsize * ysize;
+	final int[] pixels = new int[total];
+	final int[] cache = cacheBits > 0 ? new int[1 << cacheBits] : null;
+	final int mask = huffmanImage != null ? (1 << huffmanBits) - 1 : 0;
+	final int huffmanXsize = huffmanImage != null ? subSampleSize(xsize, huffmanBits) : 0;
+	int[][] group = groups[0];
+	int pos = 0, x = 0, y = 0;
+	while (pos < total) {
+	    if (huffmanImage != null && (x & mask) == 0) {
+		group = groups[huffmanImage[(y >> huffmanBits) * huffmanXsize + (x >> huffmanBits)]];
+	    }
+	    final int code = readSymbol(group[0]);
+	    if (code < 256) {
+		final int red = readSymbol(group[1]);
+		final int blue = readSymbol(group[2]);
+		final int alphaValue = readSymbol(group[3]);
+		final int argb = (alphaValue << 24) | (red << 16) | (code << 8) | blue;
+		pixels[pos++] = argb;
+		if (cache != null) {
+		    cache[hashPixel(argb, cacheBits)] = argb;
+		}
+		if (++x >= xsize) {
+		    x = 0;
+		    ++y;
+		    if (eos) {
+			throw new IOException("Truncated VP8L data.");
+		    }
+		}
+	    } else if (code < 256 + NUM_LENGTH_CODES) {
+		final int length = getCopyDistance(code - 256);
+		final int distCode = getCopyDistance(readSymbol(group[4]));
+		final int dist;
+		if (distCode > 120) {
+		    dist = distCode - 120;
+		} else {
+		    final int plane = CODE_TO_PLANE[distCode - 1];
+		    dist = Math.max(1, (plane >> 4) * xsize + 8 - (plane & 0xF));
+		}
+		if (pos < dist || total - pos < length || eos) {
+		    throw new IOException("Bad VP8L backward reference.");
+		}
+		for (int i = 0; i < length; ++i) {
+		    final int argb = pixels[pos - dist];
+		    pixels[pos++] = argb;
+		    if (cache != null) {
+			cache[hashPixel(argb, cacheBits)] = argb;
+		    }
+		}
+		x += length;
+		while (x >= xsize) {
+		    x -= xsize;
+		    ++y;
+		}
+		if ((x & mask) != 0 && pos < total) {
+		    group = groups[huffmanImage[(y >> huffmanBits) * huffmanXsize + (x >> huffmanBits)]];
+		}
+	    } else {
+		if (cache == null) {
+		    throw new IOException("Bad VP8L color cache code.");
+		}
+		final int argb = cache[code - 256 - NUM_LENGTH_CODES];
+		pixels[pos++] = argb;
+		cache[hashPixel(argb, cacheBits)] = argb;
+		if (++x >= xsize) {
+		    x = 0;
+		    ++y;
+		}
+	    }
+	}
+	return pixels;
+    }
+
+    /**
+     * 依照相反的順序還原轉換。
+     *
+     * @param pixels 傳入轉換後的像素
+     * @param ysize 傳入高度
+     * @return 傳回還原後的像素
+     */
+    private int[] applyInverseTransforms(int[] pixels, final int ysize) {
+	for (int t = numTransforms - 1; t >= 0; --t) {
+	    final Transform transform = transforms[t];
+	    final int xsize = transform.xsize;
+	    switch (transform.type) {
+		case PREDICTOR_TRANSFORM: {
+		    final int tilesPerRow = subSampleSize(xsize, transform.bits);
+		    pixels[0] = addPixels(pixels[0], 0xFF000000);
+		    for (int x = 1; x < xsize; ++x) {
+			pixels[x] = addPixels(pixels[x], pixels[x - 1]);
+		    }
+		    for (int y = 1; y < ysize; ++y) {
+			final int row = y * xsize;
+			final int tileRow = (y >> transform.bits) * tilesPerRow;
+			pixels[row] = addPixels(pixels[row], pixels[row - xsize]);
+			for (int x = 1; x < xsize; ++x) {
+			    final int mode = (transform.data[tileRow + (x >> transform.bits)] >> 8) & 0xF;
+			    pixels[row + x] = addPixels(pixels[row + x], predict(mode, pixels, row + x, xsize));
+			}
+		    }
+		    break;
+		}
+		case CROSS_COLOR_TRANSFORM: {
+		    final int tilesPerRow = subSampleSize(xsize, transform.bits);
+		    for (int y = 0; y < ysize; ++y) {
+			final int row = y * xsize;
+			final int tileRow = (y >> transform.bits) * tilesPerRow;
+			for (int x = 0; x < xsize; ++x) {
+			    final int m = transform.data[tileRow + (x >> transform.bits)];
+			    final int argb = pixels[row + x];
+			    final int green = (byte) (argb >> 8);
+			    int red = (argb >> 16) & 0xFF;
+			    int blue = argb & 0xFF;
+			    red = (red + colorTransformDelta(m, green)) & 0xFF;
+			    blue += colorTransformDelta(m >> 8, green);
+			    blue = (blue + colorTransformDelta(m >> 16, red)) & 0xFF;
+			    pixels[row + x] = (argb & 0xFF00FF00) | (red << 16) | blue;
+			}
+		    }
+		    break;
+		}
+		case SUBTRACT_GREEN:
+		    for (int i = 0; i < pixels.length; ++i) {
+			final int argb = pixels[i];
+			final int green = (argb >> 8) & 0xFF;
+			pixels[i] = (argb & 0xFF00FF00) | (((argb & 0x00FF00FF) + ((green << 16) | green)) & 0x00FF00FF);
+		    }
+		    break;
+		default: { // COLOR_INDEXING_TRANSFORM
+		    final int bitsPerPixel = 8 >> transform.bits;
+		    final int countMask = (1 << transform.bits) - 1;
+		    final int bitMask = (1 << bitsPerPixel) - 1;
+		    final int packedXsize = subSampleSize(xsize, transform.bits);
+		    final int[] out = new int[xsize * ysize];
+		    for (int y = 0; y < ysize; ++y) {
+			int src = y * packedXsize;
+			int packed = 0;
+			for (int x = 0; x < xsize; ++x) {
+			    if ((x & countMask) == 0) {
+				packed = (pixels[src++] >> 8) & 0xFF;
+			    }
+			    out[y * xsize + x] = transform.data[packed & bitMask];
+			    packed >>= bitsPerPixel;
+			}
+		    }
+		    pixels = out;
+		    break;
+		}
+	    }
+	}
+	return pixels;
+    }
+
+    // -----內部類別-----
+    /**
+     * 轉換。
+     */
+    private static final class Transform {
+
+	/**
+	 * 轉換的類型。
+	 */
+	int type;
+	/**
+	 * 區塊大小的位元數。
+	 */
+	int bits;
+	/**
+	 * 轉換前的寬度。
+	 */
+	int xsize;
+	/**
+	 * 轉換的資料，例如預測模式的影像或是調色盤。
+	 */
+	int[] data;
+    }
+}
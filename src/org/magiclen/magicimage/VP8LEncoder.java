@@ -0,0 +1,1247 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * VP8L(WebP無損壓縮)的編碼器。</p>
+ *
+ * <p>
+ * 顏色不超過256種的圖片會使用調色盤轉換(16色以下時會把多個索引合併成一個像素)，其它的圖片則依序使用減去綠色、預測與色彩交叉轉換。轉換後的像素以雜湊鏈搜尋LZ77的向後參考，再依照估計的大小決定色彩快取的位元數，最後以長度不超過15位元的霍夫曼編碼輸出。品質越高，雜湊鏈搜尋得越深，壓縮率越好，但也越慢。</p>
+ *
+ * @author Magic Len
+ * @see VP8LDecoder
+ */
+final class VP8LEncoder {
+
+    // -----類別常數-----
+    /**
+     * 向後參考的最短長度。
+     */
+    private static final int MIN_LENGTH = 3;
+    /**
+     * 向後參考的最長長度。
+     */
+    private static final int MAX_LENGTH = 4096;
+    /**
+     * 向後參考的最遠距離。
+     */
+    private static final int WINDOW_SIZE = (1 << 20) - 120;
+    /**
+     * 雜湊表的位元數。
+     */
+    private static final int HASH_BITS = 18;
+    /**
+     * 預測轉換的區塊大小位元數。
+     */
+    private static final int PREDICTOR_BITS = 4;
+    /**
+     * 色彩交叉轉換的區塊大小位元數。
+     */
+    private static final int CROSS_COLOR_BITS = 5;
+    /**
+     * 鄰近位置對應的距離碼，-1表示沒有對應的距離碼。
+     */
+    private static final int[] PLANE_TO_CODE = new int[128];
+
+    static {
+	Arrays.fill(PLANE_TO_CODE, -1);
+	for (int i = 0; i < VP8LDecoder.CODE_TO_PLANE.length; ++i) {
+	    PLANE_TO_CODE[VP8LDecoder.CODE_TO_PLANE[i]] = i;
+	}
+    }
+
+    // -----類別方法-----
+    /**
+     * 編碼成VP8L區塊的內容，包括檔頭。
+     *
+     * @param argb 傳入ARGB像素
+     * @param width 傳入寬度
+     * @param height 傳入高度
+     * @param alpha 傳入是否有透明度
+     * @param quality 傳入壓縮的努力程度(0~1)
+     * @return 傳回VP8L的資料
+     * @throws IOException 圖片太大時拋出
+     */
+    static byte[] encode(final int[] argb, final int width, final int height, final boolean alpha, final float quality) throws IOException {
+	if (width > 16384 || height > 16384) {
+	    throw new IOException("The image is too large for WebP.");
+	}
+	final VP8LEncoder encoder = new VP8LEncoder(quality);
+	encoder.writeBits(VP8LDecoder.SIGNATURE, 8);
+	encoder.writeBits(width - 1, 14);
+	encoder.writeBits(height - 1, 14);
+	encoder.writeBits(alpha ? 1 : 0, 1);
+	encoder.writeBits(0, 3);
+	encoder.writeImageStream(argb.clone(), width, height);
+	return encoder.toByteArray();
+    }
+
+    /**
+     * 編碼成沒有檔頭的影像串流，用在WebP的透明度(ALPH)區塊。
+     *
+     * @param argb 傳入ARGB像素
+     * @param width 傳入寬度
+     * @param height 傳入高度
+     * @param quality 傳入壓縮的努力程度(0~1)
+     * @return 傳回影像串流的資料
+     */
+    static byte[] encodeImageStream(final int[] argb, final int width, final int height, final float quality) {
+	final VP8LEncoder encoder = new VP8LEncoder(quality);
+	encoder.writeImageStream(argb.clone(), width, height);
+	return encoder.toByteArray();
+    }
+
+    /**
+     * 計算前綴碼。
+     *
+     * @param value 傳入長度或距離(至少為1)
+     * @return 傳回前綴碼、額外位元數與額外位元的數值，分別在第0、8、16個位元開始
+     */
+    private static long prefixEncode(final int value) {
+	final int d = value - 1;
+	if (d < 2) {
+	    return d;
+	}
+	final int highestBit = 31 - Integer.numberOfLeadingZeros(d);
+	final int secondHighestBit = (d >> (highestBit - 1)) & 1;
+	final int extraBits = highestBit - 1;
+	return (2 * highestBit + secondHighestBit) | (extraBits << 8) | ((long) (d & ((1 << extraBits) - 1)) << 16);
+    }
+
+    /**
+     * 將距離轉成距離碼，鄰近的位置會使用比較短的距離碼。
+     *
+     * @param xsize 傳入寬度
+     * @param dist 傳入距離
+     * @return 傳回距離碼
+     */
+    private static int distanceToPlaneCode(final int xsize, final int dist) {
+	final int yoffset = dist / xsize;
+	final int xoffset = dist - yoffset * xsize;
+	int plane = -1;
+	if (xoffset <= 8 && yoffset < 8) {
+	    plane = yoffset * 16 + 8 - xoffset;
+	} else if (xoffset > xsize - 8 && yoffset < 7) {
+	    plane = (yoffset + 1) * 16 + 8 + (xsize - xoffset);
+	}
+	if (plane >= 0 && plane < 128 && PLANE_TO_CODE[plane] >= 0) {
+	    return PLANE_TO_CODE[plane] + 1;
+	}
+	return dist + 120;
+    }
+
+    /**
+     * 計算有號位元組的絕對值，用來估計殘差的大小。
+     *
+     * @param v 傳入位元組(0~255)
+     * @return 傳回絕對值
+     */
+    private static int residualCost(final int v) {
+	return v < 128 ? v : 256 - v;
+    }
+
+    /**
+     * 以夏農熵估計一個直方圖編碼後的位元數。
+     *
+     * @param histogram 傳入直方圖
+     * @return 傳回估計的位元數
+     */
+    private static double entropy(final int[] histogram) {
+	long total = 0;
+	double sum = 0;
+	for (final int c : histogram) {
+	    if (c > 0) {
+		total += c;
+		sum += c * Math.log(c);
+	    }
+	}
+	return total == 0 ? 0 : (total * Math.log(total) - sum) / Math.log(2);
+    }
+
+    /**
+     * 計算一個直方圖以霍夫曼編碼後的位元數。和夏農熵不同，每個符號至少需要1個位元(只有一個符號時為0個位元)。
+     *
+     * @param histogram 傳入直方圖
+     * @return 傳回位元數
+     */
+    private static double huffmanCost(final int[] histogram) {
+	final int[] lengths = huffmanLengths(histogram, VP8LDecoder.MAX_CODE_LENGTH);
+	double cost = 0;
+	int used = 0;
+	for (int s = 0; s < histogram.length; ++s) {
+	    if (lengths[s] > 0) {
+		++used;
+		cost += (double) histogram[s] * lengths[s];
+	    }
+	}
+	return used <= 1 ? 0 : cost;
+    }
+
+    /**
+     * 計算長度有上限的霍夫曼編碼長度。若編碼太長，會逐漸提高最小的次數後重新計算。
+     *
+     * @param histogram 傳入直方圖
+     * @param limit 傳入編碼長度的上限
+     * @return 傳回各符號的編碼長度；若只有一個符號，長度為1
+     */
+    static int[] huffmanLengths(final int[] histogram, final int limit) {
+	final int size = histogram.length;
+	final int[] lengths = new int[size];
+	int used = 0, last = 0;
+	for (int s = 0; s < size; ++s) {
+	    if (histogram[s] > 0) {
+		++used;
+		last = s;
+	    }
+	}
+	if (used == 0) {
+	    return lengths;
+	}
+	if (used == 1) {
+	    lengths[last] = 1;
+	    return lengths;
+	}
+	final int[] symbols = new int[used];
+	final long[] weights = new long[2 * used];
+	final int[] parent = new int[2 * used];
+	for (int countMin = 1;; countMin *= 2) {
+	    int n = 0;
+	    for (int s = 0; s < size; ++s) {
+		if (histogram[s] > 0) {
+		    symbols[n++] = s;
+		}
+	    }
+	    final int cm = countMin;
+	    final Integer[] order = new Integer[used];
+	    for (int i = 0; i < used; ++i) {
+		order[i] = i;
+	    }
+	    final long[] w = new long[used];
+	    for (int i = 0; i < used; ++i) {
+		w[i] = Math.max(histogram[symbols[i]], cm);
+	    }
+	    Arrays.sort(order, (final Integer a, final Integer b) -> w[a] != w[b] ? Long.compare(w[a], w[b]) : Integer.compare(symbols[a], symbols[b]));
+	    // 兩個佇列的霍夫曼樹建構法，葉節點是0~used-1，內部節點從used開始
+	    for (int i = 0; i < used; ++i) {
+		weights[i] = w[order[i]];
+	    }
+	    int leaf = 0, inner = used, innerEnd = used;
+	    while (innerEnd < 2 * used - 1) {
+		final int a, b;
+		if (leaf < used && (inner >= innerEnd || weights[leaf] <= weights[inner])) {
+		    a = leaf++;
+		} else {
+		    a = inner++;
+		}
+		if (leaf < used && (inner >= innerEnd || weights[leaf] <= weights[inner])) {
+		    b = leaf++;
+		} else {
+		    b = inner++;
+		}
+		weights[innerEnd] = weights[a] + weights[b];
+		parent[a] = innerEnd;
+		parent[b] = innerEnd;
+		++innerEnd;
+	    }
+	    final int root = 2 * used - 2;
+	    final int[] depth = new int[2 * used - 1];
+	    int maxDepth = 0;
+	    for (int i = root - 1; i >= 0; --i) {
+		depth[i] = depth[parent[i]] + 1;
+		if (i < used && depth[i] > maxDepth) {
+		    maxDepth = depth[i];
+		}
+	    }
+	    if (maxDepth <= limit) {
+		for (int i = 0; i < used; ++i) {
+		    lengths[symbols[order[i]]] = depth[i];
+		}
+		return lengths;
+	    }
+	}
+    }
+
+    /**
+     * 依照編碼長度計算正規霍夫曼編碼，並反轉位元順序以便從低位元開始輸出。
+     *
+     * @param lengths 傳入各符號的編碼長度
+     * @return 傳回各符號反轉後的編碼
+     */
+    static int[] huffmanCodes(final int[] lengths) {
+	final int[] count = new int[VP8LDecoder.MAX_CODE_LENGTH + 1];
+	for (final int len : lengths) {
+	    ++count[len];
+	}
+	count[0] = 0;
+	final int[] nextCode = new int[VP8LDecoder.MAX_CODE_LENGTH + 1];
+	for (int len = 2, code = 0; len <= VP8LDecoder.MAX_CODE_LENGTH; ++len) {
+	    code = (code + count[len - 1]) << 1;
+	    nextCode[len] = code;
+	}
+	final int[] codes = new int[lengths.length];
+	for (int s = 0; s < lengths.length; ++s) {
+	    final int len = lengths[s];
+	    if (len > 0) {
+		codes[s] = Integer.reverse(nextCode[len]++) >>> (32 - len);
+	    }
+	}
+	return codes;
+    }
+
+    // -----物件常數-----
+    /**
+     * 雜湊鏈搜尋的次數上限。
+     */
+    private final int maxChain;
+    /**
+     * 是否嘗試色彩交叉轉換並多估計一次位元數。
+     */
+    private final boolean thorough;
+
+    // -----物件變數-----
+    /**
+     * 輸出的資料。
+     */
+    private byte[] output = new byte[4096];
+    /**
+     * 輸出的位元組數。
+     */
+    private int outputSize;
+    /**
+     * 位元緩衝區。
+     */
+    private long bitBuffer;
+    /**
+     * 位元緩衝區中的位元數。
+     */
+    private int bitCount;
+    /**
+     * 最後一次搜尋到的參考長度。
+     */
+    private int matchLength;
+    /**
+     * 最後一次搜尋到的參考距離。
+     */
+    private int matchDist;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param quality 傳入壓縮的努力程度(0~1)
+     */
+    private VP8LEncoder(final float quality) {
+	this(8 + (int) (Math.max(0, Math.min(1, quality)) * 120), quality >= 0.5f);
+    }
+
+    /**
+     * 建構子。
+     *
+     * @param maxChain 傳入雜湊鏈搜尋的次數上限
+     * @param thorough 傳入是否嘗試色彩交叉轉換並多估計一次位元數
+     */
+    private VP8LEncoder(final int maxChain, final boolean thorough) {
+	this.maxChain = maxChain;
+	this.thorough = thorough;
+    }
+
+    // -----物件方法-----
+    /**
+     * 寫入位元，低位元先寫入。
+     *
+     * @param value 傳入數值
+     * @param n 傳入位元數(0~32)
+     */
+    private void writeBits(final int value, final int n) {
+	bitBuffer |= (value & ((1L << n) - 1)) << bitCount;
+	bitCount += n;
+	while (bitCount >= 8) {
+	    if (outputSize == output.length) {
+		output = Arrays.copyOf(output, output.length * 2);
+	    }
+	    output[outputSize++] = (byte) bitBuffer;
+	    bitBuffer >>>= 8;
+	    bitCount -= 8;
+	}
+    }
+
+    /**
+     * 取得輸出的資料，最後不足一個位元組的位元會補0。
+     *
+     * @return 傳回輸出的資料
+     */
+    private byte[] toByteArray() {
+	if (bitCount > 0) {
+	    writeBits(0, 8 - bitCount);
+	}
+	return Arrays.copyOf(output, outputSize);
+    }
+
+    /**
+     * 寫入主要的影像串流，包括轉換。
+     *
+     * @param argb 傳入ARGB像素，內容會被修改
+     * @param width 傳入寬度
+     * @param height 傳入高度
+     */
+    private void writeImageStream(final int[] argb, final int width, final int height) {
+	final int[] palette = findPalette(argb);
+	if (palette != null) {
+	    final int numColors = palette.length;
+	    final int bits = numColors > 16 ? 0 : numColors > 4 ? 1 : numColors > 2 ? 2 : 3;
+	    writeBits(1, 1);
+	    writeBits(VP8LDecoder.COLOR_INDEXING_TRANSFORM, 2);
+	    writeBits(numColors - 1, 8);
+	    final int[] delta = new int[numColors];
+	    delta[0] = palette[0];
+	    for (int i = 1; i < numColors; ++i) {
+		delta[i] = VP8LDecoder.subPixels(palette[i], palette[i - 1]);
+	    }
+	    writeEntropyCodedImage(delta, numColors, 1, false);
+	    final int packedWidth = VP8LDecoder.subSampleSize(width, bits);
+	    final int[] packed = new int[packedWidth * height];
+	    final int bitsPerPixel = 8 >> bits;
+	    for (int y = 0; y < height; ++y) {
+		for (int x = 0; x < width; ++x) {
+		    final int index = Arrays.binarySearch(palette, argb[y * width + x]);
+		    packed[y * packedWidth + (x >> bits)] |= index << (8 + (x & ((1 << bits) - 1)) * bitsPerPixel);
+		}
+	    }
+	    for (int i = 0; i < packed.length; ++i) {
+		packed[i] |= 0xFF000000;
+	    }
+	    writeBits(0, 1);
+	    writeEntropyCodedImage(packed, packedWidth, height, true);
+	    return;
+	}
+	// 減去綠色
+	writeBits(1, 1);
+	writeBits(VP8LDecoder.SUBTRACT_GREEN, 2);
+	for (int i = 0; i < argb.length; ++i) {
+	    final int pixel = argb[i];
+	    final int green = (pixel >> 8) & 0xFF;
+	    argb[i] = (pixel & 0xFF00FF00) | ((((pixel >> 16) - green) & 0xFF) << 16) | ((pixel - green) & 0xFF);
+	}
+	// 預測
+	writeBits(1, 1);
+	writeBits(VP8LDecoder.PREDICTOR_TRANSFORM, 2);
+	writeBits(PREDICTOR_BITS - 2, 3);
+	final int[] modes = choosePredictors(argb, width, height);
+	writeEntropyCodedImage(modes, VP8LDecoder.subSampleSize(width, PREDICTOR_BITS), VP8LDecoder.subSampleSize(height, PREDICTOR_BITS), false);
+	applyPredictors(argb, width, height, modes);
+	// 色彩交叉：不一定能讓檔案變小，因此兩種方式都編碼，再使用比較小的
+	final VP8LEncoder plain = new VP8LEncoder(maxChain, thorough);
+	if (thorough) {
+	    final VP8LEncoder cross = new VP8LEncoder(maxChain, thorough);
+	    final int[] transformed = argb.clone();
+	    cross.writeBits(1, 1);
+	    cross.writeBits(VP8LDecoder.CROSS_COLOR_TRANSFORM, 2);
+	    cross.writeBits(CROSS_COLOR_BITS - 2, 3);
+	    final int[] multipliers = applyCrossColor(transformed, width, height);
+	    cross.writeEntropyCodedImage(multipliers, VP8LDecoder.subSampleSize(width, CROSS_COLOR_BITS), VP8LDecoder.subSampleSize(height, CROSS_COLOR_BITS), false);
+	    cross.writeBits(0, 1);
+	    cross.writeEntropyCodedImage(transformed, width, height, true);
+	    plain.writeBits(0, 1);
+	    plain.writeEntropyCodedImage(argb, width, height, true);
+	    append(cross.outputSize < plain.outputSize ? cross : plain);
+	} else {
+	    plain.writeBits(0, 1);
+	    plain.writeEntropyCodedImage(argb, width, height, true);
+	    append(plain);
+	}
+    }
+
+    /**
+     * 將另一個編碼器輸出的位元接在目前的輸出之後。
+     *
+     * @param other 傳入另一個編碼器
+     */
+    private void append(final VP8LEncoder other) {
+	for (int i = 0; i < other.outputSize; ++i) {
+	    writeBits(other.output[i], 8);
+	}
+	writeBits((int) other.bitBuffer, other.bitCount);
+    }
+
+    /**
+     * 尋找圖片的調色盤。
+     *
+     * @param argb 傳入ARGB像素
+     * @return 傳回排序後的調色盤，若超過256種顏色，傳回null
+     */
+    private static int[] findPalette(final int[] argb) {
+	final int[] table = new int[1024];
+	final boolean[] used = new boolean[1024];
+	int count = 0;
+	int last = ~argb[0];
+	for (final int color : argb) {
+	    if (color == last) {
+		continue;
+	    }
+	    last = color;
+	    int h = (0x1E35A7BD * color) >>> 22;
+	    while (used[h] && table[h] != color) {
+		h = (h + 1) & 1023;
+	    }
+	    if (!used[h]) {
+		if (++count > 256) {
+		    return null;
+		}
+		used[h] = true;
+		table[h] = color;
+	    }
+	}
+	final int[] palette = new int[count];
+	for (int i = 0, n = 0; i < 1024; ++i) {
+	    if (used[i]) {
+		palette[n++] = table[i];
+	    }
+	}
+	Arrays.sort(palette);
+	return palette;
+    }
+
+    /**
+     * 為每個區塊選擇殘差最小的預測模式。
+     *
+     * @param argb 傳入ARGB像素
+     * @param width 傳入寬度
+     * @param height 傳入高度
+     * @return 傳回預測模式的影像，模式放在綠色通道
+     */
+    private static int[] choosePredictors(final int[] argb, final int width, final int height) {
+	final int tilesX = VP8LDecoder.subSampleSize(width, PREDICTOR_BITS);
+	final int tilesY = VP8LDecoder.subSampleSize(height, PREDICTOR_BITS);
+	final int[] modes = new int[tilesX * tilesY];
+	final long[] costs = new long[14];
+	for (int ty = 0; ty < tilesY; ++ty) {
+	    for (int tx = 0; tx < tilesX; ++tx) {
+		Arrays.fill(costs, 0);
+		final int yStart = Math.max(1, ty << PREDICTOR_BITS), yEnd = Math.min(height, (ty + 1) << PREDICTOR_BITS);
+		final int xStart = Math.max(1, tx << PREDICTOR_BITS), xEnd = Math.min(width, (tx + 1) << PREDICTOR_BITS);
+		for (int y = yStart; y < yEnd; ++y) {
+		    for (int x = xStart; x < xEnd; ++x) {
+			final int pos = y * width + x;
+			final int pixel = argb[pos];
+			for (int mode = 0; mode < 14; ++mode) {
+			    final int r = VP8LDecoder.subPixels(pixel, VP8LDecoder.predict(mode, argb, pos, width));
+			    costs[mode] += residualCost(r >>> 24) + residualCost((r >> 16) & 0xFF) + residualCost((r >> 8) & 0xFF) + residualCost(r & 0xFF);
+			}
+		    }
+		}
+		int best = 1;
+		for (int mode = 0; mode < 14; ++mode) {
+		    if (costs[mode] < costs[best]) {
+			best = mode;
+		    }
+		}
+		modes[ty * tilesX + tx] = 0xFF000000 | (best << 8);
+	    }
+	}
+	return modes;
+    }
+
+    /**
+     * 將像素轉成預測的殘差。
+     *
+     * @param argb 傳入ARGB像素，會被殘差取代
+     * @param width 傳入寬度
+     * @param height 傳入高度
+     * @param modes 傳入預測模式的影像
+     */
+    private static void applyPredictors(final int[] argb, final int width, final int height, final int[] modes) {
+	final int tilesX = VP8LDecoder.subSampleSize(width, PREDICTOR_BITS);
+	// 由後往前處理，預測時使用的像素都還是原本的數值
+	for (int y = height - 1; y >= 0; --y) {
+	    final int row = y * width;
+	    for (int x = width - 1; x >= 0; --x) {
+		final int pos = row + x;
+		final int pred;
+		if (y == 0) {
+		    pred = x == 0 ? 0xFF000000 : argb[pos - 1];
+		} else if (x == 0) {
+		    pred = argb[pos - width];
+		} else {
+		    pred = VP8LDecoder.predict((modes[(y >> PREDICTOR_BITS) * tilesX + (x >> PREDICTOR_BITS)] >> 8) & 0xF, argb, pos, width);
+		}
+		argb[pos] = VP8LDecoder.subPixels(argb[pos], pred);
+	    }
+	}
+    }
+
+    /**
+     * 為每個區塊選擇色彩交叉轉換的乘數，並套用到像素。
+     *
+     * @param argb 傳入ARGB像素，會被轉換
+     * @param width 傳入寬度
+     * @param height 傳入高度
+     * @return 傳回乘數的影像
+     */
+    private static int[] applyCrossColor(final int[] argb, final int width, final int height) {
+	final int tilesX = VP8LDecoder.subSampleSize(width, CROSS_COLOR_BITS);
+	final int tilesY = VP8LDecoder.subSampleSize(height, CROSS_COLOR_BITS);
+	final int[] multipliers = new int[tilesX * tilesY];
+	for (int ty = 0; ty < tilesY; ++ty) {
+	    for (int tx = 0; tx < tilesX; ++tx) {
+		final int yStart = ty << CROSS_COLOR_BITS, yEnd = Math.min(height, (ty + 1) << CROSS_COLOR_BITS);
+		final int xStart = tx << CROSS_COLOR_BITS, xEnd = Math.min(width, (tx + 1) << CROSS_COLOR_BITS);
+		final int greenToRed = bestMultiplier(argb, width, xStart, xEnd, yStart, yEnd, 16, 8, -1, 0);
+		final int redToBlue = bestMultiplier(argb, width, xStart, xEnd, yStart, yEnd, 0, 16, -1, 0);
+		final int greenToBlue = bestMultiplier(argb, width, xStart, xEnd, yStart, yEnd, 0, 8, 16, redToBlue);
+		final int m = (greenToRed & 0xFF) | ((greenToBlue & 0xFF) << 8) | ((redToBlue & 0xFF) << 16);
+		multipliers[ty * tilesX + tx] = 0xFF000000 | m;
+		for (int y = yStart; y < yEnd; ++y) {
+		    for (int x = xStart; x < xEnd; ++x) {
+			final int pos = y * width + x;
+			final int pixel = argb[pos];
+			final int green = (byte) (pixel >> 8);
+			final int red = (byte) (pixel >> 16);
+			final int newRed = ((pixel >> 16) - VP8LDecoder.colorTransformDelta(greenToRed, green)) & 0xFF;
+			final int newBlue = (pixel - VP8LDecoder.colorTransformDelta(greenToBlue, green) - VP8LDecoder.colorTransformDelta(redToBlue, red)) & 0xFF;
+			argb[pos] = (pixel & 0xFF00FF00) | (newRed << 16) | newBlue;
+		    }
+		}
+	    }
+	}
+	return multipliers;
+    }
+
+    /**
+     * 搜尋讓目標通道殘差最小的乘數。
+     *
+     * @param argb 傳入ARGB像素
+     * @param width 傳入寬度
+     * @param xStart 傳入區塊的開始X座標
+     * @param xEnd 傳入區塊的結束X座標
+     * @param yStart 傳入區塊的開始Y座標
+     * @param yEnd 傳入區塊的結束Y座標
+     * @param targetShift 傳入目標通道的位移
+     * @param sourceShift 傳入來源通道的位移
+     * @param otherShift 傳入另一個已決定乘數的來源通道位移，若小於0，則沒有
+     * @param otherMultiplier 傳入另一個來源通道的乘數
+     * @return 傳回乘數(-128~127)
+     */
+    private static int bestMultiplier(final int[] argb, final int width, final int xStart, final int xEnd, final int yStart, final int yEnd, final int targetShift, final int sourceShift, final int otherShift, final int otherMultiplier) {
+	final int[] histogram = new int[256];
+	int best = 0;
+	double bestCost = Double.MAX_VALUE;
+	int low = -128, high = 127, step = 16;
+	while (true) {
+	    for (int m = low; m <= high; m += step) {
+		Arrays.fill(histogram, 0);
+		for (int y = yStart; y < yEnd; ++y) {
+		    for (int x = xStart; x < xEnd; ++x) {
+			final int pixel = argb[y * width + x];
+			int v = (pixel >> targetShift) - VP8LDecoder.colorTransformDelta(m, pixel >> sourceShift);
+			if (otherShift >= 0) {
+			    v -= VP8LDecoder.colorTransformDelta(otherMultiplier, pixel >> otherShift);
+			}
+			++histogram[v & 0xFF];
+		    }
+		}
+		final double cost = entropy(histogram) + (m == 0 ? 0 : 1);
+		if (cost < bestCost) {
+		    bestCost = cost;
+		    best = m;
+		}
+	    }
+	    if (step == 1) {
+		return best;
+	    }
+	    low = Math.max(-128, best - step + step / 4);
+	    high = Math.min(127, best + step - step / 4);
+	    step /= 4;
+	}
+    }
+
+    /**
+     * 以霍夫曼編碼寫入像素，包括色彩快取的設定與編碼本身。
+     *
+     * @param argb 傳入ARGB像素
+     * @param width 傳入寬度
+     * @param height 傳入高度
+     * @param level0 傳入是否為主要的影像
+     */
+    private void writeEntropyCodedImage(final int[] argb, final int width, final int height, final boolean level0) {
+	final int n = argb.length;
+	final int[] matchLengths = new int[n];
+	final int[] matchCodes = new int[n];
+	findMatches(argb, width, matchLengths, matchCodes);
+
+	// 以全部輸出像素和貪婪法兩種簡單的切割方式估計位元數，選擇色彩快取的大小
+	final int[] values = new int[n];
+	final int[] dists = new int[n];
+	int greedyCount = 0;
+	for (int pos = 0; pos < n;) {
+	    if (matchLengths[pos] >= MIN_LENGTH) {
+		values[greedyCount] = matchLengths[pos];
+		dists[greedyCount++] = matchCodes[pos];
+		pos += matchLengths[pos];
+	    } else {
+		values[greedyCount] = argb[pos++];
+		dists[greedyCount++] = 0;
+	    }
+	}
+	final int[] literalDists = new int[n];
+	int cacheBits = 0;
+	if (level0) {
+	    double bestCost = Double.MAX_VALUE;
+	    for (final int bits : thorough ? new int[]{0, 2, 4, 6, 8, 10} : new int[]{0, 4, 7, 10}) {
+		final double cost = Math.min(estimateCost(argb, values, dists, greedyCount, bits), estimateCost(argb, argb, literalDists, n, bits)) + (bits == 0 ? 0 : (1 << bits) * 0.5);
+		if (cost < bestCost) {
+		    bestCost = cost;
+		    cacheBits = bits;
+		}
+	    }
+	}
+	final int numTokens = parse(argb, matchLengths, matchCodes, cacheBits, values, dists);
+	if (cacheBits > 0) {
+	    writeBits(1, 1);
+	    writeBits(cacheBits, 4);
+	} else {
+	    writeBits(0, 1);
+	}
+	if (level0) {
+	    writeBits(0, 1); // 只使用一組霍夫曼編碼
+	}
+	final int[][] histograms = buildHistograms(argb, values, dists, numTokens, cacheBits);
+	final int[][] lengths = new int[5][];
+	final int[][] codes = new int[5][];
+	for (int i = 0; i < 5; ++i) {
+	    lengths[i] = huffmanLengths(histograms[i], VP8LDecoder.MAX_CODE_LENGTH);
+	    codes[i] = huffmanCodes(lengths[i]);
+	    writeHuffmanCode(lengths[i]);
+	}
+	final boolean[] single = new boolean[5];
+	for (int i = 0; i < 5; ++i) {
+	    int used = 0;
+	    for (final int len : lengths[i]) {
+		if (len > 0) {
+		    ++used;
+		}
+	    }
+	    single[i] = used <= 1;
+	}
+	final int[] cache = cacheBits > 0 ? new int[1 << cacheBits] : null;
+	int pos = 0;
+	for (int t = 0; t < numTokens; ++t) {
+	    if (dists[t] == 0) {
+		final int pixel = values[t];
+		final int key = cache != null ? VP8LDecoder.hashPixel(pixel, cacheBits) : 0;
+		if (cache != null && cache[key] == pixel) {
+		    writeSymbol(256 + VP8LDecoder.NUM_LENGTH_CODES + key, lengths[0], codes[0], single[0]);
+		} else {
+		    writeSymbol((pixel >> 8) & 0xFF, lengths[0], codes[0], single[0]);
+		    writeSymbol((pixel >> 16) & 0xFF, lengths[1], codes[1], single[1]);
+		    writeSymbol(pixel & 0xFF, lengths[2], codes[2], single[2]);
+		    writeSymbol(pixel >>> 24, lengths[3], codes[3], single[3]);
+		    if (cache != null) {
+			cache[key] = pixel;
+		    }
+		}
+		++pos;
+	    } else {
+		final int length = values[t];
+		final long lengthPrefix = prefixEncode(length);
+		writeSymbol(256 + (int) (lengthPrefix & 0xFF), lengths[0], codes[0], single[0]);
+		writeBits((int) (lengthPrefix >>> 16), (int) (lengthPrefix >> 8) & 0xFF);
+		final long distPrefix = prefixEncode(dists[t]);
+		writeSymbol((int) (distPrefix & 0xFF), lengths[4], codes[4], single[4]);
+		writeBits((int) (distPrefix >>> 16), (int) (distPrefix >> 8) & 0xFF);
+		if (cache != null) {
+		    for (int i = 0; i < length; ++i) {
+			final int pixel = argb[pos + i];
+			cache[VP8LDecoder.hashPixel(pixel, cacheBits)] = pixel;
+		    }
+		}
+		pos += length;
+	    }
+	}
+    }
+
+    /**
+     * 寫入一個符號。
+     *
+     * @param symbol 傳入符號
+     * @param lengths 傳入編碼長度
+     * @param codes 傳入編碼
+     * @param single 傳入編碼是否只有一個符號，若是，則不需要寫入任何位元
+     */
+    private void writeSymbol(final int symbol, final int[] lengths, final int[] codes, final boolean single) {
+	if (!single) {
+	    writeBits(codes[symbol], lengths[symbol]);
+	}
+    }
+
+    /**
+     * 計算五種符號的直方圖，會模擬色彩快取。
+     *
+     * @param argb 傳入ARGB像素
+     * @param values 傳入記號的數值(像素或長度)
+     * @param dists 傳入記號的距離碼，0表示像素
+     * @param numTokens 傳入記號的數量
+     * @param cacheBits 傳入色彩快取的位元數
+     * @return 傳回綠色(含長度與快取)、紅色、藍色、透明度與距離的直方圖
+     */
+    private static int[][] buildHistograms(final int[] argb, final int[] values, final int[] dists, final int numTokens, final int cacheBits) {
+	final int[][] histograms = {new int[256 + VP8LDecoder.NUM_LENGTH_CODES + (cacheBits > 0 ? 1 << cacheBits : 0)], new int[256], new int[256], new int[256], new int[VP8LDecoder.NUM_DISTANCE_CODES]};
+	final int[] cache = cacheBits > 0 ? new int[1 << cacheBits] : null;
+	int pos = 0;
+	for (int t = 0; t < numTokens; ++t) {
+	    if (dists[t] == 0) {
+		final int pixel = values[t];
+		final int key = cache != null ? VP8LDecoder.hashPixel(pixel, cacheBits) : 0;
+		if (cache != null && cache[key] == pixel) {
+		    ++histograms[0][256 + VP8LDecoder.NUM_LENGTH_CODES + key];
+		} else {
+		    ++histograms[0][(pixel >> 8) & 0xFF];
+		    ++histograms[1][(pixel >> 16) & 0xFF];
+		    ++histograms[2][pixel & 0xFF];
+		    ++histograms[3][pixel >>> 24];
+		    if (cache != null) {
+			cache[key] = pixel;
+		    }
+		}
+		++pos;
+	    } else {
+		final int length = values[t];
+		++histograms[0][256 + (int) (prefixEncode(length) & 0xFF)];
+		++histograms[4][(int) (prefixEncode(dists[t]) & 0xFF)];
+		if (cache != null) {
+		    for (int i = 0; i < length; ++i) {
+			final int pixel = argb[pos + i];
+			cache[VP8LDecoder.hashPixel(pixel, cacheBits)] = pixel;
+		    }
+		}
+		pos += length;
+	    }
+	}
+	return histograms;
+    }
+
+    /**
+     * 以雜湊鏈搜尋每個位置最長的LZ77參考。
+     *
+     * @param argb 傳入ARGB像素
+     * @param width 傳入寬度
+     * @param lengths 傳入輸出的參考長度，沒有參考時為0
+     * @param codes 傳入輸出的參考距離碼
+     */
+    private void findMatches(final int[] argb, final int width, final int[] lengths, final int[] codes) {
+	final int n = argb.length;
+	final int[] head = new int[1 << HASH_BITS];
+	final int[] prev = new int[n];
+	Arrays.fill(head, -1);
+	for (int pos = 0; pos < n; ++pos) {
+	    if (pos > 0 && lengths[pos - 1] > 32) {
+		// 前一個位置的參考很長時，直接沿用同樣的距離，不再搜尋
+		lengths[pos] = lengths[pos - 1] - 1;
+		codes[pos] = codes[pos - 1];
+	    } else if (pos + MIN_LENGTH <= n) {
+		findMatch(argb, width, pos, head, prev);
+		if (matchLength >= MIN_LENGTH) {
+		    lengths[pos] = matchLength;
+		    codes[pos] = distanceToPlaneCode(width, matchDist);
+		}
+	    }
+	    insertHash(argb, pos, head, prev);
+	}
+    }
+
+    /**
+     * 決定每個位置要輸出像素還是參考。分別從全部輸出像素與貪婪法開始以動態規劃改進，再使用估計位元數比較少的結果。解碼器會把每個像素都放進色彩快取，因此某個位置是否命中快取和怎麼切割無關。
+     *
+     * @param argb 傳入ARGB像素
+     * @param lengths 傳入每個位置最長的參考長度
+     * @param codes 傳入每個位置參考的距離碼
+     * @param cacheBits 傳入色彩快取的位元數
+     * @param values 傳入輸出的記號數值，像素記號為像素，參考記號為長度
+     * @param dists 傳入輸出的記號距離碼，像素記號為0
+     * @return 傳回記號的數量
+     */
+    private int parse(final int[] argb, final int[] lengths, final int[] codes, final int cacheBits, final int[] values, final int[] dists) {
+	final int n = argb.length;
+	// 每個位置命中的快取索引，沒有命中時為-1
+	final int[] hits = new int[n];
+	if (cacheBits > 0) {
+	    final int[] cache = new int[1 << cacheBits];
+	    for (int pos = 0; pos < n; ++pos) {
+		final int pixel = argb[pos];
+		final int key = VP8LDecoder.hashPixel(pixel, cacheBits);
+		hits[pos] = cache[key] == pixel ? key : -1;
+		cache[key] = pixel;
+	    }
+	} else {
+	    Arrays.fill(hits, -1);
+	}
+
+	System.arraycopy(argb, 0, values, 0, n);
+	Arrays.fill(dists, 0, n, 0);
+	final int count = refine(argb, lengths, codes, hits, cacheBits, values, dists, n);
+
+	final int[] greedyValues = new int[n];
+	final int[] greedyDists = new int[n];
+	int greedyCount = 0;
+	for (int pos = 0; pos < n;) {
+	    if (lengths[pos] >= MIN_LENGTH) {
+		greedyValues[greedyCount] = lengths[pos];
+		greedyDists[greedyCount++] = codes[pos];
+		pos += lengths[pos];
+	    } else {
+		greedyValues[greedyCount] = argb[pos++];
+		greedyDists[greedyCount++] = 0;
+	    }
+	}
+	greedyCount = refine(argb, lengths, codes, hits, cacheBits, greedyValues, greedyDists, greedyCount);
+
+	if (estimateCost(argb, greedyValues, greedyDists, greedyCount, cacheBits) < estimateCost(argb, values, dists, count, cacheBits)) {
+	    System.arraycopy(greedyValues, 0, values, 0, greedyCount);
+	    System.arraycopy(greedyDists, 0, dists, 0, greedyCount);
+	    return greedyCount;
+	}
+	return count;
+    }
+
+    /**
+     * 以目前記號的直方圖估計每個符號的位元數，再以動態規劃找出估計位元數最少的切割方式。會重複數次。
+     *
+     * @param argb 傳入ARGB像素
+     * @param lengths 傳入每個位置最長的參考長度
+     * @param codes 傳入每個位置參考的距離碼
+     * @param hits 傳入每個位置命中的快取索引，沒有命中時為-1
+     * @param cacheBits 傳入色彩快取的位元數
+     * @param values 傳入記號的數值，也是輸出
+     * @param dists 傳入記號的距離碼，也是輸出
+     * @param numTokens 傳入記號的數量
+     * @return 傳回新的記號數量
+     */
+    private int refine(final int[] argb, final int[] lengths, final int[] codes, final int[] hits, final int cacheBits, final int[] values, final int[] dists, int numTokens) {
+	final int n = argb.length;
+	final float[] cost = new float[n + 1];
+	final int[] step = new int[n + 1];
+	final int iterations = thorough ? 3 : 2;
+	for (int iteration = 0; iteration < iterations; ++iteration) {
+	    final int[][] histograms = buildHistograms(argb, values, dists, numTokens, cacheBits);
+	    final float[][] bits = new float[5][];
+	    for (int i = 0; i < 5; ++i) {
+		bits[i] = symbolCosts(histograms[i]);
+	    }
+	    Arrays.fill(cost, Float.MAX_VALUE);
+	    cost[0] = 0;
+	    for (int pos = 0; pos < n; ++pos) {
+		final float base = cost[pos];
+		final int pixel = argb[pos];
+		final float literal;
+		if (hits[pos] >= 0) {
+		    literal = base + bits[0][256 + VP8LDecoder.NUM_LENGTH_CODES + hits[pos]];
+		} else {
+		    literal = base + bits[0][(pixel >> 8) & 0xFF] + bits[1][(pixel >> 16) & 0xFF] + bits[2][pixel & 0xFF] + bits[3][pixel >>> 24];
+		}
+		if (literal < cost[pos + 1]) {
+		    cost[pos + 1] = literal;
+		    step[pos + 1] = 1;
+		}
+		final int length = lengths[pos];
+		if (length >= MIN_LENGTH) {
+		    final long distPrefix = prefixEncode(codes[pos]);
+		    final float copy = base + bits[4][(int) (distPrefix & 0xFF)] + ((distPrefix >> 8) & 0xFF);
+		    // 較短的長度只考慮前面一部分，最長的長度一定會考慮
+		    final int shortLimit = Math.min(length, 32);
+		    for (int l = MIN_LENGTH; l <= length; l = l < shortLimit ? l + 1 : l < length ? length : l + 1) {
+			final long lengthPrefix = prefixEncode(l);
+			final float c = copy + bits[0][256 + (int) (lengthPrefix & 0xFF)] + ((lengthPrefix >> 8) & 0xFF);
+			if (c < cost[pos + l]) {
+			    cost[pos + l] = c;
+			    step[pos + l] = l;
+			}
+		    }
+		}
+	    }
+	    // 從最後面往回追蹤，記號會先被放在陣列的後面
+	    int t = n;
+	    for (int pos = n; pos > 0;) {
+		final int l = step[pos];
+		pos -= l;
+		--t;
+		if (l == 1) {
+		    values[t] = argb[pos];
+		    dists[t] = 0;
+		} else {
+		    values[t] = l;
+		    dists[t] = codes[pos];
+		}
+	    }
+	    numTokens = n - t;
+	    System.arraycopy(values, t, values, 0, numTokens);
+	    System.arraycopy(dists, t, dists, 0, numTokens);
+	}
+	return numTokens;
+    }
+
+    /**
+     * 以霍夫曼編碼的長度估計記號編碼後的位元數，包括前綴碼的額外位元。
+     *
+     * @param argb 傳入ARGB像素
+     * @param values 傳入記號的數值
+     * @param dists 傳入記號的距離碼
+     * @param numTokens 傳入記號的數量
+     * @param cacheBits 傳入色彩快取的位元數
+     * @return 傳回估計的位元數
+     */
+    private static double estimateCost(final int[] argb, final int[] values, final int[] dists, final int numTokens, final int cacheBits) {
+	double cost = 0;
+	for (final int[] histogram : buildHistograms(argb, values, dists, numTokens, cacheBits)) {
+	    cost += huffmanCost(histogram);
+	}
+	for (int t = 0; t < numTokens; ++t) {
+	    if (dists[t] != 0) {
+		cost += ((prefixEncode(values[t]) >> 8) & 0xFF) + ((prefixEncode(dists[t]) >> 8) & 0xFF);
+	    }
+	}
+	return cost;
+    }
+
+    /**
+     * 依照直方圖估計每個符號需要的位元數。沒有出現過的符號視為比最少出現的符號更貴。
+     *
+     * @param histogram 傳入直方圖
+     * @return 傳回每個符號估計的位元數
+     */
+    private static float[] symbolCosts(final int[] histogram) {
+	long total = 0;
+	for (final int c : histogram) {
+	    total += c;
+	}
+	final float[] costs = new float[histogram.length];
+	final double log2 = Math.log(2);
+	final float missing = (float) (Math.log(total + 1) / log2) + 2;
+	for (int s = 0; s < histogram.length; ++s) {
+	    costs[s] = histogram[s] > 0 ? (float) (Math.log((double) total / histogram[s]) / log2) : missing;
+	}
+	return costs;
+    }
+
+    /**
+     * 將位置加入雜湊鏈，雜湊值由連續的兩個像素計算。
+     *
+     * @param argb 傳入ARGB像素
+     * @param pos 傳入位置
+     * @param head 傳入各雜湊值最新的位置
+     * @param prev 傳入各位置的前一個相同雜湊值的位置
+     */
+    private static void insertHash(final int[] argb, final int pos, final int[] head, final int[] prev) {
+	if (pos + 1 >= argb.length) {
+	    return;
+	}
+	final int h = (argb[pos] * 0x1E35A7BD + argb[pos + 1] * 0x9E3779B1) >>> (32 - HASH_BITS);
+	prev[pos] = head[h];
+	head[h] = pos;
+    }
+
+    /**
+     * 搜尋目前位置最長的參考，結果會放在matchLength和matchDist。長度相同時，優先使用距離碼比較短的參考。
+     *
+     * @param argb 傳入ARGB像素
+     * @param width 傳入寬度
+     * @param pos 傳入位置
+     * @param head 傳入各雜湊值最新的位置
+     * @param prev 傳入各位置的前一個相同雜湊值的位置
+     */
+    private void findMatch(final int[] argb, final int width, final int pos, final int[] head, final int[] prev) {
+	final int n = argb.length;
+	final int maxLength = Math.min(MAX_LENGTH, n - pos);
+	int bestLength = 0, bestDist = 0, bestCode = Integer.MAX_VALUE;
+	// 先嘗試左邊和上面的像素，它們的距離碼最短
+	for (int i = 0; i < 2; ++i) {
+	    final int dist = i == 0 ? 1 : width;
+	    if (dist > pos || (i == 1 && width == 1)) {
+		continue;
+	    }
+	    final int length = matchLength(argb, pos - dist, pos, maxLength);
+	    if (length > bestLength) {
+		bestLength = length;
+		bestDist = dist;
+		bestCode = distanceToPlaneCode(width, dist);
+	    }
+	}
+	if (pos + 1 < n && bestLength < maxLength) {
+	    final int h = (argb[pos] * 0x1E35A7BD + argb[pos + 1] * 0x9E3779B1) >>> (32 - HASH_BITS);
+	    int iterations = maxChain;
+	    for (int candidate = head[h]; candidate >= 0 && pos - candidate <= WINDOW_SIZE && iterations > 0; candidate = prev[candidate], --iterations) {
+		if (bestLength > 0 && argb[candidate + bestLength] != argb[pos + bestLength]) {
+		    continue;
+		}
+		final int length = matchLength(argb, candidate, pos, maxLength);
+		if (length >= bestLength) {
+		    final int dist = pos - candidate;
+		    final int code = distanceToPlaneCode(width, dist);
+		    if (length > bestLength || code < bestCode) {
+			bestLength = length;
+			bestDist = dist;
+			bestCode = code;
+			if (length == maxLength) {
+			    break;
+			}
+		    }
+		}
+	    }
+	}
+	matchLength = bestLength;
+	matchDist = bestDist;
+    }
+
+    /**
+     * 計算兩個位置開始的相同像素數量。
+     *
+     * @param argb 傳入ARGB像素
+     * @param from 傳入較前面的位置
+     * @param pos 傳入目前的位置
+     * @param maxLength 傳入長度上限
+     * @return 傳回相同像素的數量
+     */
+    private static int matchLength(final int[] argb, final int from, final int pos, final int maxLength) {
+	int length = 0;
+	while (length < maxLength && argb[from + length] == argb[pos + length]) {
+	    ++length;
+	}
+	return length;
+    }
+
+    /**
+     * 寫入霍夫曼編碼的長度。最多兩個小於256的符號時使用簡單編碼，其餘的使用以遊程編碼壓縮的一般編碼。
+     *
+     * @param lengths 傳入各符號的編碼長度
+     */
+    private void writeHuffmanCode(final int[] lengths) {
+	int used = 0;
+	final int[] symbols = new int[2];
+	for (int s = 0; s < lengths.length; ++s) {
+	    if (lengths[s] > 0) {
+		if (used < 2) {
+		    symbols[used] = s;
+		}
+		++used;
+	    }
+	}
+	if (used == 0 || (used <= 2 && symbols[used - 1] < 256)) {
+	    writeBits(1, 1);
+	    if (used == 0) {
+		writeBits(0, 3); // 一個符號0
+		return;
+	    }
+	    writeBits(used - 1, 1);
+	    if (symbols[0] <= 1) {
+		writeBits(0, 1);
+		writeBits(symbols[0], 1);
+	    } else {
+		writeBits(1, 1);
+		writeBits(symbols[0], 8);
+	    }
+	    if (used == 2) {
+		writeBits(symbols[1], 8);
+	    }
+	    return;
+	}
+	writeBits(0, 1);
+	// 以16(重複前一個長度)、17和18(重複0)壓縮編碼長度
+	final int size = lengths.length;
+	final int[] tokens = new int[size];
+	final int[] extras = new int[size];
+	int numTokens = 0;
+	int prevLength = 8;
+	for (int i = 0; i < size;) {
+	    final int value = lengths[i];
+	    int run = 1;
+	    while (i + run < size && lengths[i + run] == value) {
+		++run;
+	    }
+	    i += run;
+	    if (value == 0) {
+		while (run > 0) {
+		    if (run >= 11) {
+			final int r = Math.min(run, 138);
+			tokens[numTokens] = 18;
+			extras[numTokens++] = r - 11;
+			run -= r;
+		    } else if (run >= 3) {
+			tokens[numTokens] = 17;
+			extras[numTokens++] = run - 3;
+			run = 0;
+		    } else {
+			tokens[numTokens++] = 0;
+			--run;
+		    }
+		}
+	    } else {
+		if (value != prevLength) {
+		    tokens[numTokens++] = value;
+		    prevLength = value;
+		    --run;
+		}
+		while (run > 0) {
+		    if (run >= 3) {
+			final int r = Math.min(run, 6);
+			tokens[numTokens] = 16;
+			extras[numTokens++] = r - 3;
+			run -= r;
+		    } else {
+			tokens[numTokens++] = value;
+			--run;
+		    }
+		}
+	    }
+	}
+	final int[] histogram = new int[VP8LDecoder.CODE_LENGTH_CODE_ORDER.length];
+	for (int i = 0; i < numTokens; ++i) {
+	    ++histogram[tokens[i]];
+	}
+	final int[] codeLengths = huffmanLengths(histogram, 7);
+	final int[] codes = huffmanCodes(codeLengths);
+	int numCodes = VP8LDecoder.CODE_LENGTH_CODE_ORDER.length;
+	while (numCodes > 4 && codeLengths[VP8LDecoder.CODE_LENGTH_CODE_ORDER[numCodes - 1]] == 0) {
+	    --numCodes;
+	}
+	writeBits(numCodes - 4, 4);
+	for (int i = 0; i < numCodes; ++i) {
+	    writeBits(codeLengths[VP8LDecoder.CODE_LENGTH_CODE_ORDER[i]], 3);
+	}
+	writeBits(0, 1); // 編碼所有的符號
+	int usedCodes = 0;
+	for (final int len : codeLengths) {
+	    if (len > 0) {
+		++usedCodes;
+	    }
+	}
+	final boolean single = usedCodes <= 1;
+	for (int i = 0; i < numTokens; ++i) {
+	    final int token = tokens[i];
+	    writeSymbol(token, codeLengths, codes, single);
+	    if (token == 16) {
+		writeBits(extras[i], 2);
+	    } else if (token == 17) {
+		writeBits(extras[i], 3);
+	    } else if (token == 18) {
+		writeBits(extras[i], 7);
+	    }
+	}
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * WebP圖片的解碼器。</p>
+ *
+ * <p>
+ * 完全以Java實作，不需要原生函式庫。支援簡單格式(VP8、VP8L)與延伸格式(VP8X)，包括透明度(ALPH)與動畫(ANIM、ANMF)。動畫的每個畫格都會依照偏移、混合與處置方式合成到整個畫布上，再各自輸出成一個BufferedImage。</p>
+ *
+ * @author Magic Len
+ * @see VP8Decoder
+ * @see VP8LDecoder
+ */
+final class WebPDecoder {
+
+    // -----類別常數-----
+    /**
+     * VP8X中，有ICC色彩描述檔的旗標。
+     */
+    static final int ICC_FLAG = 0x20;
+    /**
+     * VP8X中，有透明度的旗標。
+     */
+    static final int ALPHA_FLAG = 0x10;
+    /**
+     * VP8X中，有EXIF的旗標。
+     */
+    static final int EXIF_FLAG = 0x08;
+    /**
+     * VP8X中，有XMP的旗標。
+     */
+    static final int XMP_FLAG = 0x04;
+    /**
+     * VP8X中，有動畫的旗標。
+     */
+    static final int ANIMATION_FLAG = 0x02;
+
+    // -----類別方法-----
+    /**
+     * 判斷資料是否為WebP圖片。
+     *
+     * @param data 傳入圖片檔案的資料，位置0為檔案的開頭
+     * @return 傳回資料是否為WebP圖片
+     */
+    static boolean isWebP(final ByteBuffer data) {
+	return data.limit() >= 16 && data.get(0) == 'R' && data.get(1) == 'I' && data.get(2) == 'F' && data.get(3) == 'F' && data.get(8) == 'W' && data.get(9) == 'E' && data.get(10) == 'B' && data.get(11) == 'P';
+    }
+
+    /**
+     * 判斷檔案是否為WebP圖片。只會讀取檔頭。
+     *
+     * @param file 傳入圖片檔案
+     * @return 傳回檔案是否為WebP圖片
+     */
+    static boolean isWebP(final File file) {
+	if (file == null || !file.isFile()) {
+	    return false;
+	}
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    final ByteBuffer header = ByteBuffer.allocate(16);
+	    ImageExif.readFully(channel, header, 0);
+	    header.flip();
+	    return isWebP(header);
+	} catch (final Exception ex) {
+	    return false;
+	}
+    }
+
+    /**
+     * 讀取WebP圖片的資訊，不會解碼像素。
+     *
+     * @param data 傳入圖片檔案的資料，位置0為檔案的開頭
+     * @return 傳回圖片的資訊
+     * @throws IOException 資料不正確時拋出
+     */
+    static Info readInfo(final ByteBuffer data) throws IOException {
+	final ByteBuffer buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	buffer.clear();
+	final int end = riffEnd(buffer);
+	final Info info = new Info();
+	int position = 12;
+	final String first = fourCC(buffer, position);
+	final int size = buffer.getInt(position + 4);
+	if (first.equals("VP8X")) {
+	    final int flags = buffer.get(position + 8) & 0xFF;
+	    info.width = le24(buffer, position + 12) + 1;
+	    info.height = le24(buffer, position + 15) + 1;
+	    info.alpha = (flags & ALPHA_FLAG) != 0;
+	    info.frames = (flags & ANIMATION_FLAG) != 0 ? 0 : 1;
+	    position += 8 + size + (size & 1);
+	    boolean codecFound = false;
+	    while (position + 8 <= end) {
+		final String tag = fourCC(buffer, position);
+		final int chunkSize = buffer.getInt(position + 4);
+		if (chunkSize < 0) {
+		    break;
+		}
+		if (tag.equals("ANMF")) {
+		    ++info.frames;
+		    if (!codecFound && position + 24 + 8 <= end) {
+			final String frameTag = fourCC(buffer, position + 24);
+			if (frameTag.equals("ALPH")) {
+			    codecFound = true;
+			} else if (frameTag.equals("VP8L") || frameTag.equals("VP8 ")) {
+			    codecFound = true;
+			    info.lossless = frameTag.equals("VP8L");
+			}
+		    }
+		} else if (!codecFound && tag.equals("VP8L")) {
+		    codecFound = true;
+		    info.lossless = true;
+		} else if (!codecFound && (tag.equals("VP8 ") || tag.equals("ALPH"))) {
+		    codecFound = true;
+		}
+		position += 8 + chunkSize + (chunkSize & 1);
+	    }
+	} else if (first.equals("VP8L")) {
+	    if (position + 13 > end || (buffer.get(position + 8) & 0xFF) != VP8LDecoder.SIGNATURE) {
+		throw new IOException("Bad VP8L signature.");
+	    }
+	    final int bits = buffer.getInt(position + 9);
+	    info.width = (bits & 0x3FFF) + 1;
+	    info.height = ((bits >>> 14) & 0x3FFF) + 1;
+	    info.alpha = ((bits >>> 28) & 1) != 0;
+	    info.lossless = true;
+	    info.frames = 1;
+	} else if (first.equals("VP8 ")) {
+	    if (position + 18 > end) {
+		throw new IOException("The VP8 data is too short.");
+	    }
+	    info.width = (buffer.getShort(position + 14) & 0xFFFF) & 0x3FFF;
+	    info.height = (buffer.getShort(position + 16) & 0xFFFF) & 0x3FFF;
+	    info.frames = 1;
+	} else {
+	    throw new IOException("Unknown WebP chunk: " + first);
+	}
+	return info;
+    }
+
+    /**
+     * 解碼WebP圖片。
+     *
+     * @param data 傳入圖片檔案的資料，位置0為檔案的開頭
+     * @return 傳回BufferedImage物件，動畫的每個畫格都是一個物件
+     * @throws IOException 資料不正確時拋出
+     */
+    static BufferedImage[] decode(final ByteBuffer data) throws IOException {
+	final ByteBuffer buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	buffer.clear();
+	final int end = riffEnd(buffer);
+	final byte[] bytes = new byte[end];
+	buffer.get(bytes);
+	buffer.clear();
+	if (!fourCC(buffer, 12).equals("VP8X")) {
+	    final Frame frame = decodeFrame(bytes, 12, end);
+	    return new BufferedImage[]{frame.toBufferedImage()};
+	}
+	final int flags = bytes[20] & 0xFF;
+	final int canvasWidth = le24(buffer, 24) + 1;
+	final int canvasHeight = le24(buffer, 27) + 1;
+	final int vp8xSize = buffer.getInt(16);
+	final int start = 20 + vp8xSize + (vp8xSize & 1);
+	if ((flags & ANIMATION_FLAG) == 0) {
+	    final Frame frame = decodeFrame(bytes, start, end);
+	    return new BufferedImage[]{frame.toBufferedImage()};
+	}
+	if ((long) canvasWidth * canvasHeight > Integer.MAX_VALUE) {
+	    throw new IOException("The WebP canvas is too large.");
+	}
+	final int[] canvas = new int[canvasWidth * canvasHeight];
+	final List<BufferedImage> images = new ArrayList<>();
+	int disposeX = 0, disposeY = 0, disposeWidth = 0, disposeHeight = 0;
+	boolean dispose = false;
+	int position = start;
+	while (position + 8 <= end) {
+	    final String tag = fourCC(buffer, position);
+	    final int size = buffer.getInt(position + 4);
+	    final int payload = position + 8;
+	    if (size < 0 || payload + size > end) {
+		throw new IOException("Truncated WebP chunk: " + tag);
+	    }
+	    if (tag.equals("ANMF")) {
+		if (size < 16) {
+		    throw new IOException("Bad WebP animation frame.");
+		}
+		final int frameX = le24(buffer, payload) * 2;
+		final int frameY = le24(buffer, payload + 3) * 2;
+		final int frameWidth = le24(buffer, payload + 6) + 1;
+		final int frameHeight = le24(buffer, payload + 9) + 1;
+		final int frameFlags = bytes[payload + 15] & 0xFF;
+		if (frameX + frameWidth > canvasWidth || frameY + frameHeight > canvasHeight) {
+		    throw new IOException("The WebP animation frame is out of the canvas.");
+		}
+		if (dispose) {
+		    for (int y = disposeY; y < disposeY + disposeHeight; ++y) {
+			final int row = y * canvasWidth;
+			for (int x = disposeX; x < disposeX + disposeWidth; ++x) {
+			    canvas[row + x] = 0;
+			}
+		    }
+		}
+		final Frame frame = decodeFrame(bytes, payload + 16, payload + size);
+		if (frame.width != frameWidth || frame.height != frameHeight) {
+		    throw new IOException("The size of the WebP animation frame does not match.");
+		}
+		final boolean blend = (frameFlags & 2) == 0;
+		for (int y = 0; y < frameHeight; ++y) {
+		    final int row = (frameY + y) * canvasWidth + frameX;
+		    final int src = y * frameWidth;
+		    for (int x = 0; x < frameWidth; ++x) {
+			final int argb = frame.pixels[src + x];
+			canvas[row + x] = blend && (argb >>> 24) != 0xFF ? blendNonPremultiplied(argb, canvas[row + x]) : argb;
+		    }
+		}
+		final BufferedImage image = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
+		System.arraycopy(canvas, 0, ((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0, canvas.length);
+		images.add(image);
+		dispose = (frameFlags & 1) != 0;
+		disposeX = frameX;
+		disposeY = frameY;
+		disposeWidth = frameWidth;
+		disposeHeight = frameHeight;
+	    }
+	    position = payload + size + (size & 1);
+	}
+	if (images.isEmpty()) {
+	    throw new IOException("The WebP animation has no frame.");
+	}
+	return images.toArray(new BufferedImage[images.size()]);
+    }
+
+    /**
+     * 解碼一張圖片的位元串流，可以有ALPH區塊。會略過其他無關的區塊。
+     *
+     * @param data 傳入資料
+     * @param position 傳入第一個區塊的位置
+     * @param end 傳入資料的結束位置
+     * @return 傳回解碼的畫格
+     * @throws IOException 資料不正確時拋出
+     */
+    private static Frame decodeFrame(final byte[] data, int position, final int end) throws IOException {
+	int alphaPosition = -1, alphaSize = 0;
+	while (position + 8 <= end) {
+	    final int size = (data[position + 4] & 0xFF) | ((data[position + 5] & 0xFF) << 8) | ((data[position + 6] & 0xFF) << 16) | ((data[position + 7] & 0xFF) << 24);
+	    final int payload = position + 8;
+	    final String tag = new String(data, position, 4, "ISO-8859-1");
+	    if (size < 0 || payload + size > end) {
+		throw new IOException("Truncated WebP chunk: " + tag);
+	    }
+	    switch (tag) {
+		case "ALPH":
+		    alphaPosition = payload;
+		    alphaSize = size;
+		    break;
+		case "VP8 ": {
+		    final VP8Decoder decoder = new VP8Decoder(data, payload, size);
+		    final Frame frame = new Frame(decoder.getWidth(), decoder.getHeight(), decoder.decode(), alphaPosition >= 0);
+		    if (frame.alpha) {
+			decodeAlpha(data, alphaPosition, alphaSize, frame);
+		    }
+		    return frame;
+		}
+		case "VP8L": {
+		    final VP8LDecoder decoder = new VP8LDecoder(data, payload, size);
+		    return new Frame(decoder.getWidth(), decoder.getHeight(), decoder.decode(), decoder.hasAlpha());
+		}
+		default:
+		    break;
+	    }
+	    position = payload + size + (size & 1);
+	}
+	throw new IOException("No WebP image data.");
+    }
+
+    /**
+     * 解碼ALPH區塊，並放入畫格像素的透明度。
+     *
+     * @param data 傳入資料
+     * @param position 傳入ALPH區塊內容的位置
+     * @param size 傳入ALPH區塊內容的長度
+     * @param frame 傳入畫格
+     * @throws IOException 資料不正確時拋出
+     */
+    private static void decodeAlpha(final byte[] data, final int position, final int size, final Frame frame) throws IOException {
+	if (size < 1) {
+	    throw new IOException("Bad WebP alpha chunk.");
+	}
+	final int header = data[position] & 0xFF;
+	final int method = header & 3;
+	final int filter = (header >> 2) & 3;
+	if (method > 1 || (header >> 6) != 0) {
+	    throw new IOException("Unknown WebP alpha compression.");
+	}
+	final int width = frame.width, height = frame.height;
+	final int[] alpha = new int[width * height];
+	if (method == 0) {
+	    if (size - 1 < alpha.length) {
+		throw new IOException("Truncated WebP alpha chunk.");
+	    }
+	    for (int i = 0; i < alpha.length; ++i) {
+		alpha[i] = data[position + 1 + i] & 0xFF;
+	    }
+	} else {
+	    final int[] pixels = new VP8LDecoder(data, position + 1, size - 1, width, height).decode();
+	    for (int i = 0; i < alpha.length; ++i) {
+		alpha[i] = (pixels[i] >> 8) & 0xFF;
+	    }
+	}
+	for (int y = 0; y < height && filter != 0; ++y) {
+	    final int row = y * width;
+	    if (y == 0 || filter == 1) {
+		// 水平濾波；第一列一律使用水平濾波，第一個像素參考上方的像素
+		int pred = y == 0 ? 0 : alpha[row - width];
+		for (int x = 0; x < width; ++x) {
+		    pred = (alpha[row + x] + pred) & 0xFF;
+		    alpha[row + x] = pred;
+		}
+	    } else if (filter == 2) {
+		for (int x = 0; x < width; ++x) {
+		    alpha[row + x] = (alpha[row + x] + alpha[row - width + x]) & 0xFF;
+		}
+	    } else {
+		int top, topLeft = alpha[row - width], left = topLeft;
+		for (int x = 0; x < width; ++x) {
+		    top = alpha[row - width + x];
+		    left = (alpha[row + x] + VP8Decoder.clip8(left + top - topLeft)) & 0xFF;
+		    topLeft = top;
+		    alpha[row + x] = left;
+		}
+	    }
+	}
+	final int[] pixels = frame.pixels;
+	for (int i = 0; i < pixels.length; ++i) {
+	    pixels[i] = (pixels[i] & 0xFFFFFF) | (alpha[i] << 24);
+	}
+    }
+
+    /**
+     * 以非預乘的方式將來源像素混合到目標像素上。
+     *
+     * @param src 傳入來源像素
+     * @param dst 傳入目標像素
+     * @return 傳回混合後的像素
+     */
+    private static int blendNonPremultiplied(final int src, final int dst) {
+	final int srcA = src >>> 24;
+	if (srcA == 0) {
+	    return dst;
+	}
+	final int dstA = dst >>> 24;
+	final int dstFactorA = (dstA * (256 - srcA)) >> 8;
+	final int blendA = srcA + dstFactorA;
+	final long scale = (1L << 24) / blendA;
+	int result = blendA << 24;
+	for (int shift = 0; shift < 24; shift += 8) {
+	    final long blendUnscaled = ((src >> shift) & 0xFF) * srcA + ((dst >> shift) & 0xFF) * dstFactorA;
+	    result |= (int) (((blendUnscaled * scale) >> 24) & 0xFF) << shift;
+	}
+	return result;
+    }
+
+    /**
+     * 檢查RIFF檔頭，並計算資料的結束位置。
+     *
+     * @param buffer 傳入小端序的資料
+     * @return 傳回結束位置
+     * @throws IOException 資料不是WebP圖片時拋出
+     */
+    private static int riffEnd(final ByteBuffer buffer) throws IOException {
+	if (!isWebP(buffer) || buffer.limit() < 20) {
+	    throw new IOException("Not a WebP image.");
+	}
+	final long riffSize = buffer.getInt(4) & 0xFFFFFFFFL;
+	return (int) Math.min(buffer.limit(), riffSize + 8);
+    }
+
+    /**
+     * 讀取區塊的標籤。
+     *
+     * @param buffer 傳入資料
+     * @param position 傳入區塊的位置
+     * @return 傳回標籤
+     */
+    private static String fourCC(final ByteBuffer buffer, final int position) {
+	final char[] chars = new char[4];
+	for (int i = 0; i < 4; ++i) {
+	    chars[i] = (char) (buffer.get(position + i) & 0xFF);
+	}
+	return new String(chars);
+    }
+
+    /**
+     * 讀取24位元的小端序整數。
+     *
+     * @param buffer 傳入資料
+     * @param position 傳入位置
+     * @return 傳回數值
+     */
+    private static int le24(final ByteBuffer buffer, final int position) {
+	return (buffer.get(position) & 0xFF) | ((buffer.get(position + 1) & 0xFF) << 8) | ((buffer.get(position + 2) & 0xFF) << 16);
+    }
+
+    // -----建構子-----
+    /**
+     * 私有的建構子，將無法被實體化。
+     */
+    private WebPDecoder() {
+
+    }
+
+    // -----內部類別-----
+    /**
+     * WebP圖片的資訊。
+     */
+    static final class Info {
+
+	/**
+	 * 畫布的寬度。
+	 */
+	int width;
+	/**
+	 * 畫布的高度。
+	 */
+	int height;
+	/**
+	 * 是否有透明度。
+	 */
+	boolean alpha;
+	/**
+	 * 是否為無損壓縮(VP8L)。
+	 */
+	boolean lossless;
+	/**
+	 * 畫格的數量。
+	 */
+	int frames;
+    }
+
+    /**
+     * 解碼後的畫格。
+     */
+    private static final class Frame {
+
+	/**
+	 * 寬度。
+	 */
+	final int width;
+	/**
+	 * 高度。
+	 */
+	final int height;
+	/**
+	 * ARGB像素。
+	 */
+	final int[] pixels;
+	/**
+	 * 是否有透明度。
+	 */
+	final boolean alpha;
+
+	/**
+	 * 建構子。
+	 *
+	 * @param width 傳入寬度
+	 * @param height 傳入高度
+	 * @param pixels 傳入ARGB像素
+	 * @param alpha 傳入是否有透明度
+	 */
+	Frame(final int width, final int height, final int[] pixels, final boolean alpha) {
+	    this.width = width;
+	    this.height = height;
+	    this.pixels = pixels;
+	    this.alpha = alpha;
+	}
+
+	/**
+	 * 轉成BufferedImage物件。
+	 *
+	 * @return 傳回TYPE_INT_ARGB或TYPE_INT_RGB的BufferedImage物件
+	 */
+	BufferedImage toBufferedImage() {
+	    final BufferedImage image = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+	    System.arraycopy(pixels, 0, ((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0, pixels.length);
+	    return image;
+	}
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *
+ * Copyright 2015-2017 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicimage;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * WebP編碼器。</p>
+ *
+ * <p>
+ * 完全以Java實作，不需要原生函式庫。可以選擇有損壓縮(VP8)或無損壓縮(VP8L)。有損壓縮時，若圖片有透明度，透明度會以無損壓縮的ALPH區塊另外儲存，並使用延伸格式(VP8X)。設定完成之後，同一個WebPEncoder物件可以在多個執行緒中共用。</p>
+ *
+ * @author Magic Len
+ * @see ImageExport
+ * @see VP8Encoder
+ * @see VP8LEncoder
+ */
+public final class WebPEncoder {
+
+    // -----類別方法-----
+    /**
+     * 寫入32位元的整數，位元組順序為Little-Endian。
+     *
+     * @param out 傳入輸出串流
+     * @param value 傳入數值
+     * @throws IOException 寫入失敗時拋出
+     */
+    private static void writeInt(final OutputStream out, final int value) throws IOException {
+	out.write(value);
+	out.write(value >>> 8);
+	out.write(value >>> 16);
+	out.write(value >>> 24);
+    }
+
+    /**
+     * 寫入RIFF的標頭。
+     *
+     * @param out 傳入輸出串流
+     * @param size 傳入「WEBP」之後所有區塊的大小加上4
+     * @throws IOException 寫入失敗時拋出
+     */
+    private static void writeHeader(final OutputStream out, final int size) throws IOException {
+	out.write(new byte[]{'R', 'I', 'F', 'F'});
+	writeInt(out, size);
+	out.write(new byte[]{'W', 'E', 'B', 'P'});
+    }
+
+    /**
+     * 寫入區塊，長度為奇數時會補上一個0。
+     *
+     * @param out 傳入輸出串流
+     * @param fourCC 傳入區塊的名稱
+     * @param data 傳入區塊的內容
+     * @throws IOException 寫入失敗時拋出
+     */
+    private static void writeChunk(final OutputStream out, final String fourCC, final byte[] data) throws IOException {
+	for (int i = 0; i < 4; ++i) {
+	    out.write(fourCC.charAt(i));
+	}
+	writeInt(out, data.length);
+	out.write(data);
+	if ((data.length & 1) != 0) {
+	    out.write(0);
+	}
+    }
+
+    /**
+     * 計算區塊在檔案中佔用的大小。
+     *
+     * @param data 傳入區塊的內容
+     * @return 傳回區塊的大小，包括區塊標頭與補齊的位元組
+     */
+    private static int chunkSize(final byte[] data) {
+	return 8 + data.length + (data.length & 1);
+    }
+
+    // -----物件變數-----
+    /**
+     * 是否使用無損壓縮。
+     */
+    private boolean lossless;
+    /**
+     * 品質(0~1)。有損壓縮時為畫質，無損壓縮時為壓縮的努力程度。
+     */
+    private float quality = 0.75f;
+
+    // -----建構子-----
+    /**
+     * 建構子，使用品質為0.75的有損壓縮。
+     */
+    public WebPEncoder() {
+
+    }
+
+    /**
+     * 建構子。
+     *
+     * @param lossless 傳入是否使用無損壓縮
+     * @param quality 傳入品質(0~1)。有損壓縮時為畫質，無損壓縮時為壓縮的努力程度
+     */
+    public WebPEncoder(final boolean lossless, final float quality) {
+	setLossless(lossless);
+	setQuality(quality);
+    }
+
+    // -----物件方法-----
+    /**
+     * 設定是否使用無損壓縮。
+     *
+     * @param lossless 傳入是否使用無損壓縮
+     */
+    public void setLossless(final boolean lossless) {
+	this.lossless = lossless;
+    }
+
+    /**
+     * 取得是否使用無損壓縮。
+     *
+     * @return 傳回是否使用無損壓縮
+     */
+    public boolean isLossless() {
+	return lossless;
+    }
+
+    /**
+     * 設定品質。有損壓縮時，品質越高，畫質越好，檔案越大；無損壓縮時，品質越高，壓縮得越久，檔案越小。
+     *
+     * @param quality 傳入品質(0~1)
+     */
+    public void setQuality(final float quality) {
+	this.quality = Math.min(Math.max(quality, 0), 1);
+    }
+
+    /**
+     * 取得品質。
+     *
+     * @return 傳回品質(0~1)
+     */
+    public float getQuality() {
+	return quality;
+    }
+
+    /**
+     * 將BufferedImage物件編碼成WebP格式。
+     *
+     * @param bi 傳入要編碼的BufferedImage物件
+     * @param out 傳入輸出串流，編碼完成後不會被關閉
+     * @throws IOException 圖片太大或是寫入失敗時拋出
+     */
+    public void encode(final BufferedImage bi, final OutputStream out) throws IOException {
+	encode(bi, null, out);
+    }
+
+    /**
+     * 將BufferedImage物件編碼成WebP格式。使用已經計算好的統計資料判斷是否需要透明度，不會再掃描一次圖片。
+     *
+     * @param bi 傳入要編碼的BufferedImage物件
+     * @param statistics 傳入這個BufferedImage物件的統計資料，若為null，則重新掃描圖片
+     * @param out 傳入輸出串流，編碼完成後不會被關閉
+     * @throws IOException 圖片太大或是寫入失敗時拋出
+     */
+    public void encode(final BufferedImage bi, final ImageStatistics statistics, final OutputStream out) throws IOException {
+	final int width = bi.getWidth(), height = bi.getHeight();
+	final int[] argb = bi.getRGB(0, 0, width, height, null, 0, width);
+	final boolean alpha = !ImageStatistics.isOpaque(bi, statistics);
+	if (lossless) {
+	    final byte[] vp8l = VP8LEncoder.encode(argb, width, height, alpha, quality);
+	    writeHeader(out, 4 + chunkSize(vp8l));
+	    writeChunk(out, "VP8L", vp8l);
+	} else {
+	    final byte[] vp8 = VP8Encoder.encode(argb, width, height, quality);
+	    if (!alpha) {
+		writeHeader(out, 4 + chunkSize(vp8));
+		writeChunk(out, "VP8 ", vp8);
+	    } else {
+		// 透明度放在綠色通道，以無損壓縮、不濾波的方式儲存
+		final int[] green = new int[argb.length];
+		for (int i = 0; i < argb.length; ++i) {
+		    green[i] = 0xFF000000 | ((argb[i] >>> 24) << 8);
+		}
+		final byte[] stream = VP8LEncoder.encodeImageStream(green, width, height, quality);
+		final byte[] alph = new byte[1 + stream.length];
+		alph[0] = 1; // 壓縮方式
+		System.arraycopy(stream, 0, alph, 1, stream.length);
+		final byte[] vp8x = new byte[10];
+		vp8x[0] = (byte) WebPDecoder.ALPHA_FLAG;
+		vp8x[4] = (byte) (width - 1);
+		vp8x[5] = (byte) ((width - 1) >> 8);
+		vp8x[6] = (byte) ((width - 1) >> 16);
+		vp8x[7] = (byte) (height - 1);
+		vp8x[8] = (byte) ((height - 1) >> 8);
+		vp8x[9] = (byte) ((height - 1) >> 16);
+		writeHeader(out, 4 + chunkSize(vp8x) + chunkSize(alph) + chunkSize(vp8));
+		writeChunk(out, "VP8X", vp8x);
+		writeChunk(out, "ALPH", alph);
+		writeChunk(out, "VP8 ", vp8);
+	    }
+	}
+	out.flush();
+    }
+}